@@ -0,0 +1,49 @@
+package org.bigbase.textprovider.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.bigbase.textprovider.FileIndex;
+
+/**
+ *
+ * Text files and indexes used by benchmarks. Files are generated in a directory
+ * set by "bench.dir" system property (default: java.io.tmpdir) and are reused
+ * by following runs with the same parameters.
+ *
+ */
+final class BenchmarkFiles {
+
+  private BenchmarkFiles() {
+  }
+
+  /**
+   * Get (generate if needed) text file
+   * @param size file size
+   * @param meanLineLength mean line length
+   * @param tag file name suffix, files with different indexes must have different tags
+   * @return text file path
+   * @throws IOException
+   */
+  static Path textFile(long size, int meanLineLength, String tag) throws IOException {
+    Path dir = Path.of(System.getProperty("bench.dir", System.getProperty("java.io.tmpdir")));
+    Path file = dir.resolve("bench-" + size + "-" + meanLineLength + "-" + tag + ".txt");
+    if (!Files.exists(file) || Files.size(file) < size) {
+      new TextFileGenerator().size(size).meanLineLength(meanLineLength).generate(file);
+    }
+    return file;
+  }
+
+  /**
+   * Get (create if needed) index of a text file
+   * @param file text file
+   * @param format index format
+   * @return file index
+   * @throws IOException
+   */
+  static FileIndex index(Path file, FileIndex.Format format) throws IOException {
+    FileIndex.openOrCreate(file.toString(), format);
+    return FileIndex.getIndexFor(file.toString());
+  }
+}
@@ -0,0 +1,75 @@
+package org.bigbase.textprovider.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.bigbase.textprovider.commands.Command;
+import org.bigbase.textprovider.commands.Request;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Command lookup and GET argument parsing.
+ *
+ * request - in place parsing of a direct input buffer and a command table lookup
+ * (what request handler does).
+ * string - String based parsing: copy of a request into a String, split and
+ * Long.parseLong of arguments, allocates on every request.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParsingBenchmark {
+
+  @Param({"GET 1234567"})
+  public String cmd;
+
+  private ByteBuffer input;
+  private int length;
+  private final Request request = new Request();
+
+  @Setup
+  public void setUp() {
+    byte[] bytes = (cmd + "\r\n").getBytes();
+    input = ByteBuffer.allocateDirect(16 * 1024);
+    input.put(bytes);
+    length = bytes.length - 2;
+  }
+
+  @Benchmark
+  public long request() {
+    request.parse(input, 0, length);
+    Command c = Command.getCommand(request);
+    return request.isNumber(0) ? request.getLong(0) + c.hashCode() : c.hashCode();
+  }
+
+  @Benchmark
+  public long string() {
+    byte[] arr = new byte[length];
+    for (int i = 0; i < length; i++) {
+      arr[i] = input.get(i);
+    }
+    String s = new String(arr);
+    Command c = Command.getCommand(s);
+    String[] parts = s.split(" ");
+    try {
+      return Long.parseLong(parts[1]) + c.hashCode();
+    } catch (NumberFormatException e) {
+      return c.hashCode();
+    }
+  }
+}
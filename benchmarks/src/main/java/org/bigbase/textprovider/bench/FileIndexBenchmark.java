@@ -0,0 +1,90 @@
+package org.bigbase.textprovider.bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.bigbase.textprovider.FileIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Index lookup latency: {@link FileIndex#getRange(long, FileIndex.Range)}.
+ *
+ * warm - lookups of a small hot set of lines, index pages and CPU caches are warm.
+ * cold - uniformly random lines over the whole index, which is re-mapped before every
+ * iteration, so lookups pay page faults and cache misses. To include disk reads, drop
+ * the OS page cache before a run (echo 3 > /proc/sys/vm/drop_caches) and use a file
+ * larger than RAM.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileIndexBenchmark {
+
+  /* Number of lines in a warm set */
+  private final static int HOT_LINES = 1024;
+
+  @Param({"256M"})
+  public String fileSize;
+
+  @Param({"80"})
+  public int lineLength;
+
+  @Param({"DENSE", "COMPACT"})
+  public FileIndex.Format format;
+
+  private Path file;
+  private FileIndex index;
+  private long totalLines;
+
+  @State(Scope.Thread)
+  public static class Holder {
+    final FileIndex.Range range = new FileIndex.Range();
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    file = BenchmarkFiles.textFile(TextFileGenerator.parseSize(fileSize), lineLength,
+      format.name().toLowerCase());
+    index = BenchmarkFiles.index(file, format);
+    totalLines = index.getTotalLines();
+  }
+
+  @Setup(Level.Iteration)
+  public void remap() throws IOException {
+    // New mapping, pages are touched again
+    index.close();
+    index = FileIndex.getIndexFor(file.toString());
+  }
+
+  @Benchmark
+  public long warm(Holder h) {
+    long line = 1 + ThreadLocalRandom.current().nextInt(HOT_LINES);
+    index.getRange(line, h.range);
+    return h.range.offset + h.range.size;
+  }
+
+  @Benchmark
+  public long cold(Holder h) {
+    long line = 1 + ThreadLocalRandom.current().nextLong(totalLines);
+    index.getRange(line, h.range);
+    return h.range.offset + h.range.size;
+  }
+}
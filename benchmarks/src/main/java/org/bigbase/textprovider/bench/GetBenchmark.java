@@ -0,0 +1,130 @@
+package org.bigbase.textprovider.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bigbase.textprovider.Connection;
+import org.bigbase.textprovider.FileIndex;
+import org.bigbase.textprovider.commands.Command;
+import org.bigbase.textprovider.commands.Request;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * End-to-end GET: request parsing, command execution and sending a response to a
+ * loopback socket. A background thread reads and discards responses on a client side.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetBenchmark {
+
+  /* Number of pre-built requests */
+  private final static int REQUESTS = 4096;
+
+  @Param({"64M"})
+  public String fileSize;
+
+  @Param({"80"})
+  public int lineLength;
+
+  /* Lines are requested from 1..spread, 0 - whole file */
+  @Param({"1024", "0"})
+  public long spread;
+
+  /* Hot lines cache size in bytes, 0 - disabled */
+  @Param({"0", "16777216"})
+  public long cacheSize;
+
+  private ServerSocketChannel server;
+  private SocketChannel client;
+  private Connection conn;
+  private Thread reader;
+  private FileChannel file;
+  private FileIndex index;
+  private ByteBuffer[] requests;
+  private final Request request = new Request();
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    System.setProperty("textprovider.cache.size", Long.toString(cacheSize));
+    Path path = BenchmarkFiles.textFile(TextFileGenerator.parseSize(fileSize), lineLength, "get");
+    index = BenchmarkFiles.index(path, FileIndex.Format.fromConfig());
+    file = FileChannel.open(path, StandardOpenOption.READ);
+
+    long lines = spread > 0 ? Math.min(spread, index.getTotalLines()) : index.getTotalLines();
+    Random r = new Random(1);
+    requests = new ByteBuffer[REQUESTS];
+    for (int i = 0; i < REQUESTS; i++) {
+      byte[] req = ("GET " + (1 + (long) (r.nextDouble() * lines))).getBytes();
+      requests[i] = ByteBuffer.allocateDirect(req.length);
+      requests[i].put(req);
+    }
+
+    server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress("localhost", 0));
+    client = SocketChannel.open(server.getLocalAddress());
+    SocketChannel channel = server.accept();
+    channel.configureBlocking(false);
+    conn = new Connection(channel);
+    reader = new Thread(() -> {
+      ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+      try {
+        while (client.read(buf) >= 0) {
+          buf.clear();
+        }
+      } catch (IOException e) {
+        // closed
+      }
+    }, "bench-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException, InterruptedException {
+    conn.close();
+    client.close();
+    server.close();
+    reader.join(1000);
+    file.close();
+    index.close();
+  }
+
+  @Benchmark
+  public boolean get() throws IOException {
+    ByteBuffer buf = requests[next++ & (REQUESTS - 1)];
+    request.parse(buf, 0, buf.capacity());
+    Command cmd = Command.getCommand(request);
+    cmd.execute(request, file, index, conn);
+    while (!conn.flush()) {
+      Thread.onSpinWait();
+    }
+    return true;
+  }
+}
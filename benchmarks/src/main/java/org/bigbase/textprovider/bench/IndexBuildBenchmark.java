@@ -0,0 +1,71 @@
+package org.bigbase.textprovider.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.bigbase.textprovider.FileIndex;
+import org.bigbase.textprovider.IndexBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Index build throughput. Score is a time of a full build of a text file,
+ * throughput is fileSize / score (IndexBuilder also logs MB/s).
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexBuildBenchmark {
+
+  @Param({"1G"})
+  public String fileSize;
+
+  @Param({"80"})
+  public int lineLength;
+
+  @Param({"DENSE", "COMPACT"})
+  public FileIndex.Format format;
+
+  /* 0 - number of available processors */
+  @Param({"0"})
+  public int parallelism;
+
+  private Path file;
+  private Path indexPath;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    file = BenchmarkFiles.textFile(TextFileGenerator.parseSize(fileSize), lineLength, "build");
+    indexPath = Files.createTempFile("bench", ".index");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(indexPath);
+  }
+
+  @Benchmark
+  public long build() throws IOException {
+    int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    return new IndexBuilder(threads, IndexBuilder.DEFAULT_CHUNK_SIZE, format,
+      FileIndex.DEFAULT_BLOCK_LINES).build(file, indexPath);
+  }
+}
@@ -0,0 +1,202 @@
+package org.bigbase.textprovider.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ *
+ * Generates synthetic text files for benchmarks.
+ * Configurable: total file size, line length distribution, encoding of line content
+ * and line terminators. Generation is deterministic for a given seed.
+ *
+ * Usage: TextFileGenerator <file> <size>[K|M|G] [distribution] [encoding] [terminator] [seed]
+ *
+ */
+public class TextFileGenerator {
+
+  /**
+   * Line length distribution
+   */
+  public static enum Distribution {
+    /* All lines have the same (mean) length */
+    FIXED,
+    /* Uniform in [0, 2 * mean] */
+    UNIFORM,
+    /* Exponential with a given mean: many short lines and a long tail */
+    EXPONENTIAL;
+  }
+
+  /**
+   * Line content encoding
+   */
+  public static enum Encoding {
+    /* Printable ASCII */
+    ASCII,
+    /* UTF-8 mix of 1, 2 and 3 byte characters */
+    UTF8;
+  }
+
+  /**
+   * Line terminator
+   */
+  public static enum Terminator {
+    LF,
+    CRLF,
+    /* LF or CRLF, chosen randomly for every line */
+    MIXED;
+  }
+
+  /* Cyrillic and CJK code points for multi-byte UTF-8 characters */
+  private final static int[] MULTI_BYTE = new int[] {0x0410, 0x044F, 0x4E00, 0x4FFF};
+
+  private long size = 1L << 20;
+  private int meanLineLength = 80;
+  private Distribution distribution = Distribution.UNIFORM;
+  private Encoding encoding = Encoding.ASCII;
+  private Terminator terminator = Terminator.LF;
+  private long seed = 1;
+
+  public TextFileGenerator size(long size) {
+    this.size = size;
+    return this;
+  }
+
+  public TextFileGenerator meanLineLength(int meanLineLength) {
+    this.meanLineLength = meanLineLength;
+    return this;
+  }
+
+  public TextFileGenerator distribution(Distribution distribution) {
+    this.distribution = distribution;
+    return this;
+  }
+
+  public TextFileGenerator encoding(Encoding encoding) {
+    this.encoding = encoding;
+    return this;
+  }
+
+  public TextFileGenerator terminator(Terminator terminator) {
+    this.terminator = terminator;
+    return this;
+  }
+
+  public TextFileGenerator seed(long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  /**
+   * Generates file
+   * @param path file path
+   * @return number of lines
+   * @throws IOException
+   */
+  public long generate(Path path) throws IOException {
+    Random r = new Random(seed);
+    long lines = 0;
+    long written = 0;
+    byte[] line = new byte[16];
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 20)) {
+      while (written < size) {
+        int length = (int) Math.min(nextLength(r), size - written);
+        if (line.length < length + 2) {
+          line = new byte[Math.max(line.length * 2, length + 2)];
+        }
+        int n = fill(r, line, length);
+        boolean crlf = terminator == Terminator.CRLF ||
+            (terminator == Terminator.MIXED && r.nextBoolean());
+        if (crlf) {
+          line[n++] = '\r';
+        }
+        line[n++] = '\n';
+        out.write(line, 0, n);
+        written += n;
+        lines++;
+      }
+    }
+    return lines;
+  }
+
+  private int nextLength(Random r) {
+    switch (distribution) {
+      case FIXED:
+        return meanLineLength;
+      case EXPONENTIAL:
+        return (int) Math.min(Integer.MAX_VALUE / 2, -meanLineLength * Math.log(1 - r.nextDouble()));
+      default:
+        return r.nextInt(2 * meanLineLength + 1);
+    }
+  }
+
+  /**
+   * Fills line content
+   * @return content size in bytes, it is not less than length - 2
+   *   and not greater than length
+   */
+  private int fill(Random r, byte[] buf, int length) {
+    int i = 0;
+    while (i < length) {
+      if (encoding == Encoding.UTF8 && length - i >= 3 && r.nextInt(4) == 0) {
+        int k = r.nextInt(2) * 2;
+        int cp = MULTI_BYTE[k] + r.nextInt(MULTI_BYTE[k + 1] - MULTI_BYTE[k] + 1);
+        if (cp < 0x800) {
+          buf[i++] = (byte) (0xC0 | (cp >> 6));
+        } else {
+          buf[i++] = (byte) (0xE0 | (cp >> 12));
+          buf[i++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        }
+        buf[i++] = (byte) (0x80 | (cp & 0x3F));
+      } else {
+        // printable ASCII
+        buf[i++] = (byte) (' ' + r.nextInt(95));
+      }
+    }
+    return i;
+  }
+
+  /**
+   * Parses size with an optional K, M or G suffix
+   * @param s size string
+   * @return size in bytes
+   */
+  static long parseSize(String s) {
+    char unit = Character.toUpperCase(s.charAt(s.length() - 1));
+    int shift = unit == 'K' ? 10 : unit == 'M' ? 20 : unit == 'G' ? 30 : 0;
+    String num = shift == 0 ? s : s.substring(0, s.length() - 1);
+    return Long.parseLong(num) << shift;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.out.println("Usage: TextFileGenerator <file> <size>[K|M|G] " +
+          "[fixed|uniform|exponential[:mean]] [ascii|utf8] [lf|crlf|mixed] [seed]");
+      System.exit(-1);
+    }
+    TextFileGenerator gen = new TextFileGenerator().size(parseSize(args[1]));
+    if (args.length > 2) {
+      String[] dist = args[2].split(":");
+      gen.distribution(Distribution.valueOf(dist[0].toUpperCase()));
+      if (dist.length > 1) {
+        gen.meanLineLength(Integer.parseInt(dist[1]));
+      }
+    }
+    if (args.length > 3) {
+      gen.encoding(Encoding.valueOf(args[3].toUpperCase()));
+    }
+    if (args.length > 4) {
+      gen.terminator(Terminator.valueOf(args[4].toUpperCase()));
+    }
+    if (args.length > 5) {
+      gen.seed(Long.parseLong(args[5]));
+    }
+    long start = System.currentTimeMillis();
+    long lines = gen.generate(Path.of(args[0]));
+    System.out.printf("Generated %s: %d lines in %d ms%n", args[0], lines,
+      System.currentTimeMillis() - start);
+  }
+}
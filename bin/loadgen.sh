@@ -0,0 +1,25 @@
+#!/usr/bin/env bash
+
+START_HOME=$PWD
+
+cd "${START_HOME}" || exit
+
+. ./setenv.sh
+
+libdir="${START_HOME}/../lib/${RELEASE}"
+if [ ! -d "${libdir}" ]; then
+  mkdir -p "${libdir}"
+  cd "${libdir}" || exit 1
+  tar zxf "${START_HOME}/../dist/target/${DISTRIBUTION}" &>/dev/null
+  cd "${START_HOME}" || exit 1
+fi
+for ix in $(find "${libdir}"); do
+  CPATH=${ix}\:${CPATH}
+done
+
+export JVM_OPTS="-cp .:${CPATH}"
+
+#==== main =====
+# All arguments are passed to the load generator, for example:
+# ./loadgen.sh --connections 64 --depth 8 --distribution zipf --duration 60
+exec java ${JVM_OPTS} ${LOADGEN_OPTS} org.bigbase.textprovider.tools.LoadGenerator "$@"
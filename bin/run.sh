@@ -22,7 +22,7 @@ export JVM_OPTS="-cp .:${CPATH}"
 #===== start server =====
 start() {
 
-  exec_cmd="java ${JVM_OPTS} org.bigbase.textprovider.Server ${APPS_PARAMS}"
+  exec_cmd="java ${JVM_OPTS} ${SERVER_OPTS} org.bigbase.textprovider.Server ${APPS_PARAMS}"
   #echo "${exec_cmd}"
   mkdir -p logs
   nohup ${exec_cmd} >>logs/server-stdout.log &
@@ -37,8 +37,8 @@ start() {
 java -version
 if [ $# -eq 0 ]
   then
-    echo "Absolute path to a text file is expected. Aborting ..."
+    echo "Absolute path to a text file ([name=]path, one or more) is expected. Aborting ..."
     exit 1
 fi
-APPS_PARAMS=$1
+APPS_PARAMS="$@"
 start
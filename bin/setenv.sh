@@ -6,3 +6,8 @@
 export RELEASE=1.0
 export DISTRIBUTION=textprovider-${RELEASE}.tar.gz
 export APP_OPTS="-Dlog4j.configurationFile=conf/log4j2.xml"
+# Server configuration (system properties), for example:
+# export SERVER_OPTS="-Dtextprovider.index.format=compact"
+export SERVER_OPTS="${SERVER_OPTS:-}"
+# Load generator JVM options (bin/loadgen.sh)
+export LOADGEN_OPTS="${LOADGEN_OPTS:-}"
@@ -0,0 +1,203 @@
+package org.bigbase.textprovider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.textprovider.commands.Command;
+import org.bigbase.textprovider.metrics.Metrics;
+
+/**
+ *
+ * Binary protocol. A client selects it by sending {@link #HANDSHAKE} as the first byte
+ * of a connection, the server acknowledges it with the same byte. Requests and replies
+ * are length-prefixed frames (big endian), so neither side scans for terminators and
+ * lines which contain CRLF are sent as is:
+ *
+ * request: opcode (1 byte), request id (4 bytes), payload length (4 bytes), payload
+ * reply: status (1 byte), request id (4 bytes), payload length (4 bytes), payload
+ *
+ * Opcodes:
+ * {@link #OP_GET} - payload: line number (8 bytes) and an optional file name, reply payload:
+ * line bytes (without a terminator). Line is sent with zero-copy: a frame header is written
+ * with a gathering write, line bytes follow with a file transfer.
+ * {@link #OP_COMMAND} - payload: a text protocol request without CRLF, reply payload:
+ * its text response. Long running commands (SCAN) are not supported.
+ *
+ * Replies carry request ids and may complete out of order: when an event loop offloads
+ * blocking requests, every GET which is not cached is executed by a worker on its own,
+ * so a slow cold-disk GET does not delay the following requests of a batch (requests
+ * received together). The next batch is read when all replies of a connection are queued.
+ *
+ */
+public final class BinaryProtocol {
+  private final static Logger log = LogManager.getLogger(BinaryProtocol.class);
+
+  /* Handshake byte, it is not a valid first byte of a text request */
+  public final static byte HANDSHAKE = (byte) 0xB1;
+
+  /* Frame header size, both requests and replies */
+  public final static int HEADER_SIZE = 9;
+
+  /* Offset of a payload length in a frame header */
+  final static int LENGTH_OFFSET = 5;
+
+  /* Opcodes */
+  public final static byte OP_GET = 1;
+  public final static byte OP_COMMAND = 2;
+
+  /* Reply statuses */
+  public final static byte STATUS_OK = 0;
+  public final static byte STATUS_ERR = 1;
+  public final static byte STATUS_BUSY = 2;
+
+  /* GET command, binary GETs are counted in its stats */
+  final static Command GET = Command.getCommand("GET");
+
+  private BinaryProtocol() {
+  }
+
+  /**
+   * Creates reply frame header
+   * @param status reply status
+   * @param id request id
+   * @param length payload length
+   * @return header buffer, ready to be sent
+   */
+  static ByteBuffer header(byte status, int id, int length) {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.put(status).putInt(id).putInt(length).flip();
+    return header;
+  }
+
+  /**
+   * Sends reply without a payload
+   * @param conn client connection
+   * @param status reply status
+   * @param id request id
+   */
+  static void reply(Connection conn, byte status, int id) {
+    conn.send(header(status, id, 0));
+  }
+
+  /**
+   * Executes GET. Line is sent from a line cache or with a zero-copy file transfer
+   * @param conn client connection
+   * @param file text file
+   * @param index file index
+   * @param lineNumber line number
+   * @param id request id
+   * @throws IOException
+   */
+  static void get(Connection conn, FileChannel file, FileIndex index, long lineNumber, int id)
+      throws IOException {
+    LineCache cache = index.getLineCache();
+    ByteBuffer response = cache == null ? null : cache.get(lineNumber);
+    FileIndex.Range range = conn.getRange();
+    if (response == null) {
+      if (!index.getRange(lineNumber, range)) {
+        reply(conn, notFound(index, lineNumber), id);
+        return;
+      }
+      if (cache != null && range.terminator != 0) {
+        response = cache.load(lineNumber, file, range);
+      }
+    }
+    if (response != null) {
+      sendCached(conn, response, id);
+    } else {
+      conn.send(header(STATUS_OK, id, (int) range.size));
+      conn.send(file, range.offset, range.size);
+    }
+  }
+
+  /**
+   * Executes GET if its line is cached
+   * @param conn client connection
+   * @param index file index
+   * @param lineNumber line number
+   * @param id request id
+   * @return true if line has been sent
+   */
+  static boolean getCached(Connection conn, FileIndex index, long lineNumber, int id) {
+    LineCache cache = index.getLineCache();
+    ByteBuffer response = cache == null ? null : cache.get(lineNumber);
+    if (response == null) {
+      return false;
+    }
+    sendCached(conn, response, id);
+    return true;
+  }
+
+  /**
+   * Sends cached GET response: OK and CRLF of a pre-framed text response are skipped
+   */
+  private static void sendCached(Connection conn, ByteBuffer response, int id) {
+    response.position(Command.OK.length);
+    response.limit(response.limit() - Command.CRLF.length);
+    conn.send(header(STATUS_OK, id, response.remaining()));
+    conn.send(response);
+  }
+
+  private static byte notFound(FileIndex index, long lineNumber) {
+    // Line has not been indexed yet
+    return index.isBuilding() && lineNumber > 0 ? STATUS_BUSY : STATUS_ERR;
+  }
+
+  /**
+   * GET executed by a worker on its own, while a request handler goes on with requests
+   * which follow. Reply is read into memory and is handed to a connection as a single buffer,
+   * so the worker never blocks on a socket and replies do not interleave
+   */
+  static final class DetachedGet implements Runnable {
+    private final Connection conn;
+    private final FileRegistry.Snapshot snapshot;
+    private final long lineNumber;
+    private final int id;
+
+    /**
+     * Constructor
+     * @param conn client connection
+     * @param snapshot file snapshot, pinned by a connection
+     * @param lineNumber line number
+     * @param id request id
+     */
+    DetachedGet(Connection conn, FileRegistry.Snapshot snapshot, long lineNumber, int id) {
+      this.conn = conn;
+      this.snapshot = snapshot;
+      this.lineNumber = lineNumber;
+      this.id = id;
+    }
+
+    @Override
+    public void run() {
+      long startTime = System.nanoTime();
+      ByteBuffer reply;
+      try {
+        FileIndex index = snapshot.getIndex();
+        FileIndex.Range range = new FileIndex.Range();
+        if (index.getRange(lineNumber, range)) {
+          reply = ByteBuffer.allocate(HEADER_SIZE + (int) range.size);
+          reply.put(STATUS_OK).putInt(id).putInt((int) range.size);
+          FileChannel file = snapshot.getFile();
+          while (reply.hasRemaining()) {
+            if (file.read(reply, range.offset + reply.position() - HEADER_SIZE) < 0) {
+              throw new IOException("Unexpected end of file");
+            }
+          }
+          reply.flip();
+        } else {
+          reply = header(notFound(index, lineNumber), id, 0);
+        }
+      } catch (IOException e) {
+        // File can be closed with a connection
+        log.debug("[{}] GET failed", Thread.currentThread().getName(), e);
+        reply = header(STATUS_ERR, id, 0);
+      }
+      Metrics.forCommand(GET).record(System.nanoTime() - startTime);
+      conn.detachedDone(reply);
+    }
+  }
+}
@@ -0,0 +1,694 @@
+package org.bigbase.textprovider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.textprovider.commands.Request;
+import org.bigbase.textprovider.metrics.Metrics;
+
+/**
+ *
+ * Client connection state. It is attached to a connection's selection key and keeps
+ * input buffer (with a partial request, which has not been completely received yet),
+ * outbound queue of responses and in-use flag (only one request handler at a time
+ * can process a connection).
+ * 
+ * Connection is in-use from the moment its request is submitted for processing until
+ * all responses are sent. Read interest is removed while connection is in-use. If 
+ * responses can not be sent at once (slow reader), connection waits for OP_WRITE 
+ * and a selector thread resumes sending, so worker threads never wait on a socket.
+ * A long running request, which streams its responses, is parked while a client is slow
+ * and a selector thread resumes it (see {@link #awaitWritable()}).
+ *
+ * Requests of a binary protocol connection can be detached: executed by workers on their
+ * own (see {@link BinaryProtocol}). Connection stays in use until a batch and all its
+ * detached requests are done, replies are sent as they complete.
+ *
+ */
+public class Connection {
+  private final static Logger log = LogManager.getLogger(Connection.class);
+
+  /* Input buffer size, it limits maximum request length */
+  final static int INPUT_BUFFER_SIZE = 16 * 1024;
+
+  /* QUIT request, it cancels a long running request */
+  private final static byte[] QUIT = "QUIT\r\n".getBytes();
+
+  /* Maximum size of input received while a long running request is executed */
+  final static int MAX_PENDING_SIZE = 16 * INPUT_BUFFER_SIZE;
+
+  /* Wait of a long running request for a slow client, when no selector signals that 
+   * the client is writable (see awaitWritable) */
+  private final static long WRITE_WAIT_MILLIS = 1;
+
+  /* Weight of a batch being processed in a number of outstanding requests */
+  private final static int BATCH = 1 << 20;
+
+  /* Client socket channel */
+  private final SocketChannel channel;
+  /* Event loop which owns this connection, can be null */
+  private final EventLoop loop;
+  /* Selection key, can be null if connection is not registered with a selector */
+  private volatile SelectionKey key;
+  /* Input buffer, in a write mode between requests */
+  private final ByteBuffer input = ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE);
+  /* Responses to send */
+  private final OutboundQueue output = new OutboundQueue();
+  /* In-use flag */
+  private final AtomicBoolean busy = new AtomicBoolean();
+  /* Is connection closed */
+  private final AtomicBoolean closed = new AtomicBoolean();
+  /* Close connection once all queued responses are sent */
+  private volatile boolean closing;
+  /* Index lookup result holder, used by a thread which processes requests */
+  private final FileIndex.Range range = new FileIndex.Range();
+  /* Parsed request holder, used by a thread which processes requests */
+  private final Request request = new Request();
+  /* Selected text file (USE), null - default file */
+  private volatile FileRegistry.TextFile file;
+  /* Referenced file snapshots: responses in the outbound queue may read them */
+  private FileRegistry.Snapshot[] pinned = new FileRegistry.Snapshot[1];
+  /* Number of referenced files */
+  private int pinnedCount;
+  /* Readahead of sequential scans, created on first use */
+  private Readahead readahead;
+  /* Input received while a long running request is executed (see isCancelled) */
+  private ByteBuffer pending;
+  /* Pending input which has been searched for QUIT */
+  private int pendingChecked;
+  /* End of stream has been read into pending input: client has shut down its output */
+  private boolean pendingEnd;
+  /* Has protocol been negotiated (the first byte received) */
+  private boolean negotiated;
+  /* Binary protocol connection */
+  private boolean binary;
+  /* Batch being processed (BATCH) plus detached requests which have not completed */
+  private final AtomicInteger outstanding = new AtomicInteger(BATCH);
+  /* Replies of detached requests, queued when a batch is finished, so they do not split its frames */
+  private final ConcurrentLinkedQueue<ByteBuffer> detachedReplies = new ConcurrentLinkedQueue<>();
+  /* Completion lock: a batch or a detached request which finishes queues replies and sends them
+   * atomically with its count down, so it never touches the outbound queue of the next batch */
+  private final Object completionLock = new Object();
+  /* Long running request is parked until a selector thread signals the connection 
+   * (see awaitWritable), guarded by writeLock */
+  private boolean writeWaiting;
+  private final Object writeLock = new Object();
+
+  /**
+   * Constructor
+   * @param channel client socket channel
+   */
+  public Connection(SocketChannel channel) {
+    this(channel, null);
+  }
+
+  /**
+   * Constructor
+   * @param channel client socket channel
+   * @param loop event loop which owns this connection
+   */
+  public Connection(SocketChannel channel, EventLoop loop) {
+    this.channel = channel;
+    this.loop = loop;
+    Metrics.connectionOpened();
+  }
+
+  /**
+   * Get event loop
+   * @return event loop which owns this connection or null
+   */
+  public EventLoop getEventLoop() {
+    return loop;
+  }
+
+  /**
+   * Sets selection key of a registered connection
+   * @param key selection key
+   */
+  public void setKey(SelectionKey key) {
+    this.key = key;
+  }
+
+  /**
+   * Get selection key
+   * @return selection key or null
+   */
+  public SelectionKey getKey() {
+    return key;
+  }
+
+  /**
+   * Get socket channel
+   * @return socket channel
+   */
+  public SocketChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * Get index lookup result holder. Connection is processed by one thread at a time,
+   * so lookups do not allocate and do not need thread locals
+   * @return range holder
+   */
+  public FileIndex.Range getRange() {
+    return range;
+  }
+
+  /**
+   * Get readahead state, used by a thread which processes requests
+   * @return readahead or null if it is disabled
+   */
+  public Readahead getReadahead() {
+    if (readahead == null && Readahead.ENABLED) {
+      readahead = new Readahead();
+    }
+    return readahead;
+  }
+
+  /**
+   * Is a client behind on reading responses. Queued responses are flushed first,
+   * so only what a socket can not accept is counted. Used by a thread which processes requests
+   * @param limit maximum number of unsent bytes
+   * @return true if more than limit bytes of responses can not be sent
+   * @throws IOException
+   */
+  public boolean isBacklogged(long limit) throws IOException {
+    if (output.getUnsentBytes() <= limit) {
+      return false;
+    }
+    flush();
+    return output.getUnsentBytes() > limit;
+  }
+
+  /**
+   * Has protocol been negotiated, used by a thread which processes requests
+   * @return true if the first byte has been received
+   */
+  boolean isNegotiated() {
+    return negotiated;
+  }
+
+  /**
+   * Sets protocol, used by a thread which processes requests
+   * @param binary true for a binary protocol
+   */
+  void setProtocol(boolean binary) {
+    this.negotiated = true;
+    this.binary = binary;
+  }
+
+  /**
+   * Is it a binary protocol connection
+   * @return true if binary protocol has been negotiated
+   */
+  public boolean isBinary() {
+    return binary;
+  }
+
+  /**
+   * Counts request which is executed by a worker on its own. Called by a thread 
+   * which processes requests, before the request is submitted
+   */
+  void detach() {
+    outstanding.incrementAndGet();
+  }
+
+  /**
+   * Cancels a detached request which has not been submitted
+   */
+  void cancelDetach() {
+    outstanding.decrementAndGet();
+  }
+
+  /**
+   * Called by a worker when a detached request is done. The last one of a finished batch 
+   * sends responses and releases connection, others send replies if a batch is finished 
+   * (otherwise they are sent when it is)
+   * @param reply complete reply frame
+   */
+  void detachedDone(ByteBuffer reply) {
+    detachedReplies.add(reply);
+    synchronized (completionLock) {
+      // The next batch can start only after the last count down, which waits for this one
+      int n = outstanding.decrementAndGet();
+      if (!isOpen() || n >= BATCH) {
+        return;
+      }
+      try {
+        queueDetachedReplies();
+        if (n == 0) {
+          complete();
+        } else {
+          flush();
+        }
+      } catch (IOException e) {
+        log.error("[{}]", Thread.currentThread().getName(), e);
+        close();
+      }
+    }
+  }
+
+  /**
+   * Moves replies of detached requests to the outbound queue
+   */
+  private void queueDetachedReplies() {
+    ByteBuffer reply;
+    while ((reply = detachedReplies.poll()) != null) {
+      output.add(reply);
+    }
+  }
+
+  /**
+   * Get parsed request holder
+   * @return request holder
+   */
+  public Request getRequest() {
+    return request;
+  }
+
+  /**
+   * Get selected text file
+   * @return file selected by USE or the default file
+   */
+  public FileRegistry.TextFile getFile() {
+    FileRegistry.TextFile file = this.file;
+    return file != null ? file : FileRegistry.getDefault();
+  }
+
+  /**
+   * Selects text file for requests which follow
+   * @param file text file
+   */
+  public void setFile(FileRegistry.TextFile file) {
+    this.file = file;
+  }
+
+  /**
+   * Holds a reference to a current snapshot of a file until all queued responses are sent,
+   * so the file is not closed while they are read from it. Requests of a batch work on 
+   * the same snapshot, even if the file is reloaded in the meantime
+   * @param file text file
+   * @return file snapshot
+   * @throws IOException
+   */
+  FileRegistry.Snapshot pin(FileRegistry.TextFile file) throws IOException {
+    for (int i = 0; i < pinnedCount; i++) {
+      if (pinned[i].getTextFile() == file) {
+        return pinned[i];
+      }
+    }
+    FileRegistry.Snapshot snapshot = file.acquire();
+    if (pinnedCount == pinned.length) {
+      pinned = Arrays.copyOf(pinned, pinnedCount * 2);
+    }
+    pinned[pinnedCount++] = snapshot;
+    return snapshot;
+  }
+
+  /**
+   * Releases references to files
+   */
+  private void unpinAll() {
+    for (int i = 0; i < pinnedCount; i++) {
+      pinned[i].release();
+      pinned[i] = null;
+    }
+    pinnedCount = 0;
+  }
+
+  /**
+   * Checks if a long running request should stop: a client has sent QUIT or the connection
+   * has been closed (a response write has failed). End of stream does not stop a request:
+   * a client may shut down its output (half-close) and still read responses, they are sent
+   * before the connection is closed. Requests received in the meantime are kept and processed
+   * when the current batch is done (see {@link #drainPending(ByteBuffer)}). Up to
+   * {@link #MAX_PENDING_SIZE} bytes of them are read, more input stays in a socket until
+   * the request is done, so a QUIT which follows them is not seen (a client can still
+   * close the connection). Used by a thread which processes requests
+   * @return true if request should stop
+   * @throws IOException
+   */
+  public boolean isCancelled() throws IOException {
+    if (!isOpen()) {
+      return true;
+    }
+    if (channel.isBlocking()) {
+      // Thread per connection mode: a read would block
+      return false;
+    }
+    if (pending == null) {
+      pending = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+    }
+    if (!pending.hasRemaining() && pending.capacity() < MAX_PENDING_SIZE) {
+      pending.flip();
+      pending = ByteBuffer.allocate(pending.capacity() * 2).put(pending);
+    }
+    if (!pendingEnd && pending.hasRemaining() && channel.read(pending) < 0) {
+      // End of stream is seen again by the next read of a request handler
+      pendingEnd = true;
+    }
+    return containsQuit();
+  }
+
+  /**
+   * Sends responses queued by a long running request. While a client is slow the request
+   * is parked: it waits for a selector thread to see the connection writable (or a new 
+   * input, which may be QUIT), so a worker does not poll a socket. Used by a thread which
+   * processes requests
+   * @return false if the request should stop (see {@link #isCancelled()})
+   * @throws IOException
+   */
+  public boolean awaitWritable() throws IOException {
+    while (!flush()) {
+      if (isCancelled()) {
+        return false;
+      }
+      SelectionKey key = this.key;
+      try {
+        synchronized (writeLock) {
+          if (key == null || !key.isValid()) {
+            // No selector signals this connection
+            writeLock.wait(WRITE_WAIT_MILLIS);
+            continue;
+          }
+          writeWaiting = true;
+          // Pending input is not read once it is full or at the end of stream
+          boolean read = !pendingEnd && 
+              (pending == null || pending.hasRemaining() || pending.capacity() < MAX_PENDING_SIZE);
+          setInterest(SelectionKey.OP_WRITE | (read ? SelectionKey.OP_READ : 0));
+          while (writeWaiting && isOpen()) {
+            writeLock.wait();
+          }
+          writeWaiting = false;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return !isCancelled();
+  }
+
+  /**
+   * Resumes a long running request parked by {@link #awaitWritable()}. Called by a selector
+   * thread on every readiness event of a connection
+   * @return true if a request has been resumed
+   */
+  boolean resumeWriter() {
+    synchronized (writeLock) {
+      if (!writeWaiting) {
+        return false;
+      }
+      writeWaiting = false;
+      suspendReads();
+      writeLock.notifyAll();
+      return true;
+    }
+  }
+
+  /**
+   * Is there a complete QUIT request in pending input, only new input is searched
+   */
+  private boolean containsQuit() {
+    ByteBuffer buf = pending;
+    int from = Math.max(0, pendingChecked - QUIT.length + 1);
+    pendingChecked = buf.position();
+    for (int i = from; i + QUIT.length <= buf.position(); i++) {
+      if (i > 0 && buf.get(i - 1) != '\n') {
+        continue;
+      }
+      int k = 0;
+      while (k < QUIT.length && buf.get(i + k) == QUIT[k]) {
+        k++;
+      }
+      if (k == QUIT.length) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Is there input received by {@link #isCancelled()} which has not been processed yet,
+   * including end of stream (a selector does not signal it again)
+   * @return true if there is pending input
+   */
+  boolean hasPendingInput() {
+    return pendingEnd || (pending != null && pending.position() > 0);
+  }
+
+  /**
+   * Moves input received by {@link #isCancelled()} into an input buffer
+   * @param input input buffer in a write mode
+   */
+  void drainPending(ByteBuffer input) {
+    if (pending == null || pending.position() == 0) {
+      return;
+    }
+    pending.flip();
+    int n = Math.min(pending.remaining(), input.remaining());
+    ByteBuffer data = pending.duplicate();
+    data.limit(n);
+    input.put(data);
+    pending.position(n);
+    pending.compact();
+    pendingChecked = Math.max(0, pendingChecked - n);
+    if (pending.position() == 0 && pending.capacity() > INPUT_BUFFER_SIZE) {
+      // Grown buffer is not kept
+      pending = null;
+    }
+  }
+
+  /**
+   * Get input buffer
+   * @return input buffer
+   */
+  ByteBuffer getInput() {
+    return input;
+  }
+
+  /**
+   * Marks connection as in-use
+   * @return true on success, false if connection is already in use
+   */
+  public boolean tryAcquire() {
+    return busy.compareAndSet(false, true);
+  }
+
+  /**
+   * Marks connection as not in-use
+   */
+  public void release() {
+    busy.set(false);
+  }
+
+  /**
+   * Is connection open
+   * @return true if open
+   */
+  public boolean isOpen() {
+    return !closed.get() && channel.isOpen();
+  }
+
+  /**
+   * Requests connection close after all queued responses are sent.
+   * Requests which follow are not processed
+   */
+  public void closeAfterFlush() {
+    closing = true;
+  }
+
+  /**
+   * Is connection closing
+   * @return true, if connection is going to be closed
+   */
+  public boolean isClosing() {
+    return closing;
+  }
+
+  /**
+   * Adds data to the outbound queue
+   * @param data data to send
+   */
+  public void send(byte[] data) {
+    output.add(data);
+  }
+
+  /**
+   * Adds buffer to the outbound queue
+   * @param buf buffer to send
+   */
+  public void send(ByteBuffer buf) {
+    output.add(buf);
+  }
+
+  /**
+   * Adds response which is copied into an output buffer (see {@link OutboundQueue#addInline})
+   * @param head response head
+   * @param body response body
+   * @param tail response tail
+   * @return false if it has not been queued
+   */
+  public boolean sendInline(byte[] head, ByteBuffer body, byte[] tail) {
+    return output.addInline(head, body, tail);
+  }
+
+  /**
+   * Adds buffer which is filled later, before responses are sent. It is not copied
+   * @param buf buffer to send
+   */
+  public void sendReserved(ByteBuffer buf) {
+    output.addReserved(buf);
+  }
+
+  /**
+   * Get total number of bytes added to the outbound queue
+   * @return number of bytes
+   */
+  public long getQueuedBytes() {
+    return output.getQueuedBytes();
+  }
+
+  /**
+   * Adds file region to the outbound queue
+   * @param file file channel
+   * @param offset region offset
+   * @param size region size
+   */
+  public void send(FileChannel file, long offset, long size) {
+    output.add(file, offset, size);
+  }
+
+  /**
+   * Sends queued responses, does not block
+   * @return true if all responses have been sent
+   * @throws IOException
+   */
+  public boolean flush() throws IOException {
+    return output.flush(channel);
+  }
+
+  /**
+   * Called by a request handler when all requests have been processed: 
+   * sends responses and either releases connection or waits for OP_WRITE 
+   * if responses can not be sent at once. Responses are sent, but connection is not released
+   * while detached requests are executed
+   * @throws IOException
+   */
+  public void finishProcessing() throws IOException {
+    synchronized (completionLock) {
+      int n = outstanding.addAndGet(-BATCH);
+      queueDetachedReplies();
+      if (n > 0) {
+        flush();
+        return;
+      }
+      complete();
+    }
+  }
+
+  /**
+   * Batch and detached requests are done: sends responses and either releases connection
+   * or waits for OP_WRITE
+   * @throws IOException
+   */
+  private void complete() throws IOException {
+    if (flush()) {
+      done();
+    } else {
+      setInterest(SelectionKey.OP_WRITE);
+    }
+  }
+
+  /**
+   * Called by a selector thread when connection's channel is ready for writing
+   * @throws IOException
+   */
+  public void onWritable() throws IOException {
+    if (flush()) {
+      done();
+    }
+  }
+
+  /**
+   * Suspends reads while connection is in use. Must be called by a selector thread
+   */
+  public void suspendReads() {
+    SelectionKey key = this.key;
+    if (key != null && key.isValid()) {
+      key.interestOps(0);
+    }
+  }
+
+  /**
+   * All responses have been sent - releases connection and resumes reads
+   */
+  private void done() {
+    if (closing) {
+      close();
+      return;
+    }
+    unpinAll();
+    outstanding.set(BATCH);
+    release();
+    setInterest(SelectionKey.OP_READ);
+  }
+
+  /**
+   * Sets interest set of a selection key and wakes up selector
+   * @param ops interest set
+   */
+  private void setInterest(int ops) {
+    SelectionKey key = this.key;
+    if (key == null || !key.isValid()) {
+      return;
+    }
+    try {
+      key.interestOps(ops);
+      if (loop == null || !loop.inEventLoop()) {
+        // Selector must see new interest set
+        key.selector().wakeup();
+      }
+    } catch (CancelledKeyException e) {
+      // Connection has been closed
+    }
+  }
+
+  /**
+   * Cancels a selection key and closes client
+   */
+  public void close() {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    if (loop != null) {
+      loop.connectionClosed();
+    }
+    Metrics.connectionClosed();
+    output.clear();
+    unpinAll();
+    try {
+      SelectionKey key = this.key;
+      if (key != null) {
+        key.cancel();
+      }
+      channel.close();
+    } catch(IOException e) {
+      log.error("[{}]", Thread.currentThread().getName(), e);
+    }
+    synchronized (writeLock) {
+      // Parked request stops
+      writeLock.notifyAll();
+    }
+  }
+}
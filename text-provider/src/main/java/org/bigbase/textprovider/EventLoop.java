@@ -0,0 +1,288 @@
+package org.bigbase.textprovider;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.textprovider.metrics.Metrics;
+
+/**
+ *
+ * Event loop (reactor). Each event loop runs in its own thread and owns its own
+ * selector, accepted connections are distributed between event loops by the server.
+ * Requests are executed inline on the event loop thread. Requests which may block
+ * on a disk I/O are offloaded to a worker pool when the loop detects slow (not cached)
+ * data access: an inline batch which takes longer than {@link #slowBatchNanos}
+ * switches the loop to the offload mode for {@link #offloadNanos}.
+ *
+ * Admission control: when the worker pool queue is full, a connection which needs
+ * a worker is parked - it stays in use, so its read interest remains removed, and it is
+ * offloaded as soon as the pool has capacity. A connection parked for longer than 
+ * {@link #maxParkNanos} is processed inline in a shedding mode: requests which would
+ * block get BUSY responses, so overload is signalled to clients instead of queueing.
+ *
+ */
+public class EventLoop implements Runnable {
+  private static final Logger log = LogManager.getLogger(EventLoop.class);
+
+  /* Interval of parked connections checks */
+  private final static long PARK_CHECK_MILLIS = 1;
+
+  /* Event loop selector */
+  private final Selector selector;
+  /* New connections to register with a selector */
+  private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+  /* Number of active connections */
+  private final AtomicInteger connections = new AtomicInteger();
+  /* Worker pool for blocking requests */
+  private final ExecutorService pool;
+  /* Inline batch time which is considered slow */
+  private final long slowBatchNanos;
+  /* Time to offload blocking requests after a slow batch */
+  private final long offloadNanos;
+  /* Event loop thread */
+  private final Thread thread;
+  /* Blocking requests are offloaded until this time */
+  private long offloadUntil;
+  /* Time after which a parked connection is shed */
+  private final long maxParkNanos = 
+      Long.getLong("textprovider.overload.wait.millis", 100) * 1000000;
+  /* Connections waiting for worker pool capacity, in arrival order */
+  private final ArrayDeque<Connection> parked = new ArrayDeque<>();
+  /* Park times of parked connections, in the same order */
+  private final ArrayDeque<Long> parkedAt = new ArrayDeque<>();
+
+  /**
+   * Constructor
+   * @param name event loop thread name
+   * @param pool worker pool for blocking requests
+   * @param slowBatchNanos inline batch time which is considered slow
+   * @param offloadNanos time to offload blocking requests after a slow batch
+   * @throws IOException
+   */
+  public EventLoop(String name, ExecutorService pool, long slowBatchNanos,
+      long offloadNanos) throws IOException {
+    this.selector = Selector.open();
+    this.pool = pool;
+    this.slowBatchNanos = slowBatchNanos;
+    this.offloadNanos = offloadNanos;
+    this.thread = new Thread(this, name);
+    this.thread.setDaemon(true);
+  }
+
+  /**
+   * Starts event loop thread
+   */
+  public void start() {
+    thread.start();
+  }
+
+  /**
+   * Get number of active connections
+   * @return number of connections
+   */
+  public int getConnectionCount() {
+    return connections.get();
+  }
+
+  /**
+   * Adds new client connection to this event loop. Can be called from any thread
+   * @param client accepted client channel
+   */
+  public void register(SocketChannel client) {
+    connections.incrementAndGet();
+    pending.add(client);
+    selector.wakeup();
+  }
+
+  /**
+   * Is current thread this event loop's thread
+   * @return true if called from the event loop
+   */
+  public boolean inEventLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Can requests which may block be executed inline. Called from the event loop only
+   * @return true if inline execution is allowed
+   */
+  boolean allowsBlockingInline() {
+    return offloadUntil == 0 || System.nanoTime() - offloadUntil > 0;
+  }
+
+  /**
+   * Reports inline batch execution time. Called from the event loop only
+   * @param nanos batch execution time
+   */
+  void reportInlineBatch(long nanos) {
+    if (nanos > slowBatchNanos) {
+      offloadUntil = System.nanoTime() + offloadNanos;
+    }
+  }
+
+  /**
+   * Submits request processing to the worker pool, parks connection if the pool 
+   * is saturated. Called from the event loop only
+   * @param conn client connection
+   */
+  void offload(Connection conn) {
+    if (!parked.isEmpty() || !trySubmit(conn)) {
+      // Earlier parked connections go first
+      parked.add(conn);
+      parkedAt.add(System.nanoTime());
+      Metrics.connectionParked();
+    }
+  }
+
+  /**
+   * Submits request processing to the worker pool
+   * @param conn client connection
+   * @return false if the pool is saturated
+   */
+  private boolean trySubmit(Connection conn) {
+    try {
+      pool.execute(new RequestHandler(conn));
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Submits a detached request (see {@link BinaryProtocol}) to the worker pool. 
+   * Called from the event loop only
+   * @param task request task
+   * @return false if the pool is saturated
+   */
+  boolean submit(Runnable task) {
+    if (!parked.isEmpty()) {
+      // Parked connections go first
+      return false;
+    }
+    try {
+      pool.execute(task);
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Offloads parked connections while the worker pool has capacity, sheds load
+   * of connections which have been parked for too long
+   */
+  private void resumeParked() {
+    long now = System.nanoTime();
+    while (!parked.isEmpty()) {
+      Connection conn = parked.peek();
+      boolean submitted = !conn.isOpen() || trySubmit(conn);
+      if (!submitted && now - parkedAt.peek() < maxParkNanos) {
+        return;
+      }
+      parked.poll();
+      parkedAt.poll();
+      Metrics.connectionUnparked();
+      if (!submitted) {
+        // Processed inline, blocking requests get BUSY
+        new RequestHandler(conn, this, true).run();
+      }
+    }
+  }
+
+  /**
+   * Called when connection is closed
+   */
+  void connectionClosed() {
+    connections.decrementAndGet();
+  }
+
+  @Override
+  public void run() {
+    log.debug("[{}] Event loop started", Thread.currentThread().getName());
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        // Parked connections are checked periodically
+        selector.select(parked.isEmpty() ? 0 : PARK_CHECK_MILLIS);
+        long start = System.nanoTime();
+        registerPending();
+        resumeParked();
+        Set<SelectionKey> keys = selector.selectedKeys();
+        Iterator<SelectionKey> it = keys.iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          processKey(key);
+        }
+        Metrics.loopIteration(System.nanoTime() - start);
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      log.error("[{}] Event loop aborted", Thread.currentThread().getName(), e);
+    }
+  }
+
+  private void registerPending() {
+    SocketChannel client;
+    while ((client = pending.poll()) != null) {
+      try {
+        // Adjusts this channel's blocking mode to false
+        client.configureBlocking(false);
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        client.setOption(StandardSocketOptions.SO_SNDBUF, 64 * 1024);
+        client.setOption(StandardSocketOptions.SO_RCVBUF, 64 * 1024);
+        Connection conn = new Connection(client, this);
+        // Operation-set bit for read operations
+        conn.setKey(client.register(selector, SelectionKey.OP_READ, conn));
+        log.debug("[{}] Connection registered: {}", Thread.currentThread().getName(),
+          client.getRemoteAddress());
+      } catch (IOException e) {
+        log.error("[{}]", Thread.currentThread().getName(), e);
+        connections.decrementAndGet();
+        try {
+          client.close();
+        } catch (IOException ee) {
+          // swallow it
+        }
+      }
+    }
+  }
+
+  private void processKey(SelectionKey key) {
+    Connection conn = (Connection) key.attachment();
+    if (!key.isValid()) {
+      return;
+    }
+    if (conn.resumeWriter()) {
+      // Parked long running request continues sending and checks new input
+      return;
+    }
+    if (key.isWritable()) {
+      // continue sending responses to a slow client
+      try {
+        conn.onWritable();
+      } catch (IOException e) {
+        log.error("[{}]", Thread.currentThread().getName(), e);
+        conn.close();
+      }
+    } else if (key.isReadable() && conn.tryAcquire()) {
+      conn.suspendReads();
+      // process requests inline
+      long start = System.nanoTime();
+      new RequestHandler(conn, this).run();
+      reportInlineBatch(System.nanoTime() - start);
+    }
+  }
+}
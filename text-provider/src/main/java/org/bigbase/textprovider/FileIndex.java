@@ -1,44 +1,111 @@
 package org.bigbase.textprovider;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongConsumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bigbase.textprovider.compress.BlockChannel;
+import org.bigbase.textprovider.metrics.Metrics;
 
 /**
  * 
  * This class provides text file index implementation.
  * The index is a file-based to support very large files
- * when index won't fit in RAM
+ * when index won't fit in RAM. Index file is memory mapped 
+ * (read-only, in segments of {@link #SEGMENT_SIZE} bytes) and a single 
+ * instance per file is shared by all threads, so lookups do not make 
+ * system calls and do not allocate.
  * All performance relies on OS page cache. For small files
  * which fit into RAM performance must be good. As file size increases
  * performance will decrease but the service will work until all data
  * fits server's disk. 
+ * 
+ * Index file starts with a fixed size header (see {@link #HEADER_SIZE}): 
+ * magic, version, total lines, text file length, format, lines per block, 
+ * block directory offset and a checksum of the text file tail (which ends at the indexed 
+ * text length). Two formats are supported (see {@link Format}):
+ * 
+ * DENSE: (totalLines + 1) 8 byte entries follow the header. Entry 0 is always 0, 
+ * entry N keeps the byte offset of a line N + 1 (which is the end of a line N 
+ * including its terminator) in the low 62 bits and length of the line N terminator 
+ * (0 - no terminator, 1 - '\n', 2 - "\r\n") in the two high bits. 
+ * 
+ * COMPACT: an absolute offset is kept for every block of lines, line lengths 
+ * inside a block are var-int encoded (see {@link IndexWriter.CompactWriter}). 
+ * Lookup is a seek to a block followed by a short decode inside it.
+ * 
+ * An index can be built in the background (see {@link #openOrCreateInBackground(String)}):
+ * until it is complete, a building index serves lines which have been indexed so far
+ * (see {@link IndexBuilder.Progress}). Index file is built under a temporary name 
+ * and is published with an atomic rename.
+ * 
+ * Text files which only grow (logs) are not re-indexed from scratch: if the tail checksum 
+ * still matches, only appended bytes are scanned (see {@link IndexBuilder#append(Path, Path)}) 
+ * and a live index picks up new lines (see {@link #update(String)}). Total lines are 
+ * published after new entries are mapped, so readers never see a line without its entry.
  *
  */
 public class FileIndex {
+  /**
+   * Index file formats
+   */
+  public static enum Format {
+    /* 8 bytes per line */
+    DENSE,
+    /* Block checkpoints + var-int line lengths */
+    COMPACT;
+    
+    /**
+     * Get index format from a system property "textprovider.index.format"
+     * @return configured format, DENSE by default
+     */
+    public static Format fromConfig() {
+      String value = System.getProperty("textprovider.index.format", DENSE.name());
+      return Format.valueOf(value.toUpperCase());
+    }
+  }
+  
+  /**
+   * Line range in a text file. Instances are mutable, 
+   * so they can be reused by a caller as a lookup result holder
+   */
   public static class Range {
-    public final long offset;
-    public final long size;
+    public long offset;
+    public long size;
+    /* Line terminator length: 1 - '\n', 2 - "\r\n", 0 - none. The last line of a file 
+     * may have no terminator, such line continues when a file is appended to */
+    public int terminator;
+    
+    public Range() {
+    }
     
     public Range(long off, long size) {
+      set(off, size);
+    }
+    
+    public void set(long off, long size) {
       this.offset = off;
       this.size = size;
     }
     
+    public void set(long off, long size, int terminator) {
+      set(off, size);
+      this.terminator = terminator;
+    }
+    
     @Override
     public String toString() {
       return "off:" + offset + " size:"+ size;
@@ -50,24 +117,63 @@ public class FileIndex {
    */
   private static final Logger log = LogManager.getLogger(FileIndex.class);
   
+  /* Index file magic: 'SBIX' */
+  final static int MAGIC = 0x53424958;
+  
+  /* Index format version */
+  final static int VERSION = 3;
+  
+  /* Index header size: magic, version, total lines, text file length, 
+   * format, lines per block, block directory offset, text tail checksum, reserved */
+  final static int HEADER_SIZE = 64;
+  
+  /* Default number of lines in a block (compact format) */
+  public final static int DEFAULT_BLOCK_LINES = 64;
+  
+  /* Block terminators mode (compact format): terminators bitmap is present */
+  final static long MIXED_TERMINATORS = 3;
+  
+  /* Mask of an offset bits in an index entry */
+  final static long OFFSET_MASK = (1L << 62) - 1;
+  
+  /* Shift of a line terminator length bits in an index entry */
+  final static int TERMINATOR_SHIFT = 62;
+  
+  /* Mapped segment size - 1GB, multiple of an entry size, so entries never cross segments */
+  final static int SEGMENT_SHIFT = 30;
+  final static long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+  final static long SEGMENT_MASK = SEGMENT_SIZE - 1;
+  
   /*
-   * Thread local cache of file indexes
+   * Process wide cache of file indexes: index file path -> index
    */
-  private static ThreadLocal<Map<String, FileIndex>> indexMap = new ThreadLocal<Map<String, FileIndex>>() {
-
-    @Override
-    protected Map<String, FileIndex> initialValue() {
-      return new HashMap<>();
-    }
-    
-  };
+  private static ConcurrentHashMap<String, FileIndex> indexMap = new ConcurrentHashMap<>();
   
-  /* Index file as RAF */
-  private RandomAccessFile indexFile;
-  /* Total number of lines in a text file */
-  private long totalLines = 0;
-  /* Buffer to read index data into */
-  private ByteBuffer buf = ByteBuffer.allocateDirect(16);
+  /*
+   * Background index builds, one at a time (a build itself is parallel)
+   */
+  private static ExecutorService builder;
+  
+  /* Index file path */
+  private final String indexPath;
+  /* Read-only mapped segments of an index file, remapped when index is appended */
+  private volatile MappedByteBuffer[] segments;
+  /* Total number of lines in a text file, published last when index is appended */
+  private volatile long totalLines;
+  /* Text file length */
+  private volatile long textLength;
+  /* Index format */
+  private final Format format;
+  /* Lines per block (compact format) */
+  private final int blockLines;
+  /* Block directory offset (compact format) */
+  private final long directoryOffset;
+  /* Hot lines cache, null if disabled. Lives as long as this index */
+  private final LineCache lineCache;
+  /* Build progress of an index which is being built, null if index is complete */
+  private final IndexBuilder.Progress progress;
+  /* Is index closed (replaced by a newer one) */
+  private volatile boolean closed;
   
   /**
    * Constructor
@@ -75,117 +181,697 @@ public class FileIndex {
    * @throws IOException
    */
   private FileIndex(String filePath) throws IOException {
-    this.indexFile = new RandomAccessFile(filePath, "r");
-    this.totalLines = this.indexFile.length() / 8 - 1;
+    this.indexPath = filePath;
+    try (FileChannel channel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)) {
+      ByteBuffer header = readHeader(channel);
+      if (header == null) {
+        throw new IOException(String.format("Invalid index file %s", filePath));
+      }
+      this.totalLines = header.getLong(8);
+      this.textLength = header.getLong(16);
+      this.format = getFormat(header);
+      this.blockLines = header.getInt(28);
+      this.directoryOffset = header.getLong(32);
+      this.segments = map(channel, new MappedByteBuffer[0]);
+      // Mapping remains valid after channel is closed
+    }
+    long cacheSize = LineCache.configuredSize();
+    this.lineCache = cacheSize > 0 ? new LineCache(cacheSize) : null;
+    this.progress = null;
+  }
+  
+  /**
+   * Maps index file segments
+   * @param channel index file channel
+   * @param current segments mapped already, complete ones are reused
+   * @return segments
+   * @throws IOException
+   */
+  private static MappedByteBuffer[] map(FileChannel channel, MappedByteBuffer[] current) 
+      throws IOException {
+    long size = channel.size();
+    int n = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+    MappedByteBuffer[] segments = new MappedByteBuffer[n];
+    for (int i = 0; i < n; i++) {
+      if (i < current.length && current[i].capacity() == SEGMENT_SIZE) {
+        segments[i] = current[i];
+        continue;
+      }
+      long start = (long) i << SEGMENT_SHIFT;
+      segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, 
+        Math.min(SEGMENT_SIZE, size - start));
+    }
+    return segments;
+  }
+  
+  /**
+   * Constructor of an index which is being built
+   * @param filePath path to an index file
+   * @param progress build progress
+   */
+  private FileIndex(String filePath, IndexBuilder.Progress progress) {
+    this.indexPath = filePath;
+    this.segments = null;
+    this.totalLines = 0;
+    this.textLength = 0;
+    this.format = Format.DENSE;
+    this.blockLines = 0;
+    this.directoryOffset = 0;
+    this.lineCache = null;
+    this.progress = progress;
   }
   
   /**
-   * Thread local get index for a text file
+   * Get shared index for a text file
    * @param fileName text file absolute path name
    * @return file index
    * @throws IOException
    */
   public static FileIndex getIndexFor(String fileName) throws IOException {
-    Map<String, FileIndex> map = indexMap.get();
-    fileName += ".index";
-    FileIndex index = map.get(fileName);
-    if (index == null) {
-      index = new FileIndex(fileName);
-      map.put(fileName, index);
+    String indexName = fileName + ".index";
+    FileIndex index = indexMap.get(indexName);
+    if (index != null) {
+      return index;
+    }
+    try {
+      return indexMap.computeIfAbsent(indexName, name -> {
+        try {
+          return new FileIndex(name);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
     }
-    return index;
+  }
+  
+  /**
+   * Get total number of lines
+   * @return total number of lines in a text file
+   */
+  public long getTotalLines() {
+    return progress != null ? progress.getLines() : totalLines;
+  }
+  
+  /**
+   * Get length of an indexed text file. For an index which is being built - 
+   * offset of the line which follows the last indexed line
+   * @return text file length
+   */
+  public long getTextLength() {
+    return progress != null ? progress.getBytes() : textLength;
+  }
+
+  /**
+   * Get path of an indexed text file
+   * @return text file path
+   */
+  public String getTextPath() {
+    return indexPath.substring(0, indexPath.length() - ".index".length());
+  }
+
+  /**
+   * Is index being built. Lines which have not been indexed yet are not found,
+   * a client should retry later. A complete index replaces this one in a shared 
+   * cache (see {@link #getIndexFor(String)})
+   * @return true if index is being built
+   */
+  public boolean isBuilding() {
+    return progress != null && progress.getFailure() == null;
+  }
+  
+  /**
+   * Get build progress
+   * @return build progress or null if index is complete
+   */
+  public IndexBuilder.Progress getBuildProgress() {
+    return progress;
+  }
+  
+  /**
+   * Get index format
+   * @return index format
+   */
+  public Format getFormat() {
+    return format;
+  }
+  
+  /**
+   * Get hot lines cache of an indexed file
+   * @return line cache or null if cache is disabled
+   */
+  public LineCache getLineCache() {
+    return lineCache;
   }
   
   /**
    * Get range for a line with a given number
    * @param lineNumber
-   * @return offset + size range in an indexed file
-   * @throws IOException
+   * @return offset + size range in an indexed file or null
+   */
+  public Range getRange(long lineNumber) {
+    Range range = new Range();
+    return getRange(lineNumber, range) ? range : null;
+  }
+  
+  /**
+   * Get range for a line with a given number. Does not allocate.
+   * @param lineNumber line number
+   * @param range range holder to fill
+   * @return true if line exists, false - otherwise
    */
-  public Range getRange(long lineNumber) throws IOException {
+  public boolean getRange(long lineNumber, Range range) {
+    if (progress != null) {
+      return progress.getRange(lineNumber, range);
+    }
     if (lineNumber < 1 || lineNumber > totalLines) {
-      return null;
+      return false;
     }
-    
-    long offset = (lineNumber - 1) * 8;
-    buf.clear();
-    int read = 0;
-    while(read < 16) {
-      read += indexFile.getChannel().read(buf, offset);
-    }
-    buf.flip();
-    LongBuffer lb = buf.asLongBuffer();
-    long off = lb.get();
-    long size = lb.get() - off - 1;
-    return new Range(off, size);
-    
+    if (!Metrics.sampleLookup()) {
+      lookup(lineNumber, range);
+      return true;
+    }
+    long start = System.nanoTime();
+    lookup(lineNumber, range);
+    Metrics.indexLookup(System.nanoTime() - start);
+    return true;
   }
   
   /**
-   * Close index
+   * Index lookup of an existing line
+   * @param lineNumber line number
+   * @param range range holder to fill
    */
-  public void close() {
-    try {
-      if (indexFile != null) {
-        indexFile.close();
+  private void lookup(long lineNumber, Range range) {
+    if (format == Format.COMPACT) {
+      getCompactRange(lineNumber, range);
+      return;
+    }
+    long off = getLong(HEADER_SIZE + (lineNumber - 1) * 8) & OFFSET_MASK;
+    long next = getLong(HEADER_SIZE + lineNumber * 8);
+    int term = (int) (next >>> TERMINATOR_SHIFT);
+    range.set(off, (next & OFFSET_MASK) - off - term, term);
+  }
+  
+  /**
+   * Compact format lookup: seek to a block and decode line lengths inside it
+   * @param lineNumber line number
+   * @param range range holder to fill
+   */
+  private void getCompactRange(long lineNumber, Range range) {
+    long block = (lineNumber - 1) / blockLines;
+    int index = (int) ((lineNumber - 1) - block * blockLines);
+    long dir = directoryOffset + block * 16;
+    long offset = getLong(dir);
+    long pos = getLong(dir + 8);
+    long mode = pos >>> TERMINATOR_SHIFT;
+    pos &= OFFSET_MASK;
+    long bitmap = -1;
+    if (mode == MIXED_TERMINATORS) {
+      bitmap = pos;
+      long count = Math.min(blockLines, totalLines - block * blockLines);
+      pos += bitmapSize((int) count);
+    }
+    for (int i = 0; ; i++) {
+      // Decode var-int line length
+      long size = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = getByte(pos++);
+        size |= (long) (b & 0x7f) << shift;
+        shift += 7;
+      } while (b < 0);
+      long term = bitmap < 0 ? mode : (getByte(bitmap + (i >>> 2)) >>> ((i & 3) << 1)) & 3;
+      if (i == index) {
+        range.set(offset, size, (int) term);
+        return;
       }
-    } catch(IOException e) {}
+      offset += size + term;
+    }
+  }
+  
+  /**
+   * Collects records of consecutive lines: a compact index decodes every block of 
+   * a range once, not from a block start for every line
+   * @param from first line
+   * @param to last line, lines must exist in a complete index
+   * @param records receives record length of every line: its content and terminator
+   * @param span set to the span of the lines in a text file
+   */
+  public void getRecords(long from, long to, LongConsumer records, Range span) {
+    long start = -1;
+    long end = 0;
+    if (format != Format.COMPACT) {
+      for (long n = from; n <= to; n++) {
+        lookup(n, span);
+        long length = span.size + span.terminator;
+        if (n == from) {
+          start = span.offset;
+        }
+        records.accept(length);
+        end = span.offset + length;
+      }
+      span.set(start, end - start);
+      return;
+    }
+    for (long block = (from - 1) / blockLines; block <= (to - 1) / blockLines; block++) {
+      long dir = directoryOffset + block * 16;
+      long offset = getLong(dir);
+      long pos = getLong(dir + 8);
+      long mode = pos >>> TERMINATOR_SHIFT;
+      pos &= OFFSET_MASK;
+      long bitmap = -1;
+      long first = block * blockLines + 1;
+      long count = Math.min(blockLines, totalLines - block * blockLines);
+      if (mode == MIXED_TERMINATORS) {
+        bitmap = pos;
+        pos += bitmapSize((int) count);
+      }
+      long last = Math.min(to, first + count - 1);
+      for (int i = 0; first + i <= last; i++) {
+        long size = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = getByte(pos++);
+          size |= (long) (b & 0x7f) << shift;
+          shift += 7;
+        } while (b < 0);
+        long term = bitmap < 0 ? mode : (getByte(bitmap + (i >>> 2)) >>> ((i & 3) << 1)) & 3;
+        long length = size + term;
+        if (first + i == from) {
+          start = offset;
+        }
+        if (first + i >= from) {
+          records.accept(length);
+        }
+        offset += length;
+      }
+      end = offset;
+    }
+    span.set(start, end - start);
   }
   
   /**
-   * Opens existing one or creates new index file
+   * Size of a block terminators bitmap (2 bits per line)
+   * @param lines number of lines in a block
+   * @return size in bytes
+   */
+  static int bitmapSize(int lines) {
+    return (lines + 3) >>> 2;
+  }
+  
+  /**
+   * Reads long value from a mapped index. Value must not cross segments
+   * @param pos position in an index file
+   * @return value
+   */
+  private long getLong(long pos) {
+    return segments[(int) (pos >>> SEGMENT_SHIFT)].getLong((int) (pos & SEGMENT_MASK));
+  }
+  
+  /**
+   * Reads byte from a mapped index
+   * @param pos position in an index file
+   * @return value
+   */
+  private byte getByte(long pos) {
+    return segments[(int) (pos >>> SEGMENT_SHIFT)].get((int) (pos & SEGMENT_MASK));
+  }
+  
+  /**
+   * Close index. Index is removed from a shared cache, 
+   * mapped memory is released when instance becomes unreachable
+   */
+  public void close() {
+    if (progress != null && !progress.isDone()) {
+      // Stays in a shared cache until a complete index replaces it
+      return;
+    }
+    closed = true;
+    indexMap.remove(indexPath, this);
+    if (lineCache != null) {
+      lineCache.clear();
+    }
+  }
+  
+  /**
+   * Is index closed. A closed index remains readable, but holders should get 
+   * a current one with {@link #getIndexFor(String)}
+   * @return true if closed
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+  
+  /**
+   * Closes all shared indexes
+   */
+  public static void closeAll() {
+    indexMap.clear();
+  }
+  
+  /**
+   * Opens existing one or creates new index file of a configured format
    * @param filePath path to  text file
-   * @return file index instance
    * @throws IOException
    */
   public static void openOrCreate(String filePath) throws IOException {
+    openOrCreate(filePath, Format.fromConfig());
+  }
+  
+  /**
+   * Opens existing one or creates new index file. Existing valid index 
+   * is used as is, its format is defined by the index header
+   * @param filePath path to  text file
+   * @param format format of a new index
+   * @throws IOException
+   */
+  public static void openOrCreate(String filePath, Format format) throws IOException {
     Path path = Path.of(filePath);
-    Path file = path.getFileName();
-    Path indexFile = Path.of(file.toString() + ".index");
-    Path index = path.resolveSibling(indexFile);
-    
+    Path index = indexPath(path);
+    if (!needsBuild(path, index)) {
+      return;
+    }
+    buildIndex(path, index, format, null);
+  }
+  
+  /**
+   * Opens existing valid index or starts building a new one in a background thread,
+   * index of a configured format is built
+   * @param filePath path to text file
+   * @throws IOException
+   */
+  public static void openOrCreateInBackground(String filePath) throws IOException {
+    openOrCreateInBackground(filePath, Format.fromConfig());
+  }
+  
+  /**
+   * Opens existing valid index or starts building a new one in a background thread.
+   * Until the build is finished, a building index is shared (see {@link #isBuilding()}) 
+   * @param filePath path to text file
+   * @param format format of a new index
+   * @return build progress, null if existing index is valid
+   * @throws IOException
+   */
+  public static IndexBuilder.Progress openOrCreateInBackground(String filePath, Format format) 
+      throws IOException {
+    Path path = Path.of(filePath);
+    Path index = indexPath(path);
+    if (!needsBuild(path, index)) {
+      return null;
+    }
+    IndexBuilder.Progress progress = new IndexBuilder.Progress(path);
+    String indexName = filePath + ".index";
+    FileIndex building = new FileIndex(indexName, progress);
+    indexMap.put(indexName, building);
+    getBuilder().execute(() -> {
+      Throwable failure = null;
+      try {
+        buildIndex(path, index, format, progress);
+        FileIndex complete = new FileIndex(indexName);
+        indexMap.replace(indexName, building, complete);
+        building.closed = true;
+        progress.finish(null);
+        // Text file could grow while the index was being built
+        update(filePath);
+      } catch (Throwable e) {
+        log.error("[{}] Index build failed for {}", Thread.currentThread().getName(), 
+          path.toAbsolutePath(), e);
+        failure = e;
+      } finally {
+        if (!progress.isDone()) {
+          progress.finish(failure);
+        }
+      }
+    });
+    return progress;
+  }
+  
+  /**
+   * Picks up lines appended to a text file: appends an index file and remaps a live 
+   * shared index. A text file which has been changed other than by an append must be 
+   * reloaded (see {@link FileRegistry#reload(FileRegistry.TextFile, boolean)}). 
+   * Updates of all files are serialized
+   * @param filePath text file path
+   * @return number of new lines, -1 if it is not an append
+   * @throws IOException
+   */
+  public static synchronized long update(String filePath) throws IOException {
+    String indexName = filePath + ".index";
+    FileIndex current = indexMap.get(indexName);
+    if (current != null && current.progress != null) {
+      // Being built, the build is followed by an update
+      return 0;
+    }
+    Path path = Path.of(filePath);
+    long before = current != null ? current.totalLines : -1;
+    long lines = newBuilder(Format.DENSE).append(path, indexPath(path));
+    if (lines < 0) {
+      log.info("[{}] Text file {} has been changed, not an append", 
+        Thread.currentThread().getName(), path.toAbsolutePath());
+      return -1;
+    }
+    if (current == null) {
+      return 0;
+    }
+    current.reload();
+    return lines - before;
+  }
+  
+  /**
+   * Builds and opens a new shared index for a replaced text file. Current shared index 
+   * is replaced, but it is not closed - its holders close it when they are done
+   * @param filePath text file path
+   * @return new index
+   * @throws IOException
+   */
+  public static FileIndex reopen(String filePath) throws IOException {
+    Path path = Path.of(filePath);
+    Path index = indexPath(path);
+    if (!isCurrent(path, index)) {
+      // Built under a temporary name, mapped index of a previous version stays valid.
+      // Reloads of a file are serialized by a registry, other files are not blocked
+      buildIndex(path, index, Format.fromConfig(), null);
+    }
+    String indexName = filePath + ".index";
+    FileIndex reopened = new FileIndex(indexName);
+    synchronized (FileIndex.class) {
+      indexMap.put(indexName, reopened);
+    }
+    return reopened;
+  }
+  
+  /**
+   * Is index of a text file being built
+   * @param filePath text file path
+   * @return true if a shared index is being built
+   */
+  public static boolean isBuilding(String filePath) {
+    FileIndex index = indexMap.get(filePath + ".index");
+    return index != null && index.progress != null && !index.progress.isDone();
+  }
+  
+  /**
+   * Remaps appended index file and publishes new lines
+   * @throws IOException
+   */
+  private void reload() throws IOException {
+    try (FileChannel channel = FileChannel.open(Path.of(indexPath), StandardOpenOption.READ)) {
+      ByteBuffer header = readHeader(channel);
+      if (header == null) {
+        throw new IOException(String.format("Invalid index file %s", indexPath));
+      }
+      // Entries must be mapped before readers can see new total lines
+      segments = map(channel, segments);
+      textLength = header.getLong(16);
+      totalLines = header.getLong(8);
+    }
+  }
+  
+  static synchronized ExecutorService getBuilder() {
+    if (builder == null) {
+      builder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "index-builder");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return builder;
+  }
+  
+  /**
+   * Get index file path
+   * @param path text file path
+   * @return index file path
+   */
+  private static Path indexPath(Path path) {
+    return path.resolveSibling(path.getFileName().toString() + ".index");
+  }
+  
+  /**
+   * Checks if existing index is valid and up to date. A stale shared index is closed
+   * @param path text file path
+   * @param index index file path
+   * @return true if index must be (re)built
+   * @throws IOException
+   */
+  private static boolean needsBuild(Path path, Path index) throws IOException {
     if(Files.exists(index)) {
       log.info("Found existing index file {}", index.toAbsolutePath());
       FileTime parentModTime = Files.getLastModifiedTime(path);
       FileTime indexModTime = Files.getLastModifiedTime(index);
-      if (parentModTime.toMillis() < indexModTime.toMillis()) {
+      if (parentModTime.toMillis() < indexModTime.toMillis() && isValid(index)) {
         log.info("Skipping index build for {}", path.toAbsolutePath());
-        return;
-      } else {
-        // Delete current index and rebuild it
-        Files.delete(index);
+        return false;
+      } 
+      if (newBuilder(Format.DENSE).append(path, index) >= 0) {
+        // Text file has been appended to
+        return false;
+      }
+      // Current index is replaced when a new one is built
+      FileIndex current = indexMap.remove(path.toString() + ".index");
+      if (current != null) {
+        current.close();
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Checks if existing index has been built for the text file as it is now: text length 
+   * and a checksum of the text tail are the same. Unlike modification times, it holds 
+   * for a text file which has been published with its index
+   * @param path text file path
+   * @param index index file path
+   * @return true if index can be used as is
+   * @throws IOException
+   */
+  private static boolean isCurrent(Path path, Path index) throws IOException {
+    if (!Files.exists(index)) {
+      return false;
+    }
+    ByteBuffer header;
+    try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+      header = readHeader(channel);
+    }
+    if (header == null) {
+      return false;
+    }
+    long textLength = header.getLong(16);
+    try (FileChannel in = BlockChannel.open(path)) {
+      if (in.size() != textLength || 
+          IndexBuilder.tailChecksum(in, textLength) != header.getLong(40)) {
+        return false;
+      }
+    }
+    log.info("Reusing index file {}", index.toAbsolutePath());
+    return true;
+  }
+  
+  /**
+   * Checks index file header
+   * @param index index file path
+   * @return true if index file has a valid header of the current version
+   * @throws IOException
+   */
+  private static boolean isValid(Path index) throws IOException {
+    try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+      return readHeader(channel) != null;
+    }
+  }
+  
+  /**
+   * Reads and validates index file header
+   * @param channel index file channel
+   * @return header buffer or null if header is invalid
+   * @throws IOException
+   */
+  static ByteBuffer readHeader(FileChannel channel) throws IOException {
+    long length = channel.size();
+    if (length < HEADER_SIZE) {
+      return null;
+    }
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (header.hasRemaining()) {
+      channel.read(header, header.position());
+    }
+    if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+      return null;
+    }
+    int format = header.getInt(24);
+    if (format < 0 || format >= Format.values().length) {
+      return null;
+    }
+    long lines = header.getLong(8);
+    if (Format.values()[format] == Format.COMPACT) {
+      int blockLines = header.getInt(28);
+      long blocks = blockLines > 0 ? (lines + blockLines - 1) / blockLines : -1;
+      if (blocks < 0 || length != header.getLong(32) + blocks * 16) {
+        return null;
       }
+    } else if (length != HEADER_SIZE + (lines + 1) * 8) {
+      return null;
     }
-    buildIndex(path, index);
+    return header;
+  }
+  
+  private static Format getFormat(ByteBuffer header) {
+    return Format.values()[header.getInt(24)];
+  }
+  
+  /**
+   * Writes index header
+   * @param buf buffer to write header to
+   * @param format index format
+   * @param lines total number of lines
+   * @param textLength text file length
+   * @param checksum checksum of a text tail, which ends at textLength
+   * @param blockLines lines per block (compact format)
+   * @param directoryOffset block directory offset (compact format)
+   */
+  static void writeHeader(ByteBuffer buf, Format format, long lines, long textLength, 
+      long checksum, int blockLines, long directoryOffset) {
+    int pos = buf.position();
+    buf.putInt(MAGIC);
+    buf.putInt(VERSION);
+    buf.putLong(lines);
+    buf.putLong(textLength);
+    buf.putInt(format.ordinal());
+    buf.putInt(blockLines);
+    buf.putLong(directoryOffset);
+    buf.putLong(checksum);
+    while (buf.position() < pos + HEADER_SIZE) {
+      buf.put((byte) 0);
+    }
+  }
+  
+  private static IndexBuilder newBuilder(Format format) {
+    return new IndexBuilder(Runtime.getRuntime().availableProcessors(), 
+      IndexBuilder.DEFAULT_CHUNK_SIZE, format, DEFAULT_BLOCK_LINES);
   }
   
   /**
    * Builds index file for a given file
    * @param filePath text file path
    * @param indexPath index file path
+   * @param format index format
+   * @param progress build progress, can be null
    * @throws IOException
    */
-  private static void buildIndex(Path filePath, Path indexPath) 
-      throws IOException 
+  private static void buildIndex(Path filePath, Path indexPath, Format format, 
+      IndexBuilder.Progress progress) throws IOException 
   {
-    log.info("Building index for {}", filePath.toAbsolutePath());
-    long startTime = System.currentTimeMillis();
-    FileOutputStream fos = new FileOutputStream(indexPath.toFile());
-    BufferedOutputStream bos = new BufferedOutputStream(fos, 64 * 1024);
-    DataOutputStream dos = new DataOutputStream(bos);
-    dos.writeLong(0);
-    try ( Stream<String> lines = Files.lines(filePath);) {
-      Iterator<String> it = lines.iterator();
-      long offset = 0;
-      while(it.hasNext()) {
-        String s = it.next();
-        offset += s.length() + 1 /*1 byte for '\n'*/;
-        dos.writeLong(offset);
-      }
-      dos.flush();
-      dos.close();
+    // Readers never see a partially written index file
+    Path tmp = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+    try {
+      newBuilder(format).build(filePath, tmp, progress);
+      Files.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING, 
+        StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
     }
-    long endTime = System.currentTimeMillis();
-    log.info("Finished building index in {} ms", endTime - startTime);
   }  
 }
@@ -0,0 +1,549 @@
+package org.bigbase.textprovider;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.textprovider.commands.Request;
+import org.bigbase.textprovider.compress.BlockChannel;
+import org.bigbase.textprovider.metrics.Metrics;
+
+/**
+ *
+ * Process wide registry of served text files. Files are registered once, on server start,
+ * every file has a name which clients use to select it (USE <name>, GET <name> <n>).
+ * The first registered file is the default one.
+ *
+ * Open handles (text file descriptor and mapped index) are immutable snapshots, they are 
+ * reference counted: a connection holds a reference from the moment a request is executed 
+ * until its responses are sent.
+ * Number of open handles is bounded ("textprovider.files.open"): when a new handle is opened,
+ * least recently used idle handles (no references) are closed. Handles in use are never
+ * closed, so the bound can be exceeded while more files than that are being served at once.
+ *
+ * A replaced text file is reloaded without dropping connections: a new snapshot (generation)
+ * is opened and swapped in, the previous one is closed when requests in flight are done.
+ *
+ * Registry is immutable after start, lookups by name compare bytes in place and do not allocate.
+ *
+ */
+public final class FileRegistry {
+  private final static Logger log = LogManager.getLogger(FileRegistry.class);
+
+  /* Default maximum number of open handles */
+  public final static int DEFAULT_MAX_OPEN = 64;
+
+  /**
+   * Immutable snapshot of a served file: open text file and its index. A new generation
+   * is created when a file is replaced (see {@link FileRegistry#reload(TextFile, boolean)}).
+   * Snapshot is reference counted: its text file holds a reference while the snapshot is 
+   * current, every request holds one until its responses are sent. Snapshot is closed 
+   * when the last reference is released, so requests in flight finish on the version 
+   * they have started with
+   */
+  public final static class Snapshot {
+    /* Served file */
+    private final TextFile textFile;
+    /* Generation of a text file */
+    private final long generation;
+    /* Text file, shared by all threads (positional operations only) */
+    private final FileChannel file;
+    /* File index */
+    private volatile FileIndex index;
+    /* Number of references, 0 - closed */
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    private Snapshot(TextFile textFile, long generation, FileChannel file, FileIndex index) {
+      this.textFile = textFile;
+      this.generation = generation;
+      this.file = file;
+      this.index = index;
+    }
+
+    public TextFile getTextFile() {
+      return textFile;
+    }
+
+    public long getGeneration() {
+      return generation;
+    }
+
+    /**
+     * Get text file. Valid only while a reference is held. A block compressed file
+     * is read decompressed (see {@link BlockChannel})
+     * @return file channel
+     */
+    public FileChannel getFile() {
+      return file;
+    }
+
+    /**
+     * Get file index. Valid only while a reference is held. An index which is being
+     * built is replaced with a complete one as soon as it is published
+     * @return file index
+     * @throws IOException
+     */
+    public FileIndex getIndex() throws IOException {
+      FileIndex index = this.index;
+      if (index.isClosed() && index.getBuildProgress() != null) {
+        this.index = index = FileIndex.getIndexFor(textFile.path);
+      }
+      return index;
+    }
+
+    /**
+     * Acquires reference
+     * @return false if snapshot has been closed
+     */
+    private boolean retain() {
+      while (true) {
+        int n = refs.get();
+        if (n == 0) {
+          return false;
+        }
+        if (refs.compareAndSet(n, n + 1)) {
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Releases reference, the last one closes snapshot
+     */
+    public void release() {
+      textFile.lastAccess = System.nanoTime();
+      if (refs.decrementAndGet() == 0) {
+        close();
+      }
+    }
+
+    private void close() {
+      index.close();
+      try {
+        file.close();
+      } catch (IOException e) {
+        // swallow it - does not matter
+      }
+      log.debug("[{}] Closed {} generation {}", Thread.currentThread().getName(), textFile, 
+        generation);
+    }
+  }
+
+  /**
+   * Served text file
+   */
+  public final static class TextFile {
+    /* Name visible to clients */
+    private final String name;
+    /* Name bytes (UTF-8), for in place lookups */
+    private final byte[] nameBytes;
+    /* Text file path */
+    private final String path;
+    /* Current snapshot, null if handle is not open */
+    private volatile Snapshot snapshot;
+    /* Current generation, updated under a registry lock */
+    private volatile long generation;
+    /* Identity of a current version of a text file (file key, size, modification time) */
+    private volatile FileVersion version;
+    /* Last release time (nanoseconds), for LRU closing */
+    private volatile long lastAccess;
+
+    TextFile(String name, String path) {
+      this.name = name;
+      this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+      this.path = path;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    /**
+     * Get current generation, it is incremented every time a file is replaced
+     * @return generation
+     */
+    public long getGeneration() {
+      return generation;
+    }
+
+    /**
+     * Is handle open
+     * @return true if file and index are open
+     */
+    public boolean isOpen() {
+      return snapshot != null;
+    }
+
+    /**
+     * Get number of references held by requests to a current snapshot
+     * @return number of references, -1 if handle is closed
+     */
+    int getReferenceCount() {
+      Snapshot s = snapshot;
+      return s == null ? -1 : s.refs.get() - 1;
+    }
+
+    /**
+     * Acquires reference to a current snapshot, opens handle if it is closed
+     * @return snapshot, it must be released
+     * @throws IOException
+     */
+    public Snapshot acquire() throws IOException {
+      Snapshot s = snapshot;
+      if (s != null && s.retain()) {
+        return s;
+      }
+      return open(this);
+    }
+
+    /**
+     * Closes idle handle
+     * @return true if handle has been closed
+     */
+    private boolean closeIfIdle() {
+      Snapshot s = snapshot;
+      // Only a text file reference is held
+      if (s == null || !s.refs.compareAndSet(1, 0)) {
+        return false;
+      }
+      snapshot = null;
+      s.close();
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      return name + "=" + path;
+    }
+  }
+
+  /**
+   * Identity of a text file version
+   */
+  private final static class FileVersion {
+    private final Object key;
+    private final long size;
+    private final long modified;
+
+    private FileVersion(BasicFileAttributes attrs) {
+      // File key is not available on all platforms
+      this.key = attrs.fileKey();
+      this.size = attrs.size();
+      this.modified = attrs.lastModifiedTime().toMillis();
+    }
+
+    private static FileVersion of(String path) throws IOException {
+      return new FileVersion(Files.readAttributes(Path.of(path), BasicFileAttributes.class));
+    }
+
+    /**
+     * Is it the same file (not replaced), it may have been appended to
+     */
+    private boolean isSameFile(FileVersion v) {
+      return key != null && key.equals(v.key) && size <= v.size;
+    }
+
+    private boolean isUnchanged(FileVersion v) {
+      return Objects.equals(key, v.key) && size == v.size && modified == v.modified;
+    }
+  }
+
+  /* Registered files, the first one is the default */
+  private static volatile TextFile[] files = new TextFile[0];
+
+  /* Maximum number of open handles */
+  private static int maxOpen = Integer.getInteger("textprovider.files.open", DEFAULT_MAX_OPEN);
+
+  /* Number of open handles, guarded by a class lock */
+  private static int openCount;
+
+  /* Reloads files in the background */
+  private static ExecutorService reloader;
+
+  private FileRegistry() {
+  }
+
+  /**
+   * Registers text file. Index must have been created already
+   * @param name file name, it must not be a number and must not contain spaces
+   * @param path text file path
+   * @return registered file
+   * @throws IllegalArgumentException if name is invalid or is already registered
+   */
+  public static synchronized TextFile register(String name, String path) {
+    if (name.isEmpty() || name.indexOf(' ') >= 0 || name.matches("-?\\d+")) {
+      throw new IllegalArgumentException(String.format("Invalid file name '%s'", name));
+    }
+    if (get(name) != null) {
+      throw new IllegalArgumentException(String.format("Duplicate file name '%s'", name));
+    }
+    TextFile[] arr = new TextFile[files.length + 1];
+    System.arraycopy(files, 0, arr, 0, files.length);
+    TextFile file = new TextFile(name, path);
+    try {
+      file.version = FileVersion.of(path);
+    } catch (IOException e) {
+      // Text file is checked on open
+    }
+    arr[files.length] = file;
+    files = arr;
+    return file;
+  }
+
+  /**
+   * Get default file
+   * @return the first registered file or null
+   */
+  public static TextFile getDefault() {
+    TextFile[] arr = files;
+    return arr.length == 0 ? null : arr[0];
+  }
+
+  /**
+   * Get file by name
+   * @param name file name
+   * @return file or null
+   */
+  public static TextFile get(String name) {
+    for (TextFile f : files) {
+      if (f.name.equals(name)) {
+        return f;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get file named by a request argument. Does not allocate
+   * @param req parsed request
+   * @param i argument index
+   * @return file or null
+   */
+  public static TextFile lookup(Request req, int i) {
+    for (TextFile f : files) {
+      if (req.isArgument(i, f.nameBytes)) {
+        return f;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get file named by a request which consists of a file name only (binary protocol).
+   * Does not allocate
+   * @param req parsed request
+   * @return file or null
+   */
+  public static TextFile lookupName(Request req) {
+    for (TextFile f : files) {
+      if (req.getArgCount() == 0 && req.isCommand(f.nameBytes)) {
+        return f;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get all registered files
+   * @return files, the first one is the default
+   */
+  public static TextFile[] getFiles() {
+    return files.clone();
+  }
+
+  /**
+   * Get number of open handles
+   * @return number of open handles
+   */
+  public static synchronized int getOpenCount() {
+    return openCount;
+  }
+
+  /**
+   * Sets maximum number of open handles
+   * @param max maximum number of open handles
+   */
+  public static synchronized void setMaxOpen(int max) {
+    maxOpen = Math.max(1, max);
+  }
+
+  /**
+   * Opens closed handle, closes LRU idle handles above the limit
+   * @param f file
+   * @return current snapshot with a reference acquired
+   * @throws IOException
+   */
+  private static synchronized Snapshot open(TextFile f) throws IOException {
+    Snapshot s = f.snapshot;
+    if (s != null && s.retain()) {
+      // Opened by another thread
+      return s;
+    }
+    while (openCount >= maxOpen && closeLeastRecentlyUsed()) {
+      openCount--;
+    }
+    s = newSnapshot(f, FileIndex.getIndexFor(f.path));
+    if (f.version == null) {
+      f.version = FileVersion.of(f.path);
+    }
+    // Reference of a request
+    s.retain();
+    f.snapshot = s;
+    openCount++;
+    log.debug("[{}] Opened {}, open files: {}", Thread.currentThread().getName(), f, openCount);
+    return s;
+  }
+
+  /**
+   * Creates snapshot of a current generation
+   * @param f file
+   * @param index file index
+   * @return snapshot
+   * @throws IOException
+   */
+  private static Snapshot newSnapshot(TextFile f, FileIndex index) throws IOException {
+    return new Snapshot(f, f.generation, BlockChannel.open(Path.of(f.path)), index);
+  }
+
+  /**
+   * Closes least recently used idle handle
+   * @return false if there is no idle handle
+   */
+  private static boolean closeLeastRecentlyUsed() {
+    while (true) {
+      TextFile lru = null;
+      for (TextFile f : files) {
+        if (f.getReferenceCount() == 0 && (lru == null || f.lastAccess - lru.lastAccess < 0)) {
+          lru = f;
+        }
+      }
+      if (lru == null) {
+        return false;
+      }
+      // Can fail if the handle has been acquired in the meantime
+      if (lru.closeIfIdle()) {
+        log.debug("[{}] Closed idle {}", Thread.currentThread().getName(), lru);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Picks up a new version of a text file. Lines appended to the same file are indexed
+   * in place. A replaced (or rewritten) file gets a new generation: its index is built 
+   * or opened first, then file and index are swapped atomically. Requests in flight 
+   * finish on the previous snapshot, it is closed when they are done. Should be called 
+   * off the hot path (see {@link #reloadInBackground(TextFile, boolean)})
+   * @param f file
+   * @param force create new generation even if file has not changed
+   * @return true if new generation has been created
+   * @throws IOException
+   */
+  public static boolean reload(TextFile f, boolean force) throws IOException {
+    synchronized (f) {
+      if (FileIndex.isBuilding(f.path)) {
+        // Complete index is checked when the build is finished
+        log.info("[{}] Index of {} is being built, reload skipped", 
+          Thread.currentThread().getName(), f);
+        return false;
+      }
+      FileVersion current = f.version;
+      FileVersion next = FileVersion.of(f.path);
+      if (!force && current != null) {
+        if (current.isUnchanged(next)) {
+          return false;
+        }
+        if (current.isSameFile(next) && FileIndex.update(f.path) >= 0) {
+          f.version = next;
+          return false;
+        }
+      }
+      long startTime = System.nanoTime();
+      // Slow part - index of a new version
+      FileIndex index = FileIndex.reopen(f.path);
+      Snapshot old;
+      synchronized (FileRegistry.class) {
+        f.generation++;
+        f.version = next;
+        old = f.snapshot;
+        if (old != null) {
+          try {
+            f.snapshot = newSnapshot(f, index);
+          } catch (IOException e) {
+            // Text file is reopened on next access
+            f.snapshot = null;
+            openCount--;
+            old.release();
+            throw e;
+          }
+        }
+      }
+      if (old != null) {
+        // Text file reference, requests in flight hold their own ones
+        old.release();
+      } 
+      Metrics.fileReloaded();
+      if (TermIndex.ENABLED) {
+        // Lines of a new version are searchable when its term index is built
+        TermIndex.openOrCreateInBackground(f.path);
+      }
+      log.info("[{}] Reloaded {} generation {} in {} ms", Thread.currentThread().getName(), f, 
+        f.generation, (System.nanoTime() - startTime) / 1000000);
+      return true;
+    }
+  }
+
+  /**
+   * Reloads file in a background thread
+   * @param f file
+   * @param force create new generation even if file has not changed
+   */
+  public static void reloadInBackground(TextFile f, boolean force) {
+    getReloader().execute(() -> {
+      try {
+        reload(f, force);
+      } catch (IOException e) {
+        log.error("[{}] Reload of {} failed", Thread.currentThread().getName(), f, e);
+      }
+    });
+  }
+
+  private static synchronized ExecutorService getReloader() {
+    if (reloader == null) {
+      reloader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "file-reloader");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return reloader;
+  }
+
+  /**
+   * Closes all handles and clears registry
+   */
+  public static synchronized void closeAll() {
+    for (TextFile f : files) {
+      Snapshot s = f.snapshot;
+      f.snapshot = null;
+      if (s != null) {
+        s.close();
+      }
+    }
+    files = new TextFile[0];
+    openCount = 0;
+  }
+}
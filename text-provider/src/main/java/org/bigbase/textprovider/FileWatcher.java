@@ -0,0 +1,121 @@
+package org.bigbase.textprovider;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *
+ * Watches served text files and reloads changed ones (see 
+ * {@link FileRegistry#reload(FileRegistry.TextFile, boolean)}): appended lines are indexed
+ * in place, a replaced file gets a new generation. Directories of registered files are 
+ * watched, events are collected for a short time, so a burst of writes (or a copy and 
+ * a rename) results in a single reload per file.
+ *
+ */
+public class FileWatcher extends Thread {
+  private final static Logger log = LogManager.getLogger(FileWatcher.class);
+
+  /* Time (milliseconds) to collect events before indexes are updated */
+  private final static long SETTLE_MILLIS =
+      Long.getLong("textprovider.watch.settle.millis", 100);
+
+  private final WatchService watcher;
+
+  /* Watched text files (absolute paths) */
+  private final Map<Path, FileRegistry.TextFile> files = 
+      new HashMap<Path, FileRegistry.TextFile>();
+
+  /**
+   * Constructor
+   * @param files registered text files
+   * @throws IOException
+   */
+  public FileWatcher(FileRegistry.TextFile[] files) throws IOException {
+    super("file-watcher");
+    setDaemon(true);
+    this.watcher = FileSystems.getDefault().newWatchService();
+    Set<Path> dirs = new HashSet<Path>();
+    for (FileRegistry.TextFile f : files) {
+      Path path = Path.of(f.getPath()).toAbsolutePath();
+      this.files.put(path, f);
+      if (dirs.add(path.getParent())) {
+        path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_MODIFY,
+          StandardWatchEventKinds.ENTRY_CREATE);
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    log.info("[{}] Watching {} files", Thread.currentThread().getName(), files.size());
+    Set<FileRegistry.TextFile> changed = new HashSet<FileRegistry.TextFile>();
+    try {
+      while (true) {
+        WatchKey key = watcher.take();
+        Thread.sleep(SETTLE_MILLIS);
+        do {
+          collect(key, changed);
+        } while ((key = watcher.poll()) != null);
+        for (FileRegistry.TextFile f : changed) {
+          reload(f);
+        }
+        changed.clear();
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      log.info("[{}] Stopped", Thread.currentThread().getName());
+    }
+  }
+
+  /**
+   * Collects changed watched files of a signalled key and resets the key
+   * @param key watch key
+   * @param changed changed files
+   */
+  private void collect(WatchKey key, Set<FileRegistry.TextFile> changed) {
+    Path dir = (Path) key.watchable();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        // Events are lost, check all files
+        changed.addAll(files.values());
+        continue;
+      }
+      FileRegistry.TextFile f = files.get(dir.resolve((Path) event.context()));
+      if (f != null) {
+        changed.add(f);
+      }
+    }
+    key.reset();
+  }
+
+  private void reload(FileRegistry.TextFile f) {
+    try {
+      FileRegistry.reload(f, false);
+    } catch (IOException e) {
+      log.error("[{}] Reload of {} failed", Thread.currentThread().getName(), f, e);
+    }
+  }
+
+  /**
+   * Stops watching
+   */
+  public void close() {
+    try {
+      watcher.close();
+    } catch (IOException e) {
+      // swallow it - does not matter
+    }
+  }
+}
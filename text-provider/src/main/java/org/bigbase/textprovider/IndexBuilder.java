@@ -0,0 +1,566 @@
+package org.bigbase.textprovider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.textprovider.compress.BlockChannel;
+
+/**
+ *
+ * Parallel text file index builder.
+ * A text file is split into fixed size chunks, every chunk is memory mapped
+ * (read decompressed from a block compressed file, see {@link BlockChannel})
+ * and scanned for '\n' bytes on a ForkJoin pool. Per-chunk offset arrays
+ * are stitched (in chunk order) into the index file. Only a bounded number
+ * of chunks is in flight at any time, so memory usage does not depend
+ * on a text file size.
+ * 
+ * Offsets are byte offsets, lines may be terminated by "\n" or "\r\n", 
+ * the last line may have no terminator at all (see {@link FileIndex} for 
+ * the index entry format).
+ *
+ */
+public class IndexBuilder {
+
+  /*
+   * Logger
+   */
+  private static final Logger log = LogManager.getLogger(IndexBuilder.class);
+
+  /* Default chunk size - 64MB */
+  public final static int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  /* Size of a text tail, which checksum is kept in an index header */
+  final static int TAIL_CHECK_SIZE = 4096;
+
+  /* Line feed repeated in every byte of a long */
+  private final static long LF_PATTERN = 0x0a0a0a0a0a0a0a0aL;
+
+  /* Low 7 bits mask for every byte of a long */
+  private final static long LOW_BITS = 0x7f7f7f7f7f7f7f7fL;
+
+  /* Number of worker threads */
+  private final int parallelism;
+
+  /* Chunk size in bytes */
+  private final int chunkSize;
+
+  /* Index format */
+  private final FileIndex.Format format;
+
+  /* Lines per block (compact format) */
+  private final int blockLines;
+
+  /**
+   * Default constructor, parallelism is equal to number of available processors
+   */
+  public IndexBuilder() {
+    this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Constructor, dense index format
+   * @param parallelism number of threads to scan chunks
+   * @param chunkSize chunk size in bytes
+   */
+  public IndexBuilder(int parallelism, int chunkSize) {
+    this(parallelism, chunkSize, FileIndex.Format.DENSE, FileIndex.DEFAULT_BLOCK_LINES);
+  }
+
+  /**
+   * Constructor
+   * @param parallelism number of threads to scan chunks
+   * @param chunkSize chunk size in bytes
+   * @param format index format
+   * @param blockLines lines per block (compact format)
+   */
+  public IndexBuilder(int parallelism, int chunkSize, FileIndex.Format format, int blockLines) {
+    if (parallelism <= 0 || chunkSize <= 0 || blockLines <= 0) {
+      throw new IllegalArgumentException(
+        "parallelism, chunk size and block lines must be positive");
+    }
+    this.parallelism = parallelism;
+    this.chunkSize = chunkSize;
+    this.format = format;
+    this.blockLines = blockLines;
+  }
+
+  /**
+   * Builds index file for a given text file
+   * @param filePath text file path
+   * @param indexPath index file path
+   * @return total number of lines indexed
+   * @throws IOException
+   */
+  public long build(Path filePath, Path indexPath) throws IOException {
+    return build(filePath, indexPath, null);
+  }
+
+  /**
+   * Builds index file for a given text file and reports progress
+   * @param filePath text file path
+   * @param indexPath index file path
+   * @param progress build progress, updated after every chunk, can be null
+   * @return total number of lines indexed
+   * @throws IOException
+   */
+  public long build(Path filePath, Path indexPath, Progress progress) throws IOException {
+    log.info("Building {} index for {}, parallelism={} chunk size={}", format,
+      filePath.toAbsolutePath(), parallelism, chunkSize);
+    long startTime = System.nanoTime();
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    long lines = 0;
+    long fileSize = 0;
+    IndexWriter out = IndexWriter.create(format, blockLines, indexPath);
+    try (FileChannel in = BlockChannel.open(filePath)) {
+      fileSize = in.size();
+      lines = scanLines(in, 0, fileSize, pool, out, progress);
+      if (fileSize > 0 && byteAt(in, fileSize - 1) != (byte) '\n') {
+        // Last line has no line terminator
+        out.add(fileSize);
+        lines++;
+      }
+      out.finish(lines, fileSize, tailChecksum(in, fileSize));
+    } finally {
+      pool.shutdownNow();
+      out.close();
+    }
+    long endTime = System.nanoTime();
+    double seconds = Math.max(endTime - startTime, 1) / 1e9;
+    log.info("Finished building index for {} in {} ms, lines={} throughput={} MB/s",
+      filePath.toAbsolutePath(), (endTime - startTime) / 1000000, lines,
+      String.format("%.1f", fileSize / seconds / (1024 * 1024)));
+    return lines;
+  }
+
+  /**
+   * Appends index entries of lines which have been added to a text file since its index 
+   * was built. The index header keeps indexed text length and a checksum of the text 
+   * tail before it: if the tail is not the same, the file has been changed other 
+   * than by an append. Only new bytes are scanned (and the last indexed line, 
+   * if it had no terminator, because it continues). The header magic is cleared 
+   * before entries are written after existing ones and is restored when the header 
+   * is rewritten last, so an interrupted append leaves an index which fails validation 
+   * and is rebuilt.
+   * Only dense indexes can be appended.
+   * @param filePath text file path
+   * @param indexPath index file path
+   * @return new total number of lines, -1 if index can not be appended and must be rebuilt
+   * @throws IOException
+   */
+  public long append(Path filePath, Path indexPath) throws IOException {
+    long lines, indexed, checksum, last, previous = 0;
+    try (FileChannel index = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+      ByteBuffer header = FileIndex.readHeader(index);
+      if (header == null || header.getInt(24) != FileIndex.Format.DENSE.ordinal()) {
+        return -1;
+      }
+      lines = header.getLong(8);
+      indexed = header.getLong(16);
+      checksum = header.getLong(40);
+      last = readLong(index, FileIndex.HEADER_SIZE + lines * Long.BYTES);
+      if (lines > 0) {
+        previous = readLong(index, FileIndex.HEADER_SIZE + (lines - 1) * Long.BYTES);
+      }
+    }
+    try (FileChannel in = BlockChannel.open(filePath)) {
+      long fileSize = in.size();
+      if (fileSize < indexed || tailChecksum(in, indexed) != checksum) {
+        return -1;
+      }
+      if (fileSize == indexed) {
+        return lines;
+      }
+      long startTime = System.nanoTime();
+      long keep = lines;
+      long from = indexed;
+      if (lines > 0 && (last >>> FileIndex.TERMINATOR_SHIFT) == 0) {
+        // The last line had no terminator, it is scanned again
+        keep = lines - 1;
+        from = previous & FileIndex.OFFSET_MASK;
+      }
+      ForkJoinPool pool = new ForkJoinPool(parallelism);
+      IndexWriter out = IndexWriter.append(indexPath, keep);
+      long total;
+      try {
+        total = keep + scanLines(in, from, fileSize, pool, out, null);
+        if (byteAt(in, fileSize - 1) != (byte) '\n') {
+          out.add(fileSize);
+          total++;
+        }
+        out.finish(total, fileSize, tailChecksum(in, fileSize));
+      } finally {
+        pool.shutdownNow();
+        out.close();
+      }
+      log.info("Appended index for {} in {} ms, scanned={} lines={} (+{})", 
+        filePath.toAbsolutePath(), (System.nanoTime() - startTime) / 1000000, 
+        fileSize - from, total, total - lines);
+      return total;
+    }
+  }
+
+  /**
+   * Scans a region of a text file in parallel and writes entries of lines
+   * terminated in the region
+   * @param in text file
+   * @param from region start
+   * @param to region end (exclusive)
+   * @param pool worker pool
+   * @param out index writer
+   * @param progress build progress, can be null
+   * @return number of lines found
+   * @throws IOException
+   */
+  private long scanLines(FileChannel in, long from, long to, ForkJoinPool pool, 
+      IndexWriter out, Progress progress) throws IOException {
+    long lines = 0;
+    // Chunks are submitted in order and consumed in order,
+    // at most 2 * parallelism chunks are in flight
+    Deque<ForkJoinTask<Chunk>> inFlight = new ArrayDeque<>();
+    int maxInFlight = 2 * parallelism;
+    long nextStart = from;
+    while (nextStart < to || !inFlight.isEmpty()) {
+      while (nextStart < to && inFlight.size() < maxInFlight) {
+        final long start = nextStart;
+        final int size = (int) Math.min(chunkSize, to - start);
+        inFlight.addLast(pool.submit(() -> scan(in, start, size)));
+        nextStart += size;
+      }
+      Chunk chunk = join(inFlight.removeFirst());
+      for (int i = 0; i < chunk.count; i++) {
+        out.add(chunk.offsets[i]);
+      }
+      lines += chunk.count;
+      if (progress != null) {
+        progress.advance(chunk.offsets, chunk.count);
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Checksum (CRC32) of a text file region of {@link #TAIL_CHECK_SIZE} bytes 
+   * which ends at a given offset
+   * @param in text file
+   * @param end region end (exclusive)
+   * @return checksum
+   * @throws IOException
+   */
+  static long tailChecksum(FileChannel in, long end) throws IOException {
+    long start = Math.max(0, end - TAIL_CHECK_SIZE);
+    ByteBuffer buf = ByteBuffer.allocate((int) (end - start));
+    while (buf.hasRemaining()) {
+      if (in.read(buf, start + buf.position()) < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+    }
+    buf.flip();
+    CRC32 crc = new CRC32();
+    crc.update(buf);
+    return crc.getValue();
+  }
+
+  private static long readLong(FileChannel in, long offset) throws IOException {
+    ByteBuffer b = ByteBuffer.allocate(Long.BYTES);
+    while (b.hasRemaining()) {
+      if (in.read(b, offset + b.position()) < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+    }
+    return b.getLong(0);
+  }
+
+  /**
+   * Scans a file chunk for line feeds
+   * @param in file channel
+   * @param start chunk start offset
+   * @param size chunk size
+   * @return chunk with index entries of lines, which follow line feeds
+   * @throws IOException
+   */
+  private Chunk scan(FileChannel in, long start, int size) throws IOException {
+    // Map one extra byte before the chunk to check '\r' before the first '\n'
+    int shift = start > 0 ? 1 : 0;
+    ByteBuffer buf = BlockChannel.map(in, start - shift, size + shift);
+    buf.order(ByteOrder.LITTLE_ENDIAN);
+    Chunk chunk = new Chunk(Math.max(16, size >>> 6));
+    long base = start - shift;
+    int pos = shift;
+    int limit = size + shift - Long.BYTES;
+    // Scan 8 bytes at a time
+    while (pos <= limit) {
+      long word = buf.getLong(pos) ^ LF_PATTERN;
+      // high bit is set for every zero byte (exact, no cross byte carries)
+      long mask = ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS);
+      while (mask != 0) {
+        int index = pos + (Long.numberOfTrailingZeros(mask) >>> 3);
+        chunk.add(entry(buf, base, index));
+        mask &= mask - 1;
+      }
+      pos += Long.BYTES;
+    }
+    // Scan the tail
+    for (; pos < size + shift; pos++) {
+      if (buf.get(pos) == (byte) '\n') {
+        chunk.add(entry(buf, base, pos));
+      }
+    }
+    return chunk;
+  }
+
+  /**
+   * Creates index entry for a line terminated by '\n'
+   * @param buf text buffer
+   * @param base buffer offset in a file
+   * @param index index of '\n' in a buffer
+   * @return index entry
+   */
+  private static long entry(ByteBuffer buf, long base, int index) {
+    long terminator = index > 0 && buf.get(index - 1) == (byte) '\r' ? 2 : 1;
+    return (base + index + 1) | (terminator << FileIndex.TERMINATOR_SHIFT);
+  }
+
+  private static byte byteAt(FileChannel in, long offset) throws IOException {
+    ByteBuffer b = ByteBuffer.allocate(1);
+    while (b.hasRemaining()) {
+      if (in.read(b, offset) < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+    }
+    return b.get(0);
+  }
+
+  private static Chunk join(ForkJoinTask<Chunk> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Index build interrupted", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Progress of an index build. It is updated by a builder thread after every chunk
+   * and can be read by any thread. Offset of every {@link #CHECKPOINT_LINES}-th line
+   * is kept in memory, so lines which have been indexed already can be located
+   * (by a short scan of a text file from a checkpoint) before the index file is complete.
+   */
+  public static class Progress {
+    /* Lines between checkpoints: 256 */
+    final static int CHECKPOINT_SHIFT = 8;
+    public final static int CHECKPOINT_LINES = 1 << CHECKPOINT_SHIFT;
+
+    /* Text file read buffer size for a line scan */
+    private final static int SCAN_BUFFER_SIZE = 8 * 1024;
+
+    /* Text file, for lookups */
+    private final FileChannel text;
+    /* Text file size */
+    private final long fileSize;
+    /* Build start time (nanoseconds) */
+    private final long startTime = System.nanoTime();
+    /* checkpoints[k] - offset of a line k * CHECKPOINT_LINES + 1 */
+    private volatile long[] checkpoints = new long[1024];
+    /* Number of lines indexed, published after checkpoints */
+    private volatile long lines;
+    /* Number of text bytes indexed: offset of the line which follows the last indexed line */
+    private volatile long bytes;
+    /* Is build finished */
+    private volatile boolean done;
+    /* Build failure */
+    private volatile Throwable failure;
+
+    /**
+     * Constructor
+     * @param filePath text file path
+     * @throws IOException
+     */
+    public Progress(Path filePath) throws IOException {
+      this.text = BlockChannel.open(filePath);
+      this.fileSize = text.size();
+    }
+
+    /**
+     * Adds index entries of the next lines and publishes them
+     * @param entries index entries
+     * @param count number of entries
+     */
+    void advance(long[] entries, int count) {
+      long n = lines;
+      long[] cp = checkpoints;
+      for (int i = 0; i < count; i++) {
+        n++;
+        if ((n & (CHECKPOINT_LINES - 1)) == 0) {
+          // Entry is an offset of a line n + 1
+          int k = (int) (n >>> CHECKPOINT_SHIFT);
+          if (k == cp.length) {
+            cp = Arrays.copyOf(cp, k * 2);
+          }
+          cp[k] = entries[i] & FileIndex.OFFSET_MASK;
+        }
+      }
+      checkpoints = cp;
+      if (count > 0) {
+        bytes = entries[count - 1] & FileIndex.OFFSET_MASK;
+      }
+      lines = n;
+    }
+
+    /**
+     * Marks build as finished, releases text file
+     * @param failure build failure, null on success
+     */
+    void finish(Throwable failure) {
+      this.failure = failure;
+      this.done = true;
+      try {
+        text.close();
+      } catch (IOException e) {
+        // swallow it - does not matter
+      }
+    }
+
+    /**
+     * Locates an indexed line
+     * @param lineNumber line number
+     * @param range range holder to fill
+     * @return true if line has been indexed, false - otherwise
+     */
+    public boolean getRange(long lineNumber, FileIndex.Range range) {
+      long n = lines;
+      if (lineNumber < 1 || lineNumber > n) {
+        return false;
+      }
+      long[] cp = checkpoints;
+      long k = (lineNumber - 1) >>> CHECKPOINT_SHIFT;
+      long line = (k << CHECKPOINT_SHIFT) + 1;
+      long start = cp[(int) k];
+      ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+      long pos = start;
+      byte prev = 0;
+      try {
+        while (true) {
+          buf.clear();
+          int read = text.read(buf, pos);
+          if (read <= 0) {
+            return false;
+          }
+          for (int i = 0; i < read; i++) {
+            byte b = buf.get(i);
+            if (b == (byte) '\n') {
+              if (line == lineNumber) {
+                int term = prev == (byte) '\r' ? 2 : 1;
+                range.set(start, pos + i + 1 - term - start, term);
+                return true;
+              }
+              line++;
+              start = pos + i + 1;
+            }
+            prev = b;
+          }
+          pos += read;
+        }
+      } catch (IOException e) {
+        // Text file has been closed when the build finished, a caller retries
+        log.debug("[{}] Line {} lookup failed: {}", Thread.currentThread().getName(), lineNumber,
+          e.toString());
+        return false;
+      }
+    }
+
+    /**
+     * Get number of lines indexed so far
+     * @return number of lines
+     */
+    public long getLines() {
+      return lines;
+    }
+
+    /**
+     * Get number of text bytes indexed so far
+     * @return number of bytes
+     */
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Get text file size
+     * @return text file size
+     */
+    public long getFileSize() {
+      return fileSize;
+    }
+
+    /**
+     * Estimated time to completion, based on the throughput so far
+     * @return milliseconds, -1 if unknown
+     */
+    public long getRemainingMillis() {
+      long done = bytes;
+      if (this.done) {
+        return 0;
+      }
+      if (done == 0) {
+        return -1;
+      }
+      long elapsed = System.nanoTime() - startTime;
+      return (long) ((double) elapsed * (fileSize - done) / done / 1000000);
+    }
+
+    /**
+     * Is build finished (successfully or not)
+     * @return true if finished
+     */
+    public boolean isDone() {
+      return done;
+    }
+
+    /**
+     * Get build failure
+     * @return failure or null
+     */
+    public Throwable getFailure() {
+      return failure;
+    }
+  }
+
+  /**
+   * Growable array of line offsets found in a chunk
+   */
+  private static class Chunk {
+    long[] offsets;
+    int count;
+
+    Chunk(int capacity) {
+      offsets = new long[capacity];
+    }
+
+    void add(long offset) {
+      if (count == offsets.length) {
+        offsets = Arrays.copyOf(offsets, count * 2);
+      }
+      offsets[count++] = offset;
+    }
+  }
+}
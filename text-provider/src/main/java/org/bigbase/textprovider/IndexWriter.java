@@ -0,0 +1,326 @@
+package org.bigbase.textprovider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *
+ * Writes index entries in one of the index file formats.
+ * Entries are added in line order, every entry is an offset of the next line
+ * with a line terminator length in the high bits (see {@link FileIndex}).
+ *
+ */
+abstract class IndexWriter {
+
+  /* Size of a write buffer */
+  final static int WRITE_BUFFER_SIZE = 64 * 1024;
+
+  /* Index file channel */
+  protected final FileChannel out;
+  /* Index file path */
+  protected final Path indexPath;
+  /* Write buffer */
+  protected final ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+  /* Index file position of the write buffer start */
+  protected long position;
+
+  /**
+   * Creates writer for a given format
+   * @param format index format
+   * @param blockLines number of lines in a block (compact format)
+   * @param indexPath index file path
+   * @return index writer
+   * @throws IOException
+   */
+  static IndexWriter create(FileIndex.Format format, int blockLines, Path indexPath)
+      throws IOException {
+    switch (format) {
+      case COMPACT:
+        return new CompactWriter(indexPath, blockLines);
+      default:
+        return new DenseWriter(indexPath);
+    }
+  }
+
+  IndexWriter(Path indexPath) throws IOException {
+    this.indexPath = indexPath;
+    this.out = FileChannel.open(indexPath, StandardOpenOption.CREATE,
+      StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    // Header is rewritten when total number of lines is known
+    buf.position(FileIndex.HEADER_SIZE);
+  }
+
+  /**
+   * Constructor of a writer which appends to an existing index file
+   * @param indexPath index file path
+   * @param position index file position to write new entries at
+   * @throws IOException
+   */
+  IndexWriter(Path indexPath, long position) throws IOException {
+    this.indexPath = indexPath;
+    this.out = FileChannel.open(indexPath, StandardOpenOption.WRITE);
+    this.position = position;
+    // Existing entries are overwritten, index is invalid until its header is rewritten
+    invalidate();
+  }
+
+  /**
+   * Creates writer which appends entries to an existing dense index
+   * @param indexPath index file path
+   * @param lines number of lines to keep, new entries follow them
+   * @return index writer
+   * @throws IOException
+   */
+  static IndexWriter append(Path indexPath, long lines) throws IOException {
+    return new DenseWriter(indexPath, lines);
+  }
+
+  /**
+   * Adds index entry of a next line
+   * @param entry index entry
+   * @throws IOException
+   */
+  abstract void add(long entry) throws IOException;
+
+  /**
+   * Writes all pending data and the index header and closes the writer
+   * @param lines total number of lines
+   * @param textLength text file length
+   * @param checksum checksum of a text file tail (see {@link FileIndex#HEADER_SIZE})
+   * @throws IOException
+   */
+  abstract void finish(long lines, long textLength, long checksum) throws IOException;
+
+  /**
+   * Closes index file
+   */
+  void close() throws IOException {
+    out.close();
+  }
+
+  /**
+   * Makes sure write buffer has enough space
+   * @param size required space in bytes
+   * @throws IOException
+   */
+  protected void ensure(int size) throws IOException {
+    if (buf.remaining() < size) {
+      flush();
+    }
+  }
+
+  protected void flush() throws IOException {
+    buf.flip();
+    while (buf.hasRemaining()) {
+      position += out.write(buf, position);
+    }
+    buf.clear();
+  }
+
+  /**
+   * Clears magic number of an index header, so the index fails validation
+   * @throws IOException
+   */
+  private void invalidate() throws IOException {
+    ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+    while (magic.hasRemaining()) {
+      out.write(magic, magic.position());
+    }
+    out.force(false);
+  }
+
+  /**
+   * Writes index header at the beginning of an index file. Entries are forced 
+   * to disk first, so a valid header never describes entries which have not been written
+   * @param format index format
+   * @param lines total number of lines
+   * @param textLength text file length
+   * @param checksum text file tail checksum
+   * @param blockLines lines per block
+   * @param directoryOffset block directory offset
+   * @throws IOException
+   */
+  protected void writeHeader(FileIndex.Format format, long lines, long textLength,
+      long checksum, int blockLines, long directoryOffset) throws IOException {
+    out.force(false);
+    ByteBuffer header = ByteBuffer.allocate(FileIndex.HEADER_SIZE);
+    FileIndex.writeHeader(header, format, lines, textLength, checksum, blockLines, 
+      directoryOffset);
+    header.flip();
+    long pos = 0;
+    while (header.hasRemaining()) {
+      pos += out.write(header, pos);
+    }
+    out.force(false);
+  }
+
+  /**
+   * Dense format: one 8 byte entry per line
+   */
+  static class DenseWriter extends IndexWriter {
+
+    DenseWriter(Path indexPath) throws IOException {
+      super(indexPath);
+      buf.putLong(0);
+    }
+
+    DenseWriter(Path indexPath, long lines) throws IOException {
+      super(indexPath, FileIndex.HEADER_SIZE + (lines + 1) * Long.BYTES);
+    }
+
+    @Override
+    void add(long entry) throws IOException {
+      ensure(Long.BYTES);
+      buf.putLong(entry);
+    }
+
+    @Override
+    void finish(long lines, long textLength, long checksum) throws IOException {
+      flush();
+      // Appended index can be shorter, if the last line had no terminator
+      out.truncate(position);
+      writeHeader(FileIndex.Format.DENSE, lines, textLength, checksum, 0, 0);
+    }
+  }
+
+  /**
+   * Compact format: lines are grouped in blocks of blockLines lines. Every block
+   * keeps line content lengths as var-ints (preceded by a line terminators bitmap,
+   * 2 bits per line, when terminators are not the same in a block). The block
+   * directory at the end of a file keeps two longs per block: the absolute offset
+   * of the block's first line and the position of the block data in the index file
+   * (with a terminators mode in the two high bits: 1 - all '\n', 2 - all "\r\n",
+   * 3 - mixed, bitmap present).
+   */
+  static class CompactWriter extends IndexWriter {
+    /* Lines per block */
+    private final int blockLines;
+    /* Entries of a current block */
+    private final long[] block;
+    /* Number of entries in a current block */
+    private int count;
+    /* Offset of a current line */
+    private long lineStart;
+    /* Block directory temporary file */
+    private final Path directoryPath;
+    /* Block directory writer */
+    private final FileChannel directory;
+    /* Block directory buffer */
+    private final ByteBuffer dirBuf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+    CompactWriter(Path indexPath, int blockLines) throws IOException {
+      super(indexPath);
+      if (blockLines <= 0) {
+        throw new IllegalArgumentException("block lines must be positive");
+      }
+      this.blockLines = blockLines;
+      this.block = new long[blockLines];
+      this.directoryPath = indexPath.resolveSibling(indexPath.getFileName() + ".dir");
+      this.directory = FileChannel.open(directoryPath, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    void add(long entry) throws IOException {
+      block[count++] = entry;
+      if (count == blockLines) {
+        writeBlock();
+      }
+    }
+
+    private void writeBlock() throws IOException {
+      long mode = block[0] >>> FileIndex.TERMINATOR_SHIFT;
+      for (int i = 1; i < count; i++) {
+        if (block[i] >>> FileIndex.TERMINATOR_SHIFT != mode) {
+          mode = FileIndex.MIXED_TERMINATORS;
+          break;
+        }
+      }
+      if (mode == 0) {
+        // Single line without terminator
+        mode = FileIndex.MIXED_TERMINATORS;
+      }
+      if (dirBuf.remaining() < 2 * Long.BYTES) {
+        flushDirectory();
+      }
+      dirBuf.putLong(lineStart);
+      dirBuf.putLong((position + buf.position()) | (mode << FileIndex.TERMINATOR_SHIFT));
+      if (mode == FileIndex.MIXED_TERMINATORS) {
+        int bitmapSize = FileIndex.bitmapSize(count);
+        ensure(bitmapSize);
+        int start = buf.position();
+        for (int i = 0; i < bitmapSize; i++) {
+          buf.put((byte) 0);
+        }
+        for (int i = 0; i < count; i++) {
+          int term = (int) (block[i] >>> FileIndex.TERMINATOR_SHIFT);
+          int index = start + (i >>> 2);
+          buf.put(index, (byte) (buf.get(index) | (term << ((i & 3) << 1))));
+        }
+      }
+      for (int i = 0; i < count; i++) {
+        long next = block[i] & FileIndex.OFFSET_MASK;
+        long size = next - lineStart - (block[i] >>> FileIndex.TERMINATOR_SHIFT);
+        ensure(10);
+        putVarLong(size);
+        lineStart = next;
+      }
+      count = 0;
+    }
+
+    private void putVarLong(long v) {
+      while ((v & ~0x7fL) != 0) {
+        buf.put((byte) ((v & 0x7f) | 0x80));
+        v >>>= 7;
+      }
+      buf.put((byte) v);
+    }
+
+    private void flushDirectory() throws IOException {
+      dirBuf.flip();
+      while (dirBuf.hasRemaining()) {
+        directory.write(dirBuf);
+      }
+      dirBuf.clear();
+    }
+
+    @Override
+    void finish(long lines, long textLength, long checksum) throws IOException {
+      if (count > 0) {
+        writeBlock();
+      }
+      // Directory is 8 bytes aligned in the index file, so its entries never 
+      // cross mapped segments
+      ensure(Long.BYTES);
+      while ((position + buf.position()) % Long.BYTES != 0) {
+        buf.put((byte) 0);
+      }
+      flush();
+      flushDirectory();
+      long directoryOffset = position;
+      long size = directory.size();
+      long transferred = 0;
+      while (transferred < size) {
+        transferred += directory.transferTo(transferred, size - transferred, out.position(
+          directoryOffset + transferred));
+      }
+      writeHeader(FileIndex.Format.COMPACT, lines, textLength, checksum, blockLines, 
+        directoryOffset);
+    }
+
+    @Override
+    void close() throws IOException {
+      try {
+        directory.close();
+        Files.deleteIfExists(directoryPath);
+      } finally {
+        super.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,414 @@
+package org.bigbase.textprovider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bigbase.textprovider.commands.Command;
+
+/**
+ *
+ * Hot lines cache. Keeps pre-framed GET responses ("OK\r\n" + line + "\r\n")
+ * in off-heap (direct) buffers, so a hit is served with a single write.
+ * Cache size is bounded by a byte budget, eviction policy is W-TinyLFU: new entries
+ * go to a small LRU window, an entry evicted from the window is admitted to the main
+ * segmented LRU (probation + protected) only if its estimated access frequency
+ * (count-min sketch) is higher than the frequency of the main space victim.
+ *
+ * Lookups are lock-free. Policy updates on hits are best-effort: they are skipped
+ * when the policy lock is contended.
+ *
+ */
+public class LineCache {
+
+  /* Window size, percent of a total budget */
+  private final static int WINDOW_PERCENT = 1;
+
+  /* Protected segment size, percent of a main space */
+  private final static int PROTECTED_PERCENT = 80;
+
+  /* Per entry overhead estimate (node, map entry, buffer object) */
+  private final static int ENTRY_OVERHEAD = 128;
+
+  /* Average entry size estimate used to size the frequency sketch */
+  private final static int AVERAGE_ENTRY_SIZE = 256;
+
+  /* Queue types */
+  private final static byte WINDOW = 0;
+  private final static byte PROBATION = 1;
+  private final static byte PROTECTED = 2;
+
+  /**
+   * Cache entry and a node of an LRU queue
+   */
+  private static class Node {
+    final long key;
+    final ByteBuffer value;
+    final long weight;
+    byte queue;
+    Node prev;
+    Node next;
+
+    Node(long key, ByteBuffer value) {
+      this.key = key;
+      this.value = value;
+      this.weight = value.capacity() + ENTRY_OVERHEAD;
+    }
+  }
+
+  /**
+   * LRU queue (doubly linked list with a sentinel)
+   */
+  private static class Queue {
+    final Node head = new Node(0, ByteBuffer.allocate(0));
+    long weight;
+
+    Queue() {
+      head.prev = head;
+      head.next = head;
+    }
+
+    boolean isEmpty() {
+      return head.next == head;
+    }
+
+    Node first() {
+      return head.next;
+    }
+
+    void addLast(Node n) {
+      n.prev = head.prev;
+      n.next = head;
+      head.prev.next = n;
+      head.prev = n;
+      weight += n.weight;
+    }
+
+    void remove(Node n) {
+      n.prev.next = n.next;
+      n.next.prev = n.prev;
+      n.prev = null;
+      n.next = null;
+      weight -= n.weight;
+    }
+
+    void moveToLast(Node n) {
+      remove(n);
+      addLast(n);
+    }
+  }
+
+  /* Line number -> cache entry */
+  private final ConcurrentHashMap<Long, Node> map = new ConcurrentHashMap<>();
+  /* Policy lock */
+  private final ReentrantLock lock = new ReentrantLock();
+  /* Queues */
+  private final Queue window = new Queue();
+  private final Queue probation = new Queue();
+  private final Queue protectedQueue = new Queue();
+  /* Frequency sketch */
+  private final FrequencySketch sketch;
+  /* Budgets */
+  private final long maxSize;
+  private final long maxWindowSize;
+  private final long maxProtectedSize;
+  /* Maximum size of a cached line */
+  private final long maxLineSize;
+
+  /* Counters */
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Get cache size from a system property "textprovider.cache.size"
+   * @return configured cache size in bytes, 0 - cache is disabled (default)
+   */
+  public static long configuredSize() {
+    return Long.getLong("textprovider.cache.size", 0);
+  }
+
+  /**
+   * Constructor
+   * @param maxSize cache budget in bytes
+   */
+  public LineCache(long maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("cache size must be positive");
+    }
+    this.maxSize = maxSize;
+    this.maxWindowSize = Math.max(1, maxSize * WINDOW_PERCENT / 100);
+    this.maxProtectedSize = (maxSize - maxWindowSize) * PROTECTED_PERCENT / 100;
+    // Lines larger than a window are never cached
+    this.maxLineSize = Math.max(0, maxWindowSize - ENTRY_OVERHEAD -
+      Command.OK.length - Command.CRLF.length);
+    this.sketch = new FrequencySketch(Math.max(16, maxSize / AVERAGE_ENTRY_SIZE));
+  }
+
+  /**
+   * Get cached response for a line
+   * @param lineNumber line number
+   * @return response buffer (a private duplicate, ready to be sent) or null
+   */
+  public ByteBuffer get(long lineNumber) {
+    sketch.increment(lineNumber);
+    Node n = map.get(lineNumber);
+    if (n == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    if (lock.tryLock()) {
+      try {
+        onHit(n);
+      } finally {
+        lock.unlock();
+      }
+    }
+    return n.value.duplicate();
+  }
+
+  /**
+   * Loads line from a text file and caches its response
+   * @param lineNumber line number
+   * @param file text file channel
+   * @param range line range
+   * @return response buffer (a private duplicate, ready to be sent)
+   *   or null if line is too large to be cached
+   * @throws IOException
+   */
+  public ByteBuffer load(long lineNumber, FileChannel file, FileIndex.Range range)
+      throws IOException {
+    if (range.size > maxLineSize) {
+      return null;
+    }
+    ByteBuffer buf = ByteBuffer.allocateDirect(
+      (int) range.size + Command.OK.length + Command.CRLF.length);
+    buf.put(Command.OK);
+    buf.limit(buf.capacity() - Command.CRLF.length);
+    long pos = range.offset;
+    while (buf.hasRemaining()) {
+      int read = file.read(buf, pos);
+      if (read < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+      pos += read;
+    }
+    buf.limit(buf.capacity());
+    buf.put(Command.CRLF);
+    buf.flip();
+    put(lineNumber, buf);
+    return buf.duplicate();
+  }
+
+  /**
+   * Adds entry to the cache
+   * @param lineNumber line number
+   * @param value response buffer
+   */
+  private void put(long lineNumber, ByteBuffer value) {
+    Node n = new Node(lineNumber, value);
+    lock.lock();
+    try {
+      if (map.putIfAbsent(lineNumber, n) != null) {
+        return;
+      }
+      n.queue = WINDOW;
+      window.addLast(n);
+      evict();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void onHit(Node n) {
+    if (n.prev == null) {
+      // Already evicted
+      return;
+    }
+    switch (n.queue) {
+      case WINDOW:
+        window.moveToLast(n);
+        break;
+      case PROBATION:
+        probation.remove(n);
+        n.queue = PROTECTED;
+        protectedQueue.addLast(n);
+        // Demote protected overflow to probation
+        while (protectedQueue.weight > maxProtectedSize && !protectedQueue.isEmpty()) {
+          Node d = protectedQueue.first();
+          protectedQueue.remove(d);
+          d.queue = PROBATION;
+          probation.addLast(d);
+        }
+        break;
+      default:
+        protectedQueue.moveToLast(n);
+    }
+  }
+
+  /**
+   * Moves window overflow to the main space and evicts entries
+   * until cache fits its budget
+   */
+  private void evict() {
+    while (window.weight > maxWindowSize && !window.isEmpty()) {
+      Node candidate = window.first();
+      window.remove(candidate);
+      candidate.queue = PROBATION;
+      probation.addLast(candidate);
+    }
+    while (size() > maxSize && !(probation.isEmpty() && protectedQueue.isEmpty())) {
+      // Victim is the LRU probation entry, candidate is the most recent one,
+      // which came from the window
+      Node victim = !probation.isEmpty() ? probation.first() : protectedQueue.first();
+      Node candidate = probation.isEmpty() ? victim : probation.head.prev;
+      if (candidate != victim && sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+        remove(victim);
+      } else {
+        remove(candidate);
+      }
+    }
+  }
+
+  private void remove(Node n) {
+    switch (n.queue) {
+      case WINDOW:
+        window.remove(n);
+        break;
+      case PROBATION:
+        probation.remove(n);
+        break;
+      default:
+        protectedQueue.remove(n);
+    }
+    map.remove(n.key, n);
+    evictions.increment();
+  }
+
+  /**
+   * Current cache size
+   * @return size in bytes
+   */
+  public long size() {
+    return window.weight + probation.weight + protectedQueue.weight;
+  }
+
+  /**
+   * Number of cached lines
+   * @return number of entries
+   */
+  public int entries() {
+    return map.size();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * Removes all entries
+   */
+  public void clear() {
+    lock.lock();
+    try {
+      for (Queue q : new Queue[] {window, probation, protectedQueue}) {
+        while (!q.isEmpty()) {
+          q.remove(q.first());
+        }
+      }
+      map.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "size:" + size() + " entries:" + entries() + " hits:" + getHits() +
+        " misses:" + getMisses() + " evictions:" + getEvictions();
+  }
+
+  /**
+   * Count-min sketch with 4-bit counters and periodic aging (all counters
+   * are halved after a sample of 10 * capacity increments). Updates are not
+   * synchronized, lost updates only make frequency estimates slightly lower.
+   */
+  static class FrequencySketch {
+    /* 16 counters of 4 bits per long */
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int size;
+
+    FrequencySketch(long capacity) {
+      int n = (int) Math.min(1 << 24, Math.max(16, Long.highestOneBit(capacity - 1) << 1));
+      this.table = new long[n];
+      this.mask = n - 1;
+      this.sampleSize = 10 * n;
+    }
+
+    int frequency(long key) {
+      int h = spread(key);
+      int freq = Integer.MAX_VALUE;
+      for (int i = 0; i < 4; i++) {
+        freq = Math.min(freq, counter(h, i));
+      }
+      return freq;
+    }
+
+    void increment(long key) {
+      int h = spread(key);
+      boolean added = false;
+      for (int i = 0; i < 4; i++) {
+        int index = index(h, i);
+        int offset = offset(h, i);
+        long v = table[index];
+        if (((v >>> offset) & 0xfL) != 0xfL) {
+          table[index] = v + (1L << offset);
+          added = true;
+        }
+      }
+      if (added && ++size >= sampleSize) {
+        reset();
+      }
+    }
+
+    private void reset() {
+      for (int i = 0; i < table.length; i++) {
+        table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+      }
+      size /= 2;
+    }
+
+    private int counter(int h, int i) {
+      return (int) ((table[index(h, i)] >>> offset(h, i)) & 0xfL);
+    }
+
+    private int index(int h, int i) {
+      int x = h * (0x9e3779b9 + 2 * i + 1);
+      return (x ^ (x >>> 16)) & mask;
+    }
+
+    private int offset(int h, int i) {
+      // one of 16 counters in a long, different for every hash function
+      return (((h >>> (i << 3)) & 3) + (i << 2)) << 2;
+    }
+
+    private static int spread(long key) {
+      long x = key * 0x9e3779b97f4a7c15L;
+      return (int) (x ^ (x >>> 32));
+    }
+  }
+}
@@ -0,0 +1,401 @@
+package org.bigbase.textprovider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.bigbase.textprovider.compress.BlockChannel;
+import org.bigbase.textprovider.metrics.Metrics;
+
+/**
+ *
+ * Parallel scan of a line range for a pattern (SCAN). A range is split into chunks of
+ * lines of about {@link #chunkSize()} bytes (line offsets are taken from a file index),
+ * every chunk is memory mapped and searched on a shared bounded ForkJoin pool. Matches
+ * are streamed back in line order as soon as the chunks which precede them are done,
+ * lines are sent as file regions.
+ *
+ * A scan is executed by a worker thread which waits for chunks, so CPU of a scan is
+ * capped twice: a scan has at most {@link #PARALLELISM} chunks in flight and at most
+ * {@link #CONCURRENCY} scans run at a time, others get BUSY. GET traffic keeps the rest
+ * of the worker pool.
+ *
+ * A pattern without regular expression meta characters is searched as a byte string
+ * (its UTF-8 bytes), otherwise it is a regular expression applied to line characters:
+ * an ASCII line is matched on its bytes as is, other lines are decoded as UTF-8, so
+ * classes and quantifiers apply to characters, not to bytes of multi-byte characters.
+ *
+ * A scan stops when a client closes a connection or sends QUIT (see
+ * {@link Connection#isCancelled()}) and after {@link #MAX_MATCHES} matches.
+ *
+ */
+public class LineScanner {
+
+  /* Number of scan threads (shared by all scans) */
+  private final static int THREADS = Integer.getInteger("textprovider.scan.threads",
+    Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+  /* Maximum number of chunks of a scan in flight */
+  private final static int PARALLELISM = Integer.getInteger("textprovider.scan.parallelism", 2);
+
+  /* Maximum number of concurrent scans */
+  private final static int CONCURRENCY = Integer.getInteger("textprovider.scan.concurrent", 2);
+
+  /* Default chunk size - 4MB */
+  final static int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+  /* Maximum number of matches of a single scan */
+  public final static int MAX_MATCHES = 100000;
+
+  /* Regular expression meta characters */
+  private final static String META = "\\^$.|?*+()[]{}";
+
+  /* Scan threads */
+  private static ForkJoinPool pool;
+
+  /* Concurrent scans */
+  private final static Semaphore permits = new Semaphore(CONCURRENCY);
+
+  /* Compiled regular expression, null for a literal pattern */
+  private final Pattern regex;
+  /* Literal pattern bytes */
+  private final byte[] literal;
+  /* Text file */
+  private final FileChannel file;
+  /* File index */
+  private final FileIndex index;
+
+  /**
+   * Constructor
+   * @param pattern pattern
+   * @param file text file
+   * @param index file index
+   * @throws java.util.regex.PatternSyntaxException if pattern is not valid
+   */
+  public LineScanner(String pattern, FileChannel file, FileIndex index) {
+    boolean isLiteral = true;
+    for (int i = 0; i < pattern.length() && isLiteral; i++) {
+      isLiteral = META.indexOf(pattern.charAt(i)) < 0;
+    }
+    this.regex = isLiteral ? null : Pattern.compile(pattern);
+    this.literal = pattern.getBytes(StandardCharsets.UTF_8);
+    this.file = file;
+    this.index = index;
+  }
+
+  /**
+   * Receives matches in line order
+   */
+  public interface Output {
+    /**
+     * Matching line
+     * @param lineNumber line number
+     * @param offset line offset
+     * @param size line size
+     * @return false to stop a scan
+     * @throws IOException
+     */
+    boolean match(long lineNumber, long offset, long size) throws IOException;
+
+    /**
+     * All matches of a chunk have been received, scan continues
+     * @return false to stop a scan
+     * @throws IOException
+     */
+    boolean chunkDone() throws IOException;
+  }
+
+  /**
+   * Reserves a scan slot
+   * @return false if too many scans are running
+   */
+  public static boolean tryStart() {
+    return permits.tryAcquire();
+  }
+
+  /**
+   * Releases a scan slot
+   */
+  public static void finish() {
+    permits.release();
+  }
+
+  /**
+   * Scans lines
+   * @param from first line
+   * @param to last line
+   * @param out matches receiver
+   * @return number of the first line which has not been scanned, to + 1 if scan is complete
+   * @throws IOException
+   */
+  public long scan(long from, long to, Output out) throws IOException {
+    Metrics.scanStarted();
+    long averageLength = Math.max(1, index.getTextLength() / Math.max(1, index.getTotalLines()));
+    long chunkLines = Math.max(1, chunkSize() / averageLength);
+    ArrayDeque<ForkJoinTask<Chunk>> inFlight = new ArrayDeque<ForkJoinTask<Chunk>>();
+    long next = from;
+    long matches = 0;
+    try {
+      while (true) {
+        while (inFlight.size() < PARALLELISM && next <= to) {
+          Chunk c = new Chunk(next, Math.min(to, next + chunkLines - 1));
+          next = c.last + 1;
+          inFlight.add(getPool().submit(c));
+        }
+        if (inFlight.isEmpty()) {
+          return to + 1;
+        }
+        Chunk c = join(inFlight.poll());
+        Metrics.scanned(c.bytes);
+        for (int i = 0; i < c.count; i++) {
+          long lineNumber = c.matches[3 * i];
+          if (matches++ == MAX_MATCHES) {
+            return lineNumber;
+          }
+          if (!out.match(lineNumber, c.matches[3 * i + 1], c.matches[3 * i + 2])) {
+            Metrics.scanCancelled();
+            return lineNumber;
+          }
+        }
+        if (!out.chunkDone()) {
+          Metrics.scanCancelled();
+          return c.last + 1;
+        }
+      }
+    } finally {
+      for (ForkJoinTask<Chunk> t : inFlight) {
+        t.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Get configured chunk size
+   * @return chunk size in bytes
+   */
+  static int chunkSize() {
+    return Integer.getInteger("textprovider.scan.chunk", DEFAULT_CHUNK_SIZE);
+  }
+
+  private static Chunk join(ForkJoinTask<Chunk> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      throw new IOException("Scan has been interrupted", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+  }
+
+  /**
+   * Chunk of lines, searched by a scan thread
+   */
+  private final class Chunk implements Callable<Chunk> {
+    /* First line */
+    final long first;
+    /* Last line */
+    final long last;
+    /* Matches: line number, offset, size */
+    long[] matches = new long[48];
+    /* Number of matches */
+    int count;
+    /* Size of a chunk in bytes */
+    long bytes;
+
+    Chunk(long first, long last) {
+      this.first = first;
+      this.last = last;
+    }
+
+    @Override
+    public Chunk call() throws IOException {
+      FileIndex.Range range = new FileIndex.Range();
+      if (!index.getRange(last, range)) {
+        throw new IOException(String.format("Line %d is not indexed", last));
+      }
+      long end = range.offset + range.size;
+      index.getRange(first, range);
+      long start = range.offset;
+      bytes = end - start;
+      if (bytes > Integer.MAX_VALUE) {
+        throw new IOException(String.format("Lines %d-%d are too long to scan", first, last));
+      }
+      ByteBuffer buf = BlockChannel.map(file, start, bytes);
+      ByteSequence line = new ByteSequence(buf);
+      LineDecoder decoder = regex == null ? null : new LineDecoder(buf);
+      Matcher m = regex == null ? null : regex.matcher("");
+      for (long n = first; n <= last; n++) {
+        if (n > first) {
+          index.getRange(n, range);
+        }
+        int offset = (int) (range.offset - start);
+        int size = (int) range.size;
+        boolean found;
+        if (m != null) {
+          found = m.reset(decoder.isAscii(offset, size) ? line.set(offset, size) :
+            decoder.decode(offset, size)).find();
+        } else {
+          found = indexOf(buf, offset, size) >= 0;
+        }
+        if (found) {
+          add(n, range.offset, size);
+        }
+      }
+      return this;
+    }
+
+    private void add(long lineNumber, long offset, long size) {
+      if (3 * count == matches.length) {
+        matches = Arrays.copyOf(matches, matches.length * 2);
+      }
+      matches[3 * count] = lineNumber;
+      matches[3 * count + 1] = offset;
+      matches[3 * count + 2] = size;
+      count++;
+    }
+  }
+
+  /**
+   * Searches literal pattern in a line
+   * @param buf chunk
+   * @param offset line offset in a chunk
+   * @param size line size
+   * @return position of a pattern or -1
+   */
+  private int indexOf(ByteBuffer buf, int offset, int size) {
+    int n = literal.length;
+    if (n == 0) {
+      return 0;
+    }
+    byte first = literal[0];
+    for (int i = offset, max = offset + size - n; i <= max; i++) {
+      if (buf.get(i) != first) {
+        continue;
+      }
+      int k = 1;
+      while (k < n && buf.get(i + k) == literal[k]) {
+        k++;
+      }
+      if (k == n) {
+        return i - offset;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Decodes UTF-8 lines of a mapped chunk, reuses a char buffer
+   */
+  private final static class LineDecoder {
+    private final ByteBuffer buf;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer chars = CharBuffer.allocate(256);
+
+    LineDecoder(ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    /**
+     * Checks if a line has only ASCII bytes, which are characters as is
+     */
+    boolean isAscii(int offset, int size) {
+      for (int i = offset, end = offset + size; i < end; i++) {
+        if (buf.get(i) < 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Decodes line
+     * @return line characters, valid until the next line is decoded
+     */
+    CharSequence decode(int offset, int size) {
+      if (chars.capacity() < size) {
+        // A UTF-8 line has at most as many chars as bytes
+        chars = CharBuffer.allocate(size);
+      }
+      ByteBuffer src = buf.duplicate();
+      src.limit(offset + size).position(offset);
+      chars.clear();
+      decoder.reset();
+      decoder.decode(src, chars, true);
+      decoder.flush(chars);
+      return chars.flip();
+    }
+  }
+
+  /**
+   * Line of a mapped chunk as a char sequence (one char per byte), does not copy
+   */
+  private final static class ByteSequence implements CharSequence {
+    private final ByteBuffer buf;
+    private int offset;
+    private int length;
+
+    ByteSequence(ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    ByteSequence set(int offset, int length) {
+      this.offset = offset;
+      this.length = length;
+      return this;
+    }
+
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return (char) (buf.get(offset + index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return new ByteSequence(buf).set(offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+      byte[] bytes = new byte[length];
+      for (int i = 0; i < length; i++) {
+        bytes[i] = buf.get(offset + i);
+      }
+      return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  private static synchronized ForkJoinPool getPool() {
+    if (pool == null) {
+      pool = new ForkJoinPool(THREADS, p -> {
+        ForkJoinWorkerThread t =
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+        t.setName("scan-" + t.getPoolIndex());
+        t.setDaemon(true);
+        return t;
+      }, null, false);
+    }
+    return pool;
+  }
+}
@@ -0,0 +1,365 @@
+package org.bigbase.textprovider;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.bigbase.textprovider.metrics.Metrics;
+
+/**
+ *
+ * Connection's outbound queue. Keeps response segments in order: memory buffers and
+ * file regions. Consecutive memory buffers are written with a single gathering write,
+ * file regions are sent with zero-copy {@link FileChannel#transferTo}.
+ * Small segments (response headers, trailers, short lines) are copied into a direct
+ * buffer (arena) as they are added, so responses of a whole batch are assembled in place
+ * and typically go out with a single write instead of a write and a transfer per response.
+ * An arena is borrowed from a shared pool when a batch is queued and is returned when
+ * the queue is drained, so idle connections do not hold direct memory.
+ * While a batch which mixes memory and file segments is written, Nagle's algorithm is
+ * enabled (cork), so small segments do not go out as separate packets.
+ * Writes are non-blocking: flush stops when a socket send buffer is full and can be 
+ * resumed later (from the last offset of a partially sent segment). Queue is accessed by 
+ * a request handler and by a selector thread, so all methods are synchronized.
+ *
+ */
+public class OutboundQueue {
+
+  /**
+   * File region to send
+   */
+  static class FileRegion {
+    final FileChannel file;
+    long position;
+    long remaining;
+
+    FileRegion(FileChannel file, long position, long size) {
+      this.file = file;
+      this.position = position;
+      this.remaining = size;
+    }
+  }
+
+  /* Maximum number of buffers in a single gathering write */
+  private final static int MAX_GATHER = 64;
+
+  /* Arena size, 0 - small segments are not copied */
+  private final static int ARENA_SIZE = Integer.getInteger("textprovider.output.arena", 32 * 1024);
+
+  /* Maximum size of a segment (buffer or file region) which is copied into an arena */
+  private final static int INLINE_MAX = Integer.getInteger("textprovider.output.inline.max", 1024);
+
+  /* Maximum number of idle arenas kept for reuse */
+  private final static int ARENA_POOL_SIZE = Integer.getInteger("textprovider.output.arena.pool", 256);
+
+  /* Idle arenas */
+  private final static ArrayBlockingQueue<ByteBuffer> arenaPool =
+      new ArrayBlockingQueue<>(Math.max(1, ARENA_POOL_SIZE));
+
+  /* Disable TCP_NODELAY while a batch of memory and file segments is written */
+  private final static boolean CORK =
+      Boolean.parseBoolean(System.getProperty("textprovider.output.cork", "true"));
+
+  /* Pending segments: ByteBuffer or FileRegion */
+  private final ArrayDeque<Object> segments = new ArrayDeque<>();
+
+  /* Gathering write array */
+  private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+  /* Total number of bytes queued */
+  private long queued;
+
+  /* Total number of bytes sent */
+  private long flushed;
+
+  /* Number of file regions in the queue */
+  private int regions;
+
+  /* Arena, borrowed on first use. It is returned when the queue is empty */
+  private ByteBuffer arena;
+
+  /* The last segment, if it is a slice of the arena which can be extended */
+  private ByteBuffer tail;
+
+  /**
+   * Adds byte array to the queue. Array must not be modified after that
+   * @param data data
+   */
+  public synchronized void add(byte[] data) {
+    if (reserve(data.length)) {
+      int start = arena.position();
+      arena.put(data);
+      append(start);
+    } else {
+      segments.addLast(ByteBuffer.wrap(data));
+    }
+    queued += data.length;
+  }
+
+  /**
+   * Adds buffer to the queue. A small buffer is copied
+   * @param buf buffer, its content between position and limit will be sent
+   */
+  public synchronized void add(ByteBuffer buf) {
+    int size = buf.remaining();
+    if (reserve(size)) {
+      int start = arena.position();
+      arena.put(buf);
+      append(start);
+    } else {
+      segments.addLast(buf);
+    }
+    queued += size;
+  }
+
+  /**
+   * Adds a response which is copied into the arena as a whole, so its body can be
+   * modified as soon as the call returns
+   * @param head response head
+   * @param body response body, its content between position and limit is copied
+   * @param tail response tail
+   * @return false if the arena has no room for it, nothing is queued then
+   */
+  public synchronized boolean addInline(byte[] head, ByteBuffer body, byte[] tail) {
+    int size = head.length + body.remaining() + tail.length;
+    if (!reserve(size)) {
+      return false;
+    }
+    int start = arena.position();
+    arena.put(head).put(body.duplicate()).put(tail);
+    append(start);
+    queued += size;
+    return true;
+  }
+
+  /**
+   * Adds buffer which is filled after it has been queued (before the queue is flushed),
+   * it is never copied
+   * @param buf buffer, its content between position and limit will be sent
+   */
+  public synchronized void addReserved(ByteBuffer buf) {
+    segments.addLast(buf);
+    queued += buf.remaining();
+  }
+
+  /**
+   * Adds file region to the queue. A small region is read into the arena
+   * @param file file channel
+   * @param position region offset
+   * @param size region size
+   */
+  public synchronized void add(FileChannel file, long position, long size) {
+    if (size <= 0) {
+      return;
+    }
+    queued += size;
+    if (reserve(size)) {
+      int start = arena.position();
+      if (read(file, position, (int) size)) {
+        append(start);
+        return;
+      }
+    }
+    segments.addLast(new FileRegion(file, position, size));
+    regions++;
+  }
+
+  /**
+   * Reads file region into the arena
+   * @return false if region has not been read
+   */
+  private boolean read(FileChannel file, long position, int size) {
+    int start = arena.position();
+    arena.limit(start + size);
+    try {
+      while (arena.hasRemaining()) {
+        if (file.read(arena, position + arena.position() - start) < 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      // File transfer reports the error
+    }
+    boolean read = !arena.hasRemaining();
+    arena.limit(arena.capacity());
+    if (!read) {
+      arena.position(start);
+    }
+    return read;
+  }
+
+  /**
+   * Checks if a segment can be copied into the arena
+   * @param size segment size
+   * @return true if the arena has space for it
+   */
+  private boolean reserve(long size) {
+    if (size > INLINE_MAX || ARENA_SIZE == 0) {
+      return false;
+    }
+    if (arena == null) {
+      arena = arenaPool.poll();
+      if (arena == null) {
+        arena = ByteBuffer.allocateDirect(ARENA_SIZE);
+      }
+    }
+    return arena.remaining() >= size;
+  }
+
+  /**
+   * Returns arena to the pool, when all its slices have been sent or discarded
+   */
+  private void releaseArena() {
+    tail = null;
+    if (arena != null) {
+      arena.clear();
+      // An arena the pool has no room for is freed
+      arenaPool.offer(arena);
+      arena = null;
+    }
+  }
+
+  /**
+   * Does queue hold an arena
+   * @return true if an arena is borrowed
+   */
+  synchronized boolean hasArena() {
+    return arena != null;
+  }
+
+  /**
+   * Adds data just copied into the arena to the last segment or to a new one
+   * @param start start of the data in the arena
+   */
+  private void append(int start) {
+    if (tail == null || segments.peekLast() != tail) {
+      // The last segment is not an arena slice
+      tail = arena.duplicate();
+      tail.limit(arena.position());
+      tail.position(start);
+      segments.addLast(tail);
+    } else {
+      tail.limit(arena.position());
+    }
+  }
+
+  /**
+   * Get total number of bytes queued, sent or not
+   * @return number of bytes
+   */
+  public synchronized long getQueuedBytes() {
+    return queued;
+  }
+
+  /**
+   * Get number of bytes queued, but not sent yet
+   * @return number of bytes
+   */
+  public synchronized long getUnsentBytes() {
+    return queued - flushed;
+  }
+
+  /**
+   * Is queue empty
+   * @return true if there is nothing to send
+   */
+  public synchronized boolean isEmpty() {
+    return segments.isEmpty();
+  }
+
+  /**
+   * Writes pending segments to a channel until all data is sent 
+   * or channel can not accept more data
+   * @param channel socket channel
+   * @return true if all data has been sent, false - otherwise
+   * @throws IOException
+   */
+  public synchronized boolean flush(SocketChannel channel) throws IOException {
+    // Headers and trailers between file transfers are coalesced with file data into full packets
+    boolean cork = CORK && regions > 0 && segments.size() > 1;
+    if (cork) {
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, false);
+    }
+    try {
+      if (!write(channel)) {
+        return false;
+      }
+    } finally {
+      if (cork) {
+        // Pushes out the last partial packet
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      }
+    }
+    // All slices have been sent
+    releaseArena();
+    return true;
+  }
+
+  /**
+   * Writes pending segments to a channel
+   * @param channel socket channel
+   * @return true if all data has been sent
+   * @throws IOException
+   */
+  private boolean write(SocketChannel channel) throws IOException {
+    while (!segments.isEmpty()) {
+      Object head = segments.peekFirst();
+      if (head instanceof FileRegion) {
+        FileRegion region = (FileRegion) head;
+        while (region.remaining > 0) {
+          long sent = region.file.transferTo(region.position, region.remaining, channel);
+          if (sent <= 0) {
+            // Socket send buffer is full
+            return false;
+          }
+          Metrics.transferred(sent);
+          flushed += sent;
+          region.position += sent;
+          region.remaining -= sent;
+        }
+        segments.pollFirst();
+        regions--;
+      } else {
+        int n = 0;
+        for (Object seg : segments) {
+          if (n == MAX_GATHER || !(seg instanceof ByteBuffer)) {
+            break;
+          }
+          gather[n++] = (ByteBuffer) seg;
+        }
+        long written = channel.write(gather, 0, n);
+        Metrics.written(written);
+        flushed += written;
+        boolean done = !gather[n - 1].hasRemaining();
+        boolean sent = true;
+        for (int i = 0; i < n; i++) {
+          // Buffers are written in order
+          sent = sent && !gather[i].hasRemaining();
+          if (sent) {
+            segments.pollFirst();
+          }
+          gather[i] = null;
+        }
+        if (!done && written == 0) {
+          // Socket send buffer is full
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Discards all pending segments
+   */
+  public synchronized void clear() {
+    segments.clear();
+    flushed = queued;
+    regions = 0;
+    releaseArena();
+  }
+}
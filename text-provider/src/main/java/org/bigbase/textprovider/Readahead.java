@@ -0,0 +1,291 @@
+package org.bigbase.textprovider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.textprovider.commands.Command;
+import org.bigbase.textprovider.metrics.Metrics;
+
+/**
+ *
+ * Per connection readahead for sequential scans. A client which walks lines one by one
+ * (GET n, GET n + 1, ...) takes a page cache miss on every request when a file is much
+ * larger than RAM, so the scan is bound by a request latency. Once a connection is detected
+ * to be sequential, the following blocks of a text file (and index pages of their lines)
+ * are read asynchronously by a dedicated I/O thread pool into a small ring of buffers.
+ * Lines found in the ring are copied into a connection's output buffer, the rest of a block
+ * (and lines which do not fit) stays in the page cache, so several reads are in flight while
+ * a client consumes the current block. The ring is dropped when a scan is not sequential
+ * anymore.
+ *
+ * Sequential GETRANGE requests (a span starts where the previous one has ended) warm up
+ * the page cache for the next span of the same size.
+ *
+ * Instance is used by a thread which processes a connection, ring slots are filled by
+ * I/O threads: a slot is handed over with a volatile state.
+ *
+ */
+public class Readahead {
+  private final static Logger log = LogManager.getLogger(Readahead.class);
+
+  /* Is readahead enabled */
+  final static boolean ENABLED =
+      Boolean.parseBoolean(System.getProperty("textprovider.readahead", "true"));
+
+  /* Number of ring slots (blocks read ahead) */
+  private final static int SLOTS = Integer.getInteger("textprovider.readahead.slots", 4);
+
+  /* Block size */
+  private final static int BLOCK_SIZE =
+      Integer.getInteger("textprovider.readahead.block", 64 * 1024);
+
+  /* Number of I/O threads */
+  private final static int THREADS = Integer.getInteger("textprovider.readahead.threads", 2);
+
+  /* Number of consecutive line numbers which start readahead */
+  final static int SEQUENTIAL_THRESHOLD = 3;
+
+  /* Maximum span read ahead for GETRANGE */
+  private final static long MAX_SPAN = 4 * 1024 * 1024;
+
+  /* Slot states */
+  private final static int FREE = 0;
+  private final static int LOADING = 1;
+  private final static int READY = 2;
+
+  /* I/O thread pool */
+  private static ExecutorService pool;
+
+  /* Scratch buffer of an I/O thread, page cache warm up reads */
+  private final static ThreadLocal<ByteBuffer> scratch =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocate(BLOCK_SIZE));
+
+  /**
+   * Ring slot: a block of a text file
+   */
+  private final static class Slot {
+    /* Block data */
+    final byte[] data = new byte[BLOCK_SIZE];
+    /* Index lookup holder of an I/O thread */
+    final FileIndex.Range range = new FileIndex.Range();
+    /* FREE, LOADING or READY */
+    volatile int state;
+    /* Text file, set before a slot is submitted */
+    FileChannel file;
+    /* Block offset in a text file */
+    long offset;
+    /* Number of bytes read, set before a slot is READY */
+    int length;
+  }
+
+  /* Ring of blocks, allocated when a connection becomes sequential */
+  private Slot[] slots;
+  /* Text file of the current run */
+  private FileChannel file;
+  /* Last requested line */
+  private long lastLine = -1;
+  /* Number of consecutive lines requested */
+  private int run;
+  /* Offset of the first line of the current run */
+  private long runStart;
+  /* Offset of the next block to read ahead */
+  private long nextOffset = -1;
+  /* Text file of the last GETRANGE span */
+  private FileChannel spanFile;
+  /* End of the last GETRANGE span */
+  private long spanEnd = -1;
+  /* End of a span which has been read ahead for GETRANGE */
+  private long spanPrefetched = -1;
+
+  /**
+   * Serves a line from a readahead ring and schedules readahead of the following blocks
+   * of a sequential scan
+   * @param n line number
+   * @param file text file
+   * @param index file index
+   * @param range range of a line
+   * @param conn client connection
+   * @return true if a response has been sent
+   */
+  public boolean serve(long n, FileChannel file, FileIndex index, FileIndex.Range range,
+      Connection conn) {
+    if (file != this.file) {
+      // Another file or a new generation of a file
+      this.file = file;
+      nextOffset = -1;
+      run = 0;
+    } else if (n == lastLine + 1) {
+      run++;
+    } else {
+      run = 0;
+    }
+    lastLine = n;
+    if (run == 0 && slots != null) {
+      // Blocks in flight are read into slots which are not referenced anymore
+      slots = null;
+      nextOffset = -1;
+    }
+    if (run == 0) {
+      runStart = range.offset;
+    }
+    boolean served = slots != null && serveFromRing(range, conn);
+    if (run >= SEQUENTIAL_THRESHOLD - 1) {
+      readAhead(n, index, range);
+    }
+    return served;
+  }
+
+  /**
+   * Sends a line if it is in a ready slot
+   */
+  private boolean serveFromRing(FileIndex.Range range, Connection conn) {
+    for (Slot s : slots) {
+      if (s.state != READY || s.file != file || range.offset < s.offset ||
+          range.offset + range.size > s.offset + s.length) {
+        continue;
+      }
+      // Line is copied, a slot can be refilled before responses are sent
+      ByteBuffer line = 
+          ByteBuffer.wrap(s.data, (int) (range.offset - s.offset), (int) range.size);
+      if (!conn.sendInline(Command.OK, line, Command.CRLF)) {
+        return false;
+      }
+      Metrics.readaheadHit();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Is there a ring of blocks read ahead
+   * @return true if a connection is sequential and holds a ring
+   */
+  boolean hasRing() {
+    return slots != null;
+  }
+
+  /**
+   * Schedules reads of blocks which follow a current line, up to a ring size ahead
+   */
+  private void readAhead(long n, FileIndex index, FileIndex.Range range) {
+    if (slots == null) {
+      slots = new Slot[SLOTS];
+      for (int i = 0; i < slots.length; i++) {
+        slots[i] = new Slot();
+      }
+    }
+    long current = range.offset + range.size + range.terminator;
+    long limit = Math.min(index.getTextLength(), current + (long) SLOTS * BLOCK_SIZE);
+    if (nextOffset < current || nextOffset > limit) {
+      // Scan has overtaken readahead or has jumped
+      nextOffset = current;
+    }
+    // Average line length of the run, to locate index entries of a block
+    long averageLength = Math.max(1, (current - runStart) / (run + 1));
+    for (Slot s : slots) {
+      if (nextOffset >= limit) {
+        break;
+      }
+      if (s.state == LOADING || s.state == READY && s.file == file && 
+          s.offset + s.length > range.offset && s.offset < limit) {
+        // In flight or not consumed yet
+        continue;
+      }
+      s.file = file;
+      s.offset = nextOffset;
+      s.length = (int) Math.min(BLOCK_SIZE, limit - nextOffset);
+      s.state = LOADING;
+      long firstLine = n + 1 + (nextOffset - current) / averageLength;
+      long lines = s.length / averageLength;
+      nextOffset += s.length;
+      getPool().execute(() -> load(s, index, firstLine, lines));
+    }
+  }
+
+  /**
+   * Reads a block into a slot (I/O thread)
+   */
+  private static void load(Slot s, FileIndex index, long firstLine, long lines) {
+    try {
+      // Index pages of block lines
+      index.getRange(firstLine, s.range);
+      index.getRange(firstLine + lines, s.range);
+      ByteBuffer buf = ByteBuffer.wrap(s.data, 0, s.length);
+      while (buf.hasRemaining()) {
+        if (s.file.read(buf, s.offset + buf.position()) < 0) {
+          break;
+        }
+      }
+      s.length = buf.position();
+      Metrics.readahead(s.length);
+      s.state = READY;
+    } catch (IOException e) {
+      // File can be closed by a reload
+      log.debug("[{}] Readahead failed", Thread.currentThread().getName(), e);
+      s.state = FREE;
+    }
+  }
+
+  /**
+   * Detects sequential spans and warms up page cache for the next one
+   * @param file text file
+   * @param index file index
+   * @param offset span offset
+   * @param size span size
+   */
+  public void prefetchSpan(FileChannel file, FileIndex index, long offset, long size) {
+    boolean sequential = file == spanFile && offset == spanEnd;
+    spanFile = file;
+    spanEnd = offset + size;
+    if (!sequential) {
+      spanPrefetched = -1;
+      return;
+    }
+    long from = Math.max(spanEnd, spanPrefetched);
+    long to = Math.min(index.getTextLength(), spanEnd + Math.min(size, MAX_SPAN));
+    if (from >= to) {
+      return;
+    }
+    spanPrefetched = to;
+    getPool().execute(() -> warmUp(file, from, to));
+  }
+
+  /**
+   * Reads a span of a text file into the page cache (I/O thread)
+   */
+  private static void warmUp(FileChannel file, long from, long to) {
+    ByteBuffer buf = scratch.get();
+    try {
+      for (long pos = from; pos < to; ) {
+        buf.clear();
+        buf.limit((int) Math.min(buf.capacity(), to - pos));
+        int read = file.read(buf, pos);
+        if (read < 0) {
+          break;
+        }
+        pos += read;
+        Metrics.readahead(read);
+      }
+    } catch (IOException e) {
+      log.debug("[{}] Readahead failed", Thread.currentThread().getName(), e);
+    }
+  }
+
+  private static synchronized ExecutorService getPool() {
+    if (pool == null) {
+      AtomicInteger count = new AtomicInteger();
+      pool = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread t = new Thread(r, "readahead-" + count.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return pool;
+  }
+}
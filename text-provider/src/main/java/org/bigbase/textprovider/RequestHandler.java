@@ -1,66 +1,77 @@
 package org.bigbase.textprovider;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.NonReadableChannelException;
-import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.Map;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bigbase.textprovider.commands.Command;
+import org.bigbase.textprovider.commands.Request;
+import org.bigbase.textprovider.metrics.Metrics;
 
 /**
  * 
  * Request handler, basically - data sender
- * It receives offset in file, number of bytes to send back to a client
- * and selection key, which represents client's connection
+ * It reads all available data from a client's connection, executes every
+ * complete (CRLF-terminated) request in order and sends all responses back 
+ * in one batch. Incomplete trailing request is kept in a connection's input
+ * buffer until the next read. Responses are sent without blocking, what can not
+ * be sent at once is sent by a selector thread (see {@link Connection}).
+ * A connection which starts with a handshake byte uses a binary protocol of 
+ * length-prefixed frames instead (see {@link BinaryProtocol}).
+ * Handler runs either inline on an event loop thread or in a worker pool, 
+ * inline handler offloads requests which may block (see {@link EventLoop}).
+ * Overload is signalled with BUSY responses: to requests received while a client is behind
+ * on reading responses (more than a per connection limit of them can not be sent) and, 
+ * in a shedding mode, to requests which may block.
+ * In a thread per connection mode handler runs in a connection's thread
+ * and works with a blocking channel.
  *
  */
 public class RequestHandler implements Runnable {
   private final static Logger log = LogManager.getLogger(RequestHandler.class);
 
+
+  /* Client connection to process */
+  private Connection conn;
+  /* Event loop, if handler runs inline on the event loop thread */
+  private EventLoop loop;
+  /* Shedding mode: requests which may block are not offloaded, they get BUSY */
+  private boolean shed;
   
-  /*
-   * Thread local map file_path -> RandomAccesFile (its a cache for a thread pool)
+  /* Maximum size of responses in flight (executed, but not accepted by a socket) per connection */
+  private final static long MAX_UNSENT = Long.getLong("textprovider.connection.unsent", 
+    256 * 1024);
+
+  /**
+   * Constructor
+   * @param conn client's connection
    */
-  private static ThreadLocal<Map<String, RandomAccessFile>> fileMap = 
-      new ThreadLocal<Map<String, RandomAccessFile>>() {
+  public RequestHandler(Connection conn) {
+    this(conn, null);
+  }
 
-    @Override
-    protected Map<String, RandomAccessFile> initialValue() {
-      return new HashMap<>();
-    }
-    
-  };
-  
   /**
-   * Thread local byte buffer - caches buffers for pool threads
+   * Constructor
+   * @param conn client's connection
+   * @param loop event loop, if handler runs inline on the event loop thread
    */
-  private static ThreadLocal<ByteBuffer> buffer = new ThreadLocal<ByteBuffer>() {
-    @Override
-    protected ByteBuffer initialValue() {
-      return ByteBuffer.allocateDirect(4096);
-    }
-  };
-  
-  /* Selection key to process */
-  private SelectionKey key;
-  /* Full path to a text file */
-  private String fileName;
+  public RequestHandler(Connection conn, EventLoop loop) {
+    this(conn, loop, false);
+  }
 
   /**
    * Constructor
-   * @param fileName text file full path
-   * @param key selection key (client's connection)
+   * @param conn client's connection
+   * @param loop event loop, if handler runs inline on the event loop thread
+   * @param shed shedding mode: requests which may block get BUSY
    */
-  public RequestHandler(String fileName, SelectionKey key) {
-    this.key = key;
-    this.fileName = fileName;
+  public RequestHandler(Connection conn, EventLoop loop, boolean shed) {
+    this.conn = conn;
+    this.loop = loop;
+    this.shed = shed;
   }
   
   @Override
@@ -69,108 +80,325 @@ public class RequestHandler implements Runnable {
       shutdown();
       return;
     }
-    if (!this.key.isValid()) {
+    if (!this.conn.isOpen()) {
       // Should not happen actually
       return;
     }
     try {
-      String request = readRequestAsString();
-      Command cmd = Command.getCommand(request);
-      cmd.execute(request, getFile(), getIndex(), key);
-      key.attach(null); // mark selector as not in-use
+      do {
+        if (readRequests() < 0) {
+          // End of stream - client has closed connection or has shut down its output,
+          // responses which are not sent yet (of a long running request) are sent first
+          if (!conn.isBacklogged(0)) {
+            conn.close();
+            return;
+          }
+          conn.closeAfterFlush();
+          break;
+        }
+        if (!processRequests()) {
+          // Processing continues in a worker thread
+          return;
+        }
+        // Requests received during a long running request are not signalled by a selector
+      } while (conn.hasPendingInput() && conn.isOpen() && !conn.isClosing());
+      if (conn.isOpen()) {
+        // Sends responses and marks connection as not in-use
+        conn.finishProcessing();
+      }
     } catch (NonReadableChannelException ee) {
       log.error("[{}]", Thread.currentThread().getName(), ee);
       abort();
     } catch (IOException e) {
       log.error("[{}]", Thread.currentThread().getName(), e);
-      // Cancel the key, b/c there is an issue with client connection 
-      closeClient(key);
-      return;
+      // Close the client, b/c there is an issue with client connection 
+      conn.close();
     }
   }
-  /**
-   * Cancels a selection key and closes client
-   * @param key selection key
-   */
-   private void closeClient(SelectionKey key) {
-     try {
-       key.cancel();
-       SocketChannel channel = (SocketChannel) key.channel();
-       channel.close();
-     } catch(IOException e) {
-       log.error("[{}]", Thread.currentThread().getName(), e);
-     }
-   }
    
   /**
-   * Reads clients request and returns it as a string
-   * @return request string
+   * Reads all available data from a client
+   * @return number of bytes read, -1 on end of stream
    * @throws IOException
    */
-  private String readRequestAsString() throws IOException {
-    ByteBuffer buf = buffer.get();
-    buf.clear();
-    SocketChannel channel = (SocketChannel) key.channel();
-    while(!isCompleteRequest(buf)) {
-      channel.read(buf);
+  private int readRequests() throws IOException {
+    ByteBuffer buf = conn.getInput();
+    SocketChannel channel = conn.getChannel();
+    int start = buf.position();
+    // Requests which have been received while a long running request was executed
+    conn.drainPending(buf);
+    int total = buf.position() - start;
+    while (buf.hasRemaining()) {
+      int read = channel.read(buf);
+      if (read < 0) {
+        return total > 0? total: -1;
+      } else if (read == 0) {
+        break;
+      }
+      total += read;
+      if (channel.isBlocking()) {
+        // Thread per connection mode: do not wait for more data
+        break;
+      }
     }
-    buf.flip();
-    byte[] arr = new byte[buf.limit() - 2];
-    buf.get(arr);
-    return new String(arr);
+    return total;
   }
   
   /**
-   * Checks if request is complete. 
-   * It returns true when last two bytes read are '\r' '\n'
-   * or when buffer is full (wrong request format)
-   * @param buf buffer contained read data
-   * @return true if complete, false - otherwise
+   * Executes all complete requests in an input buffer, 
+   * incomplete tail is moved to the beginning of the buffer
+   * @return false if the rest of requests has been offloaded to a worker pool
+   * @throws IOException
+   */
+  private boolean processRequests() throws IOException {
+    ByteBuffer buf = conn.getInput();
+    buf.flip();
+    int start = 0;
+    int limit = buf.limit();
+    if (!conn.isNegotiated() && limit > 0) {
+      // Protocol is selected by the first byte of a connection
+      boolean binary = buf.get(0) == BinaryProtocol.HANDSHAKE;
+      conn.setProtocol(binary);
+      if (binary) {
+        conn.send(new byte[] {BinaryProtocol.HANDSHAKE});
+        start = 1;
+      }
+    }
+    if (conn.isBinary()) {
+      return processFrames(buf, start);
+    }
+    for (int i = start; i < limit - 1 && conn.isOpen() && !conn.isClosing(); i++) {
+      if (buf.get(i) == (byte) '\r' && buf.get(i + 1) == (byte) '\n') {
+        if (!execute(buf, start, i)) {
+          return offload(buf, start, limit);
+        }
+        start = i + 2;
+        i++;
+      }
+    }
+    if (start == 0 && limit == buf.capacity()) {
+      // Buffer is full and there is no complete request (wrong request format)
+      execute(buf, 0, limit);
+      start = limit;
+    }
+    buf.position(start);
+    buf.compact();
+    return true;
+  }
+
+  /**
+   * Executes all complete binary protocol frames in an input buffer,
+   * incomplete tail is moved to the beginning of the buffer
+   * @param buf input buffer in a read mode
+   * @param start first frame start
+   * @return false if the rest of requests has been offloaded to a worker pool
+   * @throws IOException
    */
-  private boolean isCompleteRequest(ByteBuffer buf) {
-    if (buf.position() < 2) return false;
-    int pos = buf.position();
-    return buf.position() == buf.capacity() || 
-        (buf.get(pos - 2) == (byte) '\r' && buf.get(pos -1) == (byte) '\n');
+  private boolean processFrames(ByteBuffer buf, int start) throws IOException {
+    int limit = buf.limit();
+    while (limit - start >= BinaryProtocol.HEADER_SIZE && conn.isOpen() && !conn.isClosing()) {
+      int length = buf.getInt(start + BinaryProtocol.LENGTH_OFFSET);
+      if (length < 0 || length > buf.capacity() - BinaryProtocol.HEADER_SIZE) {
+        // Frame can not fit into an input buffer
+        log.error("[{}] Invalid frame length {}", Thread.currentThread().getName(), length);
+        conn.close();
+        return true;
+      }
+      int end = start + BinaryProtocol.HEADER_SIZE + length;
+      if (end > limit) {
+        break;
+      }
+      if (!executeFrame(buf, start, end)) {
+        return offload(buf, start, limit);
+      }
+      start = end;
+    }
+    buf.position(start);
+    buf.compact();
+    return true;
   }
-  
+
   /**
-   * Returns thread local instance of RAF
-   * @return random access file instance for a processing thread
-   * @throws FileNotFoundException
+   * Keeps a request which must be offloaded and following requests in a buffer 
+   * for a worker thread, offloads connection
+   * @param buf input buffer in a read mode
+   * @param start request start
+   * @param limit end of data
+   * @return false
    */
-  private RandomAccessFile getFile() throws FileNotFoundException {
-     Map<String, RandomAccessFile> map = fileMap.get();
-     RandomAccessFile file = map.get(fileName);
-     if (file == null) {
-       file = new RandomAccessFile(fileName, "r");
-       map.put(fileName, file);
-     }
-     return file;
+  private boolean offload(ByteBuffer buf, int start, int limit) {
+    buf.limit(limit);
+    buf.position(start);
+    buf.compact();
+    loop.offload(conn);
+    return false;
   }
-  
+
   /**
-   * Returns thread local instance of a file's index
-   * @return file index
+   * Executes single request
+   * @param buf input buffer
+   * @param start request start
+   * @param end request end (exclusive, w/o CRLF)
+   * @return false if request may block and must be offloaded to a worker pool
    * @throws IOException
    */
-  private FileIndex getIndex() throws IOException {
-    return FileIndex.getIndexFor(fileName);
+  private boolean execute(ByteBuffer buf, int start, int end) throws IOException {
+    // Request is parsed in place, without copying it out of the input buffer
+    Request req = conn.getRequest();
+    req.parse(buf, start, end);
+    if (conn.isBacklogged(MAX_UNSENT)) {
+      // Client does not read responses of the previous requests
+      conn.send(Command.BUSY);
+      Metrics.shedInFlight();
+      return true;
+    }
+    return execute(req, false, 0);
+  }
+
+  /**
+   * Executes single binary protocol request
+   * @param buf input buffer
+   * @param start frame start
+   * @param end frame end (exclusive)
+   * @return false if request may block and must be offloaded to a worker pool
+   * @throws IOException
+   */
+  private boolean executeFrame(ByteBuffer buf, int start, int end) throws IOException {
+    byte opcode = buf.get(start);
+    int id = buf.getInt(start + 1);
+    int payload = start + BinaryProtocol.HEADER_SIZE;
+    if (conn.isBacklogged(MAX_UNSENT)) {
+      BinaryProtocol.reply(conn, BinaryProtocol.STATUS_BUSY, id);
+      Metrics.shedInFlight();
+      return true;
+    }
+    switch (opcode) {
+      case BinaryProtocol.OP_GET:
+        executeGet(buf, payload, end, id);
+        return true;
+      case BinaryProtocol.OP_COMMAND:
+        Request req = conn.getRequest();
+        req.parse(buf, payload, end);
+        return execute(req, true, id);
+      default:
+        BinaryProtocol.reply(conn, BinaryProtocol.STATUS_ERR, id);
+        return true;
+    }
+  }
+
+  /**
+   * Executes binary GET: inline if blocking is allowed or a line is cached, otherwise 
+   * it is detached to a worker and requests which follow are not delayed
+   * @param buf input buffer
+   * @param start payload start: line number and an optional file name
+   * @param end payload end (exclusive)
+   * @param id request id
+   * @throws IOException
+   */
+  private void executeGet(ByteBuffer buf, int start, int end, int id) throws IOException {
+    if (end - start < Long.BYTES) {
+      BinaryProtocol.reply(conn, BinaryProtocol.STATUS_ERR, id);
+      return;
+    }
+    long lineNumber = buf.getLong(start);
+    FileRegistry.TextFile file = conn.getFile();
+    if (end > start + Long.BYTES) {
+      Request req = conn.getRequest();
+      req.parse(buf, start + Long.BYTES, end);
+      file = FileRegistry.lookupName(req);
+      if (file == null) {
+        BinaryProtocol.reply(conn, BinaryProtocol.STATUS_ERR, id);
+        return;
+      }
+    }
+    FileRegistry.Snapshot snapshot = conn.pin(file);
+    FileIndex index = snapshot.getIndex();
+    if (loop != null && !loop.allowsBlockingInline() &&
+        !BinaryProtocol.getCached(conn, index, lineNumber, id)) {
+      if (shed || !detach(new BinaryProtocol.DetachedGet(conn, snapshot, lineNumber, id))) {
+        BinaryProtocol.reply(conn, BinaryProtocol.STATUS_BUSY, id);
+        Metrics.shedOverload();
+      }
+      return;
+    }
+    long startTime = System.nanoTime();
+    BinaryProtocol.get(conn, snapshot.getFile(), index, lineNumber, id);
+    Metrics.forCommand(BinaryProtocol.GET).record(System.nanoTime() - startTime);
+  }
+
+  /**
+   * Submits detached request to the worker pool
+   * @param task request
+   * @return false if the pool is saturated
+   */
+  private boolean detach(Runnable task) {
+    conn.detach();
+    if (loop.submit(task)) {
+      return true;
+    }
+    conn.cancelDetach();
+    return false;
+  }
+
+  /**
+   * Executes parsed request
+   * @param req parsed request
+   * @param binary true - binary protocol request, false - text protocol
+   * @param id binary protocol request id, any 4 bytes value chosen by a client
+   * @return false if request may block and must be offloaded to a worker pool
+   * @throws IOException
+   */
+  private boolean execute(Request req, boolean binary, int id) throws IOException {
+    Command cmd = Command.getCommand(req);
+    FileRegistry.TextFile file = conn.getFile();
+    if (cmd.acceptsFileName() && req.getArgCount() > 0 && !req.isNumber(0)) {
+      // <command> <name> <args>
+      FileRegistry.TextFile named = FileRegistry.lookup(req, 0);
+      if (named != null) {
+        file = named;
+        req.removeArgument(0);
+      }
+    }
+    if (binary && cmd.isLongRunning()) {
+      // Streamed responses can not be framed
+      BinaryProtocol.reply(conn, BinaryProtocol.STATUS_ERR, id);
+      return true;
+    }
+    if (loop != null && cmd.mayBlock() && (cmd.isLongRunning() || !loop.allowsBlockingInline())) {
+      if (!shed) {
+        // Request is executed again by a worker
+        return false;
+      }
+      if (binary) {
+        BinaryProtocol.reply(conn, BinaryProtocol.STATUS_BUSY, id);
+      } else {
+        conn.send(Command.BUSY);
+      }
+      Metrics.shedOverload();
+      return true;
+    }
+    FileRegistry.Snapshot snapshot = conn.pin(file);
+    // Text response is a payload of a binary reply, its length is known when it is queued
+    ByteBuffer header = binary ? BinaryProtocol.header(BinaryProtocol.STATUS_OK, id, 0) : null;
+    if (binary) {
+      conn.sendReserved(header);
+    }
+    long queued = conn.getQueuedBytes();
+    long startTime = System.nanoTime();
+    cmd.execute(req, snapshot.getFile(), snapshot.getIndex(), conn);
+    Metrics.forCommand(cmd).record(System.nanoTime() - startTime);
+    if (binary) {
+      header.putInt(BinaryProtocol.LENGTH_OFFSET, (int) (conn.getQueuedBytes() - queued));
+    }
+    return true;
   }
   
   /**
-   * Shutdowns 
+   * Shutdowns, shared files are closed by the server 
    */
   private void shutdown() {
     log.info("[{}] shutting down", Thread.currentThread().getName());
-    try {
-      RandomAccessFile file = getFile();
-      file.close();
-      FileIndex index = getIndex();
-      index.close();
-    } catch (IOException e) {
-      // swallow it - does not matter
-    }
+    conn.close();
   }
 
   /**
@@ -1,23 +1,22 @@
 package org.bigbase.textprovider;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Iterator;
-import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bigbase.textprovider.metrics.Metrics;
 
 
 /**
@@ -34,60 +33,143 @@ public class Server {
   /*
    * Server's port number
    */
-  private static int port = 10322;
+  private static int port = Integer.getInteger("textprovider.port", 10322);
   
   /*
-   * Text file path
+   * Number of event loops (selector threads)
    */
-  private static String filePath;
-
+  private static int eventLoops = Integer.getInteger("textprovider.loops", 
+    Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+  
+  /*
+   * Inline batch time (microseconds) after which blocking requests are offloaded 
+   * to a worker pool
+   */
+  private static long slowBatchMicros = Long.getLong("textprovider.loop.slow.micros", 1000);
+  
+  /*
+   * Time (milliseconds) to offload blocking requests after a slow inline batch
+   */
+  private static long offloadMillis = Long.getLong("textprovider.loop.offload.millis", 1000);
+  
+  /*
+   * Server mode: "reactor" - event loops (default) 
+   * or "virtual" - virtual thread per connection with blocking I/O
+   */
+  private static String mode = System.getProperty("textprovider.server.mode", "reactor");
+  
+  /*
+   * Build indexes in the background: server accepts connections at once
+   * and serves lines as soon as they are indexed
+   */
+  private static boolean backgroundIndexing = Boolean.parseBoolean(
+    System.getProperty("textprovider.index.background", "true"));
+  
+  /*
+   * Watch text files and index appended lines
+   */
+  private static boolean watchFiles = Boolean.parseBoolean(
+    System.getProperty("textprovider.watch", "false"));
+  
   
   public static void main(String[] args) {
-    if (args.length != 1) {
+    if (args.length == 0) {
       usage();
     }
     try {
-      startServer(args[0]);
+      startServer(args);
     } catch (IOException e) {
       exitWithError("Server aborted", e);
     }
   }
 
-  private static void startServer(String filePath) throws IOException {
+  /**
+   * Starts server
+   * @param files text files: [name=]path, name is a file name by default. 
+   *  The first file is the default one
+   * @throws IOException
+   */
+  private static void startServer(String[] files) throws IOException {
     
-    info(String.format("Starting Text Provider Server for file: %s", filePath));    
+    info(String.format("Starting Text Provider Server for files: %s", String.join(" ", files)));
     // Initialize worker pool
-    int threadPoolSize = Runtime.getRuntime().availableProcessors() / 2;
+    int threadPoolSize = Integer.getInteger("textprovider.workers", 
+      Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
 
-    // One more check - for text file
-    if (!Files.exists(Path.of(filePath))) {
-      exitWithError(String.format("Text file '%s' does not exist", filePath), null);
+    // One more check - for text files
+    for (String file : files) {
+      if (!Files.exists(Path.of(filePath(file)))) {
+        exitWithError(String.format("Text file '%s' does not exist", filePath(file)), null);
+      }
     }
     
-    Server.filePath = filePath;
-    
-    // Create thread pool with a bounded queue
-    pool = new ThreadPoolExecutor(threadPoolSize, threadPoolSize,
+    // Create thread pool with a bounded queue, rejected tasks are counted and rejected 
+    // with RejectedExecutionException, event loops handle it (admission control)
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threadPoolSize, threadPoolSize,
       0L, TimeUnit.MILLISECONDS,
-      new ArrayBlockingQueue<Runnable>(threadPoolSize * 16));
+      new ArrayBlockingQueue<Runnable>(threadPoolSize * 16),
+      Metrics.rejectedExecutionHandler());
+    pool = executor;
+    Metrics.setWorkerPool(executor);
+    Metrics.registerMBean();
         
-    // Load index
-    FileIndex.openOrCreate(filePath);
+    // Load indexes and register files
+    for (String file : files) {
+      String path = filePath(file);
+      if (backgroundIndexing) {
+        FileIndex.openOrCreateInBackground(path);
+      } else {
+        FileIndex.openOrCreate(path);
+      }
+      if (TermIndex.ENABLED) {
+        // Optional term index (FIND)
+        if (backgroundIndexing) {
+          TermIndex.openOrCreateInBackground(path);
+        } else {
+          TermIndex.openOrCreate(path);
+        }
+      }
+      try {
+        FileRegistry.register(fileName(file), path);
+      } catch (IllegalArgumentException e) {
+        exitWithError(e.getMessage(), null);
+      }
+    }
+    if (watchFiles) {
+      new FileWatcher(FileRegistry.getFiles()).start();
+    }
     // Start network server
     runServer();
     
   }
+  /**
+   * Get path of a text file argument
+   * @param arg [name=]path
+   * @return path
+   */
+  private static String filePath(String arg) {
+    int i = arg.indexOf('=');
+    return i < 0 ? arg : arg.substring(i + 1);
+  }
+
+  /**
+   * Get name of a text file argument
+   * @param arg [name=]path
+   * @return name, file name if it is not set explicitly
+   */
+  private static String fileName(String arg) {
+    int i = arg.indexOf('=');
+    return i < 0 ? Path.of(arg).getFileName().toString() : arg.substring(0, i);
+  }
+
   /**
    * Starts networks server, opens server socket,
-   * binds it to a local host:port, initialize selector
-   * and starts listening incoming requests
+   * binds it to a local host:port and starts accepting 
+   * incoming connections
    * 
    * @throws IOException
    */
   private static void runServer() throws IOException {
-    final Selector selector = Selector.open(); // selector is open here
-    log.debug("Selector started");
-
     ServerSocketChannel serverSocket = ServerSocketChannel.open();
     log.debug("Server socket opened");
 
@@ -96,59 +178,100 @@ public class Server {
     // Binds the channel's socket to a local address and configures the socket to listen for
     // connections
     serverSocket.bind(serverAddr);
-    // Adjusts this channel's blocking mode.
-    serverSocket.configureBlocking(false);
-    int ops = serverSocket.validOps();
-    // Register selector
-    serverSocket.register(selector, ops, null);
-    log.debug("[{}] Server started on port: {}", Thread.currentThread().getName(), port);
+    log.debug("[{}] Server started on port: {} mode: {}", Thread.currentThread().getName(), port,
+      mode);
+    if ("virtual".equals(mode)) {
+      runThreadPerConnection(serverSocket);
+    } else {
+      runEventLoops(serverSocket);
+    }
+  }
+
+  /**
+   * Starts event loops and accepts incoming connections. Accepted connections
+   * are distributed between event loops
+   * @param serverSocket server socket
+   */
+  private static void runEventLoops(ServerSocketChannel serverSocket) throws IOException {
+    EventLoop[] loops = new EventLoop[eventLoops];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop("event-loop-" + i, pool, slowBatchMicros * 1000,
+        offloadMillis * 1000000);
+      loops[i].start();
+    }
+    log.debug("{} event loops started", loops.length);
 
     // Infinite loop..
     // Keep server running
+    int next = 0;
     while (true) {
-      // Selects a set of keys whose corresponding channels are ready for I/O operations
-      int readyChannels = selector.select();
-      if (readyChannels == 0) {
-        continue;
-      }
-      Set<SelectionKey> keys = selector.selectedKeys();
-      Iterator<SelectionKey> it = keys.iterator();
-
-      while (it.hasNext()) {
-        SelectionKey key = it.next();
-        it.remove();
-        try {
-          if (key.isValid() && key.isAcceptable()) {
-            SocketChannel client = serverSocket.accept();
-            // Adjusts this channel's blocking mode to false
-            client.configureBlocking(false);
-            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
-            client.setOption(StandardSocketOptions.SO_SNDBUF, 64 * 1024);
-            client.setOption(StandardSocketOptions.SO_RCVBUF, 64 * 1024);
-            // Operation-set bit for read operations
-            client.register(selector, SelectionKey.OP_READ);
-            log.debug("[{}] Connection Accepted: {}", Thread.currentThread().getName(),
-              client.getLocalAddress());
-          } else if (key.isValid() && key.isReadable() && key.attachment() == null) {
-            // process request - submit task
-            key.attach(new Object()); // mark this key as in-use
-            submitRequest(key);
+      try {
+        SocketChannel client = serverSocket.accept();
+        // Least loaded event loop, ties are resolved round-robin
+        EventLoop loop = loops[next];
+        for (int i = 1; i < loops.length; i++) {
+          EventLoop l = loops[(next + i) % loops.length];
+          if (l.getConnectionCount() < loop.getConnectionCount()) {
+            loop = l;
           }
-        } catch (IOException e) {
-          log.error("StackTrace: ", e);
         }
+        next = (next + 1) % loops.length;
+        loop.register(client);
+        log.debug("[{}] Connection Accepted: {}", Thread.currentThread().getName(),
+          client.getRemoteAddress());
+      } catch (IOException e) {
+        log.error("StackTrace: ", e);
       }
     }
   }
+
+  /**
+   * Accepts incoming connections and serves every connection in its own 
+   * (virtual, if supported by JVM) thread with a blocking I/O
+   * @param serverSocket server socket
+   */
+  private static void runThreadPerConnection(ServerSocketChannel serverSocket) {
+    ExecutorService executor = newThreadPerTaskExecutor();
+    // Infinite loop..
+    // Keep server running
+    while (true) {
+      try {
+        SocketChannel client = serverSocket.accept();
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        executor.execute(() -> serve(new Connection(client)));
+      } catch (IOException e) {
+        log.error("StackTrace: ", e);
+      }
+    }
+  }
+  
+  /**
+   * Serves connection until it is closed
+   * @param conn client connection (blocking channel)
+   */
+  private static void serve(Connection conn) {
+    while (conn.isOpen()) {
+      new RequestHandler(conn).run();
+    }
+  }
   
-  private static void submitRequest(SelectionKey key) throws IOException {
-    RequestHandler sender = new RequestHandler(filePath, key);
-    pool.submit(sender);
+  /**
+   * Creates virtual thread per task executor (Java 21+). Falls back to a platform thread 
+   * per task executor on older JVMs
+   * @return executor
+   */
+  private static ExecutorService newThreadPerTaskExecutor() {
+    try {
+      Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) m.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      log.warn("Virtual threads are not supported by this JVM, using platform threads");
+      return Executors.newCachedThreadPool();
+    }
   }
 
-
   private static void usage() {
-    exitWithError("Usage: java org.bigbase.textprovider.Server text_file_path", null);
+    exitWithError("Usage: java org.bigbase.textprovider.Server [name=]text_file_path ...", null);
   }
 
   static void info(String str) {
@@ -181,6 +304,9 @@ public class Server {
         // (Re-)Cancel if current thread also interrupted
         pool.shutdownNow();
       }
+      FileRegistry.closeAll();
+      FileIndex.closeAll();
+      TermIndex.closeAll();
       // Exit server
       System.exit(0);
     }).start();
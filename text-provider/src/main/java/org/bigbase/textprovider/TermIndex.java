@@ -0,0 +1,439 @@
+package org.bigbase.textprovider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.textprovider.compress.BlockChannel;
+
+/**
+ *
+ * Persistent inverted index of a text file: term -> numbers of lines which contain it.
+ * It is an optional secondary index ("textprovider.terms"), it is kept next to a line
+ * index in a <file>.terms file and is built by {@link TermIndexBuilder}.
+ *
+ * Terms are maximal runs of ASCII letters and digits and of non-ASCII bytes (so UTF-8
+ * words are terms too), ASCII letters are lower cased. Terms longer than
+ * {@link #MAX_TERM_LENGTH} bytes are not indexed.
+ *
+ * Index file format:
+ *
+ * Header ({@link #HEADER_SIZE} bytes): magic, version, total lines, text file length,
+ * number of terms, dictionary offset, term offsets offset, reserved.
+ *
+ * Postings: for every term, ascending line numbers - the first one followed by deltas,
+ * every number is an unsigned LEB128 varint.
+ *
+ * Dictionary: for every term, sorted by unsigned bytes - term length (1 byte), term bytes,
+ * postings offset (8 bytes), number of lines (8 bytes), postings length (8 bytes).
+ *
+ * Term offsets: offset of every dictionary entry (8 bytes), a term is looked up with
+ * a binary search. Index file is read with positional reads, hot parts stay in the page
+ * cache, so a lookup takes a few microseconds.
+ *
+ */
+public class TermIndex {
+  private static final Logger log = LogManager.getLogger(TermIndex.class);
+
+  /* Index file magic: 'SBTX' */
+  final static int MAGIC = 0x53425458;
+
+  /* Index format version */
+  final static int VERSION = 1;
+
+  /* Header size */
+  final static int HEADER_SIZE = 64;
+
+  /* Maximum term length in bytes */
+  public final static int MAX_TERM_LENGTH = 64;
+
+  /* Maximum dictionary entry size */
+  final static int MAX_ENTRY_SIZE = 1 + MAX_TERM_LENGTH + 3 * Long.BYTES;
+
+  /* Is term indexing enabled */
+  public final static boolean ENABLED = Boolean.getBoolean("textprovider.terms");
+
+  /* Process wide cache of term indexes: text file path -> index */
+  private static ConcurrentHashMap<String, TermIndex> indexMap = new ConcurrentHashMap<>();
+
+  /* Background builds, one at a time */
+  private static ExecutorService builder;
+
+  /* Read buffer of a thread */
+  private final static ThreadLocal<ByteBuffer> buffers =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocate(64 * 1024));
+
+  /* Index file channel, null while index is being built */
+  private final FileChannel channel;
+  /* Number of indexed lines */
+  private final long totalLines;
+  /* Length of an indexed text file */
+  private final long textLength;
+  /* Number of terms */
+  private final long terms;
+  /* Dictionary offset */
+  private final long dictionaryOffset;
+  /* Term offsets offset */
+  private final long offsetsOffset;
+
+  /**
+   * Placeholder of an index which is being built
+   */
+  private TermIndex() {
+    this.channel = null;
+    this.totalLines = 0;
+    this.textLength = 0;
+    this.terms = 0;
+    this.dictionaryOffset = 0;
+    this.offsetsOffset = 0;
+  }
+
+  /**
+   * Opens index file
+   * @param path index file path
+   * @throws IOException
+   */
+  private TermIndex(Path path) throws IOException {
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    ByteBuffer header = readHeader(channel);
+    if (header == null) {
+      channel.close();
+      throw new IOException(String.format("Invalid term index file %s", path));
+    }
+    this.totalLines = header.getLong(8);
+    this.textLength = header.getLong(16);
+    this.terms = header.getLong(24);
+    this.dictionaryOffset = header.getLong(32);
+    this.offsetsOffset = header.getLong(40);
+  }
+
+  /**
+   * Is index being built
+   * @return true if index is being built, it can not be searched yet
+   */
+  public boolean isBuilding() {
+    return channel == null;
+  }
+
+  /**
+   * Get number of indexed lines
+   * @return number of lines
+   */
+  public long getTotalLines() {
+    return totalLines;
+  }
+
+  /**
+   * Get number of terms
+   * @return number of terms
+   */
+  public long getTermCount() {
+    return terms;
+  }
+
+  /**
+   * Normalizes search term
+   * @param s term
+   * @return term bytes, null if it is not a single term
+   */
+  public static byte[] normalize(String s) {
+    byte[] term = s.getBytes(StandardCharsets.UTF_8);
+    if (term.length == 0 || term.length > MAX_TERM_LENGTH) {
+      return null;
+    }
+    for (int i = 0; i < term.length; i++) {
+      int b = term[i];
+      if (!isTermByte(b)) {
+        return null;
+      }
+      term[i] = (byte) toLowerCase(b);
+    }
+    return term;
+  }
+
+  /**
+   * Is byte a part of a term
+   * @param b byte
+   * @return true for ASCII letters and digits and for non-ASCII bytes
+   */
+  static boolean isTermByte(int b) {
+    return b < 0 || (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+  }
+
+  /**
+   * Lower cases ASCII letter
+   * @param b term byte
+   * @return lower cased byte
+   */
+  static int toLowerCase(int b) {
+    return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+  }
+
+  /**
+   * Finds lines which contain a term
+   * @param term normalized term (see {@link #normalize(String)})
+   * @param limit maximum number of lines to return
+   * @param result result holder: the first element is set to a total number of lines
+   *  which contain a term
+   * @return line numbers in ascending order, at most limit
+   * @throws IOException
+   */
+  public long[] find(byte[] term, int limit, long[] result) throws IOException {
+    result[0] = 0;
+    ByteBuffer buf = buffers.get();
+    long entry = lookup(term, buf);
+    if (entry < 0) {
+      return new long[0];
+    }
+    // Entry is in a buffer
+    int pos = 1 + term.length;
+    long offset = buf.getLong(pos);
+    long count = buf.getLong(pos + 8);
+    long length = buf.getLong(pos + 16);
+    result[0] = count;
+    long[] lines = new long[(int) Math.min(limit, count)];
+    long line = 0;
+    long shift = 0;
+    long value = 0;
+    int n = 0;
+    long end = offset + length;
+    while (n < lines.length && offset < end) {
+      buf.clear();
+      buf.limit((int) Math.min(buf.capacity(), end - offset));
+      readFully(buf, offset);
+      offset += buf.limit();
+      for (int i = 0; i < buf.limit() && n < lines.length; i++) {
+        byte b = buf.get(i);
+        value |= (long) (b & 0x7f) << shift;
+        if (b < 0) {
+          shift += 7;
+          continue;
+        }
+        line += value;
+        lines[n++] = line;
+        value = 0;
+        shift = 0;
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Binary search of a term
+   * @param term term
+   * @param buf buffer, it contains a dictionary entry of a term if it has been found
+   * @return term number or -1
+   * @throws IOException
+   */
+  private long lookup(byte[] term, ByteBuffer buf) throws IOException {
+    long low = 0;
+    long high = terms - 1;
+    while (low <= high) {
+      long mid = (low + high) >>> 1;
+      buf.clear();
+      buf.limit(Long.BYTES);
+      readFully(buf, offsetsOffset + mid * Long.BYTES);
+      long entry = buf.getLong(0);
+      buf.clear();
+      buf.limit((int) Math.min(MAX_ENTRY_SIZE, offsetsOffset - entry));
+      readFully(buf, entry);
+      int cmp = compare(buf, term);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Compares term of a dictionary entry with a given term, unsigned bytes
+   */
+  private static int compare(ByteBuffer entry, byte[] term) {
+    int length = entry.get(0) & 0xff;
+    int n = Math.min(length, term.length);
+    for (int i = 0; i < n; i++) {
+      int cmp = (entry.get(1 + i) & 0xff) - (term[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return length - term.length;
+  }
+
+  private void readFully(ByteBuffer buf, long offset) throws IOException {
+    buf.position(0);
+    while (buf.hasRemaining()) {
+      if (channel.read(buf, offset + buf.position()) < 0) {
+        throw new IOException("Unexpected end of term index file");
+      }
+    }
+  }
+
+  /**
+   * Closes index
+   */
+  private void close() {
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+    } catch (IOException e) {
+      // swallow it - does not matter
+    }
+  }
+
+  /**
+   * Get term index of a text file
+   * @param filePath text file path
+   * @return term index or null if there is no one
+   */
+  public static TermIndex getFor(String filePath) {
+    return indexMap.get(filePath);
+  }
+
+  /**
+   * Opens existing up to date term index or builds a new one
+   * @param filePath text file path
+   * @throws IOException
+   */
+  public static void openOrCreate(String filePath) throws IOException {
+    Path path = Path.of(filePath);
+    Path index = termsPath(path);
+    if (needsBuild(path, index)) {
+      build(path, index);
+    }
+    publish(filePath, new TermIndex(index));
+  }
+
+  /**
+   * Opens existing up to date term index or starts building a new one in a background
+   * thread. Until the build is finished, the index is reported as being built
+   * @param filePath text file path
+   * @throws IOException
+   */
+  public static void openOrCreateInBackground(String filePath) throws IOException {
+    Path path = Path.of(filePath);
+    Path index = termsPath(path);
+    if (!needsBuild(path, index)) {
+      publish(filePath, new TermIndex(index));
+      return;
+    }
+    publish(filePath, new TermIndex());
+    getBuilder().execute(() -> {
+      try {
+        build(path, index);
+        publish(filePath, new TermIndex(index));
+      } catch (IOException e) {
+        log.error("[{}] Term index build failed for {}", Thread.currentThread().getName(),
+          path.toAbsolutePath(), e);
+        indexMap.remove(filePath);
+      }
+    });
+  }
+
+  /**
+   * Publishes index, closes a replaced one. Searches in flight may fail, they are
+   * not reference counted: a term index is replaced only when a text file is reloaded
+   */
+  private static void publish(String filePath, TermIndex index) {
+    TermIndex old = indexMap.put(filePath, index);
+    if (old != null) {
+      old.close();
+    }
+  }
+
+  /**
+   * Closes all term indexes
+   */
+  public static void closeAll() {
+    for (TermIndex index : indexMap.values()) {
+      index.close();
+    }
+    indexMap.clear();
+  }
+
+  /**
+   * Get term index file path
+   * @param path text file path
+   * @return term index file path
+   */
+  static Path termsPath(Path path) {
+    return path.resolveSibling(path.getFileName().toString() + ".terms");
+  }
+
+  /**
+   * Checks if existing term index is valid and up to date
+   */
+  private static boolean needsBuild(Path path, Path index) throws IOException {
+    if (!Files.exists(index) ||
+        Files.getLastModifiedTime(path).toMillis() >= Files.getLastModifiedTime(index).toMillis()) {
+      return true;
+    }
+    try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ);
+        FileChannel text = BlockChannel.open(path)) {
+      ByteBuffer header = readHeader(channel);
+      return header == null || header.getLong(16) != text.size();
+    }
+  }
+
+  /**
+   * Reads and validates index file header
+   * @param channel index file channel
+   * @return header buffer or null if header is invalid
+   * @throws IOException
+   */
+  static ByteBuffer readHeader(FileChannel channel) throws IOException {
+    if (channel.size() < HEADER_SIZE) {
+      return null;
+    }
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (header.hasRemaining()) {
+      if (channel.read(header, header.position()) < 0) {
+        return null;
+      }
+    }
+    if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+      return null;
+    }
+    return header;
+  }
+
+  /**
+   * Builds term index under a temporary name and publishes it with a rename
+   */
+  private static void build(Path path, Path index) throws IOException {
+    Path tmp = index.resolveSibling(index.getFileName() + ".tmp");
+    try {
+      new TermIndexBuilder().build(path, tmp);
+      Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private static synchronized ExecutorService getBuilder() {
+    if (builder == null) {
+      builder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "term-index-builder");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return builder;
+  }
+}
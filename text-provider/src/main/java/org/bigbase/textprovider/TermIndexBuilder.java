@@ -0,0 +1,506 @@
+package org.bigbase.textprovider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.textprovider.compress.BlockChannel;
+
+/**
+ *
+ * Term index builder (see {@link TermIndex} for the file format).
+ * A text file is scanned once, postings of terms are collected in memory until
+ * a memory budget is exhausted, then they are sorted by term and spilled into
+ * a run file. Runs cover consecutive parts of a text file, so the final k-way merge
+ * concatenates postings of a term in run order and only re-encodes the first delta
+ * of every run. Memory usage does not depend on a text file size.
+ *
+ */
+public class TermIndexBuilder {
+
+  /*
+   * Logger
+   */
+  private static final Logger log = LogManager.getLogger(TermIndexBuilder.class);
+
+  /* Default memory budget of collected postings - 128MB */
+  public final static long DEFAULT_MEMORY =
+      Long.getLong("textprovider.terms.memory", 128 * 1024 * 1024);
+
+  /* Estimated memory overhead of a collected term (hash map entry, objects) */
+  private final static int TERM_OVERHEAD = 128;
+
+  /* Text read buffer size */
+  private final static int BUFFER_SIZE = 1024 * 1024;
+
+  /**
+   * Term bytes, hash map key. A probe key is reused to look up terms of a text,
+   * a copy is stored when a term is seen for the first time
+   */
+  private final static class Term implements Comparable<Term> {
+    byte[] bytes;
+    int length;
+    int hash;
+
+    Term(int capacity) {
+      this.bytes = new byte[capacity];
+    }
+
+    Term(Term t) {
+      this.bytes = Arrays.copyOf(t.bytes, t.length);
+      this.length = t.length;
+      this.hash = t.hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      Term t = (Term) o;
+      return Arrays.equals(bytes, 0, length, t.bytes, 0, t.length);
+    }
+
+    @Override
+    public int compareTo(Term t) {
+      return Arrays.compareUnsigned(bytes, 0, length, t.bytes, 0, t.length);
+    }
+  }
+
+  /**
+   * Postings of a term: the first line number followed by deltas, varints
+   */
+  private final static class Postings {
+    byte[] data = new byte[8];
+    int size;
+    long count;
+    long first;
+    long last;
+
+    /**
+     * Adds a line, a line is added once however many times a term occurs in it
+     * @param line line number
+     */
+    void add(long line) {
+      if (count > 0 && line == last) {
+        return;
+      }
+      if (size + 10 > data.length) {
+        data = Arrays.copyOf(data, data.length * 2);
+      }
+      size = putVarint(data, size, count == 0 ? line : line - last);
+      if (count == 0) {
+        first = line;
+      }
+      last = line;
+      count++;
+    }
+  }
+
+  /* Memory budget */
+  private final long memory;
+
+  /* Collected postings */
+  private HashMap<Term, Postings> postings = new HashMap<Term, Postings>();
+
+  /* Estimated memory used by collected postings */
+  private long used;
+
+  /* Run files */
+  private List<Path> runs = new ArrayList<Path>();
+
+  /**
+   * Default constructor
+   */
+  public TermIndexBuilder() {
+    this(DEFAULT_MEMORY);
+  }
+
+  /**
+   * Constructor
+   * @param memory memory budget of collected postings in bytes
+   */
+  public TermIndexBuilder(long memory) {
+    this.memory = memory;
+  }
+
+  /**
+   * Builds term index file for a given text file
+   * @param filePath text file path
+   * @param indexPath term index file path
+   * @return number of terms
+   * @throws IOException
+   */
+  public long build(Path filePath, Path indexPath) throws IOException {
+    log.info("Building term index for {}, memory={}", filePath.toAbsolutePath(), memory);
+    long startTime = System.nanoTime();
+    long lines = 0;
+    long fileSize = 0;
+    long terms = 0;
+    int runCount = 0;
+    try {
+      try (FileChannel in = BlockChannel.open(filePath)) {
+        fileSize = in.size();
+        lines = scan(in, fileSize, indexPath);
+      }
+      spill(indexPath);
+      runCount = runs.size();
+      terms = merge(indexPath, lines, fileSize);
+    } finally {
+      for (Path run : runs) {
+        Files.deleteIfExists(run);
+      }
+      runs.clear();
+      postings.clear();
+    }
+    long endTime = System.nanoTime();
+    log.info("Finished building term index for {} in {} ms, lines={} terms={} runs={}",
+      filePath.toAbsolutePath(), (endTime - startTime) / 1000000, lines, terms, runCount);
+    return terms;
+  }
+
+  /**
+   * Scans text and collects postings, spills them when memory budget is exhausted
+   * @param in text file channel
+   * @param size text length to scan
+   * @param indexPath term index file path
+   * @return number of lines
+   * @throws IOException
+   */
+  private long scan(FileChannel in, long size, Path indexPath) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+    Term probe = new Term(TermIndex.MAX_TERM_LENGTH);
+    int length = 0;
+    int hash = 0;
+    long line = 1;
+    byte last = '\n';
+    for (long pos = 0; pos < size; ) {
+      buf.clear();
+      buf.limit((int) Math.min(buf.capacity(), size - pos));
+      int read = in.read(buf, pos);
+      if (read < 0) {
+        break;
+      }
+      pos += read;
+      byte[] data = buf.array();
+      for (int i = 0; i < read; i++) {
+        byte b = data[i];
+        if (TermIndex.isTermByte(b)) {
+          if (length < probe.bytes.length) {
+            byte c = (byte) TermIndex.toLowerCase(b);
+            probe.bytes[length] = c;
+            hash = 31 * hash + c;
+          }
+          // Too long terms are not indexed
+          length++;
+          continue;
+        }
+        if (length > 0) {
+          add(probe, length, hash, line);
+          length = 0;
+          hash = 0;
+        }
+        if (b == '\n') {
+          line++;
+        }
+      }
+      if (read > 0) {
+        last = data[read - 1];
+      }
+      if (used >= memory) {
+        spill(indexPath);
+      }
+    }
+    if (length > 0) {
+      add(probe, length, hash, line);
+    }
+    // Last line may have no line terminator
+    return size == 0 ? 0 : last == '\n' ? line - 1 : line;
+  }
+
+  /**
+   * Adds a line to postings of a term
+   */
+  private void add(Term probe, int length, int hash, long line) {
+    if (length > TermIndex.MAX_TERM_LENGTH) {
+      return;
+    }
+    probe.length = length;
+    probe.hash = hash;
+    Postings p = postings.get(probe);
+    if (p == null) {
+      p = new Postings();
+      postings.put(new Term(probe), p);
+      used += TERM_OVERHEAD + length + p.data.length;
+    }
+    int size = p.data.length;
+    p.add(line);
+    used += p.data.length - size;
+  }
+
+  /**
+   * Sorts collected postings and writes them into a new run file.
+   * Run entry: term length (1 byte), term, count, first line, last line, postings length,
+   * postings
+   * @param indexPath term index file path, run files are created next to it
+   * @throws IOException
+   */
+  private void spill(Path indexPath) throws IOException {
+    if (postings.isEmpty()) {
+      return;
+    }
+    Path run = indexPath.resolveSibling(indexPath.getFileName() + ".run" + runs.size());
+    runs.add(run);
+    Term[] terms = postings.keySet().toArray(new Term[postings.size()]);
+    Arrays.sort(terms);
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(run), 1 << 16))) {
+      for (Term t : terms) {
+        Postings p = postings.get(t);
+        out.writeByte(t.length);
+        out.write(t.bytes, 0, t.length);
+        out.writeLong(p.count);
+        out.writeLong(p.first);
+        out.writeLong(p.last);
+        out.writeInt(p.size);
+        out.write(p.data, 0, p.size);
+      }
+    }
+    postings = new HashMap<Term, Postings>();
+    used = 0;
+  }
+
+  /**
+   * Merges runs into a term index file
+   * @param indexPath term index file path
+   * @param lines number of lines
+   * @param textLength text length
+   * @return number of terms
+   * @throws IOException
+   */
+  private long merge(Path indexPath, long lines, long textLength) throws IOException {
+    Path dictPath = indexPath.resolveSibling(indexPath.getFileName() + ".dict");
+    Path offsetsPath = indexPath.resolveSibling(indexPath.getFileName() + ".offsets");
+    PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+    long terms = 0;
+    long dictionaryOffset;
+    long offsetsOffset;
+    try {
+      for (int i = 0; i < runs.size(); i++) {
+        RunReader r = new RunReader(runs.get(i), i);
+        if (r.next()) {
+          queue.add(r);
+        } else {
+          r.close();
+        }
+      }
+      long position = TermIndex.HEADER_SIZE;
+      long dictPosition = 0;
+      byte[] varint = new byte[10];
+      try (
+          DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(indexPath), 1 << 16));
+          DataOutputStream dict = new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(dictPath), 1 << 16));
+          DataOutputStream offsets = new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(offsetsPath), 1 << 16))) {
+        out.write(new byte[TermIndex.HEADER_SIZE]);
+        Term term = new Term(TermIndex.MAX_TERM_LENGTH);
+        while (!queue.isEmpty()) {
+          RunReader r = queue.poll();
+          System.arraycopy(r.term.bytes, 0, term.bytes, 0, r.term.length);
+          term.length = r.term.length;
+          long start = position;
+          long count = 0;
+          long last = 0;
+          // Runs of the same term come in run (line) order
+          while (true) {
+            r.readPostings();
+            int skip = 0;
+            long added = r.count;
+            if (count > 0) {
+              skip = varintLength(r.postings);
+              if (r.first != last) {
+                int n = putVarint(varint, 0, r.first - last);
+                out.write(varint, 0, n);
+                position += n;
+              } else {
+                // Memory budget was exhausted in the middle of a line
+                added--;
+              }
+            }
+            out.write(r.postings, skip, r.size - skip);
+            position += r.size - skip;
+            count += added;
+            last = r.last;
+            if (r.next()) {
+              queue.add(r);
+            } else {
+              r.close();
+            }
+            if (queue.isEmpty() || queue.peek().term.compareTo(term) != 0) {
+              break;
+            }
+            r = queue.poll();
+          }
+          offsets.writeLong(dictPosition);
+          dict.writeByte(term.length);
+          dict.write(term.bytes, 0, term.length);
+          dict.writeLong(start);
+          dict.writeLong(count);
+          dict.writeLong(position - start);
+          dictPosition += 1 + term.length + 3 * Long.BYTES;
+          terms++;
+        }
+        dict.flush();
+        offsets.flush();
+        dictionaryOffset = position;
+        offsetsOffset = dictionaryOffset + dictPosition;
+        // Dictionary entry offsets are relative, make them absolute
+        Files.copy(dictPath, out);
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(offsetsPath), 1 << 16))) {
+          for (long i = 0; i < terms; i++) {
+            out.writeLong(dictionaryOffset + in.readLong());
+          }
+        }
+      }
+    } finally {
+      for (RunReader r : queue) {
+        r.close();
+      }
+      Files.deleteIfExists(dictPath);
+      Files.deleteIfExists(offsetsPath);
+    }
+    ByteBuffer header = ByteBuffer.allocate(TermIndex.HEADER_SIZE);
+    header.putInt(TermIndex.MAGIC);
+    header.putInt(TermIndex.VERSION);
+    header.putLong(lines);
+    header.putLong(textLength);
+    header.putLong(terms);
+    header.putLong(dictionaryOffset);
+    header.putLong(offsetsOffset);
+    header.clear();
+    try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.WRITE)) {
+      while (header.hasRemaining()) {
+        channel.write(header, header.position());
+      }
+      channel.force(true);
+    }
+    return terms;
+  }
+
+  /**
+   * Sequential reader of a run file
+   */
+  private final static class RunReader implements Comparable<RunReader> {
+    final DataInputStream in;
+    /* Run number */
+    final int run;
+    /* Current term */
+    final Term term = new Term(TermIndex.MAX_TERM_LENGTH);
+    /* Postings of a current term, valid after readPostings() */
+    byte[] postings = new byte[1024];
+    int size;
+    long count;
+    long first;
+    long last;
+
+    RunReader(Path path, int run) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+      this.run = run;
+    }
+
+    /**
+     * Reads the next term
+     * @return false at the end of a run
+     * @throws IOException
+     */
+    boolean next() throws IOException {
+      int length = in.read();
+      if (length < 0) {
+        return false;
+      }
+      in.readFully(term.bytes, 0, length);
+      term.length = length;
+      return true;
+    }
+
+    /**
+     * Reads postings of a current term
+     * @throws IOException
+     */
+    void readPostings() throws IOException {
+      count = in.readLong();
+      first = in.readLong();
+      last = in.readLong();
+      size = in.readInt();
+      if (size > postings.length) {
+        postings = new byte[Math.max(size, postings.length * 2)];
+      }
+      try {
+        in.readFully(postings, 0, size);
+      } catch (EOFException e) {
+        throw new IOException("Truncated term index run", e);
+      }
+    }
+
+    @Override
+    public int compareTo(RunReader r) {
+      int cmp = term.compareTo(r.term);
+      return cmp != 0 ? cmp : Integer.compare(run, r.run);
+    }
+
+    void close() {
+      try {
+        in.close();
+      } catch (IOException e) {
+        // swallow it - does not matter
+      }
+    }
+  }
+
+  /**
+   * Writes unsigned LEB128 varint
+   * @param buf buffer
+   * @param pos position
+   * @param value value
+   * @return position after a varint
+   */
+  static int putVarint(byte[] buf, int pos, long value) {
+    while ((value & ~0x7fL) != 0) {
+      buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    buf[pos++] = (byte) value;
+    return pos;
+  }
+
+  /**
+   * Get length of the first varint of a buffer
+   */
+  private static int varintLength(byte[] buf) {
+    int n = 0;
+    while (buf[n] < 0) {
+      n++;
+    }
+    return n + 1;
+  }
+}
@@ -2,11 +2,9 @@ package org.bigbase.textprovider.commands;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
-import java.util.HashMap;
+import java.nio.channels.FileChannel;
 
+import org.bigbase.textprovider.Connection;
 import org.bigbase.textprovider.FileIndex;
 
 /**
@@ -19,28 +17,59 @@ public interface Command {
   public final static byte[] OK = "OK\r\n".getBytes();
   public final static byte[] ERR = "ERR\r\n".getBytes();
   public final static byte[] CRLF = "\r\n".getBytes();
+  public final static byte[] BUSY = "BUSY\r\n".getBytes();
   
-  /*
-   * Text provider commands map.
-   */
-  public static ThreadLocal<HashMap<String, Command>> commandMapTLS =
-      new ThreadLocal<HashMap<String, Command>>() {
-        @Override
-        protected HashMap<String, Command> initialValue() {
-          return new HashMap<String, Command>();
-        }
-      };
   /**
    * Generic command interface
-   * @param cmd command string
+   * @param req parsed request, valid only during this call
    * @param file text file to work on
    * @param index file index
-   * @param key selection key (client connection)
+   * @param conn client connection, responses are added to its outbound queue
    * @throws IOException
    */
-  public void execute(String cmd, RandomAccessFile file, FileIndex index, SelectionKey key)
+  public void execute(Request req, FileChannel file, FileIndex index, Connection conn)
       throws IOException;
   
+  /**
+   * Executes request string (parses it first)
+   * @param cmd command string
+   * @param file text file to work on
+   * @param index file index
+   * @param conn client connection, responses are added to its outbound queue
+   * @throws IOException
+   */
+  public default void execute(String cmd, FileChannel file, FileIndex index, 
+      Connection conn) throws IOException {
+    execute(Request.of(cmd), file, index, conn);
+  }
+  
+  /**
+   * Can command execution block on a disk I/O. Such commands are not executed 
+   * inline on an event loop when data is not cached
+   * @return true if command may block
+   */
+  public default boolean mayBlock() {
+    return false;
+  }
+  
+  /**
+   * Is command long running (it scans a file). Such commands are never executed inline
+   * on an event loop
+   * @return true if command is long running
+   */
+  public default boolean isLongRunning() {
+    return false;
+  }
+
+  /**
+   * Can a file name be given as the first argument (<command> <name> <args>). 
+   * Otherwise command works on a connection's selected file (see {@link USE})
+   * @return true if command accepts a file name
+   */
+  public default boolean acceptsFileName() {
+    return false;
+  }
+
   /**
    * For testing only
    * Commands which returns data must override
@@ -56,70 +85,61 @@ public interface Command {
   }
   /**
    * Sends OK response
-   * @param channel
-   * @throws IOException
+   * @param conn client connection
    */
-  default void sendOK(SelectionKey key) throws IOException {
-    SocketChannel channel = (SocketChannel) key.channel();
-    send(channel, OK);
+  default void sendOK(Connection conn) {
+    send(conn, OK);
   }
 
   /**
    * Sends ERR response
-   * @param channel
-   * @throws IOException
+   * @param conn client connection
    */
-  default void sendERR(SelectionKey key) throws IOException {
-    SocketChannel channel = (SocketChannel) key.channel();
-    send(channel, ERR);
+  default void sendERR(Connection conn) {
+    send(conn, ERR);
+  }
+
+  /**
+   * Sends BUSY response: request can not be served now, a client should retry later
+   * @param conn client connection
+   */
+  default void sendBUSY(Connection conn) {
+    send(conn, BUSY);
   }
 
   /**
    * Send CRLF
-   * @param channel
-   * @throws IOException
+   * @param conn client connection
    */
-  default void sendCRLF(SelectionKey key) throws IOException {
-    SocketChannel channel = (SocketChannel) key.channel();
-    send(channel, CRLF);
+  default void sendCRLF(Connection conn) {
+    send(conn, CRLF);
   }
 
   /**
-   * Sends byte array
-   * @param channel
-   * @param data
-   * @throws IOException
+   * Sends byte array. Data is queued and written when the whole
+   * batch of requests has been processed
+   * @param conn client connection
+   * @param data data to send
    */
-  default void send(SocketChannel channel, byte[] data) throws IOException {
-    ByteBuffer buf = ByteBuffer.wrap(data);
-    int sent = 0;
-    while (sent < data.length) {
-      sent += channel.write(buf);
-    }
+  default void send(Connection conn, byte[] data) {
+    conn.send(data);
   }
   
   /**
    * Get command for incoming request to process
    * @param str command string 
-   * @return command instance or null
+   * @return command instance, ERR if command is unknown
    */
-  @SuppressWarnings("deprecation")
-  
   public static Command getCommand(String str) {
-    HashMap<String, Command> map = commandMapTLS.get();
-    String cmdName = str.split(" ")[0];
-    Command cmd = map.get(cmdName);
-    if (cmd == null) {
-      try {
-        @SuppressWarnings("unchecked")
-        Class<Command> cls =
-            (Class<Command>) Class.forName("org.bigbase.textprovider.commands." + cmdName);
-        cmd = cls.newInstance();
-        map.put(cmdName, cmd);
-      } catch (Throwable e) {
-        return new ERR();
-      }
-    }
-    return cmd;
+    return CommandTable.lookup(Request.of(str));
+  }
+  
+  /**
+   * Get command for a parsed request. Does not allocate
+   * @param req parsed request
+   * @return command instance, ERR if command is unknown
+   */
+  public static Command getCommand(Request req) {
+    return CommandTable.lookup(req);
   }
 }
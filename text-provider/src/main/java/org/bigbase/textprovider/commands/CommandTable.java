@@ -0,0 +1,56 @@
+package org.bigbase.textprovider.commands;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * Immutable table of commands. Commands are state-less, so a single instance
+ * of every command is shared by all threads. Lookup compares command name bytes
+ * in place, it does not allocate. New commands must be registered here.
+ *
+ */
+public final class CommandTable {
+
+  /* Generic error response command */
+  public final static Command ERR = new ERR();
+
+  /* Registered commands */
+  private final static Command[] COMMANDS = new Command[] {
+      new GET(),
+      new MGET(),
+      new GETRANGE(),
+      new FIND(),
+      new SCAN(),
+      new USE(),
+      new RELOAD(),
+      new QUIT(),
+      new STATS(),
+      new SHUTDOWN()
+  };
+
+  /* Command names (class names), in the same order */
+  private final static byte[][] NAMES = new byte[COMMANDS.length][];
+
+  static {
+    for (int i = 0; i < COMMANDS.length; i++) {
+      NAMES[i] = COMMANDS[i].getClass().getSimpleName().getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+
+  private CommandTable() {
+  }
+
+  /**
+   * Get command for a parsed request
+   * @param req request
+   * @return command instance, ERR if command is unknown
+   */
+  public static Command lookup(Request req) {
+    for (int i = 0; i < COMMANDS.length; i++) {
+      if (req.isCommand(NAMES[i])) {
+        return COMMANDS[i];
+      }
+    }
+    return ERR;
+  }
+}
@@ -2,8 +2,9 @@ package org.bigbase.textprovider.commands;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.channels.SelectionKey;
+import java.nio.channels.FileChannel;
 
+import org.bigbase.textprovider.Connection;
 import org.bigbase.textprovider.FileIndex;
 
 /**
@@ -14,9 +15,9 @@ import org.bigbase.textprovider.FileIndex;
 public class ERR implements Command {
 
   @Override
-  public void execute(String cmd, RandomAccessFile file, FileIndex index,
-      SelectionKey key) throws IOException {
-    sendERR(key);
+  public void execute(Request req, FileChannel file, FileIndex index,
+      Connection conn) throws IOException {
+    sendERR(conn);
   }
   
   @Override
@@ -0,0 +1,155 @@
+package org.bigbase.textprovider.commands;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.bigbase.textprovider.Connection;
+import org.bigbase.textprovider.FileIndex;
+import org.bigbase.textprovider.TermIndex;
+
+/**
+ * FIND command implementation: FIND <term> [limit] [LINES]
+ *
+ * Looks a term up in a term index of the selected file (see {@link TermIndex}, {@link USE}).
+ * A term is a single word, it is matched case-insensitively. Response:
+ *
+ * OK <count> <total>\r\n
+ * <n_1> <n_2> ... <n_count>\r\n
+ *
+ * where n_i are numbers of lines which contain a term in ascending order, <total> is
+ * the number of all such lines, at most <limit> ({@link #DEFAULT_LIMIT} by default,
+ * {@link #MAX_LIMIT} at most) are returned. With LINES, lines follow in MGET format:
+ *
+ * $<len>\r\n<line>\r\n - for every line number
+ *
+ * ERR is sent if term indexing is disabled or a term is not a single word, BUSY - while
+ * a term index is being built. Lines appended to a file are found after its term index
+ * is rebuilt (on restart or RELOAD).
+ */
+public class FIND implements Command {
+
+  /* Default number of lines returned */
+  public final static int DEFAULT_LIMIT = 1000;
+
+  /* Maximum number of lines returned */
+  public final static int MAX_LIMIT = 100000;
+
+  final static byte[] LINES = "LINES".getBytes(StandardCharsets.US_ASCII);
+
+  @Override
+  public void execute(Request req, FileChannel file, FileIndex index,
+      Connection conn) throws IOException {
+    int limit = limit(req);
+    byte[] term = limit > 0 ? TermIndex.normalize(req.getString(0)) : null;
+    TermIndex terms = TermIndex.getFor(index.getTextPath());
+    if (term == null || terms == null) {
+      sendERR(conn);
+      return;
+    }
+    if (terms.isBuilding()) {
+      sendBUSY(conn);
+      return;
+    }
+    long[] total = new long[1];
+    long[] lines;
+    try {
+      lines = terms.find(term, limit, total);
+    } catch (ClosedChannelException e) {
+      // Term index has been replaced by a reload
+      sendBUSY(conn);
+      return;
+    }
+    send(conn, header(lines, total[0]));
+    if (!req.isArgument(req.getArgCount() - 1, LINES)) {
+      return;
+    }
+    FileIndex.Range range = conn.getRange();
+    for (long lineNumber : lines) {
+      if (!index.getRange(lineNumber, range)) {
+        send(conn, MGET.NOT_FOUND);
+        continue;
+      }
+      send(conn, ascii("$" + range.size + "\r\n"));
+      conn.send(file, range.offset, range.size);
+      sendCRLF(conn);
+    }
+  }
+
+  @Override
+  public boolean mayBlock() {
+    // Term index and lines are read from files
+    return true;
+  }
+
+  @Override
+  public String executeForTest(String cmd, RandomAccessFile file, FileIndex index)
+      throws IOException {
+    Request req = Request.of(cmd);
+    int limit = limit(req);
+    byte[] term = limit > 0 ? TermIndex.normalize(req.getString(0)) : null;
+    TermIndex terms = index == null ? null : TermIndex.getFor(index.getTextPath());
+    if (term == null || terms == null) {
+      return "ERR\r\n";
+    }
+    if (terms.isBuilding()) {
+      return "BUSY\r\n";
+    }
+    long[] total = new long[1];
+    long[] lines = terms.find(term, limit, total);
+    StringBuilder sb = new StringBuilder(new String(header(lines, total[0])));
+    if (!req.isArgument(req.getArgCount() - 1, LINES)) {
+      return sb.toString();
+    }
+    for (long lineNumber : lines) {
+      FileIndex.Range range = index.getRange(lineNumber);
+      if (range == null) {
+        sb.append("$-1\r\n");
+        continue;
+      }
+      byte[] buf = new byte[(int) range.size];
+      file.seek(range.offset);
+      file.readFully(buf);
+      sb.append('$').append(range.size).append("\r\n").append(new String(buf)).append("\r\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Validates request and gets a limit
+   * @param req parsed request
+   * @return limit or -1 if request is invalid
+   */
+  private static int limit(Request req) {
+    int n = req.getArgCount();
+    if (n > 0 && req.isArgument(n - 1, LINES)) {
+      n--;
+    }
+    if (n == 1) {
+      return DEFAULT_LIMIT;
+    }
+    if (n != 2 || !req.isNumber(1) || req.getLong(1) < 1) {
+      // we expect FIND <term> [limit] [LINES]
+      return -1;
+    }
+    return (int) Math.min(MAX_LIMIT, req.getLong(1));
+  }
+
+  private static byte[] header(long[] lines, long total) {
+    StringBuilder sb = new StringBuilder("OK ");
+    sb.append(lines.length).append(' ').append(total).append("\r\n");
+    for (int i = 0; i < lines.length; i++) {
+      if (i > 0) {
+        sb.append(' ');
+      }
+      sb.append(lines[i]);
+    }
+    return ascii(sb.append("\r\n").toString());
+  }
+
+  private static byte[] ascii(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+}
@@ -2,11 +2,13 @@ package org.bigbase.textprovider.commands;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
 
+import org.bigbase.textprovider.Connection;
 import org.bigbase.textprovider.FileIndex;
+import org.bigbase.textprovider.LineCache;
+import org.bigbase.textprovider.Readahead;
 
 /**
  * GET command implementation 
@@ -14,60 +16,77 @@ import org.bigbase.textprovider.FileIndex;
 public class GET implements Command {
 
   @Override
-  public void execute(String cmd, RandomAccessFile file, FileIndex index,
-      SelectionKey key) throws IOException {
+  public void execute(Request req, FileChannel file, FileIndex index,
+      Connection conn) throws IOException {
     
-    String[] parts = cmd.split(" ");
-    if (parts.length != 2) {
+    if (req.getArgCount() != 1 || !req.isNumber(0)) {
       // we expect GET <n> 
-      sendERR(key);
+      sendERR(conn);
       return;
     }
-    // try to parse parts[1]
-    long lineNumber = -1;
-    try {
-      lineNumber = Long.parseLong(parts[1]);
-    } catch(NumberFormatException e) {
-      sendERR(key);
+    long lineNumber = req.getLong(0);
+    LineCache cache = index.getLineCache();
+    if (cache != null) {
+      ByteBuffer response = cache.get(lineNumber);
+      if (response != null) {
+        // Pre-framed response
+        conn.send(response);
+        return;
+      }
+    }
+    FileIndex.Range range = conn.getRange();
+    if (!index.getRange(lineNumber, range)) {
+      if (index.isBuilding() && lineNumber > 0) {
+        // Line has not been indexed yet
+        sendBUSY(conn);
+      } else {
+        sendERR(conn);
+      }
       return;
     }
-    FileIndex.Range range = index.getRange(lineNumber);
-    if (range == null) {
-      sendERR(key);
+    Readahead readahead = conn.getReadahead();
+    if (readahead != null && readahead.serve(lineNumber, file, index, range, conn)) {
+      // Sequential scan, line has been read ahead
       return;
     }
-    // Send line back to client
-    sendOK(key);
-    long offset = range.offset;
-    long size = range.size;
-    long sent = 0;
-    FileChannel fc = file.getChannel();
-    SocketChannel sc = (SocketChannel) key.channel();
-    while(sent < size) {
-      sent += fc.transferTo(offset + sent, size - sent, sc);
+    if (cache != null && range.terminator != 0) {
+      // The last line without a terminator is not cached: it can grow
+      ByteBuffer response = cache.load(lineNumber, file, range);
+      if (response != null) {
+        conn.send(response);
+        return;
+      }
     }
-    sendCRLF(key);  
+    // Send line back to client
+    sendOK(conn);
+    conn.send(file, range.offset, range.size);
+    sendCRLF(conn);
+  }
+  
+  @Override
+  public boolean mayBlock() {
+    // Line is read from a text file
+    return true;
+  }
+
+  @Override
+  public boolean acceptsFileName() {
+    return true;
   }
   
   @Override
   public String executeForTest(String cmd, RandomAccessFile file, FileIndex index)
       throws IOException {
     
-    String[] parts = cmd.split(" ");
-    if (parts.length != 2) {
+    Request req = Request.of(cmd);
+    if (req.getArgCount() != 1 || !req.isNumber(0)) {
       // we expect GET n
       return "ERR\r\n";
     }
-    // try to parse parts[1]
-    long lineNumber = -1;
-    try {
-      lineNumber = Long.parseLong(parts[1]);
-    } catch(NumberFormatException e) {
-      return "ERR\r\n";
-    }
+    long lineNumber = req.getLong(0);
     FileIndex.Range range = index.getRange(lineNumber);
     if (range == null) {
-      return "ERR\r\n";
+      return index.isBuilding() && lineNumber > 0 ? "BUSY\r\n" : "ERR\r\n";
     }
     // Send line back to client
     String result = "OK\r\n";
@@ -0,0 +1,120 @@
+package org.bigbase.textprovider.commands;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.bigbase.textprovider.Connection;
+import org.bigbase.textprovider.FileIndex;
+import org.bigbase.textprovider.Readahead;
+
+/**
+ * GETRANGE command implementation: GETRANGE <from> <to>
+ *
+ * Consecutive lines are adjacent in a text file, so the whole range is sent
+ * as a single file region. Response:
+ *
+ * OK <count> <size>\r\n
+ * <len_1> <len_2> ... <len_count>\r\n
+ * <size bytes of a text file>\r\n
+ *
+ * where len_i is a length of a line record in the span: line content followed by
+ * its original terminator ("\n" or "\r\n", the last line of a file may have none).
+ * Range is truncated to the last line of a file and to {@link #MAX_LINES} lines,
+ * clients get the actual number of lines in <count>.
+ *
+ * Sequential ranges are read ahead (see {@link Readahead}).
+ *
+ * BUSY is sent while an index is being built: line lengths are collected from 
+ * a complete index only.
+ */
+public class GETRANGE implements Command {
+
+  /* Maximum number of lines in a single response */
+  public final static int MAX_LINES = 100000;
+
+  @Override
+  public void execute(Request req, FileChannel file, FileIndex index,
+      Connection conn) throws IOException {
+    if (index.isBuilding()) {
+      sendBUSY(conn);
+      return;
+    }
+    FileIndex.Range range = conn.getRange();
+    byte[] header = prepare(req, index, range);
+    if (header == null) {
+      sendERR(conn);
+      return;
+    }
+    Readahead readahead = conn.getReadahead();
+    if (readahead != null) {
+      readahead.prefetchSpan(file, index, range.offset, range.size);
+    }
+    send(conn, header);
+    conn.send(file, range.offset, range.size);
+    sendCRLF(conn);
+  }
+
+  @Override
+  public boolean mayBlock() {
+    // Lines are read from a text file
+    return true;
+  }
+
+  @Override
+  public boolean acceptsFileName() {
+    return true;
+  }
+
+  @Override
+  public String executeForTest(String cmd, RandomAccessFile file, FileIndex index)
+      throws IOException {
+    if (index == null) {
+      return "ERR\r\n";
+    }
+    if (index.isBuilding()) {
+      return "BUSY\r\n";
+    }
+    FileIndex.Range range = new FileIndex.Range();
+    byte[] header = prepare(Request.of(cmd), index, range);
+    if (header == null) {
+      return "ERR\r\n";
+    }
+    byte[] buf = new byte[(int) range.size];
+    file.seek(range.offset);
+    file.readFully(buf);
+    return new String(header) + new String(buf) + "\r\n";
+  }
+
+  /**
+   * Parses request and builds response header
+   * @param req parsed request
+   * @param index file index
+   * @param range range holder, set to a span of a text file to send
+   * @return response header or null if request is invalid
+   */
+  private byte[] prepare(Request req, FileIndex index, FileIndex.Range range) {
+    if (req.getArgCount() != 2 || !req.allNumbers()) {
+      // we expect GETRANGE <from> <to>
+      return null;
+    }
+    long from = req.getLong(0);
+    long to = req.getLong(1);
+    long total = index.getTotalLines();
+    if (from < 1 || from > total || to < from) {
+      return null;
+    }
+    to = Math.min(Math.min(to, total), from + MAX_LINES - 1);
+    StringBuilder lengths = new StringBuilder();
+    // Record length includes the original terminator
+    index.getRecords(from, to, length -> {
+      if (lengths.length() > 0) {
+        lengths.append(' ');
+      }
+      lengths.append(length);
+    }, range);
+    String header = "OK " + (to - from + 1) + " " + range.size + "\r\n" + lengths + "\r\n";
+    return header.getBytes(StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,128 @@
+package org.bigbase.textprovider.commands;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.bigbase.textprovider.Connection;
+import org.bigbase.textprovider.FileIndex;
+import org.bigbase.textprovider.LineCache;
+
+/**
+ * MGET command implementation: MGET <n1> <n2> ...
+ *
+ * Response:
+ *
+ * OK <count>\r\n
+ * $<len>\r\n<line>\r\n - for every requested line, in request order
+ *
+ * $-1\r\n is sent for a line which does not exist
+ */
+public class MGET implements Command {
+
+  final static byte[] NOT_FOUND = "$-1\r\n".getBytes();
+
+  @Override
+  public void execute(Request req, FileChannel file, FileIndex index,
+      Connection conn) throws IOException {
+    if (req.getArgCount() == 0 || !req.allNumbers()) {
+      // we expect MGET <n1> [<n2> ...]
+      sendERR(conn);
+      return;
+    }
+    int count = req.getArgCount();
+    if (index.isBuilding() && !indexed(req, index)) {
+      sendBUSY(conn);
+      return;
+    }
+    send(conn, ascii("OK " + count + "\r\n"));
+    LineCache cache = index.getLineCache();
+    FileIndex.Range range = conn.getRange();
+    for (int i = 0; i < count; i++) {
+      long lineNumber = req.getLong(i);
+      if (cache != null) {
+        ByteBuffer response = cache.get(lineNumber);
+        if (response == null && index.getRange(lineNumber, range) && range.terminator != 0) {
+          response = cache.load(lineNumber, file, range);
+        }
+        if (response != null) {
+          // Skip OK of a pre-framed GET response, line and CRLF remain
+          response.position(OK.length);
+          send(conn, lengthPrefix(response.remaining() - CRLF.length));
+          conn.send(response);
+          continue;
+        }
+      }
+      if (!index.getRange(lineNumber, range)) {
+        send(conn, NOT_FOUND);
+        continue;
+      }
+      send(conn, lengthPrefix(range.size));
+      conn.send(file, range.offset, range.size);
+      sendCRLF(conn);
+    }
+  }
+
+  @Override
+  public boolean mayBlock() {
+    // Lines are read from a text file
+    return true;
+  }
+
+  @Override
+  public boolean acceptsFileName() {
+    return true;
+  }
+
+  @Override
+  public String executeForTest(String cmd, RandomAccessFile file, FileIndex index)
+      throws IOException {
+    Request req = Request.of(cmd);
+    if (req.getArgCount() == 0 || !req.allNumbers() || index == null) {
+      return "ERR\r\n";
+    }
+    if (index.isBuilding() && !indexed(req, index)) {
+      return "BUSY\r\n";
+    }
+    StringBuilder sb = new StringBuilder("OK " + req.getArgCount() + "\r\n");
+    for (int i = 0; i < req.getArgCount(); i++) {
+      long lineNumber = req.getLong(i);
+      FileIndex.Range range = index.getRange(lineNumber);
+      if (range == null) {
+        sb.append("$-1\r\n");
+        continue;
+      }
+      byte[] buf = new byte[(int) range.size];
+      file.seek(range.offset);
+      file.readFully(buf);
+      sb.append('$').append(range.size).append("\r\n").append(new String(buf)).append("\r\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Have all requested lines been indexed (index is being built)
+   * @param req request
+   * @param index file index
+   * @return false if some lines may exist but have not been indexed yet
+   */
+  private static boolean indexed(Request req, FileIndex index) {
+    long total = index.getTotalLines();
+    for (int i = 0; i < req.getArgCount(); i++) {
+      if (req.getLong(i) > total) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] lengthPrefix(long size) {
+    return ascii("$" + size + "\r\n");
+  }
+
+  private static byte[] ascii(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+}
@@ -2,11 +2,9 @@ package org.bigbase.textprovider.commands;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.FileChannel;
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+import org.bigbase.textprovider.Connection;
 import org.bigbase.textprovider.FileIndex;
 
 /**
@@ -15,39 +13,24 @@ import org.bigbase.textprovider.FileIndex;
  */
 public class QUIT implements Command {
 
-  private final static Logger log = LogManager.getLogger(QUIT.class);
-
-  public void execute(String cmd, RandomAccessFile file, FileIndex index,
-      SelectionKey key) throws IOException {
-    if (cmd.equals("QUIT")) {
-      // Shutdown client
-      closeClient(key);
+  public void execute(Request req, FileChannel file, FileIndex index,
+      Connection conn) throws IOException {
+    if (req.getArgCount() == 0) {
+      // Send responses to previous pipelined requests and shutdown client
+      conn.closeAfterFlush();
     } else {
-      sendERR(key);
+      sendERR(conn);
     }
   }
   
   @Override
   public String executeForTest(String cmd, RandomAccessFile file, FileIndex index) 
       throws IOException {
-    if (cmd.equals("QUIT")) {
+    Request req = Request.of(cmd);
+    if (req.getCommandName().equals("QUIT") && req.getArgCount() == 0) {
       return null;//
     } else {
       return "ERR\r\n";
     }
   }
-  
-  /**
-   * Cancels a selection key and closes client
-   * @param key selection key
-   */
-   private void closeClient(SelectionKey key) {
-     try {
-       key.cancel();
-       SocketChannel channel = (SocketChannel) key.channel();
-       channel.close();
-     } catch(IOException e) {
-       log.error("[{}]", Thread.currentThread().getName(), e);
-     }
-   }
 }
@@ -0,0 +1,57 @@
+package org.bigbase.textprovider.commands;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import org.bigbase.textprovider.Connection;
+import org.bigbase.textprovider.FileIndex;
+import org.bigbase.textprovider.FileRegistry;
+
+/**
+ * RELOAD command implementation: RELOAD [name]
+ *
+ * Admin command, reloads a replaced text file (all files if name is not given) without
+ * dropping connections (see {@link FileRegistry#reload(FileRegistry.TextFile, boolean)}).
+ * Reload runs in the background: a new index is built first, requests are served 
+ * from the current version until it is swapped. Response is OK when reload is scheduled 
+ * or ERR if there is no file with a given name.
+ */
+public class RELOAD implements Command {
+
+  @Override
+  public void execute(Request req, FileChannel file, FileIndex index,
+      Connection conn) throws IOException {
+    FileRegistry.TextFile[] selected = select(req);
+    if (selected == null) {
+      sendERR(conn);
+      return;
+    }
+    for (FileRegistry.TextFile f : selected) {
+      FileRegistry.reloadInBackground(f, true);
+    }
+    sendOK(conn);
+  }
+
+  @Override
+  public String executeForTest(String cmd, RandomAccessFile file, FileIndex index)
+      throws IOException {
+    Request req = Request.of(cmd);
+    if (!req.getCommandName().equals("RELOAD") || select(req) == null) {
+      return "ERR\r\n";
+    }
+    return "OK\r\n";
+  }
+
+  private FileRegistry.TextFile[] select(Request req) {
+    if (req.getArgCount() == 0) {
+      return FileRegistry.getFiles();
+    }
+    if (req.getArgCount() != 1) {
+      // we expect RELOAD [name]
+      return null;
+    }
+    FileRegistry.TextFile f = FileRegistry.lookup(req, 0);
+    return f == null ? null : new FileRegistry.TextFile[] {f};
+  }
+}
@@ -0,0 +1,229 @@
+package org.bigbase.textprovider.commands;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ *
+ * Parsed request. Request is tokenized in place: a parser keeps token boundaries
+ * in an input buffer and decodes numeric tokens, nothing is allocated in a steady state.
+ * Tokens are separated by one or more spaces, token 0 is a command name.
+ *
+ * Instance is reusable and is not thread safe: every connection has its own request,
+ * which is valid only while a command is being executed (input buffer is compacted after that).
+ *
+ */
+public class Request {
+
+  /* Initial number of tokens */
+  private final static int INITIAL_TOKENS = 8;
+
+  /* Buffer which contains request */
+  private ByteBuffer buf;
+  /* Token starts */
+  private int[] starts = new int[INITIAL_TOKENS];
+  /* Token ends (exclusive) */
+  private int[] ends = new int[INITIAL_TOKENS];
+  /* Decoded numeric tokens */
+  private long[] numbers = new long[INITIAL_TOKENS];
+  /* Is token a valid decimal number */
+  private boolean[] numeric = new boolean[INITIAL_TOKENS];
+  /* Number of tokens */
+  private int count;
+
+  /**
+   * Creates request from a string
+   * @param cmd request string
+   * @return parsed request
+   */
+  public static Request of(String cmd) {
+    byte[] data = cmd.getBytes(StandardCharsets.UTF_8);
+    Request req = new Request();
+    req.parse(ByteBuffer.wrap(data), 0, data.length);
+    return req;
+  }
+
+  /**
+   * Parses request. Buffer's position and limit are not changed
+   * @param buf buffer
+   * @param start request start
+   * @param end request end (exclusive, w/o CRLF)
+   */
+  public void parse(ByteBuffer buf, int start, int end) {
+    this.buf = buf;
+    this.count = 0;
+    int i = start;
+    while (i < end) {
+      while (i < end && buf.get(i) == (byte) ' ') {
+        i++;
+      }
+      if (i == end) {
+        break;
+      }
+      int tokenStart = i;
+      while (i < end && buf.get(i) != (byte) ' ') {
+        i++;
+      }
+      addToken(tokenStart, i);
+    }
+  }
+
+  private void addToken(int start, int end) {
+    if (count == starts.length) {
+      int n = count * 2;
+      starts = Arrays.copyOf(starts, n);
+      ends = Arrays.copyOf(ends, n);
+      numbers = Arrays.copyOf(numbers, n);
+      numeric = Arrays.copyOf(numeric, n);
+    }
+    starts[count] = start;
+    ends[count] = end;
+    numeric[count] = decode(start, end);
+    count++;
+  }
+
+  /**
+   * Decodes decimal number, result is stored in numbers[count]
+   * @return true if token is a valid number in a long range
+   */
+  private boolean decode(int start, int end) {
+    boolean negative = buf.get(start) == (byte) '-';
+    int i = negative ? start + 1 : start;
+    if (i == end) {
+      return false;
+    }
+    long v = 0;
+    for (; i < end; i++) {
+      int d = buf.get(i) - '0';
+      if (d < 0 || d > 9 || v > (Long.MAX_VALUE - d) / 10) {
+        return false;
+      }
+      v = v * 10 + d;
+    }
+    numbers[count] = negative ? -v : v;
+    return true;
+  }
+
+  /**
+   * Get number of arguments (tokens after a command name)
+   * @return number of arguments
+   */
+  public int getArgCount() {
+    return Math.max(0, count - 1);
+  }
+
+  /**
+   * Is argument a valid decimal number
+   * @param i argument index, starting from 0
+   * @return true if argument is a number
+   */
+  public boolean isNumber(int i) {
+    return numeric[i + 1];
+  }
+
+  /**
+   * Are all arguments valid decimal numbers
+   * @return true if all arguments are numbers
+   */
+  public boolean allNumbers() {
+    for (int i = 1; i < count; i++) {
+      if (!numeric[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get numeric argument
+   * @param i argument index, starting from 0
+   * @return value, must be checked with {@link #isNumber(int)} first
+   */
+  public long getLong(int i) {
+    return numbers[i + 1];
+  }
+
+  /**
+   * Get argument as a string (allocates)
+   * @param i argument index, starting from 0
+   * @return argument
+   */
+  public String getString(int i) {
+    return token(i + 1);
+  }
+
+  /**
+   * Compares command name with a given name
+   * @param name command name bytes (ASCII)
+   * @return true if equals
+   */
+  public boolean isCommand(byte[] name) {
+    return count > 0 && tokenEquals(0, name);
+  }
+
+  /**
+   * Compares argument with a given value. Does not allocate
+   * @param i argument index, starting from 0
+   * @param value value bytes
+   * @return true if equals
+   */
+  public boolean isArgument(int i, byte[] value) {
+    return i + 1 < count && tokenEquals(i + 1, value);
+  }
+
+  /**
+   * Removes argument, arguments which follow are shifted left
+   * @param i argument index, starting from 0
+   */
+  public void removeArgument(int i) {
+    int from = i + 2;
+    int n = count - from;
+    System.arraycopy(starts, from, starts, i + 1, n);
+    System.arraycopy(ends, from, ends, i + 1, n);
+    System.arraycopy(numbers, from, numbers, i + 1, n);
+    System.arraycopy(numeric, from, numeric, i + 1, n);
+    count--;
+  }
+
+  private boolean tokenEquals(int token, byte[] value) {
+    if (ends[token] - starts[token] != value.length) {
+      return false;
+    }
+    int start = starts[token];
+    for (int i = 0; i < value.length; i++) {
+      if (buf.get(start + i) != value[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get command name (allocates)
+   * @return command name or empty string
+   */
+  public String getCommandName() {
+    return count == 0 ? "" : token(0);
+  }
+
+  private String token(int i) {
+    byte[] arr = new byte[ends[i] - starts[i]];
+    for (int k = 0; k < arr.length; k++) {
+      arr[k] = buf.get(starts[i] + k);
+    }
+    return new String(arr, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        sb.append(' ');
+      }
+      sb.append(token(i));
+    }
+    return sb.toString();
+  }
+}
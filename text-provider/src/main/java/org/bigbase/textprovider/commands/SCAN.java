@@ -0,0 +1,173 @@
+package org.bigbase.textprovider.commands;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.PatternSyntaxException;
+
+import org.bigbase.textprovider.Connection;
+import org.bigbase.textprovider.FileIndex;
+import org.bigbase.textprovider.LineScanner;
+
+/**
+ * SCAN command implementation: SCAN <pattern> [from] [to]
+ *
+ * Searches lines of the selected file (from the first to the last line by default)
+ * for a substring or a regular expression (see {@link LineScanner}), a pattern can not
+ * contain spaces (use \s or \x20). Matches are streamed in line order as they are found:
+ *
+ * OK\r\n
+ * <n> <len>\r\n<line>\r\n - for every matching line
+ * END <count> <next>\r\n
+ *
+ * where <next> is the first line which has not been scanned: <to> + 1 when a scan is
+ * complete. A scan stops early after {@link LineScanner#MAX_MATCHES} matches and when
+ * a client sends QUIT or closes a connection.
+ *
+ * ERR is sent if a request or a pattern is not valid, BUSY - while an index is being built
+ * or when too many scans are running.
+ */
+public class SCAN implements Command {
+
+  @Override
+  public void execute(Request req, FileChannel file, FileIndex index,
+      Connection conn) throws IOException {
+    LineScanner scanner = scanner(req, file, index);
+    if (scanner == null) {
+      sendERR(conn);
+      return;
+    }
+    if (index.isBuilding()) {
+      sendBUSY(conn);
+      return;
+    }
+    long[] range = range(req, index);
+    if (range == null) {
+      sendERR(conn);
+      return;
+    }
+    if (!LineScanner.tryStart()) {
+      sendBUSY(conn);
+      return;
+    }
+    try {
+      sendOK(conn);
+      long[] count = new long[1];
+      long next = scanner.scan(range[0], range[1], new LineScanner.Output() {
+        @Override
+        public boolean match(long lineNumber, long offset, long size) {
+          send(conn, ascii(lineNumber + " " + size + "\r\n"));
+          conn.send(file, offset, size);
+          sendCRLF(conn);
+          count[0]++;
+          return true;
+        }
+
+        @Override
+        public boolean chunkDone() throws IOException {
+          // Matches found so far are sent, a scan is parked while a client is slow
+          return conn.awaitWritable();
+        }
+      });
+      send(conn, ascii("END " + count[0] + " " + next + "\r\n"));
+    } finally {
+      LineScanner.finish();
+    }
+  }
+
+  @Override
+  public boolean mayBlock() {
+    // Lines are read from a text file
+    return true;
+  }
+
+  @Override
+  public boolean isLongRunning() {
+    return true;
+  }
+
+  @Override
+  public String executeForTest(String cmd, RandomAccessFile file, FileIndex index)
+      throws IOException {
+    Request req = Request.of(cmd);
+    LineScanner scanner = index == null ? null : scanner(req, file.getChannel(), index);
+    if (scanner == null) {
+      return "ERR\r\n";
+    }
+    if (index.isBuilding()) {
+      return "BUSY\r\n";
+    }
+    long[] range = range(req, index);
+    if (range == null) {
+      return "ERR\r\n";
+    }
+    StringBuilder sb = new StringBuilder("OK\r\n");
+    long[] count = new long[1];
+    long next = scanner.scan(range[0], range[1], new LineScanner.Output() {
+      @Override
+      public boolean match(long lineNumber, long offset, long size) throws IOException {
+        byte[] buf = new byte[(int) size];
+        file.seek(offset);
+        file.readFully(buf);
+        sb.append(lineNumber).append(' ').append(size).append("\r\n");
+        sb.append(new String(buf)).append("\r\n");
+        count[0]++;
+        return true;
+      }
+
+      @Override
+      public boolean chunkDone() {
+        return true;
+      }
+    });
+    return sb.append("END ").append(count[0]).append(' ').append(next).append("\r\n")
+      .toString();
+  }
+
+  /**
+   * Get line range, it is truncated to the last line of a file
+   * @param req parsed request
+   * @param index complete file index
+   * @return first and last line or null if range is invalid
+   */
+  private static long[] range(Request req, FileIndex index) {
+    int n = req.getArgCount();
+    long total = index.getTotalLines();
+    long from = n > 1 ? req.getLong(1) : 1;
+    long to = n > 2 ? Math.min(req.getLong(2), total) : total;
+    if (from < 1 || from > to) {
+      return null;
+    }
+    return new long[] {from, to};
+  }
+
+  /**
+   * Parses request
+   * @param req parsed request
+   * @param file text file
+   * @param index file index
+   * @return scanner or null if request or pattern is invalid
+   */
+  private static LineScanner scanner(Request req, FileChannel file, FileIndex index) {
+    int n = req.getArgCount();
+    if (n < 1 || n > 3) {
+      // we expect SCAN <pattern> [from] [to]
+      return null;
+    }
+    for (int i = 1; i < n; i++) {
+      if (!req.isNumber(i)) {
+        return null;
+      }
+    }
+    try {
+      return new LineScanner(req.getString(0), file, index);
+    } catch (PatternSyntaxException e) {
+      return null;
+    }
+  }
+
+  private static byte[] ascii(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+}
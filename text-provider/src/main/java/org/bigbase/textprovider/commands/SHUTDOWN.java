@@ -2,8 +2,9 @@ package org.bigbase.textprovider.commands;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.channels.SelectionKey;
+import java.nio.channels.FileChannel;
 
+import org.bigbase.textprovider.Connection;
 import org.bigbase.textprovider.FileIndex;
 import org.bigbase.textprovider.Server;
 
@@ -13,20 +14,21 @@ import org.bigbase.textprovider.Server;
 public class SHUTDOWN implements Command {
 
   @Override
-  public void execute(String cmd, RandomAccessFile file, FileIndex index,
-      SelectionKey key) throws IOException {
-    if (cmd.equals("SHUTDOWN")) {
+  public void execute(Request req, FileChannel file, FileIndex index,
+      Connection conn) throws IOException {
+    if (req.getArgCount() == 0) {
       // Call main Server shutdown (this is the asynchronous call)
       Server.shutdown();
     } else {
-      sendERR(key);
+      sendERR(conn);
     }
   }
 
   @Override
   public String executeForTest(String cmd, RandomAccessFile file, FileIndex index) 
       throws IOException {
-    if (cmd.equals("SHUTDOWN")) {
+    Request req = Request.of(cmd);
+    if (req.getCommandName().equals("SHUTDOWN") && req.getArgCount() == 0) {
       return null;//
     } else {
       return "ERR\r\n";
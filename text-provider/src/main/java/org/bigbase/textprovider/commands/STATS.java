@@ -0,0 +1,69 @@
+package org.bigbase.textprovider.commands;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.bigbase.textprovider.Connection;
+import org.bigbase.textprovider.FileIndex;
+import org.bigbase.textprovider.IndexBuilder;
+import org.bigbase.textprovider.LineCache;
+import org.bigbase.textprovider.metrics.Metrics;
+
+/**
+ * STATS command implementation: server metrics
+ *
+ * Response:
+ *
+ * OK <count>\r\n
+ * <name> <value>\r\n - count lines, sorted by name
+ */
+public class STATS implements Command {
+
+  @Override
+  public void execute(Request req, FileChannel file, FileIndex index,
+      Connection conn) throws IOException {
+    if (req.getArgCount() != 0) {
+      sendERR(conn);
+      return;
+    }
+    send(conn, format(index).getBytes(StandardCharsets.US_ASCII));
+  }
+
+  @Override
+  public String executeForTest(String cmd, RandomAccessFile file, FileIndex index)
+      throws IOException {
+    Request req = Request.of(cmd);
+    if (!req.getCommandName().equals("STATS") || req.getArgCount() != 0) {
+      return "ERR\r\n";
+    }
+    return format(index);
+  }
+
+  private String format(FileIndex index) {
+    Map<String, Long> stats = Metrics.snapshot();
+    LineCache cache = index == null ? null : index.getLineCache();
+    if (cache != null) {
+      stats.put("cache.size", cache.size());
+      stats.put("cache.entries", (long) cache.entries());
+      stats.put("cache.hits", cache.getHits());
+      stats.put("cache.misses", cache.getMisses());
+      stats.put("cache.evictions", cache.getEvictions());
+    }
+    IndexBuilder.Progress progress = index == null ? null : index.getBuildProgress();
+    if (progress != null) {
+      stats.put("index.build.lines", progress.getLines());
+      stats.put("index.build.bytes", progress.getBytes());
+      stats.put("index.build.size", progress.getFileSize());
+      stats.put("index.build.remaining.millis", progress.getRemainingMillis());
+    }
+    StringBuilder sb = new StringBuilder();
+    sb.append("OK ").append(stats.size()).append("\r\n");
+    for (Map.Entry<String, Long> e : stats.entrySet()) {
+      sb.append(e.getKey()).append(' ').append(e.getValue()).append("\r\n");
+    }
+    return sb.toString();
+  }
+}
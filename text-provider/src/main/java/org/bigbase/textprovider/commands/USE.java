@@ -0,0 +1,48 @@
+package org.bigbase.textprovider.commands;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import org.bigbase.textprovider.Connection;
+import org.bigbase.textprovider.FileIndex;
+import org.bigbase.textprovider.FileRegistry;
+
+/**
+ * USE command implementation: USE <name>
+ *
+ * Selects a text file (see {@link FileRegistry}) for the following requests of a connection.
+ * Response is OK or ERR if there is no file with a given name.
+ */
+public class USE implements Command {
+
+  @Override
+  public void execute(Request req, FileChannel file, FileIndex index,
+      Connection conn) throws IOException {
+    FileRegistry.TextFile selected = select(req);
+    if (selected == null) {
+      sendERR(conn);
+      return;
+    }
+    conn.setFile(selected);
+    sendOK(conn);
+  }
+
+  @Override
+  public String executeForTest(String cmd, RandomAccessFile file, FileIndex index)
+      throws IOException {
+    Request req = Request.of(cmd);
+    if (!req.getCommandName().equals("USE") || select(req) == null) {
+      return "ERR\r\n";
+    }
+    return "OK\r\n";
+  }
+
+  private FileRegistry.TextFile select(Request req) {
+    if (req.getArgCount() != 1) {
+      // we expect USE <name>
+      return null;
+    }
+    return FileRegistry.lookup(req, 0);
+  }
+}
@@ -0,0 +1,194 @@
+package org.bigbase.textprovider.compress;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bigbase.textprovider.metrics.Metrics;
+
+/**
+ *
+ * Process wide cache of decompressed blocks of block compressed files (see {@link BlockFile}).
+ * Blocks are kept off-heap in fixed size slots ({@link BlockFile#MAX_BLOCK_SIZE}), carved out of
+ * slabs of at most {@link #SLAB_SLOTS} slots (a direct buffer is limited to 2GB), so a cache does
+ * not add to GC pressure however large it is, and are evicted with a CLOCK
+ * (second chance) policy. Cache is shared by all workers and all files: a key is a file
+ * identity and a block number.
+ *
+ * Data is copied out of a slot under the slot's lock, so a slot can be reused by another
+ * block at any time without reference counting.
+ *
+ */
+public final class BlockCache {
+
+  /* Cache size in bytes */
+  private final static long SIZE = Long.getLong("textprovider.blocks.cache.size",
+    64 * 1024 * 1024);
+
+  /* Slot size */
+  final static int SLOT_SIZE = BlockFile.MAX_BLOCK_SIZE;
+
+  /* Maximum number of slots in a slab (256MB) */
+  final static int SLAB_SLOTS = 4096;
+
+  /* Shared instance */
+  private static BlockCache instance;
+
+  /**
+   * Cache slot
+   */
+  private final static class Slot {
+    /* Block data */
+    final ByteBuffer data;
+    /* Cached block key, -1 - free */
+    long key = -1;
+    /* Block length */
+    int length;
+    /* Has slot been read since the clock hand passed it */
+    volatile boolean referenced;
+
+    Slot(ByteBuffer data) {
+      this.data = data;
+    }
+  }
+
+  /**
+   * Loads a decompressed block on a cache miss
+   */
+  interface Loader {
+    /**
+     * Loads block
+     * @param block block number
+     * @return buffer with a decompressed block between 0 and a limit
+     * @throws IOException
+     */
+    ByteBuffer load(long block) throws IOException;
+  }
+
+  /* Key -> slot */
+  private final ConcurrentHashMap<Long, Slot> map = new ConcurrentHashMap<>();
+  /* Slots */
+  private final Slot[] slots;
+  /* Clock hand */
+  private int hand;
+
+  /**
+   * Constructor
+   * @param size cache size in bytes
+   */
+  BlockCache(long size) {
+    this(size, SLAB_SLOTS);
+  }
+
+  /**
+   * Constructor
+   * @param size cache size in bytes, at least one slot
+   * @param slabSlots maximum number of slots in a slab
+   */
+  BlockCache(long size, int slabSlots) {
+    long n = size / SLOT_SIZE;
+    if (n < 1 || n > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(String.format(
+        "block cache size must be between %d and %d bytes", SLOT_SIZE, 
+        (long) Integer.MAX_VALUE * SLOT_SIZE));
+    }
+    this.slots = new Slot[(int) n];
+    ByteBuffer slab = null;
+    for (int i = 0; i < slots.length; i++) {
+      int k = i % slabSlots;
+      if (k == 0) {
+        slab = ByteBuffer.allocateDirect(Math.min(slots.length - i, slabSlots) * SLOT_SIZE);
+      }
+      slab.limit((k + 1) * SLOT_SIZE).position(k * SLOT_SIZE);
+      slots[i] = new Slot(slab.slice());
+    }
+  }
+
+  /**
+   * Get shared cache
+   * @return block cache
+   */
+  static synchronized BlockCache get() {
+    if (instance == null) {
+      instance = new BlockCache(SIZE);
+    }
+    return instance;
+  }
+
+  /**
+   * Get cache key of a block
+   * @param file file identity
+   * @param block block number
+   * @return key
+   */
+  static long key(int file, long block) {
+    return (long) file << 40 | block;
+  }
+
+  /**
+   * Copies data of a decompressed block
+   * @param file file identity
+   * @param block block number
+   * @param offset offset in a block
+   * @param dst destination, filled up to its limit or to the end of a block
+   * @param loader loads block on a miss
+   * @return number of bytes copied
+   * @throws IOException
+   */
+  int read(int file, long block, int offset, ByteBuffer dst, Loader loader) throws IOException {
+    long key = key(file, block);
+    Slot s = map.get(key);
+    if (s != null) {
+      synchronized (s) {
+        if (s.key == key) {
+          s.referenced = true;
+          Metrics.blockCacheHit();
+          return copy(s.data, s.length, offset, dst);
+        }
+      }
+    }
+    Metrics.blockCacheMiss();
+    ByteBuffer data = loader.load(block);
+    int length = data.limit();
+    int n = copy(data, length, offset, dst);
+    put(key, data, length);
+    return n;
+  }
+
+  /**
+   * Caches a block, evicts a block which has not been read since the clock hand
+   * passed it last time
+   */
+  private synchronized void put(long key, ByteBuffer data, int length) {
+    Slot victim;
+    while (true) {
+      victim = slots[hand];
+      hand = (hand + 1) % slots.length;
+      if (!victim.referenced) {
+        break;
+      }
+      victim.referenced = false;
+    }
+    synchronized (victim) {
+      if (victim.key >= 0) {
+        map.remove(victim.key, victim);
+      }
+      victim.data.clear();
+      victim.data.put(data.duplicate().position(0).limit(length));
+      victim.length = length;
+      victim.key = key;
+    }
+    map.put(key, victim);
+  }
+
+  private static int copy(ByteBuffer src, int length, int offset, ByteBuffer dst) {
+    int n = Math.min(length - offset, dst.remaining());
+    if (n <= 0) {
+      return 0;
+    }
+    ByteBuffer slice = src.duplicate();
+    slice.limit(offset + n).position(offset);
+    dst.put(slice);
+    return n;
+  }
+}
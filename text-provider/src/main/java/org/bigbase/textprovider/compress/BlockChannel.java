@@ -0,0 +1,315 @@
+package org.bigbase.textprovider.compress;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * Read-only channel over a block compressed file (see {@link BlockFile}), it reads decompressed
+ * text, so a compressed file is served, indexed and scanned exactly as a text file.
+ * Positional reads are thread safe: blocks are read with positional reads and are cached
+ * in a shared off-heap {@link BlockCache}, a block is decompressed once for all workers.
+ *
+ * A compressed file can not be memory mapped, use {@link #map(FileChannel, long, long)}.
+ * File regions are sent with a copy ({@link #transferTo(long, long, WritableByteChannel)}),
+ * there is no zero-copy transfer of compressed text.
+ *
+ */
+public final class BlockChannel extends FileChannel {
+
+  /* Identity of an open file (path, modification time, size) -> cache file id */
+  private final static ConcurrentHashMap<String, Integer> fileIds = new ConcurrentHashMap<>();
+
+  /* Cache file id sequence */
+  private final static AtomicInteger nextFileId = new AtomicInteger();
+
+  /* Per thread buffers: compressed block and decompressed block */
+  private final static ThreadLocal<byte[][]> buffers = ThreadLocal.withInitial(() ->
+    new byte[][] {new byte[Lz4.maxCompressedLength(BlockFile.MAX_BLOCK_SIZE)],
+      new byte[BlockFile.MAX_BLOCK_SIZE]});
+
+  /* Per thread transfer buffer */
+  private final static ThreadLocal<ByteBuffer> transferBuffer = ThreadLocal.withInitial(() ->
+    ByteBuffer.allocate(BlockFile.MAX_BLOCK_SIZE));
+
+  /* Compressed file */
+  private final FileChannel channel;
+  /* Block size */
+  private final int blockSize;
+  /* Decompressed length */
+  private final long rawLength;
+  /* Block offsets, the last one is an end of blocks */
+  private final long[] directory;
+  /* Cache file id */
+  private final int fileId;
+  /* Shared block cache */
+  private final BlockCache cache;
+  /* Loads blocks on cache misses */
+  private final BlockCache.Loader loader = this::load;
+  /* Channel position */
+  private long position;
+
+  private BlockChannel(Path path, FileChannel channel, ByteBuffer header) throws IOException {
+    this.channel = channel;
+    this.blockSize = header.getInt(8);
+    this.rawLength = header.getLong(16);
+    long directoryOffset = header.getLong(24);
+    int blocks = (int) ((rawLength + blockSize - 1) / blockSize);
+    ByteBuffer buf = ByteBuffer.allocate((blocks + 1) * Long.BYTES);
+    while (buf.hasRemaining()) {
+      if (channel.read(buf, directoryOffset + buf.position()) < 0) {
+        throw new IOException(String.format("Truncated block file %s", path));
+      }
+    }
+    buf.flip();
+    this.directory = new long[blocks + 1];
+    buf.asLongBuffer().get(directory);
+    BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+    String identity = path.toAbsolutePath().normalize() + ":" +
+        attrs.lastModifiedTime().toMillis() + ":" + attrs.size();
+    this.fileId = fileIds.computeIfAbsent(identity, k -> nextFileId.getAndIncrement());
+    this.cache = BlockCache.get();
+  }
+
+  /**
+   * Opens text file for reading
+   * @param path file path
+   * @return block channel if file is block compressed, file channel otherwise
+   * @throws IOException
+   */
+  public static FileChannel open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      ByteBuffer header = BlockFile.readHeader(channel);
+      return header == null ? channel : new BlockChannel(path, channel, header);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Get read-only buffer with a region of a text file: a mapped region of a plain file or
+   * a decompressed copy of a compressed one
+   * @param channel text file
+   * @param position region start
+   * @param size region size
+   * @return buffer (big endian)
+   * @throws IOException
+   */
+  public static ByteBuffer map(FileChannel channel, long position, long size)
+      throws IOException {
+    if (!(channel instanceof BlockChannel)) {
+      return channel.map(MapMode.READ_ONLY, position, size);
+    }
+    ByteBuffer buf = ByteBuffer.allocate((int) size);
+    while (buf.hasRemaining()) {
+      if (channel.read(buf, position + buf.position()) < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+    }
+    return buf.flip().order(ByteOrder.BIG_ENDIAN);
+  }
+
+  /**
+   * Get block size
+   * @return block size
+   */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Get number of blocks
+   * @return number of blocks
+   */
+  public int getBlockCount() {
+    return directory.length - 1;
+  }
+
+  /**
+   * Loads and decompresses a block
+   * @param block block number
+   * @return thread's buffer with a block
+   * @throws IOException
+   */
+  private ByteBuffer load(long block) throws IOException {
+    int b = (int) block;
+    int stored = (int) (directory[b + 1] - directory[b]);
+    int length = (int) Math.min(blockSize, rawLength - block * blockSize);
+    byte[][] bufs = buffers.get();
+    ByteBuffer src = ByteBuffer.wrap(bufs[0], 0, stored);
+    while (src.hasRemaining()) {
+      if (channel.read(src, directory[b] + src.position()) < 0) {
+        throw new IOException("Unexpected end of block file");
+      }
+    }
+    if (stored == length) {
+      // Stored as is
+      return ByteBuffer.wrap(bufs[0], 0, length);
+    }
+    int n = Lz4.decompress(bufs[0], 0, stored, bufs[1], 0, length);
+    if (n != length) {
+      throw new IOException(String.format("Corrupted block %d", block));
+    }
+    return ByteBuffer.wrap(bufs[1], 0, length);
+  }
+
+  @Override
+  public int read(ByteBuffer dst, long position) throws IOException {
+    if (position < 0) {
+      throw new IllegalArgumentException("Negative position");
+    }
+    ensureOpen();
+    if (position >= rawLength) {
+      return -1;
+    }
+    int total = 0;
+    while (dst.hasRemaining() && position < rawLength) {
+      long block = position / blockSize;
+      int n = cache.read(fileId, block, (int) (position - block * blockSize), dst, loader);
+      position += n;
+      total += n;
+    }
+    return total;
+  }
+
+  @Override
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    int n = read(dst, position);
+    if (n > 0) {
+      position += n;
+    }
+    return n;
+  }
+
+  @Override
+  public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+    long total = 0;
+    for (int i = offset; i < offset + length; i++) {
+      int n = read(dsts[i]);
+      if (n < 0) {
+        return total == 0 ? -1 : total;
+      }
+      total += n;
+      if (dsts[i].hasRemaining()) {
+        break;
+      }
+    }
+    return total;
+  }
+
+  @Override
+  public long transferTo(long position, long count, WritableByteChannel target)
+      throws IOException {
+    ByteBuffer buf = transferBuffer.get();
+    long end = Math.min(position + count, rawLength);
+    long sent = 0;
+    while (position + sent < end) {
+      buf.clear().limit((int) Math.min(buf.capacity(), end - position - sent));
+      read(buf, position + sent);
+      buf.flip();
+      int len = buf.remaining();
+      int n = target.write(buf);
+      sent += n;
+      if (n < len) {
+        // Target is full
+        break;
+      }
+    }
+    return sent;
+  }
+
+  @Override
+  public synchronized long position() throws IOException {
+    ensureOpen();
+    return position;
+  }
+
+  @Override
+  public synchronized FileChannel position(long newPosition) throws IOException {
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("Negative position");
+    }
+    ensureOpen();
+    position = newPosition;
+    return this;
+  }
+
+  @Override
+  public long size() throws IOException {
+    ensureOpen();
+    return rawLength;
+  }
+
+  @Override
+  public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+    // Callers which map text files use map(FileChannel, long, long), which reads it instead
+    throw new IOException("Block compressed file can not be mapped");
+  }
+
+  @Override
+  public int write(ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public long write(ByteBuffer[] srcs, int offset, int length) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public int write(ByteBuffer src, long position) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public FileChannel truncate(long size) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public long transferFrom(ReadableByteChannel src, long position, long count) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public void force(boolean metaData) {
+    // Read-only
+  }
+
+  @Override
+  public FileLock lock(long position, long size, boolean shared) throws IOException {
+    return channel.lock(position, size, shared);
+  }
+
+  @Override
+  public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+    return channel.tryLock(position, size, shared);
+  }
+
+  @Override
+  protected void implCloseChannel() throws IOException {
+    channel.close();
+  }
+
+  private void ensureOpen() throws IOException {
+    if (!isOpen()) {
+      throw new ClosedChannelException();
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package org.bigbase.textprovider.compress;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *
+ * Block compressed text file. A text is split into blocks of a fixed (raw) size, every
+ * block is compressed independently, so any byte range is read by decompressing only
+ * the blocks it spans. A raw offset of a line maps to a block (offset / block size) and
+ * an offset inside the block, so a line index of a compressed file is the same as
+ * of the text itself (see {@link BlockChannel}).
+ *
+ * File format:
+ *
+ * Header ({@link #HEADER_SIZE} bytes): magic, version, block size, codec, raw text length,
+ * directory offset.
+ *
+ * Blocks: compressed data, a block which does not compress is stored as is (its stored
+ * size is equal to its raw size).
+ *
+ * Directory: offsets of all blocks followed by the directory offset (8 bytes each), so
+ * a stored size of a block is a difference of two adjacent offsets.
+ *
+ */
+public final class BlockFile {
+  private static final Logger log = LogManager.getLogger(BlockFile.class);
+
+  /* File magic: 'SBLK' */
+  final static int MAGIC = 0x53424c4b;
+
+  /* Format version */
+  final static int VERSION = 1;
+
+  /* Header size */
+  final static int HEADER_SIZE = 32;
+
+  /* LZ4 block codec */
+  final static int CODEC_LZ4 = 1;
+
+  /* Default block size - 64KB */
+  public final static int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+  /* Minimum block size */
+  public final static int MIN_BLOCK_SIZE = 4 * 1024;
+
+  /* Maximum block size, it is a block cache slot size */
+  public final static int MAX_BLOCK_SIZE = 64 * 1024;
+
+  private BlockFile() {
+  }
+
+  /**
+   * Is file block compressed
+   * @param path file path
+   * @return true if file starts with a block file magic
+   * @throws IOException
+   */
+  public static boolean isCompressed(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return readHeader(channel) != null;
+    }
+  }
+
+  /**
+   * Reads and validates file header
+   * @param channel file channel
+   * @return header or null if file is not a valid block file
+   * @throws IOException
+   */
+  static ByteBuffer readHeader(FileChannel channel) throws IOException {
+    if (channel.size() < HEADER_SIZE) {
+      return null;
+    }
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (header.hasRemaining()) {
+      if (channel.read(header, header.position()) < 0) {
+        return null;
+      }
+    }
+    int blockSize = header.getInt(8);
+    if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION ||
+        header.getInt(12) != CODEC_LZ4 || blockSize < MIN_BLOCK_SIZE ||
+        blockSize > MAX_BLOCK_SIZE) {
+      return null;
+    }
+    return header;
+  }
+
+  /**
+   * Compresses a text file
+   * @param textPath text file path
+   * @param path block file path
+   * @param blockSize block size
+   * @return block file size
+   * @throws IOException
+   */
+  public static long compress(Path textPath, Path path, int blockSize) throws IOException {
+    if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+      throw new IllegalArgumentException(String.format("Block size must be in [%d, %d]",
+        MIN_BLOCK_SIZE, MAX_BLOCK_SIZE));
+    }
+    long startTime = System.nanoTime();
+    long rawLength;
+    long position = HEADER_SIZE;
+    long[] offsets;
+    byte[] raw = new byte[blockSize];
+    byte[] compressed = new byte[Lz4.maxCompressedLength(blockSize)];
+    try (FileChannel in = FileChannel.open(textPath, StandardOpenOption.READ);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          Files.newOutputStream(path), 1 << 16))) {
+      rawLength = in.size();
+      int blocks = (int) ((rawLength + blockSize - 1) / blockSize);
+      offsets = new long[blocks + 1];
+      out.write(new byte[HEADER_SIZE]);
+      for (int i = 0; i < blocks; i++) {
+        long start = (long) i * blockSize;
+        ByteBuffer buf = ByteBuffer.wrap(raw, 0, (int) Math.min(blockSize, rawLength - start));
+        while (buf.hasRemaining()) {
+          if (in.read(buf, start + buf.position()) < 0) {
+            throw new IOException("Unexpected end of file");
+          }
+        }
+        int length = buf.position();
+        int size = Lz4.compress(raw, 0, length, compressed, 0);
+        offsets[i] = position;
+        if (size < length) {
+          out.write(compressed, 0, size);
+          position += size;
+        } else {
+          // Stored as is
+          out.write(raw, 0, length);
+          position += length;
+        }
+      }
+      offsets[blocks] = position;
+      for (long offset : offsets) {
+        out.writeLong(offset);
+      }
+    }
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(blockSize);
+    header.putInt(CODEC_LZ4);
+    header.putLong(rawLength);
+    header.putLong(position);
+    header.flip();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      while (header.hasRemaining()) {
+        channel.write(header, header.position());
+      }
+      channel.force(true);
+    }
+    long size = position + (long) offsets.length * Long.BYTES;
+    log.info("Compressed {} in {} ms, raw={} compressed={} ratio={}",
+      textPath.toAbsolutePath(), (System.nanoTime() - startTime) / 1000000, rawLength, size,
+      String.format("%.2f", (double) rawLength / Math.max(1, size)));
+    return size;
+  }
+}
@@ -0,0 +1,212 @@
+package org.bigbase.textprovider.compress;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ *
+ * LZ4 block format codec (no frame format, no checksums). A block is a sequence of
+ * (literals, match) pairs: a token byte (literal length, match length - 4, 4 bits each,
+ * 15 means the length continues in the following bytes), literals, a 2 byte little endian
+ * match offset and the rest of a match length. The last sequence has literals only.
+ *
+ * Compressor is a greedy single pass with a hash table of 4 byte sequences, it is used
+ * offline (see {@link BlockFile#compress}), decompressor is on the read path.
+ *
+ */
+public final class Lz4 {
+
+  /* Minimum match length */
+  private final static int MIN_MATCH = 4;
+
+  /* A match must start at least this number of bytes before the end of a block */
+  private final static int MF_LIMIT = 12;
+
+  /* The last bytes of a block are always literals */
+  private final static int LAST_LITERALS = 5;
+
+  /* Maximum match offset */
+  private final static int MAX_OFFSET = 65535;
+
+  /* Hash table size (log2) */
+  private final static int HASH_LOG = 14;
+
+  private Lz4() {
+  }
+
+  /**
+   * Get maximum compressed size
+   * @param length source length
+   * @return maximum size of compressed data
+   */
+  public static int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  /**
+   * Compresses a block
+   * @param src source
+   * @param srcOff source offset
+   * @param srcLen source length
+   * @param dst destination, at least {@link #maxCompressedLength(int)} bytes after dstOff
+   * @param dstOff destination offset
+   * @return compressed length
+   */
+  public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+    int srcEnd = srcOff + srcLen;
+    int anchor = srcOff;
+    int op = dstOff;
+    if (srcLen > MF_LIMIT) {
+      int[] table = new int[1 << HASH_LOG];
+      Arrays.fill(table, -1);
+      int mfLimit = srcEnd - MF_LIMIT;
+      int matchLimit = srcEnd - LAST_LITERALS;
+      int ip = srcOff;
+      while (ip < mfLimit) {
+        int sequence = readInt(src, ip);
+        int h = hash(sequence);
+        int ref = table[h];
+        table[h] = ip;
+        if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+          ip++;
+          continue;
+        }
+        // Extend a match backwards
+        while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+          ip--;
+          ref--;
+        }
+        int length = MIN_MATCH;
+        while (ip + length < matchLimit && src[ip + length] == src[ref + length]) {
+          length++;
+        }
+        op = writeSequence(src, anchor, ip - anchor, ip - ref, length, dst, op);
+        ip += length;
+        anchor = ip;
+      }
+    }
+    op = writeSequence(src, anchor, srcEnd - anchor, 0, 0, dst, op);
+    return op - dstOff;
+  }
+
+  /**
+   * Decompresses a block
+   * @param src compressed data
+   * @param srcOff compressed data offset
+   * @param srcLen compressed data length
+   * @param dst destination
+   * @param dstOff destination offset
+   * @param dstLen maximum decompressed length
+   * @return decompressed length
+   * @throws IOException if data is corrupted
+   */
+  public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff,
+      int dstLen) throws IOException {
+    int ip = srcOff;
+    int srcEnd = srcOff + srcLen;
+    int op = dstOff;
+    int dstEnd = dstOff + dstLen;
+    while (ip < srcEnd) {
+      int token = src[ip++] & 0xff;
+      int literals = token >>> 4;
+      if (literals == 15) {
+        int b;
+        do {
+          if (ip == srcEnd) {
+            throw corrupted();
+          }
+          b = src[ip++] & 0xff;
+          literals += b;
+        } while (b == 255);
+      }
+      if (literals > srcEnd - ip || literals > dstEnd - op) {
+        throw corrupted();
+      }
+      System.arraycopy(src, ip, dst, op, literals);
+      ip += literals;
+      op += literals;
+      if (ip == srcEnd) {
+        // The last sequence
+        break;
+      }
+      if (srcEnd - ip < 2) {
+        throw corrupted();
+      }
+      int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+      ip += 2;
+      if (offset == 0 || offset > op - dstOff) {
+        throw corrupted();
+      }
+      int length = token & 0x0f;
+      if (length == 15) {
+        int b;
+        do {
+          if (ip == srcEnd) {
+            throw corrupted();
+          }
+          b = src[ip++] & 0xff;
+          length += b;
+        } while (b == 255);
+      }
+      length += MIN_MATCH;
+      if (length > dstEnd - op) {
+        throw corrupted();
+      }
+      int ref = op - offset;
+      if (offset >= length) {
+        System.arraycopy(dst, ref, dst, op, length);
+        op += length;
+      } else {
+        // Overlapping match repeats a pattern
+        for (int i = 0; i < length; i++) {
+          dst[op++] = dst[ref++];
+        }
+      }
+    }
+    return op - dstOff;
+  }
+
+  private static int writeSequence(byte[] src, int literalsOff, int literals, int offset,
+      int matchLength, byte[] dst, int op) {
+    int tokenPos = op++;
+    int token = Math.min(literals, 15) << 4;
+    if (literals >= 15) {
+      op = writeLength(literals - 15, dst, op);
+    }
+    System.arraycopy(src, literalsOff, dst, op, literals);
+    op += literals;
+    if (matchLength > 0) {
+      dst[op++] = (byte) offset;
+      dst[op++] = (byte) (offset >>> 8);
+      int length = matchLength - MIN_MATCH;
+      token |= Math.min(length, 15);
+      if (length >= 15) {
+        op = writeLength(length - 15, dst, op);
+      }
+    }
+    dst[tokenPos] = (byte) token;
+    return op;
+  }
+
+  private static int writeLength(int length, byte[] dst, int op) {
+    while (length >= 255) {
+      dst[op++] = (byte) 255;
+      length -= 255;
+    }
+    dst[op++] = (byte) length;
+    return op;
+  }
+
+  private static int readInt(byte[] buf, int pos) {
+    return (buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8 | (buf[pos + 2] & 0xff) << 16 |
+        (buf[pos + 3] & 0xff) << 24;
+  }
+
+  private static int hash(int sequence) {
+    return (sequence * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+  private static IOException corrupted() {
+    return new IOException("Corrupted LZ4 block");
+  }
+}
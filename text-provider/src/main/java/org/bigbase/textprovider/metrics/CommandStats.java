@@ -0,0 +1,34 @@
+package org.bigbase.textprovider.metrics;
+
+/**
+ *
+ * Per-command metrics: number of executions and execution time (nanoseconds).
+ * Execution time covers request processing up to queuing of a response, 
+ * sending responses is measured separately (bytes written / transferred).
+ *
+ */
+public class CommandStats {
+
+  private final String name;
+  private final StripedHistogram latency = new StripedHistogram();
+
+  CommandStats(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Records command execution
+   * @param nanos execution time
+   */
+  public void record(long nanos) {
+    latency.record(nanos);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public StripedHistogram getLatency() {
+    return latency;
+  }
+}
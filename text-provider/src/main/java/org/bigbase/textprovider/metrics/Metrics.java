@@ -0,0 +1,344 @@
+package org.bigbase.textprovider.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bigbase.textprovider.FileRegistry;
+
+/**
+ *
+ * Process wide server metrics. All counters and histograms are striped 
+ * ({@link LongAdder} based), so recording is lock-free and does not become a 
+ * contention point. Metrics are exposed by STATS command and over JMX.
+ *
+ * Index lookups are counted always and timed for one lookup of {@link #LOOKUP_SAMPLING}, 
+ * because a lookup itself takes tens of nanoseconds.
+ *
+ */
+public final class Metrics implements MetricsMXBean {
+  private final static Logger log = LogManager.getLogger(Metrics.class);
+
+  /* JMX object name */
+  public final static String OBJECT_NAME = "org.bigbase.textprovider:type=Metrics";
+
+  /* One of LOOKUP_SAMPLING index lookups is timed */
+  public final static int LOOKUP_SAMPLING = 16;
+
+  /* Command name -> command stats */
+  private final static ConcurrentHashMap<String, CommandStats> commands = 
+      new ConcurrentHashMap<>();
+
+  /* Command class -> command stats, fast lookup on a hot path */
+  private final static ClassValue<CommandStats> commandStats = new ClassValue<CommandStats>() {
+    @Override
+    protected CommandStats computeValue(Class<?> type) {
+      return commands.computeIfAbsent(type.getSimpleName(), CommandStats::new);
+    }
+  };
+
+  private final static LongAdder activeConnections = new LongAdder();
+  private final static LongAdder totalConnections = new LongAdder();
+  private final static LongAdder bytesTransferred = new LongAdder();
+  private final static LongAdder bytesWritten = new LongAdder();
+  private final static LongAdder socketWrites = new LongAdder();
+  private final static LongAdder indexLookups = new LongAdder();
+  private final static LongAdder rejected = new LongAdder();
+  private final static LongAdder reloads = new LongAdder();
+  private final static LongAdder shedInFlight = new LongAdder();
+  private final static LongAdder shedOverload = new LongAdder();
+  private final static LongAdder parkedConnections = new LongAdder();
+  private final static LongAdder parkedTotal = new LongAdder();
+  private final static LongAdder readaheadHits = new LongAdder();
+  private final static LongAdder readaheadBytes = new LongAdder();
+  private final static LongAdder scans = new LongAdder();
+  private final static LongAdder scansCancelled = new LongAdder();
+  private final static LongAdder scannedBytes = new LongAdder();
+  private final static LongAdder blockCacheHits = new LongAdder();
+  private final static LongAdder blockCacheMisses = new LongAdder();
+  private final static StripedHistogram indexLookupTime = new StripedHistogram();
+  private final static StripedHistogram loopIterationTime = new StripedHistogram();
+
+  /* Worker pool, for queue depth and active workers */
+  private static volatile ThreadPoolExecutor pool;
+
+  private Metrics() {
+  }
+
+  /**
+   * Get stats of a command
+   * @param command command instance
+   * @return command stats
+   */
+  public static CommandStats forCommand(Object command) {
+    return commandStats.get(command.getClass());
+  }
+
+  public static void connectionOpened() {
+    activeConnections.increment();
+    totalConnections.increment();
+  }
+
+  public static void connectionClosed() {
+    activeConnections.decrement();
+  }
+
+  /**
+   * Records a zero-copy file transfer (one socket write)
+   * @param bytes number of bytes
+   */
+  public static void transferred(long bytes) {
+    bytesTransferred.add(bytes);
+    socketWrites.increment();
+  }
+
+  /**
+   * Records a write of memory buffers (one socket write)
+   * @param bytes number of bytes
+   */
+  public static void written(long bytes) {
+    bytesWritten.add(bytes);
+    socketWrites.increment();
+  }
+
+  /**
+   * Should index lookup be timed
+   * @return true for a sampled lookup
+   */
+  public static boolean sampleLookup() {
+    indexLookups.increment();
+    return ThreadLocalRandom.current().nextInt(LOOKUP_SAMPLING) == 0;
+  }
+
+  /**
+   * Records sampled index lookup time
+   * @param nanos lookup time
+   */
+  public static void indexLookup(long nanos) {
+    indexLookupTime.record(nanos);
+  }
+
+  /**
+   * Records reload of a replaced text file (new generation)
+   */
+  public static void fileReloaded() {
+    reloads.increment();
+  }
+
+  /**
+   * Records request rejected (BUSY) because a client does not read responses in flight
+   */
+  public static void shedInFlight() {
+    shedInFlight.increment();
+  }
+
+  /**
+   * Records request rejected (BUSY) because worker pool has been saturated for too long
+   */
+  public static void shedOverload() {
+    shedOverload.increment();
+  }
+
+  /**
+   * Records connection parked until worker pool has capacity
+   */
+  public static void connectionParked() {
+    parkedConnections.increment();
+    parkedTotal.increment();
+  }
+
+  /**
+   * Records parked connection resumed (or closed)
+   */
+  public static void connectionUnparked() {
+    parkedConnections.decrement();
+  }
+
+  /**
+   * Records line served from a readahead buffer
+   */
+  public static void readaheadHit() {
+    readaheadHits.increment();
+  }
+
+  /**
+   * Records bytes read ahead
+   * @param bytes number of bytes
+   */
+  public static void readahead(long bytes) {
+    readaheadBytes.add(bytes);
+  }
+
+  /**
+   * Records started scan (SCAN)
+   */
+  public static void scanStarted() {
+    scans.increment();
+  }
+
+  /**
+   * Records scan stopped by a client
+   */
+  public static void scanCancelled() {
+    scansCancelled.increment();
+  }
+
+  /**
+   * Records bytes scanned
+   * @param bytes number of bytes
+   */
+  public static void scanned(long bytes) {
+    scannedBytes.add(bytes);
+  }
+
+  /**
+   * Records block of a compressed file read from a block cache
+   */
+  public static void blockCacheHit() {
+    blockCacheHits.increment();
+  }
+
+  /**
+   * Records block of a compressed file read and decompressed on a cache miss
+   */
+  public static void blockCacheMiss() {
+    blockCacheMisses.increment();
+  }
+
+  /**
+   * Records event loop iteration time (without waiting in select)
+   * @param nanos iteration time
+   */
+  public static void loopIteration(long nanos) {
+    loopIterationTime.record(nanos);
+  }
+
+  /**
+   * Sets worker pool to report its queue depth and active workers
+   * @param executor worker pool
+   */
+  public static void setWorkerPool(ThreadPoolExecutor executor) {
+    pool = executor;
+  }
+
+  /**
+   * Rejected execution handler of a worker pool: counts rejected submissions 
+   * and throws RejectedExecutionException, a submitter applies backpressure
+   * @return handler
+   */
+  public static RejectedExecutionHandler rejectedExecutionHandler() {
+    return new ThreadPoolExecutor.AbortPolicy() {
+      @Override
+      public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+        rejected.increment();
+        super.rejectedExecution(r, e);
+      }
+    };
+  }
+
+  /**
+   * Registers metrics MXBean with a platform MBean server
+   */
+  public static void registerMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(new Metrics(), name);
+      }
+    } catch (JMException e) {
+      log.error("[{}] Failed to register metrics MBean", Thread.currentThread().getName(), e);
+    }
+  }
+
+  /**
+   * Snapshot of all metrics. Latencies are in microseconds, index lookup time is 
+   * in nanoseconds
+   * @return metric name -> value, sorted by name
+   */
+  public static Map<String, Long> snapshot() {
+    Map<String, Long> stats = new TreeMap<>();
+    stats.put("connections.active", activeConnections.sum());
+    stats.put("connections.total", totalConnections.sum());
+    stats.put("bytes.transferred", bytesTransferred.sum());
+    stats.put("bytes.written", bytesWritten.sum());
+    stats.put("socket.writes", socketWrites.sum());
+    ThreadPoolExecutor executor = pool;
+    stats.put("workers.queue", executor == null ? 0L : executor.getQueue().size());
+    stats.put("workers.active", executor == null ? 0L : executor.getActiveCount());
+    stats.put("workers.rejected", rejected.sum());
+    stats.put("files.open", (long) FileRegistry.getOpenCount());
+    stats.put("files.reloads", reloads.sum());
+    stats.put("requests.shed.inflight", shedInFlight.sum());
+    stats.put("requests.shed.overload", shedOverload.sum());
+    stats.put("connections.parked", parkedConnections.sum());
+    stats.put("connections.parked.total", parkedTotal.sum());
+    stats.put("readahead.hits", readaheadHits.sum());
+    stats.put("readahead.bytes", readaheadBytes.sum());
+    stats.put("scans", scans.sum());
+    stats.put("scans.cancelled", scansCancelled.sum());
+    stats.put("scans.bytes", scannedBytes.sum());
+    stats.put("blocks.cache.hits", blockCacheHits.sum());
+    stats.put("blocks.cache.misses", blockCacheMisses.sum());
+    stats.put("index.lookups", indexLookups.sum());
+    putHistogram(stats, "index.lookup.nanos", indexLookupTime.snapshot(), 1);
+    putHistogram(stats, "loop.iteration.micros", loopIterationTime.snapshot(), 1000);
+    for (CommandStats cs : commands.values()) {
+      StripedHistogram.Snapshot s = cs.getLatency().snapshot();
+      stats.put("command." + cs.getName() + ".count", s.getCount());
+      putHistogram(stats, "command." + cs.getName() + ".micros", s, 1000);
+    }
+    return stats;
+  }
+
+  private static void putHistogram(Map<String, Long> stats, String name,
+      StripedHistogram.Snapshot s, long scale) {
+    stats.put(name + ".mean", s.getMean() / scale);
+    stats.put(name + ".p50", s.getValueAtPercentile(50) / scale);
+    stats.put(name + ".p99", s.getValueAtPercentile(99) / scale);
+    stats.put(name + ".p999", s.getValueAtPercentile(99.9) / scale);
+    stats.put(name + ".max", s.getMax() / scale);
+  }
+
+  @Override
+  public Map<String, Long> getStats() {
+    return snapshot();
+  }
+
+  @Override
+  public long getActiveConnections() {
+    return activeConnections.sum();
+  }
+
+  @Override
+  public long getWorkerQueueDepth() {
+    ThreadPoolExecutor executor = pool;
+    return executor == null ? 0 : executor.getQueue().size();
+  }
+
+  @Override
+  public long getRejectedSubmissions() {
+    return rejected.sum();
+  }
+
+  @Override
+  public long getBytesTransferred() {
+    return bytesTransferred.sum();
+  }
+
+  @Override
+  public long getBytesWritten() {
+    return bytesWritten.sum();
+  }
+}
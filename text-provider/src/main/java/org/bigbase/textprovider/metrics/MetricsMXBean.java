@@ -0,0 +1,27 @@
+package org.bigbase.textprovider.metrics;
+
+import java.util.Map;
+
+/**
+ *
+ * Server metrics exposed over JMX (org.bigbase.textprovider:type=Metrics)
+ *
+ */
+public interface MetricsMXBean {
+
+  /**
+   * All metrics, the same as returned by STATS command
+   * @return metric name -> value
+   */
+  public Map<String, Long> getStats();
+
+  public long getActiveConnections();
+
+  public long getWorkerQueueDepth();
+
+  public long getRejectedSubmissions();
+
+  public long getBytesTransferred();
+
+  public long getBytesWritten();
+}
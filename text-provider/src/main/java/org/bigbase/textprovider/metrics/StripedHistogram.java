@@ -0,0 +1,138 @@
+package org.bigbase.textprovider.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Concurrent log-linear histogram. Every bucket is a striped counter ({@link LongAdder}),
+ * so recording is lock-free and threads do not contend on the same cache line.
+ * Values below 16 are counted exactly, larger values are counted in buckets which keep
+ * 4 significant bits (8 buckets per power of two, relative error below 12.5%).
+ *
+ */
+public class StripedHistogram {
+
+  /* Number of significant bits of a bucketed value */
+  private final static int PRECISION_BITS = 4;
+  /* Values below this are counted exactly */
+  private final static int LINEAR_COUNT = 1 << PRECISION_BITS;
+  /* Number of buckets in every power of two range */
+  private final static int SUB_BUCKETS = LINEAR_COUNT / 2;
+  /* Total number of buckets */
+  private final static int BUCKETS = LINEAR_COUNT + (64 - PRECISION_BITS) * SUB_BUCKETS;
+
+  private final LongAdder[] buckets = new LongAdder[BUCKETS];
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  public StripedHistogram() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Records value
+   * @param value value, negative values are recorded as 0
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    buckets[index(value)].increment();
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  /**
+   * Get number of recorded values
+   * @return count
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * Takes a snapshot. Concurrent updates may be partially visible
+   * @return snapshot
+   */
+  public Snapshot snapshot() {
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets[i].sum();
+      total += counts[i];
+    }
+    return new Snapshot(counts, total, sum.sum(), max.get());
+  }
+
+  static int index(long value) {
+    if (value < LINEAR_COUNT) {
+      return (int) value;
+    }
+    int shift = 64 - Long.numberOfLeadingZeros(value) - PRECISION_BITS;
+    int sub = (int) (value >>> shift) - SUB_BUCKETS;
+    return LINEAR_COUNT + (shift - 1) * SUB_BUCKETS + sub;
+  }
+
+  static long highestValue(int index) {
+    if (index < LINEAR_COUNT) {
+      return index;
+    }
+    int shift = (index - LINEAR_COUNT) / SUB_BUCKETS + 1;
+    long sub = (index - LINEAR_COUNT) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  /**
+   * Histogram snapshot
+   */
+  public static class Snapshot {
+    private final long[] counts;
+    private final long total;
+    private final long sum;
+    private final long max;
+
+    Snapshot(long[] counts, long total, long sum, long max) {
+      this.counts = counts;
+      this.total = total;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    public long getCount() {
+      return total;
+    }
+
+    public long getMax() {
+      return max;
+    }
+
+    public long getMean() {
+      return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * Get value at a percentile
+     * @param percentile percentile (0 - 100)
+     * @return highest value equivalent to a value at a given percentile
+     */
+    public long getValueAtPercentile(double percentile) {
+      if (total == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(max, highestValue(i));
+        }
+      }
+      return max;
+    }
+  }
+}
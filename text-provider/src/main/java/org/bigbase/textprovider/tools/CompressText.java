@@ -0,0 +1,36 @@
+package org.bigbase.textprovider.tools;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.bigbase.textprovider.compress.BlockFile;
+
+/**
+ *
+ * Compresses a text file into a block compressed file (see {@link BlockFile}), which
+ * is served as is: the server detects the format and reads text decompressed.
+ *
+ * Usage: CompressText <text file> <output file> [block size, 65536]
+ *
+ */
+public class CompressText {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2 || args.length > 3) {
+      System.out.println("Usage: CompressText <text file> <output file> " +
+          "[block size, " + BlockFile.DEFAULT_BLOCK_SIZE + "]");
+      System.exit(-1);
+    }
+    int blockSize = BlockFile.DEFAULT_BLOCK_SIZE;
+    try {
+      if (args.length == 3) {
+        blockSize = Integer.parseInt(args[2]);
+      }
+      long size = BlockFile.compress(Path.of(args[0]), Path.of(args[1]), blockSize);
+      System.out.println(String.format("%s: %d bytes", args[1], size));
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+      System.exit(-1);
+    }
+  }
+}
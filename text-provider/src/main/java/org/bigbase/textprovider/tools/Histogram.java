@@ -0,0 +1,148 @@
+package org.bigbase.textprovider.tools;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Log-linear latency histogram (HdrHistogram style): values below 2048 are counted
+ * exactly, larger values are counted in buckets which keep 11 significant bits, so
+ * relative error of a reported value is below 0.1%. Recording is O(1) and does not
+ * allocate. Histogram is not thread safe, every load generator thread records
+ * into its own instance, instances are merged for a report.
+ *
+ */
+public class Histogram {
+
+  /* Number of significant bits of a bucketed value */
+  private final static int PRECISION_BITS = 11;
+  /* Values below this are counted exactly */
+  private final static int LINEAR_COUNT = 1 << PRECISION_BITS;
+  /* Number of sub-buckets in every power of two range */
+  private final static int SUB_BUCKETS = LINEAR_COUNT / 2;
+
+  private final long[] counts = new long[LINEAR_COUNT + (64 - PRECISION_BITS) * SUB_BUCKETS];
+  private long totalCount;
+  private long min = Long.MAX_VALUE;
+  private long max;
+  private double sum;
+
+  /**
+   * Records value
+   * @param value non-negative value
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts[index(value)]++;
+    totalCount++;
+    sum += value;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  /**
+   * Records value and corrects coordinated omission: when value is larger than
+   * an expected interval between requests, requests which would have been sent
+   * during this time (but were not, because a client was waiting) are recorded with
+   * linearly decreasing values
+   * @param value value
+   * @param expectedInterval expected interval between requests, 0 - no correction
+   */
+  public void recordWithExpectedInterval(long value, long expectedInterval) {
+    record(value);
+    if (expectedInterval <= 0) {
+      return;
+    }
+    for (long missing = value - expectedInterval; missing >= expectedInterval;
+        missing -= expectedInterval) {
+      record(missing);
+    }
+  }
+
+  /**
+   * Adds all values of other histogram to this one
+   * @param other histogram
+   */
+  public void add(Histogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+    sum += other.sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * Clears histogram
+   */
+  public void reset() {
+    Arrays.fill(counts, 0);
+    totalCount = 0;
+    sum = 0;
+    min = Long.MAX_VALUE;
+    max = 0;
+  }
+
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  public long getMin() {
+    return totalCount == 0 ? 0 : min;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public double getMean() {
+    return totalCount == 0 ? 0 : sum / totalCount;
+  }
+
+  /**
+   * Get value at a percentile
+   * @param percentile percentile (0 - 100)
+   * @return highest value equivalent to a value at a given percentile
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(max, highestValue(i));
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Bucket index of a value
+   */
+  static int index(long value) {
+    if (value < LINEAR_COUNT) {
+      return (int) value;
+    }
+    // shift keeps PRECISION_BITS most significant bits
+    int shift = 64 - Long.numberOfLeadingZeros(value) - PRECISION_BITS;
+    int sub = (int) (value >>> shift) - SUB_BUCKETS;
+    return LINEAR_COUNT + (shift - 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * Highest value which belongs to a bucket
+   */
+  static long highestValue(int index) {
+    if (index < LINEAR_COUNT) {
+      return index;
+    }
+    int shift = (index - LINEAR_COUNT) / SUB_BUCKETS + 1;
+    long sub = (index - LINEAR_COUNT) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,173 @@
+package org.bigbase.textprovider.tools;
+
+import java.util.Random;
+
+/**
+ *
+ * Line number (key) generators of a load generator. Instances are not thread safe,
+ * every connection has its own generator.
+ *
+ */
+public abstract class KeyGenerator {
+
+  /**
+   * Key distribution
+   */
+  public static enum Distribution {
+    UNIFORM, ZIPF, SEQUENTIAL;
+  }
+
+  /* Number of lines: keys are in [1, lines] */
+  protected final long lines;
+  protected final Random random;
+
+  protected KeyGenerator(long lines, long seed) {
+    if (lines <= 0) {
+      throw new IllegalArgumentException("number of lines must be positive");
+    }
+    this.lines = lines;
+    this.random = new Random(seed);
+  }
+
+  /**
+   * Next key
+   * @return line number in [1, lines]
+   */
+  public abstract long next();
+
+  /**
+   * Creates generator
+   * @param distribution key distribution
+   * @param lines number of lines
+   * @param zipfExponent Zipf exponent (zipf distribution)
+   * @param seed random seed, sequential generators start from a line which depends on a seed
+   * @return key generator
+   */
+  public static KeyGenerator create(Distribution distribution, long lines, double zipfExponent,
+      long seed) {
+    switch (distribution) {
+      case ZIPF:
+        return new Zipf(lines, zipfExponent, seed);
+      case SEQUENTIAL:
+        return new Sequential(lines, seed);
+      default:
+        return new Uniform(lines, seed);
+    }
+  }
+
+  static class Uniform extends KeyGenerator {
+
+    Uniform(long lines, long seed) {
+      super(lines, seed);
+    }
+
+    @Override
+    public long next() {
+      return 1 + (long) (random.nextDouble() * lines);
+    }
+  }
+
+  static class Sequential extends KeyGenerator {
+    private long current;
+
+    Sequential(long lines, long seed) {
+      super(lines, seed);
+      this.current = (long) (new Random(seed).nextDouble() * lines);
+    }
+
+    @Override
+    public long next() {
+      long key = current + 1;
+      current = key == lines ? 0 : key;
+      return key;
+    }
+  }
+
+  /**
+   * Zipf distribution, rejection-inversion sampling (W. Hormann, G. Derflinger,
+   * "Rejection-inversion to generate variates from monotone discrete distributions"):
+   * O(1) setup and sampling for any number of lines. Rank k has probability
+   * proportional to 1 / k^exponent. Ranks are scattered over a file, so hot lines
+   * are not all at the beginning of a file.
+   */
+  static class Zipf extends KeyGenerator {
+    private final double exponent;
+    private final double hIntegralX1;
+    private final double hIntegralLines;
+    private final double s;
+
+    Zipf(long lines, double exponent, long seed) {
+      super(lines, seed);
+      if (exponent <= 0) {
+        throw new IllegalArgumentException("Zipf exponent must be positive");
+      }
+      this.exponent = exponent;
+      this.hIntegralX1 = hIntegral(1.5) - 1;
+      this.hIntegralLines = hIntegral(lines + 0.5);
+      this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    @Override
+    public long next() {
+      return scatter(rank());
+    }
+
+    /**
+     * Zipf rank
+     * @return rank in [1, lines]
+     */
+    long rank() {
+      while (true) {
+        double u = hIntegralLines + random.nextDouble() * (hIntegralX1 - hIntegralLines);
+        double x = hIntegralInverse(u);
+        long k = (long) (x + 0.5);
+        if (k < 1) {
+          k = 1;
+        } else if (k > lines) {
+          k = lines;
+        }
+        if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+          return k;
+        }
+      }
+    }
+
+    private long scatter(long rank) {
+      return 1 + Long.remainderUnsigned(rank * 0x9E3779B97F4A7C15L, lines);
+    }
+
+    private double h(double x) {
+      return Math.exp(-exponent * Math.log(x));
+    }
+
+    private double hIntegral(double x) {
+      double logX = Math.log(x);
+      return helper2((1 - exponent) * logX) * logX;
+    }
+
+    private double hIntegralInverse(double x) {
+      double t = x * (1 - exponent);
+      if (t < -1) {
+        // Limit value to the range [-1, +inf), numerical errors only
+        t = -1;
+      }
+      return Math.exp(helper1(t) * x);
+    }
+
+    /* log(1 + x) / x */
+    private static double helper1(double x) {
+      if (Math.abs(x) > 1e-8) {
+        return Math.log1p(x) / x;
+      }
+      return 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+    }
+
+    /* (exp(x) - 1) / x */
+    private static double helper2(double x) {
+      if (Math.abs(x) > 1e-8) {
+        return Math.expm1(x) / x;
+      }
+      return 1 + x * 0.5 * (1 + x * (1.0 / 3) * (1 + 0.25 * x));
+    }
+  }
+}
@@ -0,0 +1,492 @@
+package org.bigbase.textprovider.tools;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Load generator. Opens N non-blocking connections to a text provider server, drives
+ * GET requests with a given key distribution (uniform, zipf or sequential) and pipelining
+ * depth, records latency histograms and reports throughput and latency percentiles.
+ *
+ * Two modes:
+ *
+ * closed loop (rate = 0): every connection keeps depth requests in flight, a new request
+ * is sent as soon as a response is received. Coordinated omission is corrected
+ * with an expected interval between requests, which is derived from the mean latency
+ * during warm up.
+ *
+ * fixed rate (rate > 0): requests are sent on a schedule, latency is measured from
+ * the intended send time, so a stalled server is not hidden by a client which waits
+ * for it (corrected), service time is measured from the actual send time (uncorrected).
+ *
+ * Usage: LoadGenerator [--host localhost] [--port 10322] [--connections 16] [--threads n]
+ *   [--depth 1] [--rate 0] [--duration 30] [--warmup 5] [--distribution uniform|zipf|sequential]
+ *   [--zipf-exponent 0.99] [--lines n]
+ *
+ */
+public class LoadGenerator {
+
+  /* Options and defaults */
+  private String host = "localhost";
+  private int port = 10322;
+  private int connections = 16;
+  private int threads = 0;
+  private int depth = 1;
+  private long rate = 0;
+  private int duration = 30;
+  private int warmup = 5;
+  private KeyGenerator.Distribution distribution = KeyGenerator.Distribution.UNIFORM;
+  private double zipfExponent = 0.99;
+  private long lines = 0;
+
+  /* Completed requests, for progress reports */
+  private final LongAdder completed = new LongAdder();
+
+  /**
+   * Response parser state
+   */
+  private final static int STATUS = 0;
+  private final static int CONTENT = 1;
+
+  /**
+   * Client connection
+   */
+  private class Client {
+    final SocketChannel channel;
+    final SelectionKey key;
+    final KeyGenerator keys;
+    final ByteBuffer out;
+    final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+    /* Intended and actual send times of requests in flight (ring buffers) */
+    final long[] intended;
+    final long[] sent;
+    int head;
+    int inflight;
+    /* Fixed rate mode: interval between requests and next intended send time */
+    final long interval;
+    long nextIntended;
+    int state = STATUS;
+    final Worker worker;
+
+    Client(Worker worker, int id, long start) throws IOException {
+      this.worker = worker;
+      this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      channel.configureBlocking(false);
+      this.key = channel.register(worker.selector, SelectionKey.OP_READ, this);
+      this.keys = KeyGenerator.create(distribution, lines, zipfExponent, id);
+      this.out = ByteBuffer.allocateDirect(Math.max(4096, depth * 32));
+      this.intended = new long[depth];
+      this.sent = new long[depth];
+      this.interval = rate > 0 ? TimeUnit.SECONDS.toNanos(connections) / rate : 0;
+      // Spread connection schedules over an interval
+      this.nextIntended = start + (interval * id) / connections;
+    }
+
+    /**
+     * Sends requests which are due
+     * @param now current time
+     * @throws IOException
+     */
+    void sendDue(long now) throws IOException {
+      while (inflight < depth && out.remaining() >= 32) {
+        long time;
+        if (interval > 0) {
+          if (nextIntended - now > 0) {
+            break;
+          }
+          time = nextIntended;
+          nextIntended += interval;
+        } else {
+          time = now;
+        }
+        int slot = (head + inflight) % depth;
+        intended[slot] = time;
+        sent[slot] = now;
+        inflight++;
+        putRequest(keys.next());
+      }
+      flush();
+    }
+
+    private void putRequest(long line) {
+      out.put((byte) 'G').put((byte) 'E').put((byte) 'T').put((byte) ' ');
+      long div = 1;
+      while (div <= line / 10) {
+        div *= 10;
+      }
+      for (; div > 0; div /= 10) {
+        out.put((byte) ('0' + (line / div) % 10));
+      }
+      out.put((byte) '\r').put((byte) '\n');
+    }
+
+    void flush() throws IOException {
+      out.flip();
+      if (out.hasRemaining()) {
+        channel.write(out);
+      }
+      boolean pending = out.hasRemaining();
+      out.compact();
+      key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Reads and parses responses
+     * @param now current time
+     * @throws IOException
+     */
+    void read(long now) throws IOException {
+      if (channel.read(in) < 0) {
+        throw new IOException("Connection closed by server");
+      }
+      in.flip();
+      while (true) {
+        int pos = in.position();
+        int crlf = findCRLF(pos, in.limit());
+        if (crlf < 0) {
+          if (state == CONTENT && in.remaining() > 1) {
+            // Skip partial line content, last byte can be '\r'
+            in.position(in.limit() - 1);
+          }
+          break;
+        }
+        in.position(crlf + 2);
+        if (state == STATUS) {
+          boolean ok = crlf - pos == 2 && in.get(pos) == 'O' && in.get(pos + 1) == 'K';
+          if (ok) {
+            state = CONTENT;
+          } else {
+            complete(now, false);
+          }
+        } else {
+          state = STATUS;
+          complete(now, true);
+        }
+      }
+      in.compact();
+    }
+
+    private int findCRLF(int from, int to) {
+      for (int i = from; i < to - 1; i++) {
+        if (in.get(i) == '\r' && in.get(i + 1) == '\n') {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private void complete(long now, boolean ok) {
+      if (inflight == 0) {
+        // Unexpected response
+        worker.errors++;
+        return;
+      }
+      long intendedTime = intended[head];
+      long sentTime = sent[head];
+      head = (head + 1) % depth;
+      inflight--;
+      worker.record(now - intendedTime, now - sentTime);
+      if (!ok) {
+        worker.errors++;
+      }
+    }
+
+    void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // swallow it
+      }
+    }
+  }
+
+  /**
+   * Load generator thread, owns a selector and a subset of connections
+   */
+  private class Worker extends Thread {
+    final Selector selector;
+    final List<Client> clients = new ArrayList<>();
+    /* Latency measured from an intended send time (or corrected in a closed loop) */
+    final Histogram corrected = new Histogram();
+    /* Latency measured from an actual send time */
+    final Histogram uncorrected = new Histogram();
+    long errors;
+    final long measureStart;
+    final long end;
+    /* Expected interval between requests of a connection (closed loop correction) */
+    long expectedInterval;
+    boolean measuring;
+    IOException error;
+
+    Worker(int id, long measureStart, long end) throws IOException {
+      super("loadgen-" + id);
+      this.selector = Selector.open();
+      this.measureStart = measureStart;
+      this.end = end;
+    }
+
+    void record(long latency, long serviceTime) {
+      if (!measuring) {
+        uncorrected.record(serviceTime);
+        return;
+      }
+      completed.increment();
+      uncorrected.record(serviceTime);
+      if (rate > 0) {
+        corrected.record(latency);
+      } else {
+        corrected.recordWithExpectedInterval(serviceTime, expectedInterval);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        long now = System.nanoTime();
+        while (now - end < 0) {
+          if (!measuring && now - measureStart >= 0) {
+            // Warm up is over
+            measuring = true;
+            // depth requests are in flight, so a connection sends a request every mean / depth
+            expectedInterval = (long) uncorrected.getMean() / depth;
+            uncorrected.reset();
+            errors = 0;
+          }
+          long nextSend = Long.MAX_VALUE;
+          for (Client c : clients) {
+            c.sendDue(now);
+            if (c.interval > 0) {
+              nextSend = Math.min(nextSend, c.nextIntended - now);
+            }
+          }
+          long timeoutMs = nextSend == Long.MAX_VALUE ? 100 : TimeUnit.NANOSECONDS.toMillis(nextSend);
+          if (timeoutMs > 0) {
+            selector.select(Math.min(timeoutMs, 100));
+          } else {
+            selector.selectNow();
+          }
+          now = System.nanoTime();
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Client c = (Client) key.attachment();
+            if (key.isReadable()) {
+              c.read(now);
+            }
+            if (key.isValid() && key.isWritable()) {
+              c.flush();
+            }
+          }
+        }
+      } catch (IOException e) {
+        error = e;
+      } finally {
+        for (Client c : clients) {
+          c.close();
+        }
+        try {
+          selector.close();
+        } catch (IOException e) {
+          // swallow it
+        }
+      }
+    }
+  }
+
+  /**
+   * Parses command line options
+   * @param args arguments
+   */
+  void parseArgs(String[] args) {
+    Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith("--") || i + 1 == args.length) {
+        throw new IllegalArgumentException("Invalid option: " + args[i]);
+      }
+      opts.put(args[i].substring(2), args[++i]);
+    }
+    host = opts.getOrDefault("host", host);
+    port = Integer.parseInt(opts.getOrDefault("port", Integer.toString(port)));
+    connections = Integer.parseInt(opts.getOrDefault("connections", Integer.toString(connections)));
+    threads = Integer.parseInt(opts.getOrDefault("threads", Integer.toString(threads)));
+    depth = Integer.parseInt(opts.getOrDefault("depth", Integer.toString(depth)));
+    rate = Long.parseLong(opts.getOrDefault("rate", Long.toString(rate)));
+    duration = Integer.parseInt(opts.getOrDefault("duration", Integer.toString(duration)));
+    warmup = Integer.parseInt(opts.getOrDefault("warmup", Integer.toString(warmup)));
+    distribution = KeyGenerator.Distribution.valueOf(
+      opts.getOrDefault("distribution", distribution.name()).toUpperCase());
+    zipfExponent = Double.parseDouble(
+      opts.getOrDefault("zipf-exponent", Double.toString(zipfExponent)));
+    lines = Long.parseLong(opts.getOrDefault("lines", Long.toString(lines)));
+    if (connections <= 0 || depth <= 0 || duration <= 0 || warmup < 0 || rate < 0) {
+      throw new IllegalArgumentException("Invalid options");
+    }
+    if (threads <= 0) {
+      threads = Math.min(connections, Runtime.getRuntime().availableProcessors());
+    }
+    threads = Math.min(threads, connections);
+  }
+
+  /**
+   * Finds number of lines of a served file with GET requests
+   * @return number of lines
+   * @throws IOException
+   */
+  long detectLines() throws IOException {
+    try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+      long hi = 1;
+      if (!exists(channel, hi)) {
+        throw new IOException("Served file is empty");
+      }
+      while (exists(channel, hi * 2)) {
+        hi *= 2;
+      }
+      // hi exists, 2 * hi does not
+      long lo = hi;
+      hi = hi * 2;
+      while (hi - lo > 1) {
+        long mid = (lo + hi) >>> 1;
+        if (exists(channel, mid)) {
+          lo = mid;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+  }
+
+  private boolean exists(SocketChannel channel, long line) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(("GET " + line + "\r\n").getBytes());
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+    String status = readLine(channel);
+    if (status.equals("OK")) {
+      readLine(channel);
+      return true;
+    }
+    return false;
+  }
+
+  private String readLine(SocketChannel channel) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    ByteBuffer b = ByteBuffer.allocate(1);
+    boolean cr = false;
+    while (true) {
+      b.clear();
+      if (channel.read(b) < 0) {
+        throw new IOException("Connection closed by server");
+      }
+      char c = (char) b.get(0);
+      if (cr && c == '\n') {
+        return sb.toString();
+      }
+      if (cr) {
+        sb.append('\r');
+      }
+      cr = c == '\r';
+      if (!cr) {
+        sb.append(c);
+      }
+    }
+  }
+
+  /**
+   * Runs load test and prints report
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  void run() throws IOException, InterruptedException {
+    if (lines == 0) {
+      lines = detectLines();
+    }
+    System.out.printf("Target %s:%d, lines: %d, connections: %d, threads: %d, depth: %d, " +
+        "rate: %s, distribution: %s%n", host, port, lines, connections, threads, depth,
+        rate > 0 ? rate + " req/s" : "max", distribution.name().toLowerCase());
+    long start = System.nanoTime();
+    long measureStart = start + TimeUnit.SECONDS.toNanos(warmup);
+    long end = measureStart + TimeUnit.SECONDS.toNanos(duration);
+    List<Worker> workers = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      workers.add(new Worker(i, measureStart, end));
+    }
+    for (int i = 0; i < connections; i++) {
+      Worker w = workers.get(i % threads);
+      w.clients.add(new Client(w, i, start));
+    }
+    for (Worker w : workers) {
+      w.start();
+    }
+    // Progress report every second
+    long last = 0;
+    while (System.nanoTime() - end < 0) {
+      Thread.sleep(1000);
+      long total = completed.sum();
+      if (total > 0) {
+        System.out.printf("%,d req/s%n", total - last);
+      }
+      last = total;
+    }
+    Histogram corrected = new Histogram();
+    Histogram uncorrected = new Histogram();
+    long errors = 0;
+    for (Worker w : workers) {
+      w.join();
+      if (w.error != null) {
+        throw w.error;
+      }
+      corrected.add(w.corrected);
+      uncorrected.add(w.uncorrected);
+      errors += w.errors;
+    }
+    report(uncorrected, corrected, errors);
+  }
+
+  private void report(Histogram uncorrected, Histogram corrected, long errors) {
+    long requests = uncorrected.getTotalCount();
+    System.out.printf("%nRequests: %,d, errors: %,d, duration: %d s, throughput: %,.0f req/s%n",
+      requests, errors, duration, (double) requests / duration);
+    System.out.printf("%-12s %14s %14s%n", "Latency (us)", "service time", "corrected");
+    System.out.printf("%-12s %14.1f %14.1f%n", "mean", uncorrected.getMean() / 1000,
+      corrected.getMean() / 1000);
+    double[] percentiles = new double[] {50, 90, 99, 99.9, 99.99};
+    for (double p : percentiles) {
+      System.out.printf("%-12s %14.1f %14.1f%n", "p" + (p == (long) p ? Long.toString((long) p) :
+        Double.toString(p)), uncorrected.getValueAtPercentile(p) / 1000.0,
+        corrected.getValueAtPercentile(p) / 1000.0);
+    }
+    System.out.printf("%-12s %14.1f %14.1f%n", "max", uncorrected.getMax() / 1000.0,
+      corrected.getMax() / 1000.0);
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    LoadGenerator gen = new LoadGenerator();
+    try {
+      gen.parseArgs(args);
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+      System.out.println("Usage: LoadGenerator [--host localhost] [--port 10322] " +
+          "[--connections 16] [--threads n] [--depth 1] [--rate 0 (max)] [--duration 30] " +
+          "[--warmup 5] [--distribution uniform|zipf|sequential] [--zipf-exponent 0.99] " +
+          "[--lines n (detected by default)]");
+      System.exit(-1);
+    }
+    gen.run();
+  }
+}
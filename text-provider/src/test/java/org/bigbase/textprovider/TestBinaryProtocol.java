@@ -0,0 +1,285 @@
+package org.bigbase.textprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.bigbase.textprovider.metrics.Metrics;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestBinaryProtocol {
+
+  static String filePath = TestUtils.getResourcePath("test.txt");
+
+  ServerSocketChannel serverSocket;
+  SocketChannel client;
+  ThreadPoolExecutor pool;
+  CountDownLatch blocked = new CountDownLatch(1);
+
+  /**
+   * Reply frame
+   */
+  static class Reply {
+    byte status;
+    int id;
+    String payload;
+  }
+
+  @BeforeClass
+  public static void setUp() throws IOException {
+    FileIndex.openOrCreate(filePath);
+    FileRegistry.register("test.txt", filePath);
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    FileRegistry.closeAll();
+  }
+
+  @After
+  public void close() throws IOException {
+    blocked.countDown();
+    if (pool != null) {
+      pool.shutdown();
+    }
+    client.close();
+    serverSocket.close();
+  }
+
+  /**
+   * Connects to an event loop, which either executes blocking requests inline
+   * or always offloads them
+   */
+  private void connect(boolean offload) throws IOException {
+    pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(8), Metrics.rejectedExecutionHandler());
+    EventLoop loop = new EventLoop("test-loop", pool, offload ? 0 : Long.MAX_VALUE,
+      TimeUnit.SECONDS.toNanos(60));
+    if (offload) {
+      loop.reportInlineBatch(1);
+    }
+    loop.start();
+    serverSocket = ServerSocketChannel.open();
+    serverSocket.bind(new InetSocketAddress("localhost", 0));
+    client = SocketChannel.open();
+    client.connect(serverSocket.getLocalAddress());
+    loop.register(serverSocket.accept());
+    send(ByteBuffer.wrap(new byte[] {BinaryProtocol.HANDSHAKE}));
+    ByteBuffer ack = receive(1);
+    assertEquals(BinaryProtocol.HANDSHAKE, ack.get(0));
+  }
+
+  @Test
+  public void testRequests() throws IOException {
+    connect(false);
+    send(concat(get(1, 1, null), get(2, 1000000, null), command(3, "GET 2"),
+      frame((byte) 9, 4, ""), command(5, "SCAN A"), get(6, 3, "test.txt"), get(7, 1, "nope"),
+      frame(BinaryProtocol.OP_GET, 8, "1")));
+    // In order when executed inline
+    assertReply(receiveReply(), BinaryProtocol.STATUS_OK, 1, "AAAAAAA");
+    assertReply(receiveReply(), BinaryProtocol.STATUS_ERR, 2, "");
+    assertReply(receiveReply(), BinaryProtocol.STATUS_OK, 3, "OK\r\nBBBBBBBBBB\r\n");
+    assertReply(receiveReply(), BinaryProtocol.STATUS_ERR, 4, "");
+    assertReply(receiveReply(), BinaryProtocol.STATUS_ERR, 5, "");
+    assertReply(receiveReply(), BinaryProtocol.STATUS_OK, 6, "CCCCCCCCCCCC");
+    assertReply(receiveReply(), BinaryProtocol.STATUS_ERR, 7, "");
+    assertReply(receiveReply(), BinaryProtocol.STATUS_ERR, 8, "");
+
+    // Frame is split between reads
+    ByteBuffer buf = get(9, 2, null);
+    ByteBuffer head = buf.duplicate();
+    head.limit(5);
+    send(head);
+    buf.position(5);
+    send(buf);
+    assertReply(receiveReply(), BinaryProtocol.STATUS_OK, 9, "BBBBBBBBBB");
+  }
+
+  @Test
+  public void testNegativeIds() throws IOException {
+    connect(false);
+    // Request id is any 4 bytes value, its sign does not select a protocol
+    send(concat(command(0x80000000, "GET 2"), command(-5, "SCAN A"), get(-1, 3, null),
+      command(-1, "GET 1")));
+    assertReply(receiveReply(), BinaryProtocol.STATUS_OK, 0x80000000, "OK\r\nBBBBBBBBBB\r\n");
+    assertReply(receiveReply(), BinaryProtocol.STATUS_ERR, -5, "");
+    assertReply(receiveReply(), BinaryProtocol.STATUS_OK, -1, "CCCCCCCCCCCC");
+    assertReply(receiveReply(), BinaryProtocol.STATUS_OK, -1, "OK\r\nAAAAAAA\r\n");
+  }
+
+  @Test
+  public void testOutOfOrder() throws IOException, InterruptedException {
+    connect(true);
+    // The only worker is busy: GETs wait, a request which follows them does not
+    CountDownLatch started = new CountDownLatch(1);
+    pool.execute(() -> {
+      started.countDown();
+      try {
+        blocked.await();
+      } catch (InterruptedException e) {
+        // exit
+      }
+    });
+    started.await();
+    // Requests are received in one batch
+    send(concat(get(1, 1, null), command(2, "USE test.txt"), get(3, 2, null)));
+    assertReply(receiveReply(), BinaryProtocol.STATUS_OK, 2, "OK\r\n");
+    blocked.countDown();
+    Map<Integer, Reply> replies = new HashMap<>();
+    for (int i = 0; i < 2; i++) {
+      Reply r = receiveReply();
+      replies.put(r.id, r);
+    }
+    assertReply(replies.get(1), BinaryProtocol.STATUS_OK, 1, "AAAAAAA");
+    assertReply(replies.get(3), BinaryProtocol.STATUS_OK, 3, "BBBBBBBBBB");
+    // Connection is released when detached requests are done
+    send(get(4, 3, null));
+    assertReply(receiveReply(), BinaryProtocol.STATUS_OK, 4, "CCCCCCCCCCCC");
+  }
+
+  @Test
+  public void testDetachedDoneAndNextBatch() throws IOException, InterruptedException {
+    serverSocket = ServerSocketChannel.open();
+    serverSocket.bind(new InetSocketAddress("localhost", 0));
+    client = SocketChannel.open();
+    client.connect(serverSocket.getLocalAddress());
+    SocketChannel channel = serverSocket.accept();
+    channel.configureBlocking(false);
+    CountDownLatch flushing = new CountDownLatch(1);
+    CountDownLatch resume = new CountDownLatch(1);
+    Thread[] paused = new Thread[1];
+    Connection conn = new Connection(channel) {
+      @Override
+      public boolean flush() throws IOException {
+        if (Thread.currentThread() == paused[0]) {
+          // Detached request has counted down and sends replies
+          flushing.countDown();
+          try {
+            resume.await();
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+        }
+        return super.flush();
+      }
+    };
+    // Batch with two detached GETs
+    assertTrue(conn.tryAcquire());
+    conn.detach();
+    conn.detach();
+    conn.finishProcessing();
+    Thread first = new Thread(
+      () -> conn.detachedDone(BinaryProtocol.header(BinaryProtocol.STATUS_OK, 1, 0)));
+    paused[0] = first;
+    first.start();
+    flushing.await();
+    // The last one finishes together with the first one
+    Thread last = new Thread(
+      () -> conn.detachedDone(BinaryProtocol.header(BinaryProtocol.STATUS_OK, 2, 0)));
+    last.start();
+    last.join(200);
+    // The next batch must not start while the first one sends replies
+    boolean started = conn.tryAcquire();
+    ByteBuffer header = BinaryProtocol.header(BinaryProtocol.STATUS_OK, 3, 0);
+    if (started) {
+      conn.sendReserved(header);
+    }
+    resume.countDown();
+    first.join();
+    last.join();
+    if (!started) {
+      assertTrue(conn.tryAcquire());
+      conn.sendReserved(header);
+    }
+    conn.send("OK\r\n".getBytes());
+    header.putInt(BinaryProtocol.LENGTH_OFFSET, 4);
+    conn.finishProcessing();
+    assertReply(receiveReply(), BinaryProtocol.STATUS_OK, 1, "");
+    assertReply(receiveReply(), BinaryProtocol.STATUS_OK, 2, "");
+    assertReply(receiveReply(), BinaryProtocol.STATUS_OK, 3, "OK\r\n");
+    assertFalse(started);
+    conn.close();
+  }
+
+  private static void assertReply(Reply r, byte status, int id, String payload) {
+    assertTrue(r != null);
+    assertEquals(id, r.id);
+    assertEquals(status, r.status);
+    assertEquals(payload, r.payload);
+  }
+
+  private static ByteBuffer get(int id, long lineNumber, String file) {
+    byte[] name = file == null ? new byte[0] : file.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buf = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE + Long.BYTES + name.length);
+    buf.put(BinaryProtocol.OP_GET).putInt(id).putInt(Long.BYTES + name.length);
+    buf.putLong(lineNumber).put(name).flip();
+    return buf;
+  }
+
+  private static ByteBuffer command(int id, String cmd) {
+    return frame(BinaryProtocol.OP_COMMAND, id, cmd);
+  }
+
+  private static ByteBuffer frame(byte opcode, int id, String payload) {
+    byte[] data = payload.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buf = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE + data.length);
+    buf.put(opcode).putInt(id).putInt(data.length).put(data).flip();
+    return buf;
+  }
+
+  private static ByteBuffer concat(ByteBuffer... frames) {
+    int size = 0;
+    for (ByteBuffer buf : frames) {
+      size += buf.remaining();
+    }
+    ByteBuffer all = ByteBuffer.allocate(size);
+    for (ByteBuffer buf : frames) {
+      all.put(buf);
+    }
+    all.flip();
+    return all;
+  }
+
+  private void send(ByteBuffer... frames) throws IOException {
+    for (ByteBuffer buf : frames) {
+      while (buf.hasRemaining()) {
+        client.write(buf);
+      }
+    }
+  }
+
+  private Reply receiveReply() throws IOException {
+    ByteBuffer header = receive(BinaryProtocol.HEADER_SIZE);
+    Reply r = new Reply();
+    r.status = header.get(0);
+    r.id = header.getInt(1);
+    r.payload = new String(receive(header.getInt(5)).array(), StandardCharsets.UTF_8);
+    return r;
+  }
+
+  private ByteBuffer receive(int size) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    while (buf.hasRemaining()) {
+      if (client.read(buf) < 0) {
+        throw new IOException("Connection closed");
+      }
+    }
+    return buf;
+  }
+}
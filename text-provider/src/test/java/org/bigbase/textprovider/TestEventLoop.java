@@ -0,0 +1,107 @@
+package org.bigbase.textprovider;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.bigbase.textprovider.metrics.Metrics;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestEventLoop {
+
+  static String filePath = TestUtils.getResourcePath("test.txt");
+
+  ServerSocketChannel serverSocket;
+  SocketChannel client;
+  ThreadPoolExecutor pool;
+  CountDownLatch blocked = new CountDownLatch(1);
+
+  @BeforeClass
+  public static void setUp() throws IOException {
+    FileIndex.openOrCreate(filePath);
+    FileRegistry.register("test.txt", filePath);
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    FileRegistry.closeAll();
+  }
+
+  @Before
+  public void connect() throws IOException {
+    // Single worker and a single slot queue, both are taken
+    pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(1), Metrics.rejectedExecutionHandler());
+    for (int i = 0; i < 2; i++) {
+      pool.execute(() -> {
+        try {
+          blocked.await();
+        } catch (InterruptedException e) {
+          // exit
+        }
+      });
+    }
+    // Every batch is slow: blocking requests are always offloaded
+    EventLoop loop = new EventLoop("test-loop", pool, 0, TimeUnit.SECONDS.toNanos(60));
+    loop.reportInlineBatch(1);
+    loop.start();
+    serverSocket = ServerSocketChannel.open();
+    serverSocket.bind(new InetSocketAddress("localhost", 0));
+    client = SocketChannel.open();
+    client.connect(serverSocket.getLocalAddress());
+    loop.register(serverSocket.accept());
+  }
+
+  @After
+  public void close() throws IOException {
+    blocked.countDown();
+    pool.shutdown();
+    client.close();
+    serverSocket.close();
+  }
+
+  @Test
+  public void testSaturatedPool() throws IOException {
+    long shed = Metrics.snapshot().get("requests.shed.overload");
+    // Non-blocking requests are executed inline, a blocking one waits for a worker
+    // and is shed
+    send("STATS X\r\nGET 1\r\nGET 2\r\n");
+    assertEquals("ERR\r\nBUSY\r\nBUSY\r\n", receive(17));
+    assertEquals(2, Metrics.snapshot().get("requests.shed.overload") - shed);
+    assertEquals(0L, (long) Metrics.snapshot().get("connections.parked"));
+
+    // Parked connection is offloaded as soon as the pool has capacity
+    send("GET 1\r\n");
+    blocked.countDown();
+    assertEquals("OK\r\nAAAAAAA\r\n", receive(13));
+  }
+
+  private void send(String s) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(s.getBytes());
+    while (buf.hasRemaining()) {
+      client.write(buf);
+    }
+  }
+
+  private String receive(int size) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    while (buf.hasRemaining()) {
+      if (client.read(buf) < 0) {
+        break;
+      }
+    }
+    return new String(buf.array(), 0, buf.position());
+  }
+}
@@ -1,18 +1,29 @@
 package org.bigbase.textprovider;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
 
 import org.bigbase.textprovider.FileIndex.Range;
 import org.junit.Test;
 
 public class TestFileIndex {
 
-  String filePath = "/Users/vrodionov/Development/starburst/text-provider/src/test/resources/test.txt";
+  String filePath = TestUtils.getResourcePath("test.txt");
   String[] expected = new String[] {
       "AAAAAAA",
       "BBBBBBBBBB",
@@ -65,6 +76,43 @@ public class TestFileIndex {
     }
   }
   
+  @Test
+  public void testLineTerminators() throws IOException {
+    String[] lines = new String[] {
+        "Привет, мир", "", "über\tstraße", "日本語のテキスト", "\r", "last line"
+    };
+    // Mix of "\r\n" and "\n" terminators, no terminator after the last line
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < lines.length; i++) {
+      sb.append(lines[i]);
+      if (i < lines.length - 1) {
+        sb.append(i % 2 == 0 ? "\r\n" : "\n");
+      }
+    }
+    Path path = Files.createTempFile("utf8", ".txt");
+    Path indexPath = Path.of(path.toString() + ".index");
+    Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+    try {
+      FileIndex.openOrCreate(path.toString());
+      FileIndex index = FileIndex.getIndexFor(path.toString());
+      assertNull(index.getRange(lines.length + 1));
+      try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+        for (int i = 1; i <= lines.length; i++) {
+          Range r = index.getRange(i);
+          assertNotNull(r);
+          byte[] buf = new byte[(int) r.size];
+          file.seek(r.offset);
+          file.readFully(buf);
+          assertEquals(lines[i - 1], new String(buf, StandardCharsets.UTF_8));
+        }
+      }
+      index.close();
+    } finally {
+      Files.deleteIfExists(path);
+      Files.deleteIfExists(indexPath);
+    }
+  }
+  
   private String loadAsString(RandomAccessFile file, Range r) throws IOException {  
     byte[] buf = new byte[(int)r.size];
     file.seek(r.offset);
@@ -73,4 +121,137 @@ public class TestFileIndex {
   }
   
   
+
+  @Test
+  public void testBackgroundBuild() throws IOException, InterruptedException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 1; i <= 100000; i++) {
+      sb.append("line ").append(i).append('\n');
+    }
+    Path path = Files.createTempFile("background", ".txt");
+    Path indexPath = Path.of(path.toString() + ".index");
+    Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+    // The only builder thread is busy, so a build does not start until it is released
+    CountDownLatch gate = new CountDownLatch(1);
+    FileIndex.getBuilder().submit(() -> {
+      gate.await();
+      return null;
+    });
+    try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+      IndexBuilder.Progress progress = 
+          FileIndex.openOrCreateInBackground(path.toString(), FileIndex.Format.DENSE);
+      assertNotNull(progress);
+      FileIndex index = FileIndex.getIndexFor(path.toString());
+      // Building index serves what has been indexed so far
+      assertTrue(index.isBuilding());
+      assertEquals(0, progress.getLines());
+      
+      // A line which has not been indexed yet is BUSY for a client
+      FileRegistry.register("background", path.toString());
+      serverSocket.bind(new InetSocketAddress("localhost", 0));
+      SocketChannel client = SocketChannel.open(serverSocket.getLocalAddress());
+      SocketChannel channel = serverSocket.accept();
+      channel.configureBlocking(false);
+      Connection conn = new Connection(channel);
+      assertEquals("OK\r\nBUSY\r\n", request(client, conn, "USE background\r\nGET 5\r\n"));
+      
+      gate.countDown();
+      long deadline = System.currentTimeMillis() + 30000;
+      while (!progress.isDone() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue(progress.isDone());
+      assertNull(progress.getFailure());
+      FileIndex complete = FileIndex.getIndexFor(path.toString());
+      assertFalse(complete.isBuilding());
+      assertEquals(100000, complete.getTotalLines());
+      assertEquals("line 77777", loadAsString(path, complete.getRange(77777)));
+      assertFalse(Files.exists(Path.of(indexPath + ".tmp")));
+      // Index is up to date now
+      assertNull(FileIndex.openOrCreateInBackground(path.toString(), FileIndex.Format.DENSE));
+      assertEquals("OK\r\nline 5\r\n", request(client, conn, "GET 5\r\n"));
+      conn.close();
+      client.close();
+      complete.close();
+    } finally {
+      gate.countDown();
+      FileRegistry.closeAll();
+      Files.deleteIfExists(path);
+      Files.deleteIfExists(indexPath);
+    }
+  }
+
+  @Test
+  public void testUpdate() throws IOException {
+    Path path = Files.createTempFile("update", ".txt");
+    Path indexPath = Path.of(path.toString() + ".index");
+    Files.write(path, "line 1\nline 2\nline".getBytes(StandardCharsets.UTF_8));
+    try {
+      FileIndex.openOrCreate(path.toString(), FileIndex.Format.DENSE);
+      FileIndex index = FileIndex.getIndexFor(path.toString());
+      assertEquals(3, index.getTotalLines());
+      Range r = index.getRange(3);
+      assertEquals("line", loadAsString(path, r));
+      assertEquals(0, r.terminator);
+      
+      Files.write(path, " 3\r\nline 4\n".getBytes(StandardCharsets.UTF_8), 
+        StandardOpenOption.APPEND);
+      assertEquals(1, FileIndex.update(path.toString()));
+      // Shared index has been updated in place
+      assertTrue(index == FileIndex.getIndexFor(path.toString()));
+      assertEquals(4, index.getTotalLines());
+      r = index.getRange(3);
+      assertEquals("line 3", loadAsString(path, r));
+      assertEquals(2, r.terminator);
+      assertEquals("line 4", loadAsString(path, index.getRange(4)));
+      assertEquals(0, FileIndex.update(path.toString()));
+      
+      // Not an append: file must be reloaded
+      Files.write(path, "other 1\n".getBytes(StandardCharsets.UTF_8));
+      assertEquals(-1, FileIndex.update(path.toString()));
+      assertEquals(4, index.getTotalLines());
+      FileIndex reopened = FileIndex.reopen(path.toString());
+      assertTrue(reopened == FileIndex.getIndexFor(path.toString()));
+      assertEquals(1, reopened.getTotalLines());
+      assertEquals("other 1", loadAsString(path, reopened.getRange(1)));
+      reopened.close();
+      index.close();
+    } finally {
+      Files.deleteIfExists(path);
+      Files.deleteIfExists(indexPath);
+    }
+  }
+
+  /**
+   * Sends requests and receives responses
+   */
+  private static String request(SocketChannel client, Connection conn, String requests) 
+      throws IOException, InterruptedException {
+    ByteBuffer buf = ByteBuffer.wrap(requests.getBytes(StandardCharsets.UTF_8));
+    while (buf.hasRemaining()) {
+      client.write(buf);
+    }
+    // Let loopback deliver data to the server side
+    Thread.sleep(50);
+    new RequestHandler(conn).run();
+    buf = ByteBuffer.allocate(1024);
+    client.configureBlocking(false);
+    int idle = 0;
+    while (idle < 5) {
+      if (client.read(buf) > 0) {
+        idle = 0;
+      } else {
+        idle++;
+        Thread.sleep(10);
+      }
+    }
+    client.configureBlocking(true);
+    return new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8);
+  }
+
+  private String loadAsString(Path path, Range r) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+      return loadAsString(file, r);
+    }
+  }
 }
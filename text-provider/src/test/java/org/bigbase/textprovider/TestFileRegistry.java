@@ -0,0 +1,194 @@
+package org.bigbase.textprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.bigbase.textprovider.commands.Request;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFileRegistry {
+
+  private final static int FILES = 3;
+
+  private Path[] files = new Path[FILES];
+  private FileRegistry.TextFile[] registered = new FileRegistry.TextFile[FILES];
+
+  @Before
+  public void setUp() throws IOException {
+    for (int i = 0; i < FILES; i++) {
+      files[i] = Files.createTempFile("registry", ".txt");
+      Files.write(files[i], ("file " + i + "\nline 2\n").getBytes(StandardCharsets.UTF_8));
+      FileIndex.openOrCreate(files[i].toString());
+      registered[i] = FileRegistry.register("f" + i, files[i].toString());
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileRegistry.closeAll();
+    FileRegistry.setMaxOpen(FileRegistry.DEFAULT_MAX_OPEN);
+    for (Path file : files) {
+      Files.deleteIfExists(Path.of(file + ".index"));
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void testLookup() {
+    assertSame(registered[0], FileRegistry.getDefault());
+    assertSame(registered[1], FileRegistry.get("f1"));
+    assertSame(registered[2], FileRegistry.lookup(Request.of("GET f2 1"), 0));
+    assertNull(FileRegistry.lookup(Request.of("GET f 1"), 0));
+    assertNull(FileRegistry.lookup(Request.of("GET f22 1"), 0));
+    assertNull(FileRegistry.lookup(Request.of("GET"), 0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDuplicateName() {
+    FileRegistry.register("f1", files[0].toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNumericName() {
+    FileRegistry.register("123", files[0].toString());
+  }
+
+  @Test
+  public void testReferenceCounting() throws IOException {
+    FileRegistry.TextFile f = registered[0];
+    assertFalse(f.isOpen());
+    FileRegistry.Snapshot s1 = f.acquire();
+    FileRegistry.Snapshot s2 = f.acquire();
+    assertSame(s1, s2);
+    assertTrue(f.isOpen());
+    assertEquals(2, f.getReferenceCount());
+    assertEquals(2, s1.getIndex().getTotalLines());
+    assertEquals(1, FileRegistry.getOpenCount());
+    s1.release();
+    s2.release();
+    // Idle handles are closed only when the limit is reached
+    assertTrue(f.isOpen());
+    assertEquals(0, f.getReferenceCount());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedClosing() throws IOException, InterruptedException {
+    FileRegistry.setMaxOpen(2);
+    FileRegistry.Snapshot s0 = registered[0].acquire();
+    registered[1].acquire().release();
+    Thread.sleep(1);
+    s0.release();
+    // f1 is the least recently used idle file
+    FileRegistry.Snapshot s2 = registered[2].acquire();
+    assertTrue(registered[0].isOpen());
+    assertFalse(registered[1].isOpen());
+    assertTrue(registered[2].isOpen());
+    assertEquals(2, FileRegistry.getOpenCount());
+
+    // Files in use are not closed, the limit is exceeded
+    s0 = registered[0].acquire();
+    FileRegistry.Snapshot s1 = registered[1].acquire();
+    assertEquals(3, FileRegistry.getOpenCount());
+    assertTrue(registered[0].isOpen() && registered[1].isOpen() && registered[2].isOpen());
+    assertEquals("file 1", readLine(s1));
+    s0.release();
+    s1.release();
+    s2.release();
+  }
+
+  @Test
+  public void testReload() throws IOException, InterruptedException {
+    FileRegistry.TextFile f = registered[0];
+    FileRegistry.Snapshot old = f.acquire();
+    assertEquals(0, old.getGeneration());
+    // Unchanged file
+    assertFalse(FileRegistry.reload(f, false));
+
+    // Appended lines are indexed in place
+    Files.write(files[0], "line 3\n".getBytes(StandardCharsets.UTF_8), 
+      StandardOpenOption.APPEND);
+    assertFalse(FileRegistry.reload(f, false));
+    assertEquals(3, old.getIndex().getTotalLines());
+    
+    // New version is published with a rename
+    Thread.sleep(10);
+    Path next = Files.createTempFile(files[0].getParent(), "registry", ".tmp");
+    Files.write(next, "new 1\n".getBytes(StandardCharsets.UTF_8));
+    Files.move(next, files[0], StandardCopyOption.REPLACE_EXISTING, 
+      StandardCopyOption.ATOMIC_MOVE);
+    assertTrue(FileRegistry.reload(f, false));
+    assertEquals(1, f.getGeneration());
+    
+    // Request in flight is served from the previous version
+    assertEquals("file 0", readLine(old));
+    assertEquals(3, old.getIndex().getTotalLines());
+    FileRegistry.Snapshot current = f.acquire();
+    assertEquals(1, current.getGeneration());
+    assertEquals("new 1", readLine(current));
+    assertEquals(1, current.getIndex().getTotalLines());
+    assertEquals(1, FileRegistry.getOpenCount());
+    
+    // Previous version is closed when the last request is done
+    assertTrue(old.getFile().isOpen());
+    old.release();
+    assertFalse(old.getFile().isOpen());
+    assertTrue(current.getFile().isOpen());
+    current.release();
+    
+    // Forced reload of a closed handle
+    assertTrue(FileRegistry.reload(registered[1], true));
+    assertFalse(registered[1].isOpen());
+    FileRegistry.Snapshot s = registered[1].acquire();
+    assertEquals(1, s.getGeneration());
+    assertEquals("file 1", readLine(s));
+    s.release();
+  }
+
+  @Test
+  public void testReopenReusesIndex() throws IOException {
+    FileRegistry.TextFile f = registered[1];
+    Path index = Path.of(files[1] + ".index");
+    Object key = Files.readAttributes(index, BasicFileAttributes.class).fileKey();
+    // Forced reload of an unchanged file does not rebuild its index
+    assertTrue(FileRegistry.reload(f, true));
+    assertEquals(key, Files.readAttributes(index, BasicFileAttributes.class).fileKey());
+    FileRegistry.Snapshot s = f.acquire();
+    assertEquals("file 1", readLine(s));
+    assertEquals(2, s.getIndex().getTotalLines());
+    s.release();
+
+    // Text of the same length, but not the same: index is rebuilt
+    Path next = Files.createTempFile(files[1].getParent(), "registry", ".tmp");
+    Files.write(next, "FILE 1\nline 2\n".getBytes(StandardCharsets.UTF_8));
+    Files.move(next, files[1], StandardCopyOption.REPLACE_EXISTING, 
+      StandardCopyOption.ATOMIC_MOVE);
+    assertTrue(FileRegistry.reload(f, true));
+    assertFalse(key.equals(Files.readAttributes(index, BasicFileAttributes.class).fileKey()));
+    s = f.acquire();
+    assertEquals("FILE 1", readLine(s));
+    s.release();
+  }
+
+  private static String readLine(FileRegistry.Snapshot s) throws IOException {
+    FileIndex.Range range = s.getIndex().getRange(1);
+    ByteBuffer buf = ByteBuffer.allocate((int) range.size);
+    while (buf.hasRemaining()) {
+      s.getFile().read(buf, range.offset + buf.position());
+    }
+    return new String(buf.array(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,337 @@
+package org.bigbase.textprovider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestIndexBuilder {
+
+  @Test
+  public void testSmallChunks() throws IOException {
+    byte[] data = randomText(new Random(1), 10000, false);
+    int[] chunkSizes = new int[] {1, 3, 7, 8, 9, 64, 1000, 1 << 20};
+    for (int chunkSize : chunkSizes) {
+      verify(data, 4, chunkSize);
+    }
+  }
+
+  @Test
+  public void testNoTrailingNewLine() throws IOException {
+    byte[] data = randomText(new Random(2), 5000, true);
+    verify(data, 3, 17);
+    verify(data, 1, 1 << 20);
+  }
+
+  @Test
+  public void testEmptyFile() throws IOException {
+    verify(new byte[0], 2, 16);
+  }
+
+  @Test
+  public void testCompactFormat() throws IOException {
+    Random r = new Random(3);
+    byte[] data = randomText(r, 20000, false);
+    byte[] noTrailing = randomText(r, 20000, true);
+    int[] blockLines = new int[] {1, 2, 5, 64, 100000};
+    for (int k : blockLines) {
+      verifyCompact(data, k);
+      verifyCompact(noTrailing, k);
+    }
+    verifyCompact(new byte[0], 64);
+  }
+
+  @Test
+  public void testCompactDirectoryAlignment() throws IOException {
+    Random r = new Random(7);
+    Path file = Files.createTempFile("compact", ".txt");
+    Path index = Path.of(file + ".index");
+    try {
+      for (int blockLines : new int[] {3, 5, 64}) {
+        // Block data is several times larger than the write buffer
+        byte[] data = randomText(r, (1 << 21) + r.nextInt(1000), r.nextBoolean());
+        Files.write(file, data);
+        new IndexBuilder(2, 1 << 16, FileIndex.Format.COMPACT, blockLines).build(file, index);
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+          long directoryOffset = FileIndex.readHeader(channel).getLong(32);
+          assertTrue(directoryOffset > 2 * IndexWriter.WRITE_BUFFER_SIZE);
+          assertEquals(0, directoryOffset % Long.BYTES);
+        }
+        verifyCompact(data, blockLines);
+      }
+    } finally {
+      Files.deleteIfExists(file);
+      Files.deleteIfExists(index);
+    }
+  }
+
+  @Test
+  public void testProgress() throws IOException {
+    byte[] data = randomText(new Random(4), 50000, true);
+    Path file = Files.createTempFile("progress", ".txt");
+    Path index = Path.of(file + ".index");
+    try {
+      Files.write(file, data);
+      IndexBuilder.Progress progress = new IndexBuilder.Progress(file);
+      long lines = new IndexBuilder(2, 1000).build(file, index, progress);
+      assertEquals(data.length, progress.getFileSize());
+      // The last line has no terminator, it is served by a complete index only
+      assertEquals(lines - 1, progress.getLines());
+      assertTrue(progress.getLines() > 10 * IndexBuilder.Progress.CHECKPOINT_LINES);
+      FileIndex complete = FileIndex.getIndexFor(file.toString());
+      FileIndex.Range expected = new FileIndex.Range();
+      FileIndex.Range actual = new FileIndex.Range();
+      for (long i = 0; i <= lines + 1; i++) {
+        boolean found = i < lines && complete.getRange(i, expected);
+        assertEquals(found, progress.getRange(i, actual));
+        if (found) {
+          assertEquals(expected.offset, actual.offset);
+          assertEquals(expected.size, actual.size);
+        }
+      }
+      // Indexed bytes end where the last line starts
+      assertEquals(complete.getRange(lines).offset, progress.getBytes());
+      complete.close();
+      progress.finish(null);
+      assertTrue(progress.isDone());
+      assertEquals(0, progress.getRemainingMillis());
+    } finally {
+      Files.deleteIfExists(file);
+      Files.deleteIfExists(index);
+    }
+  }
+
+  @Test
+  public void testAppend() throws IOException {
+    Random r = new Random(5);
+    byte[] data = randomText(r, 30000, true);
+    // Split points after a terminated line, inside a line and between '\r' and '\n'
+    for (int i = 0; i < 20; i++) {
+      verifyAppend(data, 1 + r.nextInt(data.length - 1));
+    }
+    for (int i = 1; i < data.length; i++) {
+      if (data[i] == '\n' && data[i - 1] == '\r') {
+        verifyAppend(data, i);
+        break;
+      }
+    }
+    verifyAppend(data, 0);
+  }
+
+  @Test
+  public void testAppendRejectsChanges() throws IOException {
+    byte[] data = randomText(new Random(6), 10000, false);
+    Path file = Files.createTempFile("append", ".txt");
+    Path index = Path.of(file + ".index");
+    try {
+      Files.write(file, data);
+      IndexBuilder builder = new IndexBuilder(2, 1000);
+      builder.build(file, index);
+      // Overwritten tail
+      data[data.length - 10] ^= 1;
+      Files.write(file, data);
+      assertEquals(-1, builder.append(file, index));
+      // Truncated file
+      builder.build(file, index);
+      Files.write(file, Arrays.copyOf(data, data.length / 2));
+      assertEquals(-1, builder.append(file, index));
+      // Compact index is not appended
+      new IndexBuilder(2, 1000, FileIndex.Format.COMPACT, 64).build(file, index);
+      Files.write(file, data);
+      assertEquals(-1, builder.append(file, index));
+    } finally {
+      Files.deleteIfExists(file);
+      Files.deleteIfExists(index);
+    }
+  }
+
+  @Test
+  public void testInterruptedAppend() throws IOException {
+    Path file = Files.createTempFile("append", ".txt");
+    Path index = Path.of(file + ".index");
+    try {
+      // The last line has no terminator: its entry is the first one overwritten
+      Files.write(file, "line 1\nline 2".getBytes());
+      IndexBuilder builder = new IndexBuilder(2, 1000);
+      assertEquals(2, builder.build(file, index));
+      long size = Files.size(index);
+      Files.write(file, "line 1\nline 2 continues\n".getBytes());
+      // Append stops after the first entry, before the header is rewritten
+      IndexWriter out = IndexWriter.append(index, 1);
+      out.add(("line 1\nline 2 continues\n".length()) | (1L << FileIndex.TERMINATOR_SHIFT));
+      out.flush();
+      out.close();
+      assertEquals(size, Files.size(index));
+      try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+        assertNull(FileIndex.readHeader(channel));
+      }
+      assertEquals(-1, builder.append(file, index));
+      // Rebuilt index has a valid header
+      assertEquals(2, builder.build(file, index));
+      assertEquals(2, builder.append(file, index));
+    } finally {
+      Files.deleteIfExists(file);
+      Files.deleteIfExists(index);
+    }
+  }
+
+  @Test
+  public void testOtherVersion() throws IOException {
+    Path file = Files.createTempFile("version", ".txt");
+    Path index = Path.of(file + ".index");
+    try {
+      Files.write(file, "line 1\nline 2\n".getBytes());
+      new IndexBuilder(2, 1000).build(file, index);
+      try (FileChannel channel = FileChannel.open(index, StandardOpenOption.WRITE)) {
+        channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, FileIndex.VERSION - 1), 4);
+      }
+      try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+        assertNull(FileIndex.readHeader(channel));
+      }
+      assertEquals(-1, new IndexBuilder(2, 1000).append(file, index));
+      // Index of any other version is rebuilt
+      FileIndex.openOrCreate(file.toString());
+      try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+        assertEquals(FileIndex.VERSION, FileIndex.readHeader(channel).getInt(4));
+      }
+    } finally {
+      Files.deleteIfExists(file);
+      Files.deleteIfExists(index);
+    }
+  }
+
+  private void verifyAppend(byte[] data, int split) throws IOException {
+    Path file = Files.createTempFile("append", ".txt");
+    Path index = Path.of(file + ".index");
+    Path full = Path.of(file + ".full");
+    try {
+      IndexBuilder builder = new IndexBuilder(3, 777);
+      Files.write(file, Arrays.copyOf(data, split));
+      builder.build(file, index);
+      Files.write(file, data);
+      assertEquals(expectedOffsets(data).size() - 1, builder.append(file, index));
+      builder.build(file, full);
+      assertArrayEquals(Files.readAllBytes(full), Files.readAllBytes(index));
+      // Nothing to append
+      assertEquals(expectedOffsets(data).size() - 1, builder.append(file, index));
+    } finally {
+      Files.deleteIfExists(file);
+      Files.deleteIfExists(index);
+      Files.deleteIfExists(full);
+    }
+  }
+
+  private void verifyCompact(byte[] data, int blockLines) throws IOException {
+    Path file = Files.createTempFile("compact", ".txt");
+    Path dense = Files.createTempFile("dense", ".txt");
+    try {
+      Files.write(file, data);
+      Files.write(dense, data);
+      new IndexBuilder(2, 1000, FileIndex.Format.COMPACT, blockLines)
+          .build(file, Path.of(file + ".index"));
+      new IndexBuilder(2, 1000).build(dense, Path.of(dense + ".index"));
+      FileIndex compactIndex = FileIndex.getIndexFor(file.toString());
+      FileIndex denseIndex = FileIndex.getIndexFor(dense.toString());
+      assertEquals(FileIndex.Format.COMPACT, compactIndex.getFormat());
+      assertEquals(denseIndex.getTotalLines(), compactIndex.getTotalLines());
+      if (data.length > 1000 && blockLines >= FileIndex.DEFAULT_BLOCK_LINES) {
+        assertTrue(Files.size(Path.of(file + ".index")) * 4 < Files.size(Path.of(dense + ".index")));
+      }
+      FileIndex.Range expected = new FileIndex.Range();
+      FileIndex.Range actual = new FileIndex.Range();
+      for (long i = 0; i <= denseIndex.getTotalLines() + 1; i++) {
+        boolean found = denseIndex.getRange(i, expected);
+        assertEquals(found, compactIndex.getRange(i, actual));
+        if (found) {
+          assertEquals(expected.offset, actual.offset);
+          assertEquals(expected.size, actual.size);
+        }
+      }
+      // Records of ranges which start and end inside blocks and span several of them
+      long total = denseIndex.getTotalLines();
+      for (long from = 1; from <= total; from += Math.max(1, total / 7)) {
+        long to = Math.min(total, from + 3 * blockLines / 2);
+        List<Long> expectedRecords = new ArrayList<>();
+        List<Long> actualRecords = new ArrayList<>();
+        denseIndex.getRecords(from, to, expectedRecords::add, expected);
+        compactIndex.getRecords(from, to, actualRecords::add, actual);
+        assertEquals(to - from + 1, actualRecords.size());
+        assertEquals(expectedRecords, actualRecords);
+        assertEquals(expected.offset, actual.offset);
+        assertEquals(expected.size, actual.size);
+      }
+      compactIndex.close();
+      denseIndex.close();
+    } finally {
+      Files.deleteIfExists(file);
+      Files.deleteIfExists(dense);
+      Files.deleteIfExists(Path.of(file + ".index"));
+      Files.deleteIfExists(Path.of(dense + ".index"));
+    }
+  }
+
+  private void verify(byte[] data, int parallelism, int chunkSize) throws IOException {
+    Path file = Files.createTempFile("builder", ".txt");
+    Path index = Files.createTempFile("builder", ".txt.index");
+    try {
+      Files.write(file, data);
+      long lines = new IndexBuilder(parallelism, chunkSize).build(file, index);
+      List<Long> expected = expectedOffsets(data);
+      assertEquals(expected.size() - 1, lines);
+      assertEquals(FileIndex.HEADER_SIZE + expected.size() * 8L, Files.size(index));
+      try (DataInputStream dis = new DataInputStream(Files.newInputStream(index))) {
+        assertEquals(FileIndex.MAGIC, dis.readInt());
+        assertEquals(FileIndex.VERSION, dis.readInt());
+        assertEquals(lines, dis.readLong());
+        assertEquals(data.length, dis.readLong());
+        assertEquals(FileIndex.Format.DENSE.ordinal(), dis.readInt());
+        dis.skipBytes(FileIndex.HEADER_SIZE - 28);
+        for (long offset : expected) {
+          assertEquals(offset, dis.readLong());
+        }
+      }
+    } finally {
+      Files.deleteIfExists(file);
+      Files.deleteIfExists(index);
+    }
+  }
+
+  private List<Long> expectedOffsets(byte[] data) {
+    List<Long> list = new ArrayList<>();
+    list.add(0L);
+    for (int i = 0; i < data.length; i++) {
+      if (data[i] == '\n') {
+        long terminator = i > 0 && data[i - 1] == '\r' ? 2 : 1;
+        list.add((long) i + 1 | terminator << FileIndex.TERMINATOR_SHIFT);
+      }
+    }
+    if (data.length > 0 && data[data.length - 1] != '\n') {
+      list.add((long) data.length);
+    }
+    return list;
+  }
+
+  private byte[] randomText(Random r, int size, boolean noTrailingNewLine) {
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      int n = r.nextInt(20);
+      data[i] = n < 2 ? (byte) '\n' : n == 2 ? (byte) '\r' : (byte) ('A' + r.nextInt(26));
+    }
+    data[size - 1] = noTrailingNewLine ? (byte) 'Z' : (byte) '\n';
+    return data;
+  }
+}
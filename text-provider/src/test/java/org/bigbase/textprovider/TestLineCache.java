@@ -0,0 +1,114 @@
+package org.bigbase.textprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLineCache {
+
+  private final static int LINES = 10000;
+
+  private Path file;
+  private FileChannel channel;
+
+  @Before
+  public void setUp() throws IOException {
+    file = Files.createTempFile("cache", ".txt");
+    StringBuilder sb = new StringBuilder();
+    for (int i = 1; i <= LINES; i++) {
+      sb.append("line ").append(i).append('\n');
+    }
+    Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+    new IndexBuilder().build(file, Path.of(file + ".index"));
+    channel = FileChannel.open(file, StandardOpenOption.READ);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    channel.close();
+    FileIndex.getIndexFor(file.toString()).close();
+    Files.deleteIfExists(Path.of(file + ".index"));
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void testHitMiss() throws IOException {
+    LineCache cache = new LineCache(1 << 20);
+    FileIndex index = FileIndex.getIndexFor(file.toString());
+    assertNull(cache.get(7));
+    assertEquals("OK\r\nline 7\r\n", toString(load(cache, index, 7)));
+    ByteBuffer hit = cache.get(7);
+    assertNotNull(hit);
+    assertEquals("OK\r\nline 7\r\n", toString(hit));
+    // Every hit gets its own buffer position
+    assertEquals("OK\r\nline 7\r\n", toString(cache.get(7)));
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.entries());
+  }
+
+  @Test
+  public void testSizeBound() throws IOException {
+    long maxSize = 64 * 1024;
+    LineCache cache = new LineCache(maxSize);
+    FileIndex index = FileIndex.getIndexFor(file.toString());
+    for (int i = 1; i <= LINES; i++) {
+      if (cache.get(i) == null) {
+        load(cache, index, i);
+      }
+      assertTrue(cache.size() <= maxSize);
+    }
+    assertTrue(cache.getEvictions() > 0);
+    assertEquals(LINES, cache.getMisses());
+  }
+
+  @Test
+  public void testFrequentLinesSurviveScan() throws IOException {
+    LineCache cache = new LineCache(64 * 1024);
+    FileIndex index = FileIndex.getIndexFor(file.toString());
+    // Hot set is well below cache capacity
+    for (int round = 0; round < 10; round++) {
+      for (int i = 1; i <= 100; i++) {
+        if (cache.get(i) == null) {
+          load(cache, index, i);
+        }
+      }
+    }
+    // One pass over all lines must not flush hot lines
+    for (int i = 101; i <= LINES; i++) {
+      if (cache.get(i) == null) {
+        load(cache, index, i);
+      }
+    }
+    long hits = cache.getHits();
+    for (int i = 1; i <= 100; i++) {
+      cache.get(i);
+    }
+    assertTrue(cache.getHits() - hits >= 90);
+  }
+
+  private ByteBuffer load(LineCache cache, FileIndex index, long lineNumber)
+      throws IOException {
+    FileIndex.Range range = index.getRange(lineNumber);
+    return cache.load(lineNumber, channel, range);
+  }
+
+  private static String toString(ByteBuffer buf) {
+    byte[] bytes = new byte[buf.remaining()];
+    buf.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
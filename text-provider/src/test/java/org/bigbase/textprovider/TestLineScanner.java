@@ -0,0 +1,307 @@
+package org.bigbase.textprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.bigbase.textprovider.commands.Command;
+import org.bigbase.textprovider.commands.SCAN;
+import org.bigbase.textprovider.metrics.Metrics;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestLineScanner {
+
+  private final static int LINES = 100000;
+
+  static Path path;
+
+  @BeforeClass
+  public static void setUp() throws IOException {
+    // Small chunks: a scan is split into many of them
+    System.setProperty("textprovider.scan.chunk", "1024");
+    StringBuilder sb = new StringBuilder();
+    for (int i = 1; i <= LINES; i++) {
+      sb.append("line ").append(i).append(i % 7 == 0 ? " seven\r\n" : "\n");
+    }
+    path = Files.createTempFile("scan", ".txt");
+    Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+    FileIndex.openOrCreate(path.toString());
+    FileRegistry.register("scan", path.toString());
+  }
+
+  @AfterClass
+  public static void tearDown() throws IOException {
+    System.clearProperty("textprovider.scan.chunk");
+    FileRegistry.closeAll();
+    Files.deleteIfExists(Path.of(path + ".index"));
+    Files.deleteIfExists(path);
+  }
+
+  @Test
+  public void testSCAN() throws IOException {
+    FileIndex index = FileIndex.getIndexFor(path.toString());
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+      Command cmd = Command.getCommand("SCAN x");
+      assertTrue(cmd instanceof SCAN);
+      // Literal
+      assertEquals(expected("seven", 1, LINES), cmd.executeForTest("SCAN seven", file, index));
+      assertEquals(expected("99", 900, 2000), cmd.executeForTest("SCAN 99 900 2000", file, index));
+      // Regular expression
+      assertEquals(expected("^line 1\\d5 s", 1, LINES),
+        cmd.executeForTest("SCAN ^line\\s1\\d5\\ss", file, index));
+      // Range is truncated
+      assertEquals("OK\r\n99999 10\r\nline 99999\r\nEND 1 100001\r\n",
+        cmd.executeForTest("SCAN 99999 99990 200000", file, index));
+      assertEquals("OK\r\nEND 0 101\r\n", cmd.executeForTest("SCAN nope 1 100", file, index));
+      assertEquals("ERR\r\n", cmd.executeForTest("SCAN", file, index));
+      assertEquals("ERR\r\n", cmd.executeForTest("SCAN ( 1 10", file, index));
+      assertEquals("ERR\r\n", cmd.executeForTest("SCAN x 10 1", file, index));
+      assertEquals("ERR\r\n", cmd.executeForTest("SCAN x 0", file, index));
+      assertEquals("ERR\r\n", cmd.executeForTest("SCAN x y", file, index));
+    }
+  }
+
+  @Test
+  public void testQuit() throws IOException, InterruptedException {
+    verifyQuit("");
+  }
+
+  @Test
+  public void testQuitAfterRequests() throws IOException, InterruptedException {
+    // QUIT follows more requests than an input buffer holds
+    verifyQuit("GET 1\r\n".repeat(Connection.INPUT_BUFFER_SIZE / 6));
+  }
+
+  @Test
+  public void testHalfClose() throws IOException, InterruptedException {
+    long cancelled = Metrics.snapshot().get("scans.cancelled");
+    try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+      serverSocket.bind(new InetSocketAddress("localhost", 0));
+      SocketChannel client = SocketChannel.open();
+      client.connect(serverSocket.getLocalAddress());
+      SocketChannel channel = serverSocket.accept();
+      channel.configureBlocking(false);
+      Connection conn = new Connection(channel);
+      // Client sends a request, shuts down its output and reads all responses
+      send(client, "SCAN seven 1 20000\r\n");
+      client.shutdownOutput();
+      Thread.sleep(20);
+      Thread handler = serve(conn);
+      String response = receive(client, Integer.MAX_VALUE);
+      handler.join(10000);
+      assertEquals(expected("seven", 1, 20000), response);
+      assertEquals(cancelled, (long) Metrics.snapshot().get("scans.cancelled"));
+      assertTrue(!conn.isOpen());
+      client.close();
+    }
+  }
+
+  @Test
+  public void testSlowClient() throws IOException, InterruptedException {
+    long cancelled = Metrics.snapshot().get("scans.cancelled");
+    List<Thread> workers = new CopyOnWriteArrayList<>();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(8), r -> {
+        Thread t = new Thread(r);
+        workers.add(t);
+        return t;
+      });
+    EventLoop loop = new EventLoop("test-loop", pool, Long.MAX_VALUE, 
+      TimeUnit.SECONDS.toNanos(60));
+    loop.start();
+    try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+      serverSocket.bind(new InetSocketAddress("localhost", 0));
+      for (boolean quit : new boolean[] {false, true}) {
+        SocketChannel client = SocketChannel.open();
+        client.connect(serverSocket.getLocalAddress());
+        loop.register(serverSocket.accept());
+        send(client, "USE scan\r\nSCAN line\r\n");
+        assertEquals("OK\r\nOK\r\n", receive(client, 8));
+        // Client does not read: a scan waits for it and does not poll a socket
+        assertTrue(waitParked(workers));
+        Thread.sleep(50);
+        assertTrue(waitParked(workers));
+        if (quit) {
+          send(client, "QUIT\r\n");
+          String rest = receive(client, Integer.MAX_VALUE);
+          assertTrue(rest.startsWith("1 6\r\nline 1\r\n"));
+          assertTrue(rest.contains("END "));
+          assertEquals(cancelled + 1, (long) Metrics.snapshot().get("scans.cancelled"));
+        } else {
+          String expected = expected("line", 1, LINES);
+          assertEquals(expected, "OK\r\n" + receive(client, expected.length() - 4));
+        }
+        client.close();
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Waits until a worker is parked
+   */
+  private static boolean waitParked(List<Thread> workers) throws InterruptedException {
+    for (int i = 0; i < 5000; i++) {
+      for (Thread t : workers) {
+        for (StackTraceElement e : t.getStackTrace()) {
+          if (e.getMethodName().equals("awaitWritable") && t.getState() == Thread.State.WAITING) {
+            return true;
+          }
+        }
+      }
+      Thread.sleep(1);
+    }
+    return false;
+  }
+
+  private void verifyQuit(String before) throws IOException, InterruptedException {
+    long cancelled = Metrics.snapshot().get("scans.cancelled");
+    try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+      serverSocket.bind(new InetSocketAddress("localhost", 0));
+      SocketChannel client = SocketChannel.open();
+      client.connect(serverSocket.getLocalAddress());
+      SocketChannel channel = serverSocket.accept();
+      channel.configureBlocking(false);
+      Connection conn = new Connection(channel);
+      send(client, "SCAN line\r\n");
+      Thread.sleep(20);
+      Thread handler = serve(conn);
+      // Matches are streamed while a scan runs
+      String head = receive(client, 100);
+      assertTrue(head.startsWith("OK\r\n1 6\r\nline 1\r\n"));
+      send(client, before + "QUIT\r\n");
+      handler.join(10000);
+      // Scan has stopped, QUIT closes connection
+      String rest = receive(client, Integer.MAX_VALUE);
+      // Responses to requests which precede QUIT follow the end of a scan
+      int pos = rest.lastIndexOf("END ");
+      String end = rest.substring(pos, rest.indexOf("\r\n", pos));
+      long next = Long.parseLong(end.split(" ")[2]);
+      assertTrue(next <= LINES);
+      assertEquals(cancelled + 1, (long) Metrics.snapshot().get("scans.cancelled"));
+      assertTrue(!conn.isOpen());
+      client.close();
+    }
+  }
+
+  @Test
+  public void testMultiByte() throws IOException {
+    String[] lines = {"abc", "\u00e9\u00e9\u00e9", "na\u00efve caf\u00e9", "caf\u00e9 \u20ac5", "cafe"};
+    Path file = Files.createTempFile("scan-utf8", ".txt");
+    try {
+      Files.write(file, (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+      FileIndex.openOrCreate(file.toString());
+      FileIndex index = FileIndex.getIndexFor(file.toString());
+      try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+        // Quantifiers and classes apply to characters, not bytes
+        assertEquals("[1, 2]", matches("^.{3}$", raf, index));
+        assertEquals("[2, 3, 4]", matches("[\u00e9\u00ef]", raf, index));
+        assertEquals("[3, 4]", matches("caf\u00e9\\b", raf, index));
+        assertEquals("[4]", matches("\u20ac\\d$", raf, index));
+        // Literal is searched as UTF-8 bytes
+        assertEquals("[3, 4]", matches("caf\u00e9", raf, index));
+      } finally {
+        index.close();
+      }
+    } finally {
+      Files.deleteIfExists(Path.of(file + ".index"));
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /**
+   * Line numbers of matches
+   */
+  private static String matches(String pattern, RandomAccessFile file, FileIndex index)
+      throws IOException {
+    List<Long> found = new ArrayList<>();
+    new LineScanner(pattern, file.getChannel(), index).scan(1, index.getTotalLines(),
+      new LineScanner.Output() {
+        @Override
+        public boolean match(long lineNumber, long offset, long size) {
+          found.add(lineNumber);
+          return true;
+        }
+
+        @Override
+        public boolean chunkDone() {
+          return true;
+        }
+      });
+    return found.toString();
+  }
+
+  /**
+   * Processes requests of a connection and sends responses until it is closed,
+   * as an event loop does
+   */
+  private static Thread serve(Connection conn) {
+    Thread t = new Thread(() -> {
+      new RequestHandler(conn).run();
+      try {
+        while (conn.isOpen()) {
+          conn.onWritable();
+          Thread.sleep(1);
+        }
+      } catch (IOException | InterruptedException e) {
+        conn.close();
+      }
+    });
+    t.start();
+    return t;
+  }
+
+  /**
+   * Brute force scan
+   */
+  private static String expected(String regex, int from, int to) throws IOException {
+    Pattern p = Pattern.compile(regex);
+    StringBuilder sb = new StringBuilder("OK\r\n");
+    int count = 0;
+    for (int i = from; i <= to; i++) {
+      String line = "line " + i + (i % 7 == 0 ? " seven" : "");
+      if (p.matcher(line).find()) {
+        sb.append(i).append(' ').append(line.length()).append("\r\n");
+        sb.append(line).append("\r\n");
+        count++;
+      }
+    }
+    return sb.append("END ").append(count).append(' ').append(to + 1).append("\r\n").toString();
+  }
+
+  private static void send(SocketChannel client, String s) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(s.getBytes());
+    while (buf.hasRemaining()) {
+      client.write(buf);
+    }
+  }
+
+  private static String receive(SocketChannel client, int size) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(Math.min(size, 8 * 1024 * 1024));
+    while (buf.hasRemaining()) {
+      if (client.read(buf) < 0) {
+        break;
+      }
+    }
+    return new String(buf.array(), 0, buf.position());
+  }
+}
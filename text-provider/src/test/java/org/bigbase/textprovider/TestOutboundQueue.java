@@ -0,0 +1,160 @@
+package org.bigbase.textprovider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.bigbase.textprovider.commands.Command;
+import org.bigbase.textprovider.metrics.Metrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestOutboundQueue {
+
+  Path path;
+  byte[] text;
+  FileChannel file;
+  ServerSocketChannel serverSocket;
+  SocketChannel server;
+  SocketChannel client;
+
+  @Before
+  public void setUp() throws IOException {
+    byte[] line = new byte[4096];
+    for (int i = 0; i < line.length; i++) {
+      line[i] = (byte) ('a' + i % 26);
+    }
+    text = line;
+    path = Files.createTempFile("outbound", ".txt");
+    Files.write(path, text);
+    file = FileChannel.open(path, StandardOpenOption.READ);
+    serverSocket = ServerSocketChannel.open();
+    serverSocket.bind(new InetSocketAddress("localhost", 0));
+    client = SocketChannel.open(serverSocket.getLocalAddress());
+    server = serverSocket.accept();
+    server.configureBlocking(false);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    client.close();
+    server.close();
+    serverSocket.close();
+    file.close();
+    Files.deleteIfExists(path);
+  }
+
+  @Test
+  public void testSmallResponses() throws IOException {
+    OutboundQueue queue = new OutboundQueue();
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < 200; i++) {
+      queue.add(Command.OK);
+      queue.add(file, i, 10);
+      queue.add(Command.CRLF);
+      expected.write(Command.OK);
+      expected.write(text, i, 10);
+      expected.write(Command.CRLF);
+    }
+    long writes = Metrics.snapshot().get("socket.writes");
+    assertArrayEquals(expected.toByteArray(), drain(queue, expected.size()));
+    // A batch is written at once, not with a write and a file transfer per response
+    assertTrue(Metrics.snapshot().get("socket.writes") - writes <= 2);
+
+    // Arena is returned when the queue is drained and is borrowed again
+    assertFalse(queue.hasArena());
+    queue.add("second".getBytes());
+    assertTrue(queue.hasArena());
+    assertArrayEquals("second".getBytes(), drain(queue, 6));
+    assertFalse(queue.hasArena());
+
+    // Discarded segments return the arena too
+    queue.add(Command.OK);
+    queue.clear();
+    assertFalse(queue.hasArena());
+  }
+
+  @Test
+  public void testMixedResponses() throws IOException {
+    OutboundQueue queue = new OutboundQueue();
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    ByteBuffer header = ByteBuffer.allocate(4);
+    queue.addReserved(header);
+    for (int i = 0; i < 3; i++) {
+      // Large regions are transferred, small segments between them are coalesced
+      queue.add(Command.OK);
+      queue.add(file, i, text.length - i);
+      queue.add(Command.CRLF);
+    }
+    // Buffers larger than an arena slot are not copied
+    byte[] large = new byte[100 * 1024];
+    Arrays.fill(large, (byte) 'x');
+    for (int i = 0; i < 2; i++) {
+      queue.add(ByteBuffer.wrap(large));
+    }
+    // Reserved buffer is filled after it is queued
+    header.putInt(0, 12345);
+    expected.write(header.array());
+    for (int i = 0; i < 3; i++) {
+      expected.write(Command.OK);
+      expected.write(text, i, text.length - i);
+      expected.write(Command.CRLF);
+    }
+    expected.write(large);
+    expected.write(large);
+    assertArrayEquals(expected.toByteArray(), drain(queue, expected.size()));
+  }
+
+  @Test
+  public void testArenaOverflow() throws IOException {
+    OutboundQueue queue = new OutboundQueue();
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    // More than an arena holds: the rest is queued as is
+    for (int i = 0; i < 200; i++) {
+      byte[] data = ("line " + i + " ").getBytes(StandardCharsets.UTF_8);
+      queue.add(data);
+      queue.add(file, 0, 1000);
+      expected.write(data);
+      expected.write(text, 0, 1000);
+    }
+    assertArrayEquals(expected.toByteArray(), drain(queue, expected.size()));
+  }
+
+  /**
+   * Flushes queue and reads what has been sent
+   */
+  private byte[] drain(OutboundQueue queue, int size) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+    boolean flushed = false;
+    while (!flushed || out.size() < size) {
+      if (!flushed) {
+        flushed = queue.flush(server);
+      }
+      if (out.size() < size) {
+        buf.clear();
+        int n = client.read(buf);
+        if (n < 0) {
+          break;
+        }
+        out.write(buf.array(), 0, n);
+      }
+    }
+    assertTrue(queue.isEmpty());
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,128 @@
+package org.bigbase.textprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.bigbase.textprovider.metrics.Metrics;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestReadahead {
+
+  private final static int LINES = 20000;
+
+  static Path path;
+
+  ServerSocketChannel serverSocket;
+  SocketChannel client;
+  Connection conn;
+
+  @BeforeClass
+  public static void setUp() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 1; i <= LINES; i++) {
+      sb.append("line ").append(i).append(i % 7 == 0 ? "\r\n" : "\n");
+    }
+    path = Files.createTempFile("readahead", ".txt");
+    Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+    FileIndex.openOrCreate(path.toString());
+    FileRegistry.register("readahead", path.toString());
+  }
+
+  @AfterClass
+  public static void tearDown() throws IOException {
+    FileRegistry.closeAll();
+    Files.deleteIfExists(Path.of(path + ".index"));
+    Files.deleteIfExists(path);
+  }
+
+  @Before
+  public void connect() throws IOException {
+    serverSocket = ServerSocketChannel.open();
+    serverSocket.bind(new InetSocketAddress("localhost", 0));
+    client = SocketChannel.open();
+    client.connect(serverSocket.getLocalAddress());
+    SocketChannel channel = serverSocket.accept();
+    channel.configureBlocking(false);
+    conn = new Connection(channel);
+  }
+
+  @After
+  public void close() throws IOException {
+    conn.close();
+    client.close();
+    serverSocket.close();
+  }
+
+  @Test
+  public void testSequentialScan() throws IOException, InterruptedException {
+    long hits = Metrics.snapshot().get("readahead.hits");
+    // Lines of a batch cross block boundaries: some are served from the ring,
+    // the rest are sent from a file, the result must be the same
+    for (int from = 1; from <= 12000; from += 1000) {
+      get(from, from + 999);
+      // Let readahead complete
+      Thread.sleep(20);
+    }
+    assertTrue(Metrics.snapshot().get("readahead.hits") - hits > 1000);
+    assertTrue(conn.getReadahead().hasRing());
+    // Ring is released when a connection is not sequential anymore
+    get(5, 5);
+    assertFalse(conn.getReadahead().hasRing());
+  }
+
+  @Test
+  public void testRandomAccess() throws IOException, InterruptedException {
+    long hits = Metrics.snapshot().get("readahead.hits");
+    get(5, 5);
+    get(700, 700);
+    get(3, 3);
+    get(19999, 20000);
+    Thread.sleep(20);
+    get(1000, 1001);
+    assertEquals(hits, (long) Metrics.snapshot().get("readahead.hits"));
+  }
+
+  private void get(int from, int to) throws IOException, InterruptedException {
+    StringBuilder request = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = from; i <= to; i++) {
+      request.append("GET ").append(i).append("\r\n");
+      expected.append("OK\r\nline ").append(i).append("\r\n");
+    }
+    send(request.toString());
+    Thread.sleep(20);
+    new RequestHandler(conn).run();
+    assertEquals(expected.toString(), receive(expected.length()));
+  }
+
+  private void send(String s) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(s.getBytes());
+    while (buf.hasRemaining()) {
+      client.write(buf);
+    }
+  }
+
+  private String receive(int size) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    while (buf.hasRemaining()) {
+      if (client.read(buf) < 0) {
+        break;
+      }
+    }
+    return new String(buf.array(), 0, buf.position());
+  }
+}
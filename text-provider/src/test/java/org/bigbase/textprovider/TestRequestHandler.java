@@ -0,0 +1,279 @@
+package org.bigbase.textprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.bigbase.textprovider.compress.BlockFile;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestRequestHandler {
+
+  static String filePath = TestUtils.getResourcePath("test.txt");
+  static Path other;
+  static Path packed;
+
+  ServerSocketChannel serverSocket;
+  SocketChannel client;
+  Connection conn;
+
+  @BeforeClass
+  public static void setUp() throws IOException {
+    FileIndex.openOrCreate(filePath);
+    FileRegistry.register("test.txt", filePath);
+    other = Files.createTempFile("other", ".txt");
+    Files.write(other, "one\ntwo\n".getBytes(StandardCharsets.UTF_8));
+    FileIndex.openOrCreate(other.toString());
+    FileRegistry.register("other", other.toString());
+    // Block compressed file
+    StringBuilder sb = new StringBuilder();
+    for (int i = 1; i <= 2000; i++) {
+      sb.append("line ").append(i).append(i % 7 == 0 ? " seven\r\n" : "\n");
+    }
+    Path text = Files.createTempFile("packed", ".txt");
+    Files.write(text, sb.toString().getBytes(StandardCharsets.UTF_8));
+    packed = Files.createTempFile("packed", ".lz4");
+    BlockFile.compress(text, packed, BlockFile.MIN_BLOCK_SIZE);
+    Files.delete(text);
+    FileIndex.openOrCreate(packed.toString());
+    FileRegistry.register("packed", packed.toString());
+  }
+
+  @AfterClass
+  public static void tearDown() throws IOException {
+    FileRegistry.closeAll();
+    Files.deleteIfExists(Path.of(other + ".index"));
+    Files.deleteIfExists(other);
+    Files.deleteIfExists(Path.of(packed + ".index"));
+    Files.deleteIfExists(packed);
+  }
+
+  @Before
+  public void connect() throws IOException {
+    serverSocket = ServerSocketChannel.open();
+    serverSocket.bind(new InetSocketAddress("localhost", 0));
+    client = SocketChannel.open();
+    client.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+    client.connect(serverSocket.getLocalAddress());
+    SocketChannel channel = serverSocket.accept();
+    channel.configureBlocking(false);
+    conn = new Connection(channel);
+  }
+
+  @After
+  public void close() throws IOException {
+    conn.close();
+    client.close();
+    serverSocket.close();
+  }
+
+  @Test
+  public void testPipelinedRequests() throws IOException, InterruptedException {
+    send("GET 1\r\nGET 2\r\nGET 100\r\nGE");
+    process();
+    assertEquals("OK\r\nAAAAAAA\r\nOK\r\nBBBBBBBBBB\r\nERR\r\n",
+      receive("OK\r\nAAAAAAA\r\nOK\r\nBBBBBBBBBB\r\nERR\r\n".length()));
+    // Complete partial request
+    send("T 3\r\n");
+    process();
+    assertEquals("OK\r\nCCCCCCCCCCCC\r\n", receive("OK\r\nCCCCCCCCCCCC\r\n".length()));
+  }
+
+  @Test
+  public void testPipelinedQuit() throws IOException, InterruptedException {
+    send("GET 25\r\nQUIT\r\nGET 1\r\n");
+    process();
+    assertEquals("OK\r\nW\r\n", receive("OK\r\nW\r\n".length()));
+    assertFalse(conn.isOpen());
+    assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+  }
+
+  @Test
+  public void testSlowReader() throws IOException, InterruptedException {
+    int n = 1000;
+    String expected = "OK\r\nPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP\r\n";
+    conn.getChannel().setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < n; i++) {
+      sb.append("GET 16\r\n");
+    }
+    send(sb.toString());
+    process();
+    // Client has not read anything yet, so not everything could be sent
+    assertFalse(conn.flush());
+    ByteBuffer buf = ByteBuffer.allocate(expected.length() * n);
+    client.configureBlocking(false);
+    while (buf.hasRemaining()) {
+      client.read(buf);
+      conn.onWritable();
+    }
+    String result = new String(buf.array());
+    for (int i = 0; i < n; i++) {
+      assertEquals(expected, result.substring(i * expected.length(), (i + 1) * expected.length()));
+    }
+    assertTrue(conn.flush());
+  }
+
+  @Test
+  public void testMultiLineRequests() throws IOException, InterruptedException {
+    send("MGET 2 100 13\r\nGETRANGE 1 2\r\n");
+    process();
+    String expected = "OK 3\r\n$10\r\nBBBBBBBBBB\r\n$-1\r\n$1\r\nM\r\n" +
+        "OK 2 19\r\n8 11\r\nAAAAAAA\nBBBBBBBBBB\n\r\n";
+    assertEquals(expected, receive(expected.length()));
+  }
+
+  @Test
+  public void testStats() throws IOException, InterruptedException {
+    send("GET 1\r\nSTATS\r\n");
+    process();
+    String get = "OK\r\nAAAAAAA\r\n";
+    assertEquals(get, receive(get.length()));
+    client.configureBlocking(false);
+    Thread.sleep(50);
+    String stats = receive(64 * 1024);
+    String[] lines = stats.split("\r\n");
+    assertTrue(lines[0].startsWith("OK "));
+    assertEquals(Integer.parseInt(lines[0].substring(3)), lines.length - 1);
+    assertTrue(stats.contains("\r\ncommand.GET.count "));
+    assertTrue(stats.contains("\r\nconnections.active "));
+    assertTrue(stats.contains("\r\nbytes.transferred "));
+  }
+
+  @Test
+  public void testMultipleFiles() throws IOException, InterruptedException {
+    send("GET other 2\r\nGET 2\r\nUSE other\r\nGET 1\r\nMGET test.txt 13\r\n" +
+        "USE none\r\nGET 2\r\nGET none 1\r\n");
+    process();
+    String expected = "OK\r\ntwo\r\nOK\r\nBBBBBBBBBB\r\nOK\r\nOK\r\none\r\n" +
+        "OK 1\r\n$1\r\nM\r\nERR\r\nOK\r\ntwo\r\nERR\r\n";
+    assertEquals(expected, receive(expected.length()));
+    // Responses have been sent, files are not referenced
+    assertEquals(0, FileRegistry.get("test.txt").getReferenceCount());
+    assertEquals(0, FileRegistry.get("other").getReferenceCount());
+  }
+
+  @Test
+  public void testCompressedFile() throws IOException, InterruptedException {
+    // Lines are read from decompressed blocks, a scan reads its chunks
+    send("USE packed\r\nGET 2\r\nGET 1999\r\nSCAN seven 1 20\r\nSCAN 199[5-8] 1990\r\n");
+    process();
+    String expected = "OK\r\nOK\r\nline 2\r\nOK\r\nline 1999\r\n" +
+        "OK\r\n7 12\r\nline 7 seven\r\n14 13\r\nline 14 seven\r\nEND 2 21\r\n" +
+        "OK\r\n1995 15\r\nline 1995 seven\r\n1996 9\r\nline 1996\r\n1997 9\r\nline 1997\r\n" +
+        "1998 9\r\nline 1998\r\nEND 4 2001\r\n";
+    assertEquals(expected, receive(expected.length()));
+  }
+
+  @Test
+  public void testInFlightLimit() throws IOException, InterruptedException {
+    // A large batch is not an overload: the client reads responses
+    StringBuilder requests = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 1500; i++) {
+      requests.append("GET 1\r\n");
+      expected.append("OK\r\nAAAAAAA\r\n");
+    }
+    send(requests.toString());
+    process();
+    assertEquals(expected.toString(), receiveAll());
+
+    // Slow reader: responses which the socket does not accept are limited
+    send("GETRANGE 1 25\r\n");
+    process();
+    String range = receiveAll();
+    assertTrue(range.startsWith("OK 25 "));
+    conn.getChannel().setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+    int n = 1000;
+    requests.setLength(0);
+    for (int i = 0; i < n; i++) {
+      requests.append("GETRANGE 1 25\r\n");
+    }
+    send(requests.toString());
+    process();
+    String result = receiveAll();
+    // Every request gets a full response or BUSY, in order. Requests are shed while
+    // unsent responses exceed the limit, the socket can drain some of them meanwhile
+    int pos = 0, full = 0, busy = 0;
+    while (pos < result.length()) {
+      if (result.startsWith(range, pos)) {
+        pos += range.length();
+        full++;
+      } else {
+        assertTrue(result.startsWith("BUSY\r\n", pos));
+        pos += "BUSY\r\n".length();
+        busy++;
+      }
+    }
+    assertEquals(n, full + busy);
+    assertTrue(full > 0 && busy > 0);
+    assertTrue(result.startsWith(range));
+
+    // Limit applies until responses are sent
+    send("GET 1\r\n");
+    process();
+    assertEquals("OK\r\nAAAAAAA\r\n", receiveAll());
+  }
+
+  /**
+   * Reads all responses, the server resumes sending as a client reads
+   */
+  private String receiveAll() throws IOException, InterruptedException {
+    StringBuilder sb = new StringBuilder();
+    ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+    client.configureBlocking(false);
+    int idle = 0;
+    while (idle < 5) {
+      buf.clear();
+      int read = client.read(buf);
+      sb.append(new String(buf.array(), 0, Math.max(read, 0)));
+      conn.onWritable();
+      if (read > 0) {
+        idle = 0;
+      } else {
+        idle++;
+        Thread.sleep(10);
+      }
+    }
+    client.configureBlocking(true);
+    return sb.toString();
+  }
+
+  private void send(String s) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(s.getBytes());
+    while (buf.hasRemaining()) {
+      client.write(buf);
+    }
+  }
+
+  private void process() throws InterruptedException {
+    // Let loopback deliver data to the server side
+    Thread.sleep(50);
+    new RequestHandler(conn).run();
+  }
+
+  private String receive(int size) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    while (buf.hasRemaining()) {
+      int read = client.read(buf);
+      if (read < 0 || (read == 0 && !client.isBlocking())) {
+        break;
+      }
+    }
+    return new String(buf.array(), 0, buf.position());
+  }
+}
@@ -0,0 +1,147 @@
+package org.bigbase.textprovider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bigbase.textprovider.commands.Command;
+import org.bigbase.textprovider.commands.FIND;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestTermIndex {
+
+  private final static int LINES = 5000;
+
+  private final static String[] WORDS = new String[] {
+      "alpha", "Beta", "GAMMA", "delta", "epsilon", "zeta", "eta", "theta", "42", "x1",
+      "été", "жук"
+  };
+
+  static Path path;
+  static List<String> lines = new ArrayList<String>();
+
+  @BeforeClass
+  public static void setUp() throws IOException {
+    Random r = new Random(1);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 1; i <= LINES; i++) {
+      StringBuilder line = new StringBuilder();
+      int words = r.nextInt(6);
+      for (int k = 0; k < words; k++) {
+        // Words are repeated in a line, rare ones are in a few lines only
+        int w = r.nextInt(i % 100 == 0 ? WORDS.length : WORDS.length - 2);
+        line.append(WORDS[w]).append(k % 2 == 0 ? " " : ", ");
+      }
+      if (i % 1000 == 0) {
+        // Too long term
+        line.append("a".repeat(TermIndex.MAX_TERM_LENGTH + 1));
+      }
+      lines.add(line.toString());
+      sb.append(line);
+      if (i < LINES) {
+        // The last line has no terminator
+        sb.append(i % 3 == 0 ? "\r\n" : "\n");
+      }
+    }
+    path = Files.createTempFile("terms", ".txt");
+    Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+    FileIndex.openOrCreate(path.toString());
+    // Small memory budget: postings are merged from many runs
+    new TermIndexBuilder(4096).build(path, TermIndex.termsPath(path));
+    TermIndex.openOrCreate(path.toString());
+  }
+
+  @AfterClass
+  public static void tearDown() throws IOException {
+    TermIndex.closeAll();
+    FileIndex.closeAll();
+    Files.deleteIfExists(TermIndex.termsPath(path));
+    Files.deleteIfExists(Path.of(path + ".index"));
+    Files.deleteIfExists(path);
+  }
+
+  @Test
+  public void testFind() throws IOException {
+    TermIndex index = TermIndex.getFor(path.toString());
+    assertEquals(LINES, index.getTotalLines());
+    assertEquals(WORDS.length, index.getTermCount());
+    long[] total = new long[1];
+    for (String word : WORDS) {
+      long[] expected = scan(word);
+      // ASCII letters are case-insensitive
+      String query = word.matches("\\p{ASCII}+") ? word.toUpperCase() : word;
+      long[] found = index.find(TermIndex.normalize(query), LINES, total);
+      assertArrayEquals(word, expected, found);
+      assertEquals(expected.length, total[0]);
+      // Limit
+      found = index.find(TermIndex.normalize(word), 3, total);
+      assertEquals(3, found.length);
+      assertEquals(expected[2], found[2]);
+      assertEquals(expected.length, total[0]);
+    }
+    assertEquals(0, index.find(TermIndex.normalize("omega"), 10, total).length);
+    assertEquals(0, total[0]);
+    assertEquals(0, index.find(TermIndex.normalize("a".repeat(TermIndex.MAX_TERM_LENGTH)),
+      10, total).length);
+  }
+
+  @Test
+  public void testNormalize() {
+    assertArrayEquals("abc1".getBytes(), TermIndex.normalize("AbC1"));
+    assertNull(TermIndex.normalize("two words"));
+    assertNull(TermIndex.normalize("a-b"));
+    assertNull(TermIndex.normalize(""));
+    assertNull(TermIndex.normalize("a".repeat(TermIndex.MAX_TERM_LENGTH + 1)));
+  }
+
+  @Test
+  public void testFIND() throws IOException {
+    FileIndex index = FileIndex.getIndexFor(path.toString());
+    long[] expected = scan("zeta");
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+      Command cmd = Command.getCommand("FIND zeta 2 LINES");
+      assertTrue(cmd instanceof FIND);
+      String line1 = lines.get((int) expected[0] - 1);
+      String line2 = lines.get((int) expected[1] - 1);
+      assertEquals("OK 2 " + expected.length + "\r\n" + expected[0] + " " + expected[1] +
+        "\r\n$" + line1.length() + "\r\n" + line1 + "\r\n$" + line2.length() + "\r\n" +
+        line2 + "\r\n", cmd.executeForTest("FIND zeta 2 LINES", file, index));
+      assertEquals("OK 1 " + expected.length + "\r\n" + expected[0] + "\r\n",
+        cmd.executeForTest("FIND Zeta 1", file, index));
+      assertEquals("OK 0 0\r\n\r\n", cmd.executeForTest("FIND omega", file, index));
+      assertEquals("ERR\r\n", cmd.executeForTest("FIND", file, index));
+      assertEquals("ERR\r\n", cmd.executeForTest("FIND zeta 0", file, index));
+      assertEquals("ERR\r\n", cmd.executeForTest("FIND zeta eta", file, index));
+      assertEquals("ERR\r\n", cmd.executeForTest("FIND a-b", file, index));
+    }
+  }
+
+  /**
+   * Brute force search
+   */
+  private static long[] scan(String word) {
+    String term = word.toLowerCase();
+    List<Long> found = new ArrayList<Long>();
+    for (int i = 0; i < lines.size(); i++) {
+      for (String t : lines.get(i).toLowerCase().split("[ ,]+")) {
+        if (t.equals(term)) {
+          found.add(i + 1L);
+          break;
+        }
+      }
+    }
+    return found.stream().mapToLong(Long::longValue).toArray();
+  }
+}
@@ -0,0 +1,28 @@
+package org.bigbase.textprovider;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+/**
+ * Test helpers
+ */
+public class TestUtils {
+
+  /**
+   * Resolves absolute path of a test resource
+   * @param name resource name
+   * @return absolute file path
+   */
+  public static String getResourcePath(String name) {
+    URL url = TestUtils.class.getClassLoader().getResource(name);
+    if (url == null) {
+      throw new IllegalArgumentException("Resource not found: " + name);
+    }
+    try {
+      return new File(url.toURI()).getAbsolutePath();
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+}
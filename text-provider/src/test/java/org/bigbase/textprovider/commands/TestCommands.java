@@ -7,12 +7,13 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 
 import org.bigbase.textprovider.FileIndex;
+import org.bigbase.textprovider.TestUtils;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 public class TestCommands{
 
-  static String filePath = "/Users/vrodionov/Development/starburst/text-provider/src/test/resources/test.txt";
+  static String filePath = TestUtils.getResourcePath("test.txt");
   String[] expected = new String[] {
       "OK\r\nAAAAAAA\r\n",
       "OK\r\nBBBBBBBBBB\r\n",
@@ -111,4 +112,55 @@ public class TestCommands{
     }
   }
   
+  @Test
+  public void testGETRANGE() throws IOException {
+    Command cmd = Command.getCommand("GETRANGE 1 2");
+    assertTrue (cmd instanceof GETRANGE);
+    RandomAccessFile file = new RandomAccessFile(filePath, "r");
+    FileIndex index = FileIndex.getIndexFor(filePath);
+    
+    assertEquals("ERR\r\n", cmd.executeForTest("GETRANGE 1", file, index));
+    assertEquals("ERR\r\n", cmd.executeForTest("GETRANGE A 2", file, index));
+    assertEquals("ERR\r\n", cmd.executeForTest("GETRANGE 0 2", file, index));
+    assertEquals("ERR\r\n", cmd.executeForTest("GETRANGE 3 2", file, index));
+    assertEquals("ERR\r\n", 
+      cmd.executeForTest("GETRANGE " + (expected.length + 1) + " 100", file, index));
+    
+    assertEquals("OK 2 19\r\n8 11\r\nAAAAAAA\nBBBBBBBBBB\n\r\n", 
+      cmd.executeForTest("GETRANGE 1 2", file, index));
+    // Range is truncated to the last line
+    assertEquals("OK 2 17\r\n15 2\r\nYYYYYYYYYYYYYY\nW\n\r\n", 
+      cmd.executeForTest("GETRANGE 24 1000", file, index));
+    String result;
+    
+    // Whole file
+    result = cmd.executeForTest("GETRANGE 1 " + expected.length, file, index);
+    String[] parts = result.split("\r\n", 3);
+    String[] lengths = parts[1].split(" ");
+    assertEquals(expected.length, lengths.length);
+    String span = parts[2];
+    int off = 0;
+    for (int i = 0; i < expected.length; i++) {
+      int len = Integer.parseInt(lengths[i]);
+      String line = span.substring(off, off + len).replaceAll("\r?\n$", "");
+      assertEquals(expected[i], "OK\r\n" + line + "\r\n");
+      off += len;
+    }
+    file.close();
+  }
+  
+  @Test
+  public void testMGET() throws IOException {
+    Command cmd = Command.getCommand("MGET 1");
+    assertTrue (cmd instanceof MGET);
+    RandomAccessFile file = new RandomAccessFile(filePath, "r");
+    FileIndex index = FileIndex.getIndexFor(filePath);
+    
+    assertEquals("ERR\r\n", cmd.executeForTest("MGET", file, index));
+    assertEquals("ERR\r\n", cmd.executeForTest("MGET 1 B", file, index));
+    assertEquals("OK 3\r\n$1\r\nM\r\n$-1\r\n$7\r\nAAAAAAA\r\n", 
+      cmd.executeForTest("MGET 13 0 1", file, index));
+    file.close();
+  }
+  
 }
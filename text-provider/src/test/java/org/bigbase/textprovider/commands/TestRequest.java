@@ -0,0 +1,90 @@
+package org.bigbase.textprovider.commands;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class TestRequest {
+
+  @Test
+  public void testParse() {
+    Request req = Request.of("GET 123");
+    assertEquals("GET", req.getCommandName());
+    assertEquals(1, req.getArgCount());
+    assertTrue(req.isNumber(0));
+    assertEquals(123, req.getLong(0));
+
+    req = Request.of("  MGET 1   -2 x ");
+    assertEquals("MGET", req.getCommandName());
+    assertEquals(3, req.getArgCount());
+    assertEquals(-2, req.getLong(1));
+    assertFalse(req.isNumber(2));
+    assertFalse(req.allNumbers());
+    assertEquals("x", req.getString(2));
+
+    req = Request.of("");
+    assertEquals(0, req.getArgCount());
+    assertEquals("", req.getCommandName());
+  }
+
+  @Test
+  public void testNumbers() {
+    Request req = Request.of("GET " + Long.MAX_VALUE + " 9223372036854775808 - 1a");
+    assertTrue(req.isNumber(0));
+    assertEquals(Long.MAX_VALUE, req.getLong(0));
+    // overflow
+    assertFalse(req.isNumber(1));
+    assertFalse(req.isNumber(2));
+    assertFalse(req.isNumber(3));
+  }
+
+  @Test
+  public void testReuse() {
+    ByteBuffer buf = ByteBuffer.allocateDirect(1024);
+    StringBuilder sb = new StringBuilder("MGET");
+    for (int i = 1; i <= 100; i++) {
+      sb.append(' ').append(i);
+    }
+    sb.append("\r\nGET 5\r\n");
+    buf.put(sb.toString().getBytes());
+    Request req = new Request();
+    int end = sb.indexOf("\r\n");
+    req.parse(buf, 0, end);
+    assertSame(CommandTable.lookup(req).getClass(), MGET.class);
+    assertEquals(100, req.getArgCount());
+    assertEquals(100, req.getLong(99));
+    req.parse(buf, end + 2, sb.length() - 2);
+    assertTrue(Command.getCommand(req) instanceof GET);
+    assertEquals(1, req.getArgCount());
+    assertEquals(5, req.getLong(0));
+  }
+
+  @Test
+  public void testLookup() {
+    assertTrue(Command.getCommand("GETRANGE 1 2") instanceof GETRANGE);
+    assertTrue(Command.getCommand("GETX 1") instanceof ERR);
+    assertTrue(Command.getCommand("get 1") instanceof ERR);
+    // Commands are singletons
+    assertSame(Command.getCommand("GET 1"), Command.getCommand("GET 2"));
+  }
+
+  @Test
+  public void testRemoveArgument() {
+    Request req = Request.of("MGET corpus 1 2");
+    assertTrue(req.isArgument(0, "corpus".getBytes()));
+    assertFalse(req.isArgument(1, "corpus".getBytes()));
+    assertFalse(req.isArgument(3, "corpus".getBytes()));
+    assertFalse(req.allNumbers());
+    req.removeArgument(0);
+    assertEquals(2, req.getArgCount());
+    assertTrue(req.allNumbers());
+    assertEquals(1, req.getLong(0));
+    assertEquals(2, req.getLong(1));
+    assertEquals("MGET 1 2", req.toString());
+  }
+}
@@ -0,0 +1,208 @@
+package org.bigbase.textprovider.compress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bigbase.textprovider.FileIndex;
+import org.bigbase.textprovider.LineScanner;
+import org.bigbase.textprovider.metrics.Metrics;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestBlockFile {
+
+  private final static int LINES = 20000;
+
+  static Path text;
+  static Path compressed;
+
+  @BeforeClass
+  public static void setUp() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    Random r = new Random(1);
+    for (int i = 1; i <= LINES; i++) {
+      sb.append("line ").append(i).append(' ').append(r.nextInt(1000));
+      sb.append(i % 7 == 0 ? " seven\r\n" : "\n");
+    }
+    // The last line has no terminator
+    sb.append("last");
+    text = Files.createTempFile("block", ".txt");
+    Files.write(text, sb.toString().getBytes(StandardCharsets.UTF_8));
+    compressed = Files.createTempFile("block", ".lz4");
+    BlockFile.compress(text, compressed, BlockFile.MIN_BLOCK_SIZE);
+  }
+
+  @AfterClass
+  public static void tearDown() throws IOException {
+    FileIndex.closeAll();
+    Files.deleteIfExists(Path.of(compressed + ".index"));
+    Files.deleteIfExists(compressed);
+    Files.deleteIfExists(text);
+  }
+
+  @Test
+  public void testLz4() throws IOException {
+    Random r = new Random(2);
+    byte[] random = new byte[BlockFile.MAX_BLOCK_SIZE];
+    r.nextBytes(random);
+    byte[] repeated = new byte[BlockFile.MAX_BLOCK_SIZE];
+    for (int i = 0; i < repeated.length; i++) {
+      repeated[i] = (byte) ('a' + i % 3);
+    }
+    byte[] words = Files.readAllBytes(text);
+    for (byte[] src : new byte[][] {random, repeated, words, new byte[0], "abc".getBytes()}) {
+      int len = Math.min(src.length, BlockFile.MAX_BLOCK_SIZE);
+      byte[] dst = new byte[Lz4.maxCompressedLength(len)];
+      int size = Lz4.compress(src, 0, len, dst, 0);
+      byte[] out = new byte[len];
+      assertEquals(len, Lz4.decompress(dst, 0, size, out, 0, len));
+      for (int i = 0; i < len; i++) {
+        assertEquals(src[i], out[i]);
+      }
+    }
+    byte[] dst = new byte[Lz4.maxCompressedLength(repeated.length)];
+    assertTrue(Lz4.compress(repeated, 0, repeated.length, dst, 0) < repeated.length / 100);
+  }
+
+  @Test
+  public void testRead() throws IOException {
+    assertTrue(BlockFile.isCompressed(compressed));
+    assertFalse(BlockFile.isCompressed(text));
+    byte[] raw = Files.readAllBytes(text);
+    assertTrue(Files.size(compressed) < raw.length);
+    try (FileChannel channel = BlockChannel.open(compressed)) {
+      assertTrue(channel instanceof BlockChannel);
+      assertEquals(raw.length, channel.size());
+      Random r = new Random(3);
+      for (int i = 0; i < 1000; i++) {
+        int pos = r.nextInt(raw.length);
+        int len = Math.min(r.nextInt(3 * BlockFile.MIN_BLOCK_SIZE), raw.length - pos);
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        assertEquals(len, channel.read(buf, pos));
+        assertArrayEquals(slice(raw, pos, len), buf.array());
+      }
+      assertEquals(-1, channel.read(ByteBuffer.allocate(1), raw.length));
+      // Region is sent with a copy
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      int pos = BlockFile.MIN_BLOCK_SIZE - 10;
+      int len = 5 * BlockFile.MIN_BLOCK_SIZE;
+      assertEquals(len, channel.transferTo(pos, len, Channels.newChannel(out)));
+      assertArrayEquals(slice(raw, pos, len), out.toByteArray());
+      // Compressed file is not mapped, a region is read instead
+      try {
+        channel.map(FileChannel.MapMode.READ_ONLY, 0, len);
+        assertTrue(false);
+      } catch (IOException e) {
+        // expected
+      }
+      assertArrayEquals(slice(raw, pos, len), 
+        BlockChannel.map(channel, pos, len).array());
+    }
+  }
+
+  @Test
+  public void testCache() throws IOException {
+    try (FileChannel channel = BlockChannel.open(compressed)) {
+      ByteBuffer buf = ByteBuffer.allocate(10);
+      channel.read(buf, 0);
+      long hits = Metrics.snapshot().get("blocks.cache.hits");
+      long misses = Metrics.snapshot().get("blocks.cache.misses");
+      // Another channel of the same file shares cached blocks
+      try (FileChannel other = BlockChannel.open(compressed)) {
+        buf.clear();
+        other.read(buf, 5);
+      }
+      assertEquals(hits + 1, (long) Metrics.snapshot().get("blocks.cache.hits"));
+      assertEquals(misses, (long) Metrics.snapshot().get("blocks.cache.misses"));
+    }
+  }
+
+  @Test
+  public void testCacheSlabs() throws IOException {
+    // Slots of a cache larger than a slab are carved out of several slabs
+    int n = 7;
+    BlockCache cache = new BlockCache((long) n * BlockCache.SLOT_SIZE + 1000, 3);
+    for (int round = 0; round < 2; round++) {
+      // Every block is cached on the first round
+      boolean miss = round == 0;
+      for (int block = 0; block < n; block++) {
+        byte fill = (byte) block;
+        ByteBuffer dst = ByteBuffer.allocate(BlockCache.SLOT_SIZE);
+        assertEquals(BlockCache.SLOT_SIZE, cache.read(1, block, 0, dst, b -> {
+          assertTrue(miss);
+          ByteBuffer data = ByteBuffer.allocate(BlockCache.SLOT_SIZE);
+          while (data.hasRemaining()) {
+            data.put(fill);
+          }
+          return data.flip();
+        }));
+        for (int i = 0; i < dst.limit(); i++) {
+          assertEquals(fill, dst.get(i));
+        }
+      }
+    }
+    try {
+      new BlockCache(BlockCache.SLOT_SIZE - 1);
+      assertTrue(false);
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testIndexAndScan() throws IOException {
+    // Index of a compressed file has raw text offsets
+    FileIndex.openOrCreate(compressed.toString());
+    FileIndex index = FileIndex.getIndexFor(compressed.toString());
+    assertEquals(LINES + 1, index.getTotalLines());
+    byte[] raw = Files.readAllBytes(text);
+    assertEquals(raw.length, index.getTextLength());
+    try (FileChannel channel = BlockChannel.open(compressed)) {
+      for (long n : new long[] {1, 7, 1000, LINES, LINES + 1}) {
+        FileIndex.Range range = index.getRange(n);
+        ByteBuffer buf = ByteBuffer.allocate((int) range.size);
+        channel.read(buf, range.offset);
+        String line = new String(buf.array(), StandardCharsets.UTF_8);
+        assertTrue(line, n == LINES + 1 ? line.equals("last") : line.startsWith("line " + n + " "));
+      }
+      List<Long> found = new ArrayList<>();
+      LineScanner scanner = new LineScanner("seven", channel, index);
+      long next = scanner.scan(1, index.getTotalLines(), new LineScanner.Output() {
+        @Override
+        public boolean match(long lineNumber, long offset, long size) {
+          found.add(lineNumber);
+          return true;
+        }
+
+        @Override
+        public boolean chunkDone() {
+          return true;
+        }
+      });
+      assertEquals(LINES + 2, next);
+      assertEquals(LINES / 7, found.size());
+      assertEquals(7L, (long) found.get(0));
+    }
+  }
+
+  private static byte[] slice(byte[] buf, int pos, int len) {
+    byte[] b = new byte[len];
+    System.arraycopy(buf, pos, b, 0, len);
+    return b;
+  }
+}
@@ -0,0 +1,52 @@
+package org.bigbase.textprovider.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestStripedHistogram {
+
+  @Test
+  public void testBuckets() {
+    long prev = -1;
+    for (int i = 0; i < 400; i++) {
+      long high = StripedHistogram.highestValue(i);
+      assertTrue(high > prev);
+      assertEquals(i, StripedHistogram.index(prev + 1));
+      assertEquals(i, StripedHistogram.index(high));
+      prev = high;
+    }
+  }
+
+  @Test
+  public void testConcurrentRecording() throws InterruptedException {
+    StripedHistogram h = new StripedHistogram();
+    int threads = 4;
+    int n = 100000;
+    List<Thread> list = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      Thread thread = new Thread(() -> {
+        for (int i = 1; i <= n; i++) {
+          h.record(i);
+        }
+      });
+      thread.start();
+      list.add(thread);
+    }
+    for (Thread t : list) {
+      t.join();
+    }
+    StripedHistogram.Snapshot s = h.snapshot();
+    assertEquals(threads * n, s.getCount());
+    assertEquals(n, s.getMax());
+    assertEquals((n + 1) / 2, s.getMean());
+    long p50 = s.getValueAtPercentile(50);
+    assertTrue(p50 + "", Math.abs(p50 - n / 2) <= n / 2 / 8);
+    long p99 = s.getValueAtPercentile(99);
+    assertTrue(p99 + "", Math.abs(p99 - n * 99 / 100) <= n / 8);
+  }
+}
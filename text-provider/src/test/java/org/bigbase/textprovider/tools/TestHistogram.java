@@ -0,0 +1,81 @@
+package org.bigbase.textprovider.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestHistogram {
+
+  @Test
+  public void testBuckets() {
+    long prev = -1;
+    for (int i = 0; i < 50000; i++) {
+      long high = Histogram.highestValue(i);
+      assertTrue(high > prev);
+      // all values of a bucket map back to it
+      assertEquals(i, Histogram.index(prev + 1));
+      assertEquals(i, Histogram.index(high));
+      prev = high;
+    }
+    assertTrue(Histogram.index(Long.MAX_VALUE) < 56320);
+  }
+
+  @Test
+  public void testPercentiles() {
+    Histogram h = new Histogram();
+    for (int i = 1; i <= 1000000; i++) {
+      h.record(i);
+    }
+    assertEquals(1000000, h.getTotalCount());
+    assertEquals(1, h.getMin());
+    assertEquals(1000000, h.getMax());
+    assertEquals(500000.5, h.getMean(), 0.001);
+    assertRelative(500000, h.getValueAtPercentile(50));
+    assertRelative(990000, h.getValueAtPercentile(99));
+    assertRelative(999900, h.getValueAtPercentile(99.99));
+    assertEquals(1000000, h.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testMerge() {
+    Random r = new Random(1);
+    Histogram a = new Histogram();
+    Histogram b = new Histogram();
+    Histogram all = new Histogram();
+    for (int i = 0; i < 100000; i++) {
+      long v = (long) (r.nextDouble() * 1e9);
+      (i % 2 == 0 ? a : b).record(v);
+      all.record(v);
+    }
+    a.add(b);
+    assertEquals(all.getTotalCount(), a.getTotalCount());
+    for (double p : new double[] {1, 50, 99, 99.9}) {
+      assertEquals(all.getValueAtPercentile(p), a.getValueAtPercentile(p));
+    }
+  }
+
+  @Test
+  public void testCoordinatedOmission() {
+    Histogram raw = new Histogram();
+    Histogram corrected = new Histogram();
+    // 1ms interval, one 100ms stall
+    for (int i = 0; i < 99; i++) {
+      raw.record(1000);
+      corrected.recordWithExpectedInterval(1000, 1000);
+    }
+    raw.record(100000);
+    corrected.recordWithExpectedInterval(100000, 1000);
+    assertEquals(100, raw.getTotalCount());
+    // Requests which would have been sent during the stall
+    assertEquals(199, corrected.getTotalCount());
+    assertEquals(1000, raw.getValueAtPercentile(90));
+    assertTrue(corrected.getValueAtPercentile(90) > 50000);
+  }
+
+  private static void assertRelative(long expected, long actual) {
+    assertTrue(actual + " vs " + expected, Math.abs(actual - expected) <= expected / 1000);
+  }
+}
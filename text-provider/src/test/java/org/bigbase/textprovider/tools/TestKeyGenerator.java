@@ -0,0 +1,49 @@
+package org.bigbase.textprovider.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestKeyGenerator {
+
+  @Test
+  public void testRange() {
+    for (KeyGenerator.Distribution d : KeyGenerator.Distribution.values()) {
+      for (long lines : new long[] {1, 2, 17, 1000000, Long.MAX_VALUE / 4}) {
+        KeyGenerator gen = KeyGenerator.create(d, lines, 0.99, 1);
+        for (int i = 0; i < 10000; i++) {
+          long key = gen.next();
+          assertTrue(d + " " + key, key >= 1 && key <= lines);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSequential() {
+    KeyGenerator gen = KeyGenerator.create(KeyGenerator.Distribution.SEQUENTIAL, 10, 0, 5);
+    long first = gen.next();
+    for (int i = 1; i < 25; i++) {
+      assertEquals((first - 1 + i) % 10 + 1, gen.next());
+    }
+  }
+
+  @Test
+  public void testZipfSkew() {
+    KeyGenerator.Zipf zipf = new KeyGenerator.Zipf(1000, 1.0, 1);
+    Map<Long, Integer> counts = new HashMap<>();
+    int n = 1000000;
+    for (int i = 0; i < n; i++) {
+      counts.merge(zipf.rank(), 1, Integer::sum);
+    }
+    // P(1) = 1 / H(1000) ~ 0.1336, P(2) = P(1) / 2
+    double p1 = counts.get(1L) / (double) n;
+    double p2 = counts.get(2L) / (double) n;
+    assertEquals(0.1336, p1, 0.005);
+    assertEquals(p1 / 2, p2, 0.005);
+  }
+}